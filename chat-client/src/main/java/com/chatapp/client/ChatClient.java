@@ -1,24 +1,90 @@
 package com.chatapp.client;
 
 import com.chatapp.ui.MainWindow;
-import javafx.application.Platform;
 import java.io.*;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ChatClient {
+    private static final int PROTOCOL_VERSION = 3;
+    // With transferTo a chunk costs a couple of system calls, so they can be large; the
+    // server relays up to 1 MB per chunk but a chat message may wait behind one
+    public static final int FILE_CHUNK_SIZE = 256 * 1024;
+    static final int CHUNK_FIELDS_SIZE = 8 + 8 + 4;
+    private static final int MAX_SEND_ATTEMPTS = 3;
+    private static final long RESUME_TIMEOUT_SECONDS = 30;
+    // A clustered server sends each user to its home node; more hops than this mean the
+    // nodes disagree about where that is
+    private static final int MAX_REDIRECTS = 3;
+    // Each connection, handshake included, gives up after this long
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+
+    // Told on the network thread each time a chunk of a file has gone out
+    public interface UploadProgress {
+        void sent(long bytes, long size);
+    }
+
+    // A file the user asked to send, through every attempt until the receiver confirms it
+    private record Upload(File file, String receiver, UploadProgress progress, CompletableFuture<Void> delivered) {
+    }
+
+    // One attempt at sending a file; start completes with the offset the receiver wants, or
+    // -1 if the server turned the transfer down
+    private record OutgoingFile(Upload upload, int attempt, CompletableFuture<Long> start) {
+    }
+
+    // A connection that has finished its handshake
+    private record Connection(SocketChannel channel, FrameReader reader) {
+    }
+
+    // One message of a conversation's history, as stored by the server
+    public record HistoryMessage(long id, long millis, String sender, String text) {
+    }
+
     private String username;
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    // Owns the socket; everything read from it is handled on its thread
+    private final NetworkLoop network;
+    private final AtomicLong nextTransferId = new AtomicLong();
+    private final Map<Long, OutgoingFile> outgoing = new ConcurrentHashMap<>();
+    private final Map<PendingUploads.Entry, Upload> uploads = new ConcurrentHashMap<>();
+    private final PendingUploads pendingUploads;
+    // Hashes files, updates the pending-upload list and connects to the node a redirect
+    // names, off the FX and network threads
+    private final ExecutorService background = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "client-work");
+        thread.setDaemon(true);
+        return thread;
+    });
     private MainWindow mainWindow;
     private volatile boolean running = true;
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     private PrintWriter logWriter;
+    // Last presence sequence number applied; -1 until the first PRESENCE: snapshot arrives
+    private long presenceSeq = -1;
+    private boolean presenceResyncRequested;
+    // Files being received, by transfer ID
+    private final Map<Long, FileDownload> downloads = new HashMap<>();
+    // History pages being received, by peer
+    private final Map<String, List<HistoryMessage>> historyPages = new HashMap<>();
 
     public ChatClient(String username, String host, int port) throws IOException {
         this.username = username;
+        this.pendingUploads = new PendingUploads(username);
         
         // Create logs directory if it doesn't exist
         File logsDir = new File("logs");
@@ -31,20 +97,114 @@ public class ChatClient {
         File logFile = new File(logsDir, "client_" + username + "_" + timestamp + ".log");
         logWriter = new PrintWriter(new FileWriter(logFile, true));
 
-        log("Connecting to server " + host + ":" + port);
-        socket = new Socket(host, port);
-        out = new PrintWriter(socket.getOutputStream(), true);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        
-        // Send username to server
-        out.println(username);
-        log("Connected successfully");
+        Connection connection = connect(host, port);
+        network = new NetworkLoop(this::handleFrame, this::connectionClosed);
+        network.attach(connection.channel(), connection.reader());
         
         // Start listening for messages
-        new Thread(this::receiveMessages).start();
+        new Thread(network, "chat-network").start();
+    }
+
+    // Connects and negotiates the binary protocol, following the server if it sends us to
+    // another cluster node. The handshake blocks, so this never runs on the network thread;
+    // the connection is then handed to it.
+    private Connection connect(String host, int port) throws IOException {
+        for (int redirects = 0; ; redirects++) {
+            log("Connecting to server " + host + ":" + port);
+            SocketChannel socket = SocketChannel.open();
+            // Closing the socket ends a connect or read that is still blocked at the timeout
+            CompletableFuture<Void> handshake = new CompletableFuture<>();
+            handshake.orTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS).exceptionally(timeout -> {
+                closeSocket(socket);
+                return null;
+            });
+            FrameReader reader = new FrameReader(socket);
+            String reply;
+            try {
+                socket.socket().connect(new InetSocketAddress(host, port), (int) TimeUnit.SECONDS.toMillis(CONNECT_TIMEOUT_SECONDS));
+
+                // Negotiate the binary protocol; everything after the server's reply is framed
+                ByteBuffer hello = ByteBuffer.wrap(("HELLO:" + PROTOCOL_VERSION + ":" + username + "\n").getBytes(StandardCharsets.UTF_8));
+                while (hello.hasRemaining()) {
+                    socket.write(hello);
+                }
+                reply = reader.readLine();
+            } catch (IOException e) {
+                closeSocket(socket);
+                throw handshake.isDone() ? new IOException("No answer from " + host + ":" + port) : e;
+            }
+            if (!handshake.complete(null)) {
+                closeSocket(socket);
+                throw new IOException("No answer from " + host + ":" + port);
+            }
+            if (reply != null && reply.startsWith("HELLO:")) {
+                log("Connected successfully (protocol " + reply.substring(6) + ")");
+                return new Connection(socket, reader);
+            }
+            socket.close();
+            if (reply == null || !reply.startsWith("REDIRECT:")) {
+                throw new IOException(reply != null && reply.startsWith("ERROR:") ? reply.substring(6)
+                        : "Server does not support protocol version " + PROTOCOL_VERSION);
+            }
+            if (redirects == MAX_REDIRECTS) {
+                throw new IOException("Too many redirects, last to " + reply.substring(9));
+            }
+            log("Redirected to " + reply.substring(9));
+            int separator = reply.lastIndexOf(':');
+            try {
+                port = Integer.parseInt(reply.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad redirect: " + reply);
+            }
+            host = reply.substring(9, separator);
+        }
     }
 
-    private void log(String message) {
+    // The server wants us on another cluster node, "host:port". Called on the network
+    // thread, which carries on with the old connection while a worker connects to the new
+    // one, then moves to it. The old one is closed only once the new one is up, so the user
+    // never appears offline; file transfers on it are started again on the new one.
+    private void moveTo(String address) {
+        int separator = address.lastIndexOf(':');
+        int port;
+        try {
+            port = separator < 0 ? -1 : Integer.parseInt(address.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            port = -1;
+        }
+        if (port < 0) {
+            log("Ignoring malformed redirect: " + address);
+            return;
+        }
+        if (running) {
+            String host = address.substring(0, separator);
+            int nodePort = port;
+            background.execute(() -> moveTo(host, nodePort));
+        }
+    }
+
+    // Runs on a worker
+    private void moveTo(String host, int port) {
+        try {
+            Connection next = connect(host, port);
+            network.attachLater(next.channel(), next.reader(), this::movedOver);
+        } catch (IOException e) {
+            log("Could not move to " + host + ":" + port + ", staying connected: " + e.getMessage());
+        }
+    }
+
+    // Runs on the network thread once it is on the new connection
+    private void movedOver() {
+        stopTransfers();
+        // Presence sequence numbers are per node, so start over from a new snapshot
+        presenceSeq = -1;
+        if (mainWindow != null) {
+            sendMessage("PRESENCE_SYNC");
+            resumePendingUploads();
+        }
+    }
+
+    public void log(String message) {
         String logMessage = String.format("[%s] %s", LocalDateTime.now().format(formatter), message);
         if (logWriter != null) {
             logWriter.println(logMessage);
@@ -52,21 +212,154 @@ public class ChatClient {
         }
     }
 
-    private void receiveMessages() {
+    // Runs on the network thread for each frame from the server
+    private void handleFrame(int code, ByteBuffer payload) throws IOException {
+        FrameType type = FrameType.fromCode(code);
+        if (type == FrameType.FILE_CHUNK) {
+            if (payload.remaining() < CHUNK_FIELDS_SIZE) {
+                throw new IOException("Malformed file chunk");
+            }
+            handleFileChunk(payload.getLong(), payload.getLong(), payload.getInt(), payload.slice());
+            return;
+        }
+        if (type == null) {
+            log("Ignoring unknown frame type " + code);
+            return;
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        String message = new String(bytes, StandardCharsets.UTF_8);
+        switch (type) {
+            case FILE_START -> handleFileTransfer(message);
+            case PRESENCE -> handlePresence(message);
+            case CONTROL -> handleControl(message);
+            case HISTORY -> handleHistory(message);
+            default -> handleMessage(message);
+        }
+    }
+
+    // The network thread has stopped; cause is null if the server closed the connection
+    private void connectionClosed(IOException cause) {
+        if (cause != null && running) {
+            cause.printStackTrace();
+        }
+        stopTransfers();
+    }
+
+    // Partial files stay on disk and resume when the sender offers them again; files being
+    // sent are offered again after a reconnect
+    private void stopTransfers() {
+        for (FileDownload download : downloads.values()) {
+            download.suspend();
+        }
+        downloads.clear();
+        for (OutgoingFile file : outgoing.values()) {
+            file.start().complete(-1L);
+        }
+    }
+
+    // "<command>:<transferId>[:<argument>]", or "REDIRECT:<host>:<port>"
+    private void handleControl(String message) {
+        if (message.startsWith("REDIRECT:")) {
+            moveTo(message.substring(9));
+            return;
+        }
+        String[] parts = message.split(":", 3);
+        long transferId;
         try {
-            String message;
-            while (running && (message = in.readLine()) != null) {
-                if (message.startsWith("CLIENTS:")) {
-                    handleClientList(message.substring(8));
-                } else if (message.startsWith("FILE:")) {
-                    handleFileTransfer(message.substring(5));
+            transferId = Long.parseLong(parts[1]);
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            log("Ignoring malformed control message: " + message);
+            return;
+        }
+
+        switch (parts[0]) {
+            case "FILE_ABORT" -> {
+                FileDownload download = downloads.remove(transferId);
+                if (download != null) {
+                    download.suspend();
+                    log("File transfer interrupted by sender: " + download.getFileName());
+                    if (mainWindow != null) {
+                        mainWindow.displayMessage(download.getSender(), "File transfer interrupted: " + download.getFileName());
+                    }
+                }
+            }
+            case "FILE_RESUME" -> {
+                OutgoingFile file = outgoing.get(transferId);
+                if (file != null && parts.length == 3) {
+                    file.start().complete(Long.parseLong(parts[2]));
+                }
+            }
+            case "FILE_REJECTED" -> {
+                OutgoingFile file = outgoing.remove(transferId);
+                if (file != null) {
+                    file.start().complete(-1L);
+                }
+            }
+            case "FILE_DONE" -> {
+                OutgoingFile file = outgoing.remove(transferId);
+                if (file != null) {
+                    Upload upload = file.upload();
+                    pendingUploads.remove(upload.receiver(), upload.file());
+                    uploads.remove(new PendingUploads.Entry(upload.receiver(), upload.file()));
+                    log("File delivered: " + upload.file().getName() + " to " + upload.receiver());
+                    upload.delivered().complete(null);
+                }
+            }
+            case "FILE_RETRY" -> {
+                OutgoingFile file = outgoing.remove(transferId);
+                if (file == null) {
+                    return;
+                }
+                Upload upload = file.upload();
+                if (file.attempt() < MAX_SEND_ATTEMPTS) {
+                    log("Receiver asked to resend " + upload.file().getName());
+                    startUpload(upload, file.attempt() + 1);
                 } else {
-                    handleMessage(message);
+                    // Still pending, so it is tried again after the next reconnect
+                    uploads.remove(new PendingUploads.Entry(upload.receiver(), upload.file()));
+                    upload.delivered().completeExceptionally(
+                            new IOException("Receiver could not verify " + upload.file().getName()));
                 }
             }
-        } catch (IOException e) {
-            if (running) {
-                e.printStackTrace();
+            default -> log("Ignoring unknown control message: " + message);
+        }
+    }
+
+    // One frame per message, "peer:id:millis:sender:text", then "peer:END:earlierId"
+    private void handleHistory(String message) {
+        String[] parts = message.split(":", 5);
+        try {
+            if (parts.length == 3 && parts[1].equals("END")) {
+                List<HistoryMessage> page = historyPages.remove(parts[0]);
+                long earlierId = Long.parseLong(parts[2]);
+                if (mainWindow != null) {
+                    mainWindow.showHistory(parts[0], page != null ? page : List.of(), earlierId);
+                }
+            } else if (parts.length == 5) {
+                historyPages.computeIfAbsent(parts[0], peer -> new ArrayList<>())
+                        .add(new HistoryMessage(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3], parts[4]));
+            }
+        } catch (NumberFormatException e) {
+            log("Ignoring malformed history message: " + message);
+        }
+    }
+
+    // Asks for up to limit messages with the peer older than beforeId (0 for the newest);
+    // the page is passed to MainWindow.showHistory
+    public void requestHistory(String peer, long beforeId, int limit) {
+        sendControl("HISTORY:" + peer + ":" + beforeId + ":" + limit);
+    }
+
+    private void handlePresence(String message) {
+        // A presence frame may carry several newline-separated deltas
+        for (String line : message.split("\n")) {
+            if (line.startsWith("CLIENTS:")) {
+                handleClientList(line.substring(8));
+            } else if (line.startsWith("PRESENCE:")) {
+                handlePresenceSnapshot(line.substring(9));
+            } else if (line.startsWith("JOIN:") || line.startsWith("LEAVE:")) {
+                handlePresenceDelta(line);
             }
         }
     }
@@ -77,48 +370,130 @@ public class ChatClient {
         }
     }
 
+    // Snapshot format: "<seq>:user1,user2,..."
+    private void handlePresenceSnapshot(String snapshot) {
+        int separator = snapshot.indexOf(':');
+        if (separator < 0) {
+            return;
+        }
+        presenceSeq = Long.parseLong(snapshot.substring(0, separator));
+        presenceResyncRequested = false;
+        String users = snapshot.substring(separator + 1);
+        if (mainWindow != null) {
+            mainWindow.updateUserList(users.isEmpty() ? new String[0] : users.split(","));
+        }
+    }
+
+    // Delta format: "JOIN:<seq>:user" or "LEAVE:<seq>:user"
+    private void handlePresenceDelta(String message) {
+        String[] parts = message.split(":", 3);
+        if (parts.length != 3) {
+            return;
+        }
+        long seq = Long.parseLong(parts[1]);
+        if (presenceSeq < 0 || seq <= presenceSeq) {
+            // No snapshot yet, or already included in the last one
+            return;
+        }
+        if (seq != presenceSeq + 1) {
+            // Missed an update; ignore deltas until a fresh snapshot arrives
+            if (!presenceResyncRequested) {
+                presenceResyncRequested = true;
+                log("Presence gap (have " + presenceSeq + ", got " + seq + "), requesting resync");
+                sendMessage("PRESENCE_SYNC");
+            }
+            return;
+        }
+
+        presenceSeq = seq;
+        if (mainWindow != null) {
+            if (parts[0].equals("JOIN")) {
+                mainWindow.addUser(parts[2]);
+            } else {
+                mainWindow.removeUser(parts[2]);
+            }
+        }
+    }
+
+    // Header format: "transferId:sender:fileName:size:sha256"; the bytes follow as FILE_CHUNK
+    // frames that start with the same transfer ID. Files with a hash are acknowledged with
+    // FILE_RESUME (where to start), then FILE_DONE or FILE_RETRY.
     private void handleFileTransfer(String message) {
+        int idEnd = message.indexOf(':');
+        int senderEnd = message.indexOf(':', idEnd + 1);
+        int hashStart = message.lastIndexOf(':');
+        int sizeStart = message.lastIndexOf(':', hashStart - 1);
+        if (idEnd < 0 || senderEnd < 0 || sizeStart <= senderEnd) {
+            return;
+        }
         try {
-            String[] parts = message.split(":", 4);
-            if (parts.length == 4) {
-                String sender = parts[0];
-                String fileName = parts[1];
-                long fileSize = Long.parseLong(parts[2]);
-
-                // Create downloads directory if it doesn't exist
-                File downloadDir = new File("downloads");
-                if (!downloadDir.exists()) {
-                    downloadDir.mkdir();
-                }
+            long transferId = Long.parseLong(message.substring(0, idEnd));
+            String sender = message.substring(idEnd + 1, senderEnd);
+            String fileName = new File(message.substring(senderEnd + 1, sizeStart)).getName();
+            long fileSize = Long.parseLong(message.substring(sizeStart + 1, hashStart));
+            String hash = message.substring(hashStart + 1);
 
-                // Create file to save
-                File file = new File(downloadDir, fileName);
-                log("Receiving file: " + fileName + " (" + fileSize + " bytes)");
-                
-                // Read file data
-                FileOutputStream fos = new FileOutputStream(file);
-                InputStream is = socket.getInputStream();
-                byte[] buffer = new byte[4096];
-                long totalRead = 0;
-                
-                while (totalRead < fileSize) {
-                    int read = is.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalRead));
-                    if (read == -1) break;
-                    fos.write(buffer, 0, read);
-                    totalRead += read;
+            // Create downloads directory if it doesn't exist
+            File downloadDir = new File("downloads");
+            if (!downloadDir.exists()) {
+                downloadDir.mkdir();
+            }
+
+            FileDownload download = new FileDownload(downloadDir, sender, fileName, fileSize, hash);
+            log("Receiving file: " + fileName + " (" + fileSize + " bytes, from offset " + download.getOffset() + ")");
+            if (download.isComplete()) {
+                finishDownload(transferId, download);
+                return;
+            }
+            downloads.put(transferId, download);
+            if (download.isResumable()) {
+                sendControl("FILE_RESUME:" + transferId + ":" + download.getOffset());
+            }
+        } catch (IOException | NumberFormatException e) {
+            log("Error receiving file: " + e.getMessage());
+        }
+    }
+
+    // Payload: transfer ID, offset, CRC32C, then the data, which is still in the read buffer
+    private void handleFileChunk(long transferId, long offset, int checksum, ByteBuffer data) {
+        FileDownload download = downloads.get(transferId);
+        if (download == null) {
+            return;
+        }
+        try {
+            if (!download.write(offset, checksum, data)) {
+                // Keep what was verified so far and have the sender offer the file again
+                log("Bad chunk at offset " + offset + " of " + download.getFileName() + ", asking for a resend");
+                downloads.remove(transferId);
+                download.suspend();
+                if (download.isResumable()) {
+                    sendControl("FILE_RETRY:" + transferId);
                 }
-                
-                fos.close();
-                log("File received successfully: " + fileName);
-                
-                // Display message in chat window
-                Platform.runLater(() -> {
-                    mainWindow.displayMessage(sender, "File sent: " + fileName);
-                });
+            } else if (download.isComplete()) {
+                downloads.remove(transferId);
+                finishDownload(transferId, download);
             }
         } catch (IOException e) {
             log("Error receiving file: " + e.getMessage());
-            e.printStackTrace();
+            downloads.remove(transferId);
+            download.suspend();
+        }
+    }
+
+    private void finishDownload(long transferId, FileDownload download) throws IOException {
+        if (!download.finish()) {
+            log("File failed verification, asking for a resend: " + download.getFileName());
+            sendControl("FILE_RETRY:" + transferId);
+            return;
+        }
+        if (download.isResumable()) {
+            sendControl("FILE_DONE:" + transferId);
+        }
+        log("File received successfully: " + download.getFileName());
+
+        // Display message in chat window
+        if (mainWindow != null) {
+            mainWindow.displayMessage(download.getSender(), "File sent: " + download.getFileName());
         }
     }
 
@@ -128,55 +503,152 @@ public class ChatClient {
             String sender = parts[0];
             String content = parts[1];
             
-            Platform.runLater(() -> {
-                if (mainWindow != null) {
-                    mainWindow.displayMessage(sender, content);
-                }
-            });
+            if (mainWindow != null) {
+                mainWindow.displayMessage(sender, content);
+            }
         }
     }
 
-    public void sendFile(File file, String receiver) {
+    // Queues the file and returns at once. It is hashed and offered to the receiver on a
+    // worker thread, and its chunks go out from the network thread, taking turns with chat
+    // and other files. progress hears about each chunk; the future completes when the
+    // receiver confirms the file. Until then it stays pending, and is offered again after
+    // a reconnect.
+    public CompletableFuture<Void> sendFile(File file, String receiver, UploadProgress progress) {
+        Upload upload = new Upload(file.getAbsoluteFile(), receiver, progress, new CompletableFuture<>());
+        background.execute(() -> {
+            pendingUploads.add(receiver, upload.file());
+            uploads.put(new PendingUploads.Entry(receiver, upload.file()), upload);
+            offerFile(upload, 1);
+        });
+        return upload.delivered();
+    }
+
+    public CompletableFuture<Void> sendFile(File file, String receiver) {
+        return sendFile(file, receiver, (bytes, size) -> { });
+    }
+
+    private void startUpload(Upload upload, int attempt) {
+        background.execute(() -> offerFile(upload, attempt));
+    }
+
+    private void resumePendingUploads() {
+        background.execute(() -> {
+            for (PendingUploads.Entry entry : pendingUploads.getEntries()) {
+                if (entry.file().isFile()) {
+                    log("Resuming file transfer to " + entry.receiver() + ": " + entry.file().getName());
+                    offerFile(uploads.computeIfAbsent(entry, pending -> new Upload(pending.file(), pending.receiver(),
+                            (bytes, size) -> { }, new CompletableFuture<>())), 1);
+                } else {
+                    pendingUploads.remove(entry.receiver(), entry.file());
+                }
+            }
+        });
+    }
+
+    // Runs on a worker thread, as hashing reads the whole file. The rest of the transfer is
+    // driven by the receiver's reply, on the network thread.
+    private void offerFile(Upload upload, int attempt) {
+        long transferId = nextTransferId.incrementAndGet();
+        OutgoingFile outgoingFile = new OutgoingFile(upload, attempt, new CompletableFuture<>());
+        FileSource input = null;
         try {
-            log("Sending file to " + receiver + ": " + file.getName());
-            out.println("FILE:" + receiver + ":" + file.getName() + ":" + file.length());
-            
-            byte[] buffer = new byte[4096];
-            FileInputStream fis = new FileInputStream(file);
-            OutputStream os = socket.getOutputStream();
-            
-            int count;
-            long totalSent = 0;
-            while ((count = fis.read(buffer)) > 0) {
-                os.write(buffer, 0, count);
-                totalSent += count;
-            }
-            os.flush();
-            fis.close();
-            log("File sent successfully: " + file.getName() + " (" + totalSent + " bytes)");
+            input = new FileSource(upload.file());
+            String header = transferId + ":" + upload.receiver() + ":" + upload.file().getName() + ":"
+                    + input.size() + ":" + input.sha256();
+            outgoing.put(transferId, outgoingFile);
+            network.send(FrameType.FILE_START, header.getBytes(StandardCharsets.UTF_8));
         } catch (IOException e) {
             log("Error sending file: " + e.getMessage());
-            e.printStackTrace();
+            outgoing.remove(transferId);
+            close(input);
+            upload.delivered().completeExceptionally(e);
+            return;
         }
+        FileSource source = input;
+        // Wait for the receiver to say how much it already has
+        outgoingFile.start().orTimeout(RESUME_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenComplete((offset, error) -> sendChunks(transferId, upload, source, offset, error));
     }
 
-    public void sendMessage(String message) {
-        out.println(message);
-        log("Sent message: " + message);
+    private void sendChunks(long transferId, Upload upload, FileSource input, Long offset, Throwable error) {
+        String fileName = upload.file().getName();
+        long size = input.size();
+        if (error != null || offset < 0) {
+            if (error instanceof TimeoutException) {
+                log("Error sending file: no answer from " + upload.receiver() + " about " + fileName);
+            } else if (error != null) {
+                log("Error sending file: " + error.getMessage());
+            } else {
+                log("File transfer to " + upload.receiver() + " not possible now, will retry after reconnecting: " + fileName);
+            }
+            outgoing.remove(transferId);
+            close(input);
+            return;
+        }
+        if (offset >= size) {
+            close(input);
+            upload.progress().sent(size, size);
+            log("File sent: " + fileName + " (" + size + " bytes), waiting for confirmation");
+            return;
+        }
+        log("Sending file to " + upload.receiver() + ": " + fileName + " from offset " + offset);
+        network.send(new FileSend(transferId, input, offset, sent -> {
+            upload.progress().sent(sent, size);
+            if (sent == size) {
+                log("File sent: " + fileName + " (" + size + " bytes), waiting for confirmation");
+            }
+        }));
     }
 
-    public void disconnect() {
-        running = false;
+    private void close(FileSource input) {
         try {
-            log("Disconnecting from server");
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+            if (input != null) {
+                input.close();
             }
-            if (logWriter != null) {
-                logWriter.close();
+        } catch (IOException e) {
+            // Only read from
+        }
+    }
+
+    // Queues the message and returns at once; the future completes once it has been
+    // written to the socket
+    public CompletableFuture<Void> sendMessage(String message) {
+        FrameType type = message.equals("REFRESH_USERS") || message.equals("PRESENCE_SYNC")
+                ? FrameType.PRESENCE : FrameType.CHAT;
+        return network.send(type, message.getBytes(StandardCharsets.UTF_8)).whenComplete((ignored, error) -> {
+            if (error == null) {
+                log("Sent message: " + message);
+            } else {
+                log("Error sending message: " + error.getMessage());
+            }
+        });
+    }
+
+    private void sendControl(String message) {
+        network.send(FrameType.CONTROL, message.getBytes(StandardCharsets.UTF_8)).whenComplete((ignored, error) -> {
+            if (error != null) {
+                log("Error sending control message: " + error.getMessage());
             }
+        });
+    }
+
+    private static void closeSocket(SocketChannel socket) {
+        try {
+            socket.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            // Never used
+        }
+    }
+
+    public void disconnect() {
+        running = false;
+        log("Disconnecting from server");
+        // The network thread closes the connection
+        network.close();
+        background.shutdownNow();
+        if (logWriter != null) {
+            logWriter.close();
         }
     }
 
@@ -187,5 +659,8 @@ public class ChatClient {
     public void setMainWindow(MainWindow window) {
         this.mainWindow = window;
         window.setClient(this);
+        // Switch to incremental presence now that there is a window to apply it to
+        sendMessage("PRESENCE_SYNC");
+        resumePendingUploads();
     }
 } 
\ No newline at end of file
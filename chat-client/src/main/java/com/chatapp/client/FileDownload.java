@@ -0,0 +1,209 @@
+package com.chatapp.client;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+// A file being received. Resumable files (those sent with a content hash) are written to
+// <name>.part, and every verified chunk is appended to <name>.part.manifest, so after a
+// dropped connection the transfer picks up at the last verified offset instead of byte 0.
+// Files without a hash are written straight to their final name. Chunks are written from
+// the connection's direct read buffer with positional FileChannel writes.
+class FileDownload {
+    private static final int VERIFY_BUFFER_SIZE = 64 * 1024;
+
+    private final String sender;
+    private final String fileName;
+    private final long size;
+    private final String hash;
+    private final File target;
+    private final File partFile;
+    private final File manifestFile;
+    private final MessageDigest digest;
+    private FileChannel out;
+    private Writer manifest;
+    private long offset;
+
+    FileDownload(File downloadDir, String sender, String fileName, long size, String hash) throws IOException {
+        this.sender = sender;
+        this.fileName = fileName;
+        this.size = size;
+        this.hash = hash;
+        this.target = new File(downloadDir, fileName);
+        this.partFile = new File(downloadDir, fileName + ".part");
+        this.manifestFile = new File(downloadDir, fileName + ".part.manifest");
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        if (!isResumable()) {
+            out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            return;
+        }
+        List<String> verified = loadManifest();
+        out = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        manifest = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifestFile), StandardCharsets.UTF_8));
+        manifest.write(hash + " " + size + "\n");
+        for (String entry : verified) {
+            manifest.write(entry + "\n");
+        }
+        manifest.flush();
+    }
+
+    // Re-checks the chunks a previous attempt recorded against the partial file and keeps
+    // the verified prefix. Returns the manifest entries for that prefix.
+    private List<String> loadManifest() throws IOException {
+        List<String> verified = new ArrayList<>();
+        if (!manifestFile.exists() || !partFile.exists()) {
+            partFile.delete();
+            return verified;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifestFile, StandardCharsets.UTF_8));
+             InputStream part = new BufferedInputStream(new FileInputStream(partFile))) {
+            if (!(hash + " " + size).equals(reader.readLine())) {
+                // A different file with the same name; start over
+                return truncatePart(verified);
+            }
+            byte[] buffer = new byte[VERIFY_BUFFER_SIZE];
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 3 || Long.parseLong(fields[0]) != offset) {
+                    break;
+                }
+                int length = Integer.parseInt(fields[1]);
+                CRC32C crc = new CRC32C();
+                for (int done = 0; done < length; ) {
+                    int read = part.read(buffer, 0, Math.min(buffer.length, length - done));
+                    if (read == -1) {
+                        return restartDigest(verified);
+                    }
+                    crc.update(buffer, 0, read);
+                    digest.update(buffer, 0, read);
+                    done += read;
+                }
+                if ((int) crc.getValue() != Integer.parseInt(fields[2])) {
+                    return restartDigest(verified);
+                }
+                verified.add(line);
+                offset += length;
+            }
+        } catch (NumberFormatException e) {
+            return restartDigest(verified);
+        }
+        return truncatePart(verified);
+    }
+
+    // The digest already took in part of a chunk that didn't verify; rebuild it from the kept prefix
+    private List<String> restartDigest(List<String> verified) throws IOException {
+        digest.reset();
+        try (InputStream part = new BufferedInputStream(new FileInputStream(partFile))) {
+            byte[] buffer = new byte[VERIFY_BUFFER_SIZE];
+            for (long done = 0; done < offset; ) {
+                int read = part.read(buffer, 0, (int) Math.min(buffer.length, offset - done));
+                digest.update(buffer, 0, read);
+                done += read;
+            }
+        }
+        return truncatePart(verified);
+    }
+
+    private List<String> truncatePart(List<String> verified) throws IOException {
+        if (verified.isEmpty()) {
+            offset = 0;
+            digest.reset();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(partFile, "rw")) {
+            file.setLength(offset);
+        }
+        return verified;
+    }
+
+    boolean isResumable() {
+        return !hash.isEmpty();
+    }
+
+    // Where the sender should continue from
+    long getOffset() {
+        return offset;
+    }
+
+    // Appends a chunk if it is the next one and its checksum matches. Returns false otherwise;
+    // the download then has to be offered again.
+    boolean write(long chunkOffset, int checksum, ByteBuffer data) throws IOException {
+        if (chunkOffset != offset) {
+            return false;
+        }
+        int length = data.remaining();
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return false;
+        }
+        digest.update(data.duplicate());
+        for (long position = offset; data.hasRemaining(); ) {
+            position += out.write(data, position);
+        }
+        if (manifest != null) {
+            manifest.write(offset + " " + length + " " + checksum + "\n");
+            manifest.flush();
+        }
+        offset += length;
+        return true;
+    }
+
+    boolean isComplete() {
+        return offset >= size;
+    }
+
+    // Closes the file and, for resumable downloads, checks it against the sender's hash.
+    // Returns false (and deletes the file) if it doesn't match.
+    boolean finish() throws IOException {
+        out.close();
+        if (!isResumable()) {
+            return true;
+        }
+        manifest.close();
+        manifestFile.delete();
+        if (!HexFormat.of().formatHex(digest.digest()).equalsIgnoreCase(hash)) {
+            partFile.delete();
+            return false;
+        }
+        target.delete();
+        return partFile.renameTo(target);
+    }
+
+    // Closes the files but keeps the partial download, so it can be resumed
+    void suspend() {
+        try {
+            out.close();
+            if (manifest != null) {
+                manifest.close();
+            }
+        } catch (IOException e) {
+            // Nothing more to write
+        }
+        if (!isResumable()) {
+            target.delete();
+        }
+    }
+
+    String getSender() {
+        return sender;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+}
@@ -0,0 +1,78 @@
+package com.chatapp.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.function.LongConsumer;
+
+// A file going out as FILE_CHUNK frames from the network thread, one chunk per turn. Each
+// chunk's header is built in a small buffer and its data goes straight from the file with
+// transferTo; the socket is non-blocking, so a chunk may take several writes to get out.
+// The file is closed once the last chunk is written or the send is abandoned.
+final class FileSend implements NetworkLoop.Send {
+    private final long transferId;
+    private final FileSource input;
+    // Told the offset reached after each chunk
+    private final LongConsumer progress;
+    private final ByteBuffer header = ByteBuffer.allocate(5 + ChatClient.CHUNK_FIELDS_SIZE);
+    private long offset;
+    // End of the chunk being written; equal to offset between chunks
+    private long chunkEnd;
+
+    FileSend(long transferId, FileSource input, long offset, LongConsumer progress) {
+        this.transferId = transferId;
+        this.input = input;
+        this.offset = offset;
+        this.chunkEnd = offset;
+        this.progress = progress;
+    }
+
+    @Override
+    public boolean write(SocketChannel channel) throws IOException {
+        if (offset == chunkEnd) {
+            int length = (int) Math.min(ChatClient.FILE_CHUNK_SIZE, input.size() - offset);
+            header.clear().put(FrameType.FILE_CHUNK.getCode()).putInt(ChatClient.CHUNK_FIELDS_SIZE + length)
+                    .putLong(transferId).putLong(offset).putInt(input.checksum(offset, length)).flip();
+            chunkEnd = offset + length;
+        }
+        if (header.hasRemaining()) {
+            channel.write(header);
+            if (header.hasRemaining()) {
+                return false;
+            }
+        }
+        offset += input.transferAvailable(offset, chunkEnd - offset, channel);
+        if (offset < chunkEnd) {
+            return false;
+        }
+        if (!hasMore()) {
+            closeInput();
+        }
+        progress.accept(offset);
+        return true;
+    }
+
+    @Override
+    public boolean hasMore() {
+        return offset < input.size();
+    }
+
+    @Override
+    public boolean restart() {
+        // The receiver on the new connection says where to start; the file is offered again there
+        return false;
+    }
+
+    @Override
+    public void abandon(IOException cause) {
+        closeInput();
+    }
+
+    private void closeInput() {
+        try {
+            input.close();
+        } catch (IOException e) {
+            // Only read from
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.chatapp.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+// A file being sent. Its bytes go to the socket with FileChannel.transferTo, which the
+// kernel serves straight from the page cache (sendfile on Linux) where it can; hashes and
+// chunk checksums read the file through memory-mapped windows. Either way the data never
+// passes through a heap buffer.
+public class FileSource implements Closeable {
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final int HASH_STEP = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    public FileSource(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    // The given region of the file, valid until the next call
+    private ByteBuffer region(long position, int length) throws IOException {
+        if (window == null || position < windowStart || position + length > windowStart + window.capacity()) {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(WINDOW_SIZE, length), size - position));
+        }
+        return window.slice((int) (position - windowStart), length);
+    }
+
+    public int checksum(long position, int length) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(region(position, length));
+        return (int) crc.getValue();
+    }
+
+    public String sha256() throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (long position = 0; position < size; position += HASH_STEP) {
+                digest.update(region(position, (int) Math.min(HASH_STEP, size - position)));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // Writes what a non-blocking target takes of the region right now, which may be nothing;
+    // returns how much that was
+    public long transferAvailable(long position, long length, WritableByteChannel target) throws IOException {
+        long sent = channel.transferTo(position, length, target);
+        if (sent <= 0 && channel.size() <= position) {
+            throw new IOException("File shrank while being sent");
+        }
+        return sent;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,99 @@
+package com.chatapp.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Reads the server's stream through one large direct buffer. File chunk data is handed out
+// as a view of that buffer, so it goes from the socket to the file without a heap copy.
+// (FileChannel.transferFrom would not help here: from a socket the JDK copies through a
+// small temporary buffer, and the data has to be checksummed before it is kept anyway.)
+//
+// The handshake reads through it blocking; after that the client's network thread reads
+// whatever the socket has with readAvailable and takes complete frames with nextFrame.
+public class FrameReader {
+    // Room for the largest frame the server relays (a 1 MB chunk) plus its header
+    public static final int BUFFER_SIZE = (1 << 20) + 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private int frameCode;
+
+    public FrameReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.flip();
+    }
+
+    // Makes at least count bytes readable; false if the stream ends first
+    private boolean fill(int count) throws IOException {
+        if (buffer.remaining() >= count) {
+            return true;
+        }
+        buffer.compact();
+        try {
+            while (buffer.position() < count) {
+                if (channel.read(buffer) == -1) {
+                    return false;
+                }
+            }
+        } finally {
+            buffer.flip();
+        }
+        return true;
+    }
+
+    // Reads what a non-blocking channel has ready, without waiting for more; false at end
+    // of stream
+    public boolean readAvailable() throws IOException {
+        buffer.compact();
+        try {
+            return channel.read(buffer) != -1;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    // The payload of the next frame if all of it has arrived, or null. It is a view of the
+    // read buffer, valid until the next read; frameCode() gives its type.
+    public ByteBuffer nextFrame() throws IOException {
+        if (buffer.remaining() < 5) {
+            return null;
+        }
+        int start = buffer.position();
+        int length = buffer.getInt(start + 1);
+        if (length < 0 || length > buffer.capacity() - 5) {
+            throw new IOException("Frame too large: " + length + " bytes");
+        }
+        if (buffer.remaining() < 5 + length) {
+            return null;
+        }
+        frameCode = buffer.get(start) & 0xff;
+        buffer.position(start + 5 + length);
+        return buffer.slice(start + 5, length);
+    }
+
+    public int frameCode() {
+        return frameCode;
+    }
+
+    // Reads a plain line (the handshake reply); null at end of stream
+    public String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = read()) != '\n') {
+            if (b == -1) {
+                return null;
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    // Returns -1 at end of stream
+    public int read() throws IOException {
+        return fill(1) ? buffer.get() & 0xff : -1;
+    }
+}
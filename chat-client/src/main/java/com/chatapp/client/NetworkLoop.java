@@ -0,0 +1,259 @@
+package com.chatapp.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+// The client's one network thread. The connection's socket is non-blocking under a
+// selector: frames from the server are passed on as soon as all of their bytes are in, and
+// sends wait in an outbound queue until the socket takes them. Any thread can queue a send
+// and carry on, so the UI never waits on the network, and requests can be sent one after
+// another without waiting for the replies.
+//
+// Sends take turns. A file gets one chunk per turn and then goes to the back of the queue,
+// so a chat message waits behind at most one chunk of each file being sent.
+final class NetworkLoop implements Runnable {
+    interface FrameHandler {
+        // The payload is a view of the read buffer, valid until this returns
+        void frame(int code, ByteBuffer payload) throws IOException;
+    }
+
+    // Something waiting to be written
+    interface Send {
+        // Writes as much as the socket takes; true once this turn's bytes are all out
+        boolean write(SocketChannel channel) throws IOException;
+
+        // Whether it needs another turn
+        boolean hasMore();
+
+        // Goes back to its start for a new connection; false if it can't be carried over
+        boolean restart();
+
+        // It won't be written
+        void abandon(IOException cause);
+    }
+
+    // A connection to move to once the loop gets to it
+    private record Move(SocketChannel channel, FrameReader reader, Runnable moved) {
+    }
+
+    private final FrameHandler handler;
+    // Told once the loop has stopped; null if the server closed the connection
+    private final Consumer<IOException> closed;
+    private final Selector selector;
+    // Filled by any thread; the network thread moves them to the queue
+    private final Queue<Send> submitted = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Send> queue = new ArrayDeque<>();
+    private final Queue<Move> moves = new ConcurrentLinkedQueue<>();
+    private SocketChannel channel;
+    private FrameReader reader;
+    private SelectionKey key;
+    private volatile boolean running = true;
+
+    NetworkLoop(FrameHandler handler, Consumer<IOException> closed) throws IOException {
+        this.handler = handler;
+        this.closed = closed;
+        this.selector = Selector.open();
+    }
+
+    // Moves the loop to a connection that has finished its handshake, closing the one it
+    // was on. Frames still queued go out on the new one from their start; files can't be
+    // carried over and are dropped. Called before the loop starts, or on its thread.
+    void attach(SocketChannel next, FrameReader nextReader) throws IOException {
+        next.configureBlocking(false);
+        SelectionKey nextKey = next.register(selector, SelectionKey.OP_READ);
+        if (channel != null) {
+            key.cancel();
+            closeChannel();
+            IOException moved = new IOException("Moved to another connection");
+            queue.removeIf(send -> {
+                if (send.restart()) {
+                    return false;
+                }
+                send.abandon(moved);
+                return true;
+            });
+        }
+        channel = next;
+        reader = nextReader;
+        key = nextKey;
+        updateInterest();
+    }
+
+    // Like attach, from any thread: the network thread moves to the connection between
+    // turns and then runs moved. If the loop has stopped, the connection is closed instead.
+    void attachLater(SocketChannel next, FrameReader nextReader, Runnable moved) {
+        moves.add(new Move(next, nextReader, moved));
+        if (!running) {
+            closeMoves();
+            return;
+        }
+        selector.wakeup();
+    }
+
+    // Queues a frame; the future completes once all of it has been written
+    CompletableFuture<Void> send(FrameType type, byte[] payload) {
+        FrameSend send = new FrameSend(ByteBuffer.allocate(5 + payload.length)
+                .put(type.getCode()).putInt(payload.length).put(payload).flip());
+        send(send);
+        return send.written;
+    }
+
+    void send(Send send) {
+        submitted.add(send);
+        if (!running) {
+            // The loop has already abandoned what it had; this came in after
+            abandonSubmitted(new IOException("Not connected"));
+            return;
+        }
+        selector.wakeup();
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        IOException cause = null;
+        try {
+            // The handshake may have read frames past its reply
+            dispatchFrames();
+            while (running) {
+                selector.select();
+                boolean readable = selector.selectedKeys().remove(key) && key.isReadable();
+                if (readable) {
+                    if (!reader.readAvailable()) {
+                        break;
+                    }
+                    dispatchFrames();
+                }
+                for (Move move; (move = moves.poll()) != null; ) {
+                    attach(move.channel(), move.reader());
+                    move.moved().run();
+                    // The handshake may have read frames past its reply
+                    dispatchFrames();
+                }
+                writeQueued();
+            }
+        } catch (IOException e) {
+            cause = e;
+        } finally {
+            running = false;
+            closeChannel();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing left to select
+            }
+            IOException abandoned = cause != null ? cause : new IOException("Connection closed");
+            queue.forEach(send -> send.abandon(abandoned));
+            queue.clear();
+            abandonSubmitted(abandoned);
+            closeMoves();
+            closed.accept(cause);
+        }
+    }
+
+    // A frame's handler may move the loop to another connection; the frames after it are
+    // then read from that one
+    private void dispatchFrames() throws IOException {
+        ByteBuffer payload;
+        while ((payload = reader.nextFrame()) != null) {
+            handler.frame(reader.frameCode(), payload);
+        }
+    }
+
+    // Gives each queued send one turn, so incoming frames are read between turns even while
+    // the socket keeps taking a large file
+    private void writeQueued() throws IOException {
+        for (Send send; (send = submitted.poll()) != null; ) {
+            queue.add(send);
+        }
+        for (int turns = queue.size(); turns > 0; turns--) {
+            Send send = queue.peek();
+            if (!send.write(channel)) {
+                // The socket is full; OP_WRITE says when it has room
+                break;
+            }
+            queue.poll();
+            if (send.hasMore()) {
+                queue.add(send);
+            }
+        }
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        key.interestOps(queue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void abandonSubmitted(IOException cause) {
+        for (Send send; (send = submitted.poll()) != null; ) {
+            send.abandon(cause);
+        }
+    }
+
+    private void closeMoves() {
+        for (Move move; (move = moves.poll()) != null; ) {
+            try {
+                move.channel().close();
+            } catch (IOException e) {
+                // Never used
+            }
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Already unusable
+        }
+    }
+
+    private static final class FrameSend implements Send {
+        private final ByteBuffer frame;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        FrameSend(ByteBuffer frame) {
+            this.frame = frame;
+        }
+
+        @Override
+        public boolean write(SocketChannel channel) throws IOException {
+            channel.write(frame);
+            if (frame.hasRemaining()) {
+                return false;
+            }
+            written.complete(null);
+            return true;
+        }
+
+        @Override
+        public boolean hasMore() {
+            return false;
+        }
+
+        @Override
+        public boolean restart() {
+            frame.rewind();
+            return true;
+        }
+
+        @Override
+        public void abandon(IOException cause) {
+            written.completeExceptionally(cause);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.chatapp.client;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Files this user has started sending that the receiver hasn't confirmed yet, kept in
+// transfers/<username>.pending so they are offered again after a reconnect
+class PendingUploads {
+    record Entry(String receiver, File file) {
+    }
+
+    private final File store;
+    private final List<Entry> entries = new ArrayList<>();
+
+    PendingUploads(String username) {
+        File dir = new File("transfers");
+        if (!dir.exists()) {
+            dir.mkdir();
+        }
+        store = new File(dir, username + ".pending");
+        if (store.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(store, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab > 0) {
+                        entries.add(new Entry(line.substring(0, tab), new File(line.substring(tab + 1))));
+                    }
+                }
+            } catch (IOException e) {
+                // Start with an empty list
+            }
+        }
+    }
+
+    synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    synchronized void add(String receiver, File file) {
+        Entry entry = new Entry(receiver, file.getAbsoluteFile());
+        if (!entries.contains(entry)) {
+            entries.add(entry);
+            save();
+        }
+    }
+
+    synchronized void remove(String receiver, File file) {
+        if (entries.remove(new Entry(receiver, file.getAbsoluteFile()))) {
+            save();
+        }
+    }
+
+    private void save() {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(store), StandardCharsets.UTF_8)) {
+            for (Entry entry : entries) {
+                writer.write(entry.receiver() + "\t" + entry.file().getPath() + "\n");
+            }
+        } catch (IOException e) {
+            // Only costs a resend after the next reconnect
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.chatapp.ui;
+
+// One message in a chat tab's transcript. fileName is set for a received file, which the
+// message offers to open.
+record ChatMessage(String sender, String text, boolean sent, String fileName) {
+    // The record and up to three strings, each with its own byte array
+    private static final int OVERHEAD_BYTES = 24 + 3 * (24 + 16);
+
+    static ChatMessage sent(String sender, String text) {
+        return new ChatMessage(sender, text, true, null);
+    }
+
+    static ChatMessage received(String sender, String text) {
+        return new ChatMessage(sender, text, false, null);
+    }
+
+    // Roughly what the message takes on the heap, counting two bytes a character
+    long estimatedBytes() {
+        return OVERHEAD_BYTES + 2L * (sender.length() + text.length() + (fileName != null ? fileName.length() : 0));
+    }
+}
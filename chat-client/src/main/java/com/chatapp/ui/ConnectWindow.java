@@ -1,6 +1,7 @@
 package com.chatapp.ui;
 
 import com.chatapp.client.ChatClient;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -12,6 +13,7 @@ public class ConnectWindow {
     private TextField usernameField;
     private TextField hostField;
     private TextField portField;
+    private Button connectButton;
 
     public void show(Stage stage) {
         VBox root = new VBox(10);
@@ -32,7 +34,7 @@ public class ConnectWindow {
         portField = new TextField("5001");
 
         // Connect button
-        Button connectButton = new Button("Connect");
+        connectButton = new Button("Connect");
         connectButton.setOnAction(e -> connect(stage));
 
         root.getChildren().addAll(
@@ -49,26 +51,41 @@ public class ConnectWindow {
     }
 
     private void connect(Stage stage) {
+        String username = usernameField.getText().trim();
+        String host = hostField.getText().trim();
+        int port;
         try {
-            String username = usernameField.getText().trim();
-            String host = hostField.getText().trim();
-            int port = Integer.parseInt(portField.getText().trim());
-
-            if (username.isEmpty()) {
-                showError("Username cannot be empty");
-                return;
-            }
-
-            ChatClient client = new ChatClient(username, host, port);
-            MainWindow mainWindow = new MainWindow(client);
-            mainWindow.show(new Stage());
-            stage.close();
+            port = Integer.parseInt(portField.getText().trim());
         } catch (NumberFormatException e) {
             showError("Invalid port number");
-        } catch (Exception e) {
-            showError("Connection error: " + e.getMessage());
-            e.printStackTrace();
+            return;
         }
+
+        if (username.isEmpty()) {
+            showError("Username cannot be empty");
+            return;
+        }
+
+        // Connecting waits on the network, so it happens off the FX thread
+        connectButton.setDisable(true);
+        Thread connector = new Thread(() -> {
+            try {
+                ChatClient client = new ChatClient(username, host, port);
+                Platform.runLater(() -> {
+                    MainWindow mainWindow = new MainWindow(client);
+                    mainWindow.show(new Stage());
+                    stage.close();
+                });
+            } catch (Exception e) {
+                Platform.runLater(() -> {
+                    connectButton.setDisable(false);
+                    showError("Connection error: " + e.getMessage());
+                });
+                e.printStackTrace();
+            }
+        }, "connect");
+        connector.setDaemon(true);
+        connector.start();
     }
 
     private void showError(String message) {
@@ -5,11 +5,10 @@ import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.scene.control.skin.VirtualFlow;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
-import javafx.scene.text.Text;
-import javafx.scene.paint.Color;
 import javafx.scene.layout.Region;
 import javafx.geometry.Pos;
 import javafx.scene.layout.Priority;
@@ -25,14 +24,43 @@ public class MainWindow {
     private TabPane tabPane;
     private Map<String, Tab> chatTabs;
     private ListView<String> activeUsersList;
+    private final UserDirectory userDirectory = new UserDirectory();
     private ListView<String> connectedUsersList;
     private TextArea currentChatArea;
-    private static final Color SENT_COLOR = Color.rgb(220, 248, 198);
-    private static final Color RECEIVED_COLOR = Color.rgb(229, 229, 229);
+    private static final String STYLESHEET = MainWindow.class.getResource("chat.css").toExternalForm();
+    private static final int HISTORY_PAGE_SIZE = 50;
+    // Messages each chat tab keeps in memory; older ones are paged in from disk
+    private static final int TRANSCRIPT_MESSAGES = Integer.getInteger("chat.client.transcriptMessages", 500);
+    private Map<String, ChatHistory> histories;
+    // Network updates reach the FX thread through here, a pulse's worth at a time
+    private final UiDispatcher ui = new UiDispatcher(this::scrollToNewest,
+            message -> client.log(message + "; " + describeTranscripts()));
+    // Tabs that received messages in the current pass; each scrolls once at the end of it
+    private final Set<ChatHistory> scrollPending = new HashSet<>();
+
+    // Transcript and scrollback state of a chat tab
+    private static final class ChatHistory {
+        private final TranscriptCache cache;
+        private final ListView<ChatMessage> transcript;
+        private final Hyperlink loadEarlier = new Hyperlink("Load earlier messages");
+        // Shown while files from this tab are going out
+        private final ProgressBar upload = new ProgressBar(0);
+        private int uploading;
+        private long earlierId;
+        private boolean waitingForFirstPage = true;
+        // Sender and text of the messages shown before the first page arrived
+        private final List<String[]> shown = new ArrayList<>();
+
+        private ChatHistory(TranscriptCache cache) {
+            this.cache = cache;
+            this.transcript = new ListView<>(cache.messages());
+        }
+    }
 
     public MainWindow(ChatClient client) {
         this.client = client;
         this.chatTabs = new HashMap<>();
+        this.histories = new HashMap<>();
         client.setMainWindow(this);
     }
 
@@ -53,6 +81,7 @@ public class MainWindow {
         tabPane.getTabs().addAll(activeUsersTab, connectedUsersTab);
 
         Scene scene = new Scene(tabPane, 800, 600);
+        scene.getStylesheets().add(STYLESHEET);
         stage.setTitle("Chat Application - " + client.getUsername());
         stage.setScene(scene);
         stage.setOnCloseRequest(e -> client.disconnect());
@@ -73,12 +102,18 @@ public class MainWindow {
         refreshButton.setOnAction(e -> client.sendMessage("REFRESH_USERS"));
         headerBox.getChildren().addAll(titleLabel, refreshButton);
 
-        activeUsersList = new ListView<>();
+        // Narrows the list to names starting with what is typed, as it is typed
+        TextField searchField = new TextField();
+        searchField.setPromptText("Search users...");
+        searchField.textProperty().addListener((obs, old, text) -> userDirectory.filter(text.trim()));
+
+        activeUsersList = new ListView<>(userDirectory.shown());
         Button chatButton = new Button("Start Chat");
         chatButton.setOnAction(e -> startChat());
 
         content.getChildren().addAll(
             headerBox,
+            searchField,
             activeUsersList,
             chatButton
         );
@@ -145,18 +180,25 @@ public class MainWindow {
         BorderPane content = new BorderPane();
         content.setPadding(new Insets(10));
 
-        // Chat area using VBox
-        VBox chatArea = new VBox(10);
-        chatArea.setPadding(new Insets(10));
-        ScrollPane scrollPane = new ScrollPane(chatArea);
-        scrollPane.setFitToWidth(true);
-        scrollPane.setVvalue(1.0);
-        chatArea.heightProperty().addListener((obs, old, val) -> 
-            scrollPane.setVvalue(1.0));
+        // Only the messages in view have nodes, and only a window of the conversation is in
+        // memory; the rest is paged in from a cache file as the transcript is scrolled
+        File transcripts = new File("transcripts", client.getUsername());
+        transcripts.mkdirs();
+        ChatHistory history = new ChatHistory(new TranscriptCache(transcripts, username, TRANSCRIPT_MESSAGES,
+                message -> client.log(message)));
+        histories.put(username, history);
+        history.transcript.getStyleClass().add("transcript");
+        history.transcript.setCellFactory(list -> new MessageCell(this::openDownload));
+        history.transcript.skinProperty().addListener((obs, old, skin) -> watchScrolling(history));
+
+        // Older messages are fetched from the server a page at a time, with the link above them
+        history.loadEarlier.setVisible(false);
+        history.loadEarlier.setManaged(false);
+        history.loadEarlier.setOnAction(e -> client.requestHistory(username, history.earlierId, HISTORY_PAGE_SIZE));
 
         // Message input area with better layout
         VBox bottomContainer = new VBox(0); // Container for input area
-        bottomContainer.setStyle("-fx-background-color: #f0f0f0; -fx-border-color: #e0e0e0; -fx-border-width: 1 0 0 0;");
+        bottomContainer.getStyleClass().add("input-bar");
 
         HBox inputBox = new HBox(10);
         inputBox.setPadding(new Insets(10));
@@ -166,14 +208,7 @@ public class MainWindow {
         // Text field with better styling
         TextField messageField = new TextField();
         messageField.setPromptText("Type a message...");
-        messageField.setStyle(
-            "-fx-padding: 8 12;" +
-            "-fx-font-size: 14px;" +
-            "-fx-background-color: white;" +
-            "-fx-border-color: #e0e0e0;" +
-            "-fx-border-radius: 4;" +
-            "-fx-background-radius: 4;"
-        );
+        messageField.getStyleClass().add("message-field");
         HBox.setHgrow(messageField, Priority.ALWAYS);
 
         // Buttons container
@@ -183,65 +218,18 @@ public class MainWindow {
 
         // Simple text buttons
         Button sendButton = new Button("Send");
-        sendButton.setStyle(
-            "-fx-background-color: #2196F3;" +
-            "-fx-text-fill: white;" +
-            "-fx-padding: 8 15;" +
-            "-fx-background-radius: 4;" +
-            "-fx-cursor: hand;"
-        );
-        sendButton.setOnMouseEntered(e -> 
-            sendButton.setStyle(
-                "-fx-background-color: #1976D2;" +
-                "-fx-text-fill: white;" +
-                "-fx-padding: 8 15;" +
-                "-fx-background-radius: 4;" +
-                "-fx-cursor: hand;"
-            )
-        );
-        sendButton.setOnMouseExited(e -> 
-            sendButton.setStyle(
-                "-fx-background-color: #2196F3;" +
-                "-fx-text-fill: white;" +
-                "-fx-padding: 8 15;" +
-                "-fx-background-radius: 4;" +
-                "-fx-cursor: hand;"
-            )
-        );
+        sendButton.getStyleClass().add("send-button");
 
         Button fileButton = new Button("File");
-        fileButton.setStyle(
-            "-fx-background-color: #757575;" +
-            "-fx-text-fill: white;" +
-            "-fx-padding: 8 15;" +
-            "-fx-background-radius: 4;" +
-            "-fx-cursor: hand;"
-        );
-        fileButton.setOnMouseEntered(e -> 
-            fileButton.setStyle(
-                "-fx-background-color: #616161;" +
-                "-fx-text-fill: white;" +
-                "-fx-padding: 8 15;" +
-                "-fx-background-radius: 4;" +
-                "-fx-cursor: hand;"
-            )
-        );
-        fileButton.setOnMouseExited(e -> 
-            fileButton.setStyle(
-                "-fx-background-color: #757575;" +
-                "-fx-text-fill: white;" +
-                "-fx-padding: 8 15;" +
-                "-fx-background-radius: 4;" +
-                "-fx-cursor: hand;"
-            )
-        );
+        fileButton.getStyleClass().add("file-button");
 
         // Handle message sending
         Runnable sendMessage = () -> {
             String message = messageField.getText().trim();
             if (!message.isEmpty()) {
                 client.sendMessage(username + ":" + message);
-                addMessage(chatArea, "You", message, true);
+                noteShown(username, client.getUsername(), message);
+                addMessage(history, ChatMessage.sent(client.getUsername(), message));
                 messageField.clear();
                 messageField.requestFocus();
             }
@@ -256,20 +244,24 @@ public class MainWindow {
             File file = fileChooser.showOpenDialog(tab.getTabPane().getScene().getWindow());
             
             if (file != null) {
-                client.sendFile(file, username);
-                addMessage(chatArea, "You", "Sending file: " + file.getName(), true);
+                sendFile(history, username, file);
             }
             messageField.requestFocus();
         });
 
+        history.upload.setVisible(false);
+        history.upload.setManaged(false);
+        history.upload.setPrefWidth(80);
+
         // Add buttons to button container
-        buttonBox.getChildren().addAll(sendButton, fileButton);
+        buttonBox.getChildren().addAll(history.upload, sendButton, fileButton);
 
         // Add all elements to input box
         inputBox.getChildren().addAll(messageField, buttonBox);
         bottomContainer.getChildren().add(inputBox);
 
-        content.setCenter(scrollPane);
+        content.setTop(history.loadEarlier);
+        content.setCenter(history.transcript);
         content.setBottom(bottomContainer);
 
         // Set initial focus to message field
@@ -279,65 +271,213 @@ public class MainWindow {
         
         tab.setOnClosed(e -> {
             chatTabs.remove(username);
+            histories.remove(username).cache.close();
             refreshConnectedUsers();
         });
 
+        client.requestHistory(username, 0, HISTORY_PAGE_SIZE);
+
         return tab;
     }
 
-    private void addMessage(VBox chatArea, String sender, String message, boolean isSent) {
-        HBox messageBox = new HBox();
-        messageBox.setPadding(new Insets(5));
-        messageBox.setMaxWidth(Double.MAX_VALUE);
+    // The client reads, hashes and sends the file off the FX thread; this only follows along
+    private void sendFile(ChatHistory history, String peer, File file) {
+        addMessage(history, ChatMessage.sent(client.getUsername(), "Sending file: " + file.getName()));
+        history.uploading++;
+        history.upload.setProgress(0);
+        history.upload.setVisible(true);
+        history.upload.setManaged(true);
+        client.sendFile(file, peer, (sent, size) -> ui.post(() -> history.upload.setProgress((double) sent / size)))
+                .whenComplete((ignored, error) -> ui.post(() -> {
+                    boolean visible = --history.uploading > 0;
+                    history.upload.setVisible(visible);
+                    history.upload.setManaged(visible);
+                    if (histories.get(peer) == history) {
+                        addMessage(history, ChatMessage.sent(client.getUsername(), error == null
+                                ? "File delivered: " + file.getName() : "File not sent: " + file.getName()));
+                    }
+                }));
+    }
 
-        VBox textBox = new VBox(2);
-        Label senderLabel = new Label(sender);
-        senderLabel.setStyle("-fx-font-weight: bold; -fx-font-size: 10pt;");
-        
-        Text messageText = new Text(message);
-        messageText.setWrappingWidth(400); // Increased width for messages
-
-        textBox.getChildren().addAll(senderLabel, messageText);
-        textBox.setStyle(String.format(
-            "-fx-background-color: #%s;" +
-            "-fx-padding: 10;" +
-            "-fx-background-radius: 10;" +
-            "-fx-max-width: 450px;" + // Maximum width for the message box
-            "-fx-min-width: 100px",  // Minimum width for the message box
-            isSent ? "DCF8C6" : "E5E5E5"
-        ));
-
-        if (isSent) {
-            messageBox.setAlignment(Pos.CENTER_RIGHT);
-            textBox.setStyle(textBox.getStyle() + ";" +
-                "-fx-background-color: #DCF8C6;" +
-                "-fx-border-radius: 10 10 0 10;" +
-                "-fx-background-radius: 10 10 0 10;");
-        } else {
-            messageBox.setAlignment(Pos.CENTER_LEFT);
-            textBox.setStyle(textBox.getStyle() + ";" +
-                "-fx-background-color: #E5E5E5;" +
-                "-fx-border-radius: 10 10 10 0;" +
-                "-fx-background-radius: 10 10 10 0;");
+    // Appends to the transcript and scrolls to it
+    private void addMessage(ChatHistory history, ChatMessage message) {
+        history.cache.append(message);
+        showNewest(history);
+    }
+
+    // Appends a message that arrived over the network; the tab scrolls after the pass
+    private void receiveMessage(ChatHistory history, ChatMessage message) {
+        history.cache.append(message);
+        scrollPending.add(history);
+    }
+
+    private void scrollToNewest() {
+        for (ChatHistory history : scrollPending) {
+            showNewest(history);
         }
+        scrollPending.clear();
+    }
 
-        messageBox.getChildren().add(textBox);
-        Platform.runLater(() -> chatArea.getChildren().add(messageBox));
+    private void showNewest(ChatHistory history) {
+        history.cache.showNewest();
+        scrollTo(history, history.cache.size() - 1);
+        updateLoadEarlier(history);
     }
 
-    public void updateUserList(String[] users) {
-        Platform.runLater(() -> {
-            activeUsersList.getItems().clear();
-            for (String user : users) {
-                if (!user.equals(client.getUsername())) {
-                    activeUsersList.getItems().add(user);
-                }
+    // Lays the rows out at once, so a scroll before the next pulse starts from the new rows.
+    // Otherwise it starts from the old ones and, at the top, pages in again.
+    private static void scrollTo(ChatHistory history, int index) {
+        history.transcript.scrollTo(index);
+        history.transcript.layout();
+    }
+
+    // Reaching either end of the messages in memory pages in more from the cache. The
+    // flow's position only exists once the ListView has its skin.
+    private void watchScrolling(ChatHistory history) {
+        if (!(history.transcript.lookup(".virtual-flow") instanceof VirtualFlow<?> flow)) {
+            return;
+        }
+        flow.positionProperty().addListener((obs, old, position) -> {
+            // Not while the flow is laying itself out
+            if (position.doubleValue() <= 0) {
+                Platform.runLater(() -> pageUp(history, flow));
+            } else if (position.doubleValue() >= 1) {
+                Platform.runLater(() -> pageDown(history, flow));
             }
         });
     }
 
+    // Pages only if the view is still at that end; a page queued by an earlier frame may
+    // already have moved it, and paging again would skip a page
+    private void pageUp(ChatHistory history, VirtualFlow<?> flow) {
+        IndexedCell<?> top = flow.getFirstVisibleCell();
+        if (top == null || top.getIndex() > 0) {
+            return;
+        }
+        int added = history.cache.pageUp();
+        if (added > 0) {
+            // Keep the message that was at the top where it was
+            scrollTo(history, added);
+        }
+        updateLoadEarlier(history);
+    }
+
+    private void pageDown(ChatHistory history, VirtualFlow<?> flow) {
+        IndexedCell<?> top = flow.getFirstVisibleCell();
+        IndexedCell<?> bottom = flow.getLastVisibleCell();
+        if (bottom == null || bottom.getIndex() < history.cache.size() - 1) {
+            return;
+        }
+        int removed = history.cache.pageDown();
+        if (removed > 0 && top != null) {
+            scrollTo(history, Math.max(top.getIndex() - removed, 0));
+        }
+        updateLoadEarlier(history);
+    }
+
+    // Server history is offered once everything cached has been paged in
+    private void updateLoadEarlier(ChatHistory history) {
+        boolean visible = history.earlierId > 0 && history.cache.atStart();
+        history.loadEarlier.setVisible(visible);
+        history.loadEarlier.setManaged(visible);
+    }
+
+    // Messages held by the open chat tabs, for the client log
+    private String describeTranscripts() {
+        int held = 0;
+        int evicted = 0;
+        long bytes = 0;
+        for (ChatHistory history : histories.values()) {
+            held += history.cache.size();
+            evicted += history.cache.evicted();
+            bytes += history.cache.estimatedHeapBytes();
+        }
+        return String.format("%d chat tabs hold %d messages (about %d KB), %d more on disk",
+                histories.size(), held, bytes / 1024, evicted);
+    }
+
+    // Remembers what a tab shows until its first history page arrives, so the page can leave
+    // out messages that are already on screen
+    private void noteShown(String peer, String sender, String message) {
+        ChatHistory history = histories.get(peer);
+        if (history != null && history.waitingForFirstPage) {
+            history.shown.add(new String[] {sender, message});
+        }
+    }
+
+    // Adds a page of history above the messages already in the tab
+    public void showHistory(String peer, List<ChatClient.HistoryMessage> page, long earlierId) {
+        ui.post(() -> {
+            ChatHistory history = histories.get(peer);
+            if (history == null) {
+                return;
+            }
+            List<ChatClient.HistoryMessage> older = page;
+            boolean first = history.waitingForFirstPage;
+            if (first) {
+                // The newest page ends with whatever arrived while it was being fetched
+                older = page.subList(0, page.size() - countShown(page, history.shown));
+                history.waitingForFirstPage = false;
+                history.shown.clear();
+            }
+
+            List<ChatMessage> messages = new ArrayList<>(older.size());
+            for (ChatClient.HistoryMessage message : older) {
+                messages.add(new ChatMessage(message.sender(), message.text(),
+                        message.sender().equals(client.getUsername()), null));
+            }
+            // The first page scrolls to the newest message; earlier pages keep the message
+            // that was at the top in view
+            int added = history.cache.prepend(messages, first);
+            scrollTo(history, first ? history.cache.size() - 1 : added);
+            history.earlierId = earlierId;
+            updateLoadEarlier(history);
+        });
+    }
+
+    // Length of the longest tail of the page that matches the start of what is shown
+    private static int countShown(List<ChatClient.HistoryMessage> page, List<String[]> shown) {
+        for (int count = Math.min(page.size(), shown.size()); count > 0; count--) {
+            boolean matches = true;
+            for (int i = 0; i < count && matches; i++) {
+                ChatClient.HistoryMessage message = page.get(page.size() - count + i);
+                matches = message.sender().equals(shown.get(i)[0]) && message.text().equals(shown.get(i)[1]);
+            }
+            if (matches) {
+                return count;
+            }
+        }
+        return 0;
+    }
+
+    public void updateUserList(String[] users) {
+        ui.postPresence(() -> {
+            // Only the rows that changed are touched. A snapshot that changes too much at
+            // once replaces the list, so the selection is put back if it was lost.
+            String selected = activeUsersList.getSelectionModel().getSelectedItem();
+            userDirectory.setAll(Arrays.stream(users).filter(user -> !user.equals(client.getUsername()))
+                    .toArray(String[]::new));
+            if (selected != null && activeUsersList.getSelectionModel().getSelectedItem() == null
+                    && userDirectory.isShown(selected)) {
+                activeUsersList.getSelectionModel().select(selected);
+            }
+        }, true);
+    }
+
+    public void addUser(String user) {
+        ui.postPresence(() -> {
+            if (!user.equals(client.getUsername())) {
+                userDirectory.add(user);
+            }
+        }, false);
+    }
+
+    public void removeUser(String user) {
+        ui.postPresence(() -> userDirectory.remove(user), false);
+    }
+
     public void displayMessage(String sender, String message) {
-        Platform.runLater(() -> {
+        ui.post(() -> {
             Tab chatTab = chatTabs.get(sender);
             if (chatTab == null) {
                 chatTab = createChatTab(sender);
@@ -346,46 +486,33 @@ public class MainWindow {
                 refreshConnectedUsers();
             }
             
-            BorderPane content = (BorderPane) chatTab.getContent();
-            ScrollPane scrollPane = (ScrollPane) content.getCenter();
-            VBox chatArea = (VBox) scrollPane.getContent();
-            
-            // Check if it's a file message
+            ChatHistory history = histories.get(sender);
             if (message.startsWith("File sent: ")) {
+                // Received files are offered for opening from the downloads folder
                 String fileName = message.substring("File sent: ".length());
-                
-                // Create file message with download link
-                VBox fileMessage = new VBox(5);
-                Hyperlink fileLink = new Hyperlink("Download " + fileName);
-                fileLink.setOnAction(e -> {
-                    File downloadDir = new File("downloads");
-                    File file = new File(downloadDir, fileName);
-                    if (file.exists()) {
-                        try {
-                            java.awt.Desktop.getDesktop().open(file);
-                        } catch (IOException ex) {
-                            showAlert("Error opening file: " + ex.getMessage());
-                        }
-                    } else {
-                        showAlert("File not found: " + fileName);
-                    }
-                });
-                
-                addMessage(chatArea, sender, "Sent a file: " + fileName + "\nClick to download", false);
-                fileMessage.getChildren().add(fileLink);
-                
-                HBox wrapper = new HBox();
-                wrapper.getChildren().add(fileMessage);
-                wrapper.setAlignment(Pos.CENTER_LEFT);
-                chatArea.getChildren().add(wrapper);
+                receiveMessage(history, new ChatMessage(sender, "Sent a file: " + fileName, false, fileName));
             } else {
-                addMessage(chatArea, sender, message, false);
+                noteShown(sender, sender, message);
+                receiveMessage(history, ChatMessage.received(sender, message));
             }
-            
+
             tabPane.getSelectionModel().select(chatTab);
         });
     }
 
+    private void openDownload(String fileName) {
+        File file = new File(new File("downloads"), fileName);
+        if (!file.exists()) {
+            showAlert("File not found: " + fileName);
+            return;
+        }
+        try {
+            java.awt.Desktop.getDesktop().open(file);
+        } catch (IOException ex) {
+            showAlert("Error opening file: " + ex.getMessage());
+        }
+    }
+
     private void showAlert(String message) {
         Alert alert = new Alert(Alert.AlertType.WARNING);
         alert.setTitle("Warning");
@@ -0,0 +1,51 @@
+package com.chatapp.ui;
+
+import javafx.css.PseudoClass;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.Hyperlink;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Text;
+import java.util.function.Consumer;
+
+// Shows one message of a transcript as a bubble. The ListView only creates enough cells to
+// fill the view and hands them new messages as it scrolls, so a tab's nodes don't grow with
+// its history. Colors and alignment come from chat.css, through the :sent pseudo-class.
+final class MessageCell extends ListCell<ChatMessage> {
+    private static final PseudoClass SENT = PseudoClass.getPseudoClass("sent");
+    private static final double WRAPPING_WIDTH = 400;
+
+    private final Label sender = new Label();
+    private final Text text = new Text();
+    private final Hyperlink download = new Hyperlink();
+    private final VBox bubble = new VBox(sender, text, download);
+
+    MessageCell(Consumer<String> openFile) {
+        getStyleClass().add("message-cell");
+        bubble.getStyleClass().add("bubble");
+        sender.getStyleClass().add("sender");
+        text.getStyleClass().add("message-text");
+        text.setWrappingWidth(WRAPPING_WIDTH);
+        download.setOnAction(e -> openFile.accept(getItem().fileName()));
+        setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+    }
+
+    @Override
+    protected void updateItem(ChatMessage message, boolean empty) {
+        super.updateItem(message, empty);
+        if (empty || message == null) {
+            pseudoClassStateChanged(SENT, false);
+            setGraphic(null);
+            return;
+        }
+        sender.setText(message.sent() ? "You" : message.sender());
+        text.setText(message.text());
+        boolean file = message.fileName() != null;
+        download.setText(file ? "Download " + message.fileName() : null);
+        download.setVisible(file);
+        download.setManaged(file);
+        pseudoClassStateChanged(SENT, message.sent());
+        setGraphic(bubble);
+    }
+}
@@ -0,0 +1,373 @@
+package com.chatapp.ui;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+// A chat tab's messages. Every message is written to a cache file for the session, and the
+// tab's ListView only holds a window of up to `capacity` of them. Scrolling to either end of
+// the window pages more in from disk and drops as many from the other end, so a tab open for
+// days holds the same few hundred messages however long the conversation gets.
+//
+// Messages are numbered in the order they are shown. Those that arrive in the tab count up
+// from 0 in `newer`; history pages from the server are older than all of them and count
+// down from -1 in `older`, which is written newest first. The window is [first, end).
+//
+// Messages that join the window as they arrive are added to it in one go, by showNewest
+// after the UI dispatcher's pass or by whatever moves the window next, so a burst costs one
+// list change rather than an add and a trim each. Queries count them without adding them.
+//
+// Only used on the FX thread. If the cache can't be written, the tab stops evicting and
+// keeps everything in memory, as before.
+final class TranscriptCache {
+    // Messages paged in from disk at a time
+    static final int PAGE_SIZE = 100;
+
+    private final int capacity;
+    private final Consumer<String> reporter;
+    private final ObservableList<ChatMessage> messages = FXCollections.observableArrayList();
+    private final Log newer;
+    private final Log older;
+    // Appended messages in the window but not yet in the list; already counted in `end`
+    private final List<ChatMessage> pending = new ArrayList<>();
+    private int first;
+    private int end;
+    private boolean broken;
+
+    TranscriptCache(File dir, String peer, int capacity, Consumer<String> reporter) {
+        this.capacity = Math.max(capacity, 2 * PAGE_SIZE);
+        this.reporter = reporter;
+        this.newer = new Log(dir, peer, ".newer");
+        this.older = new Log(dir, peer, ".older");
+    }
+
+    ObservableList<ChatMessage> messages() {
+        return messages;
+    }
+
+    // Whether the window reaches the newest message; a broken cache holds everything
+    boolean atEnd() {
+        return broken || end == newer.count;
+    }
+
+    // Whether the window reaches the oldest message fetched from the server
+    boolean atStart() {
+        // Adding the pending messages will drop from the start whatever the window can't hold
+        return broken || Math.max(first, end - capacity) == -older.count;
+    }
+
+    // Adds a message after all the others. It only joins the window if the window shows
+    // the newest messages; otherwise showNewest brings it in.
+    void append(ChatMessage message) {
+        boolean atEnd = atEnd();
+        if (write(newer, List.of(message)) == 0) {
+            pending.add(message);
+            return;
+        }
+        if (atEnd) {
+            pending.add(message);
+            end++;
+        }
+    }
+
+    // Adds the appended messages to the list. More than the window holds replace it.
+    private void addPending() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (!broken && pending.size() >= capacity) {
+            messages.setAll(pending.subList(pending.size() - capacity, pending.size()));
+            first = end - capacity;
+        } else {
+            messages.addAll(pending);
+            trimStart();
+        }
+        pending.clear();
+    }
+
+    // Moves the window to the newest messages, if it isn't there already
+    void showNewest() {
+        addPending();
+        if (atEnd()) {
+            return;
+        }
+        List<ChatMessage> window = read(Math.max(-older.count, newer.count - capacity), newer.count);
+        if (window != null) {
+            messages.setAll(window);
+            first = newer.count - window.size();
+            end = newer.count;
+        }
+    }
+
+    // Adds a page of history, oldest first, before all the others. Returns how many were
+    // added at the start of the window, which is only done if the window reaches it. If
+    // keepNewest is set, the window makes room by dropping from the start rather than the end.
+    int prepend(List<ChatMessage> page, boolean keepNewest) {
+        addPending();
+        boolean atStart = atStart();
+        List<ChatMessage> newestFirst = new ArrayList<>(page);
+        Collections.reverse(newestFirst);
+        int written = write(older, newestFirst);
+        if (written < page.size()) {
+            // The cache is now broken and holds everything written, the newest of the page
+            // included; the rest go before them
+            messages.addAll(0, page.subList(0, page.size() - written));
+            return page.size();
+        }
+        if (!atStart) {
+            return 0;
+        }
+        messages.addAll(0, page);
+        first -= page.size();
+        if (keepNewest) {
+            return page.size() - trimStart();
+        }
+        trimEnd();
+        return page.size();
+    }
+
+    // Pages older messages in from disk at the start of the window. Returns how many.
+    int pageUp() {
+        addPending();
+        if (atStart()) {
+            return 0;
+        }
+        List<ChatMessage> page = read(Math.max(-older.count, first - PAGE_SIZE), first);
+        if (page == null) {
+            return 0;
+        }
+        messages.addAll(0, page);
+        first -= page.size();
+        trimEnd();
+        return page.size();
+    }
+
+    // Pages newer messages in from disk at the end of the window. Returns how many were
+    // dropped from its start to make room.
+    int pageDown() {
+        addPending();
+        if (atEnd()) {
+            return 0;
+        }
+        List<ChatMessage> page = read(end, Math.min(newer.count, end + PAGE_SIZE));
+        if (page == null) {
+            return 0;
+        }
+        messages.addAll(page);
+        end += page.size();
+        return trimStart();
+    }
+
+    private int trimStart() {
+        int excess = messages.size() - capacity;
+        if (broken || excess <= 0) {
+            return 0;
+        }
+        messages.remove(0, excess);
+        first += excess;
+        return excess;
+    }
+
+    private void trimEnd() {
+        int excess = messages.size() - capacity;
+        if (broken || excess <= 0) {
+            return;
+        }
+        messages.remove(capacity, messages.size());
+        end -= excess;
+    }
+
+    // Messages first (inclusive) to end (exclusive) in order, or null if they can't be read
+    private List<ChatMessage> read(int from, int to) {
+        List<ChatMessage> result = new ArrayList<>(to - from);
+        try {
+            if (from < 0) {
+                List<ChatMessage> olderPart = older.read(-Math.min(to, 0), -from);
+                Collections.reverse(olderPart);
+                result.addAll(olderPart);
+            }
+            if (to > 0) {
+                result.addAll(newer.read(Math.max(from, 0), to));
+            }
+            return result;
+        } catch (IOException e) {
+            fail(e);
+            return null;
+        }
+    }
+
+    // Returns how many of the page were written before the cache broke, if it did
+    private int write(Log log, List<ChatMessage> page) {
+        int written = 0;
+        if (broken) {
+            return written;
+        }
+        try {
+            for (ChatMessage message : page) {
+                log.append(message);
+                written++;
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        return written;
+    }
+
+    // Falls back to keeping the whole conversation in memory, starting with what is on disk
+    private void fail(IOException e) {
+        reporter.accept("Transcript cache failed, keeping messages in memory: " + e.getMessage());
+        broken = true;
+        List<ChatMessage> all = new ArrayList<>();
+        try {
+            List<ChatMessage> olderPart = older.read(0, older.count);
+            Collections.reverse(olderPart);
+            all.addAll(olderPart);
+            all.addAll(newer.read(0, newer.count));
+            messages.setAll(all);
+            pending.clear();
+        } catch (IOException again) {
+            // Keep the window as it is
+        }
+        close();
+    }
+
+    // Messages held in memory, and a rough idea of their heap use
+    int size() {
+        return messages.size() + pending.size();
+    }
+
+    long estimatedHeapBytes() {
+        long bytes = 0;
+        for (ChatMessage message : messages) {
+            bytes += message.estimatedBytes();
+        }
+        for (ChatMessage message : pending) {
+            bytes += message.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    // Messages held only on disk; a broken cache holds everything
+    int evicted() {
+        return broken ? 0 : newer.count + older.count - size();
+    }
+
+    void close() {
+        newer.close();
+        older.close();
+    }
+
+    // Append-only file of length-prefixed messages. The offset of every INDEX_INTERVAL-th
+    // message is kept, so a read seeks to the nearest one and skips forward. The file is
+    // created on the first append with a name of its own, so two tabs or two clients for
+    // the same conversation never write to the same file.
+    private static final class Log {
+        private static final int INDEX_INTERVAL = 64;
+
+        private final File dir;
+        private final String prefix;
+        private final String suffix;
+        private FileChannel channel;
+        private DataOutputStream out;
+        private long size;
+        private int count;
+        private long[] index = new long[16];
+
+        Log(File dir, String peer, String suffix) {
+            this.dir = dir;
+            this.prefix = peer + "-";
+            this.suffix = suffix;
+        }
+
+        void append(ChatMessage message) throws IOException {
+            if (channel == null) {
+                Path file = Files.createTempFile(dir.toPath(), prefix, suffix);
+                try {
+                    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                            StandardOpenOption.DELETE_ON_CLOSE);
+                } catch (IOException e) {
+                    Files.deleteIfExists(file);
+                    throw e;
+                }
+                out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            }
+            if (count % INDEX_INTERVAL == 0) {
+                if (count / INDEX_INTERVAL == index.length) {
+                    index = Arrays.copyOf(index, index.length * 2);
+                }
+                index[count / INDEX_INTERVAL] = size;
+            }
+            byte[] sender = message.sender().getBytes(StandardCharsets.UTF_8);
+            byte[] fileName = message.fileName() != null ? message.fileName().getBytes(StandardCharsets.UTF_8) : null;
+            byte[] text = message.text().getBytes(StandardCharsets.UTF_8);
+            int length = 1 + 4 + sender.length + 4 + (fileName != null ? fileName.length : 0) + text.length;
+            out.writeInt(length);
+            out.writeBoolean(message.sent());
+            out.writeInt(sender.length);
+            out.write(sender);
+            out.writeInt(fileName != null ? fileName.length : -1);
+            if (fileName != null) {
+                out.write(fileName);
+            }
+            out.write(text);
+            size += 4 + length;
+            count++;
+        }
+
+        // Messages from (inclusive) to (exclusive) in file order
+        List<ChatMessage> read(int from, int to) throws IOException {
+            List<ChatMessage> result = new ArrayList<>(Math.max(to - from, 0));
+            if (from >= to) {
+                return result;
+            }
+            out.flush();
+            int position = from - from % INDEX_INTERVAL;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(index[from / INDEX_INTERVAL]))));
+            for (; position < from; position++) {
+                in.skipNBytes(in.readInt());
+            }
+            for (; position < to; position++) {
+                int length = in.readInt();
+                boolean sent = in.readBoolean();
+                int senderLength = in.readInt();
+                String sender = readString(in, senderLength);
+                int fileNameLength = in.readInt();
+                String fileName = fileNameLength >= 0 ? readString(in, fileNameLength) : null;
+                String text = readString(in, length - 1 - 4 - senderLength - 4 - Math.max(fileNameLength, 0));
+                result.add(new ChatMessage(sender, text, sent, fileName));
+            }
+            // Appends go after everything written so far, wherever the reads left the channel
+            channel.position(size);
+            return result;
+        }
+
+        private static String readString(DataInputStream in, int length) throws IOException {
+            return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+        }
+
+        void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                // Deleted on close; nothing needs flushing
+                channel.close();
+            } catch (IOException e) {
+                // Already unusable
+            }
+            channel = null;
+        }
+    }
+}
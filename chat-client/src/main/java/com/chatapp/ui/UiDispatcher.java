@@ -0,0 +1,126 @@
+package com.chatapp.ui;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Hands updates from the network thread to the FX thread. Updates queue up as they arrive
+// and are applied together once per pulse, so a burst of messages costs one pass and one
+// layout instead of an FX event each. Presence is coalesced: a snapshot makes every presence
+// update queued before it moot. The timer only runs while there is something to apply.
+//
+// UI lag is how long an update waited before its pass finished. Every REPORT_SECONDS with
+// updates, the worst and average lag and the number of updates and passes are reported.
+final class UiDispatcher extends AnimationTimer {
+    private static final long REPORT_SECONDS = 10;
+
+    private final Runnable afterPass;
+    private final Consumer<String> reporter;
+    private final Object lock = new Object();
+    // Filled by any thread under the lock; swapped with the spare lists for each pass
+    private List<Runnable> updates = new ArrayList<>();
+    private List<Runnable> presence = new ArrayList<>();
+    private List<Runnable> spareUpdates = new ArrayList<>();
+    private List<Runnable> sparePresence = new ArrayList<>();
+    // When the oldest queued update arrived, or 0 if none are queued
+    private long pendingSince;
+    private boolean active;
+
+    // Lag since the last report; only touched on the FX thread
+    private long reportStart = System.nanoTime();
+    private long passes;
+    private long applied;
+    private long totalLagNanos;
+    private long maxLagNanos;
+
+    UiDispatcher(Runnable afterPass, Consumer<String> reporter) {
+        this.afterPass = afterPass;
+        this.reporter = reporter;
+    }
+
+    // Queues an update to apply on the FX thread, after those queued before it
+    void post(Runnable update) {
+        synchronized (lock) {
+            updates.add(update);
+            wake();
+        }
+    }
+
+    // Queues a presence update; a snapshot replaces the presence updates still queued
+    void postPresence(Runnable update, boolean snapshot) {
+        synchronized (lock) {
+            if (snapshot) {
+                presence.clear();
+            }
+            presence.add(update);
+            wake();
+        }
+    }
+
+    private void wake() {
+        if (pendingSince == 0) {
+            pendingSince = System.nanoTime();
+        }
+        if (!active) {
+            active = true;
+            Platform.runLater(this::start);
+        }
+    }
+
+    @Override
+    public void handle(long now) {
+        List<Runnable> presenceBatch;
+        List<Runnable> updateBatch;
+        long since;
+        synchronized (lock) {
+            if (pendingSince == 0) {
+                // A pulse with nothing to do: sleep until the next update
+                active = false;
+                stop();
+                return;
+            }
+            presenceBatch = presence;
+            updateBatch = updates;
+            presence = sparePresence;
+            updates = spareUpdates;
+            since = pendingSince;
+            pendingSince = 0;
+        }
+
+        for (Runnable update : presenceBatch) {
+            update.run();
+        }
+        for (Runnable update : updateBatch) {
+            update.run();
+        }
+        afterPass.run();
+        record(System.nanoTime() - since, presenceBatch.size() + updateBatch.size());
+
+        presenceBatch.clear();
+        updateBatch.clear();
+        synchronized (lock) {
+            sparePresence = presenceBatch;
+            spareUpdates = updateBatch;
+        }
+    }
+
+    private void record(long lagNanos, int count) {
+        passes++;
+        applied += count;
+        totalLagNanos += lagNanos;
+        maxLagNanos = Math.max(maxLagNanos, lagNanos);
+        long now = System.nanoTime();
+        if (now - reportStart >= TimeUnit.SECONDS.toNanos(REPORT_SECONDS)) {
+            reporter.accept(String.format("UI lag: max %.1f ms, average %.1f ms (%d updates in %d passes)",
+                    maxLagNanos / 1e6, totalLagNanos / 1e6 / passes, applied, passes));
+            reportStart = now;
+            passes = 0;
+            applied = 0;
+            totalLagNanos = 0;
+            maxLagNanos = 0;
+        }
+    }
+}
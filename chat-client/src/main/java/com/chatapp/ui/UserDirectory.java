@@ -0,0 +1,166 @@
+package com.chatapp.ui;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// The online users, kept sorted so the Active Users list can change a row at a time and a
+// prefix search is a binary search. `users` holds everyone; `shown` is what the ListView
+// displays: the contiguous run of users that start with the search prefix (everyone when it
+// is empty). Changing the prefix only adds or drops rows at the ends of that run, and a
+// snapshot only touches the users who joined or left, so rows that didn't change are left
+// alone and the selection stays put.
+//
+// Only used on the FX thread.
+final class UserDirectory {
+    // Case-insensitive, so users starting with a prefix in any case sit next to each other
+    static final Comparator<String> ORDER = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+    // Past this many joins and leaves, a snapshot replaces the lists outright; each one
+    // shifts the lists and costs the ListView an update
+    private static final int MAX_CHANGES = 64;
+
+    private final ObservableList<String> users = FXCollections.observableArrayList();
+    private final ObservableList<String> shown = FXCollections.observableArrayList();
+    private String prefix = "";
+
+    ObservableList<String> shown() {
+        return shown;
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    boolean isShown(String user) {
+        return indexOf(shown, user) >= 0;
+    }
+
+    void add(String user) {
+        int index = indexOf(users, user);
+        if (index < 0) {
+            users.add(-index - 1, user);
+            if (matches(user)) {
+                shown.add(-indexOf(shown, user) - 1, user);
+            }
+        }
+    }
+
+    void remove(String user) {
+        int index = indexOf(users, user);
+        if (index >= 0) {
+            users.remove(index);
+            int shownIndex = indexOf(shown, user);
+            if (shownIndex >= 0) {
+                shown.remove(shownIndex);
+            }
+        }
+    }
+
+    // Makes the list exactly these users
+    void setAll(String[] snapshot) {
+        Set<String> joined = new HashSet<>(Arrays.asList(snapshot));
+        List<String> left = new ArrayList<>();
+        for (String user : users) {
+            if (!joined.remove(user)) {
+                left.add(user);
+            }
+        }
+        if (left.size() + joined.size() <= MAX_CHANGES) {
+            left.forEach(this::remove);
+            joined.forEach(this::add);
+            return;
+        }
+        // Snapshots shouldn't repeat anyone, but one row per user either way
+        String[] sorted = Arrays.stream(snapshot).distinct().sorted(ORDER).toArray(String[]::new);
+        users.setAll(sorted);
+        int[] range = range(users, prefix);
+        shown.setAll(users.subList(range[0], range[1]));
+    }
+
+    // Shows only the users whose names start with prefix, ignoring case
+    void filter(String prefix) {
+        int[] from = range(users, this.prefix);
+        int[] to = range(users, prefix);
+        this.prefix = prefix;
+        if (to[0] >= from[1] || to[1] <= from[0]) {
+            shown.setAll(users.subList(to[0], to[1]));
+            return;
+        }
+        // The runs overlap: move each end of the shown run to where the new one ends
+        if (to[1] < from[1]) {
+            shown.remove(to[1] - from[0], shown.size());
+        } else if (to[1] > from[1]) {
+            shown.addAll(users.subList(from[1], to[1]));
+        }
+        if (to[0] > from[0]) {
+            shown.remove(0, to[0] - from[0]);
+        } else if (to[0] < from[0]) {
+            shown.addAll(0, users.subList(to[0], from[0]));
+        }
+    }
+
+    private boolean matches(String user) {
+        return user.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    private static int indexOf(List<String> sorted, String user) {
+        int low = 0;
+        int high = sorted.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = ORDER.compare(sorted.get(middle), user);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    // The start and end of the users in a sorted list that start with prefix
+    static int[] range(List<String> sorted, String prefix) {
+        return new int[] {bound(sorted, prefix, false), bound(sorted, prefix, true)};
+    }
+
+    // The first index whose user comes after the prefix (after), or doesn't come before it
+    private static int bound(List<String> sorted, String prefix, boolean after) {
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int order = comparePrefix(sorted.get(middle), prefix);
+            if (order < 0 || (after && order == 0)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Compares the start of user with prefix the way ORDER would, 0 if user starts with it
+    private static int comparePrefix(String user, String prefix) {
+        int length = Math.min(user.length(), prefix.length());
+        for (int i = 0; i < length; i++) {
+            char a = fold(user.charAt(i));
+            char b = fold(prefix.charAt(i));
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return user.length() < prefix.length() ? -1 : 0;
+    }
+
+    // The same folding String.CASE_INSENSITIVE_ORDER uses
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
@@ -0,0 +1,184 @@
+package com.chatapp.client;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Compares file transfer throughput over a loopback socket between the old copy loop (a 4 KB
+ * heap buffer from FileInputStream to the socket stream, and another into a FileOutputStream)
+ * and the client's current path: FileSend and FileDownload driven by a NetworkLoop at each
+ * end, as ChatClient uses them, so chunks go out with FileChannel.transferTo one per turn of
+ * a non-blocking socket and come in through FrameReader's direct buffer, checksums included.
+ * It sits in the client package because those classes are package-private.
+ *
+ * Usage: FileTransferBenchmark [sizes] [runs] [dir]
+ *
+ * sizes is a comma-separated list with k/m/g suffixes (default 10m,1g,4g); dir needs room for
+ * two files of the largest size. Each size is sent runs times (default 3) both ways, and the
+ * best throughput is reported along with the CPU time the sending and receiving threads used.
+ * The source file is in the page cache for every run, so this measures copying, not the disk.
+ */
+public class FileTransferBenchmark {
+    private static final int STREAM_BUFFER_SIZE = 4096;
+
+    private record Result(long nanos, long cpuNanos) {
+    }
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    public static void main(String[] args) throws Exception {
+        String sizes = args.length > 0 ? args[0] : "10m,1g,4g";
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        File dir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+
+        new FileTransferBenchmark().run(sizes, runs, dir);
+        System.exit(0);
+    }
+
+    private void run(String sizes, int runs, File dir) throws Exception {
+        System.out.printf("%-8s %-12s %10s %10s%n", "size", "path", "MB/s", "cpu ms");
+        for (String size : sizes.split(",")) {
+            long bytes = parseSize(size.trim());
+            File source = File.createTempFile("bench-source", ".bin", dir);
+            File target = File.createTempFile("bench-target", ".bin", dir);
+            try {
+                createFile(source, bytes);
+                report(size, "stream-4k", bytes, runs, () -> streamCopy(source, target, bytes));
+                report(size, "zero-copy", bytes, runs, () -> channelCopy(source, target, bytes));
+            } finally {
+                source.delete();
+                target.delete();
+            }
+        }
+    }
+
+    private void report(String size, String path, long bytes, int runs, Callable<Result> transfer) throws Exception {
+        Result best = null;
+        for (int i = 0; i < runs; i++) {
+            Result result = transfer.call();
+            if (best == null || result.nanos() < best.nanos()) {
+                best = result;
+            }
+        }
+        double megabytesPerSecond = bytes / (1024.0 * 1024.0) / (best.nanos() / 1e9);
+        System.out.printf("%-8s %-12s %10.1f %10d%n", size, path, megabytesPerSecond, best.cpuNanos() / 1_000_000);
+    }
+
+    // The old client path
+    private Result streamCopy(File source, File target, long size) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            Future<Long> receiver = executor.submit(() -> {
+                long cpu = threads.getCurrentThreadCpuTime();
+                try (Socket socket = server.accept().socket();
+                     InputStream in = socket.getInputStream();
+                     OutputStream out = new FileOutputStream(target)) {
+                    byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                    for (long done = 0; done < size; ) {
+                        int count = in.read(buffer, 0, (int) Math.min(buffer.length, size - done));
+                        if (count == -1) {
+                            throw new EOFException();
+                        }
+                        out.write(buffer, 0, count);
+                        done += count;
+                    }
+                }
+                return threads.getCurrentThreadCpuTime() - cpu;
+            });
+
+            long start = System.nanoTime();
+            long cpu = threads.getCurrentThreadCpuTime();
+            try (Socket socket = new Socket("127.0.0.1", server.socket().getLocalPort());
+                 InputStream in = new FileInputStream(source);
+                 OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+                byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            }
+            cpu = threads.getCurrentThreadCpuTime() - cpu;
+            long receiverCpu = receiver.get();
+            return new Result(System.nanoTime() - start, cpu + receiverCpu);
+        }
+    }
+
+    // What ChatClient does now: FileSend writes a chunk per turn from a NetworkLoop, and
+    // another NetworkLoop hands the chunk frames to a FileDownload
+    private Result channelCopy(File source, File target, long size) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            Future<Long> receiver = executor.submit(() -> {
+                long cpu = threads.getCurrentThreadCpuTime();
+                SocketChannel channel = server.accept();
+                FileDownload download = new FileDownload(target.getParentFile(), "bench", target.getName(), size, "");
+                NetworkLoop[] loop = new NetworkLoop[1];
+                IOException[] failure = new IOException[1];
+                loop[0] = new NetworkLoop((code, payload) -> {
+                    long offset = payload.getLong(8);
+                    int checksum = payload.getInt(16);
+                    if (!download.write(offset, checksum, payload.position(ChatClient.CHUNK_FIELDS_SIZE).slice())) {
+                        throw new IOException("Bad chunk at offset " + offset);
+                    }
+                    if (download.isComplete()) {
+                        download.finish();
+                        loop[0].close();
+                    }
+                }, cause -> failure[0] = cause);
+                loop[0].attach(channel, new FrameReader(channel));
+                loop[0].run();
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+                if (!download.isComplete()) {
+                    throw new EOFException();
+                }
+                return threads.getCurrentThreadCpuTime() - cpu;
+            });
+
+            long start = System.nanoTime();
+            long cpu = threads.getCurrentThreadCpuTime();
+            SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+            NetworkLoop loop = new NetworkLoop((code, payload) -> { }, cause -> { });
+            loop.attach(channel, new FrameReader(channel));
+            loop.send(new FileSend(1, new FileSource(source), 0, offset -> {
+                if (offset == size) {
+                    loop.close();
+                }
+            }));
+            loop.run();
+            cpu = threads.getCurrentThreadCpuTime() - cpu;
+            long receiverCpu = receiver.get();
+            return new Result(System.nanoTime() - start, cpu + receiverCpu);
+        }
+    }
+
+    private static void createFile(File file, long size) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (long done = 0; done < size; ) {
+                int count = (int) Math.min(block.length, size - done);
+                out.write(block, 0, count);
+                done += count;
+            }
+        }
+    }
+
+    private static long parseSize(String size) {
+        String lower = size.toLowerCase();
+        long unit = switch (lower.charAt(lower.length() - 1)) {
+            case 'k' -> 1024L;
+            case 'm' -> 1024L * 1024;
+            case 'g' -> 1024L * 1024 * 1024;
+            default -> 1;
+        };
+        return Long.parseLong(unit == 1 ? lower : lower.substring(0, lower.length() - 1)) * unit;
+    }
+}
@@ -0,0 +1,417 @@
+package com.chatapp.ui.bench;
+
+import com.chatapp.client.ChatClient;
+import com.chatapp.client.FrameType;
+import com.chatapp.ui.MainWindow;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.collections.ListChangeListener;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TabPane;
+import javafx.scene.control.skin.VirtualFlow;
+import javafx.stage.Stage;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Drives the desktop client's chat window with the real ChatClient, MainWindow and JavaFX
+ * pipeline, against a stand-in server on loopback that sends private messages from one user.
+ *
+ * The server sends `messages` messages in one burst. The time until the last one is in the
+ * transcript, the frames while they arrive and the UI lag the client logs for the burst (read
+ * back from logs/client_bench_*.log) are reported. Then the transcript is scrolled up from
+ * the newest message by pixelsPerFrame every frame for scrollSeconds, then back down for as
+ * long. Only a window of the conversation is in memory, so this pages messages in from the
+ * tab's cache file as it goes. The frame rate and frame times of each scroll are reported.
+ *
+ * Last, `tabs` more users each send TAB_MESSAGES messages, which opens a tab for each. Once
+ * they are idle, the heap in use after a full GC is compared with before they opened, and
+ * the difference per tab is reported.
+ *
+ * Usage: TranscriptBenchmark [messages] [scrollSeconds] [pixelsPerFrame] [tabs]
+ *
+ * Defaults are 100000 messages, 20 seconds, 40 pixels and 20 tabs. Without a display, run it on
+ * Monocle's headless platform (a test dependency) with the software renderer:
+ * -Dglass.platform=Monocle -Dmonocle.platform=Headless -Dprism.order=sw. Frame rates there
+ * measure the CPU work per frame, not a GPU pipeline.
+ */
+public class TranscriptBenchmark {
+    private static final String PEER = "peer";
+    private static final long TIMEOUT_SECONDS = 300;
+    // How often UiDispatcher logs UI lag, with a margin
+    private static final long REPORT_MILLIS = 10_500;
+    // Messages sent to each of the idle tabs; more than a tab keeps in memory by default
+    private static final int TAB_MESSAGES = 1000;
+    private static final String[] WORDS = ("the a to and of is in it you that for on are with be this was have but not "
+            + "what can just so if we at about will all meeting lunch tomorrow deploy build review "
+            + "server client message window scroll ready thanks later today").split(" ");
+
+    private final FakeServer server;
+    private final Frames frames = new Frames();
+    private ChatClient client;
+    private TabPane tabs;
+    // The number of the last message added to the transcript; set on the FX thread
+    private volatile int lastShown = Integer.MIN_VALUE;
+    // When UiDispatcher will next log UI lag, if there are updates by then
+    private long reportDue;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int scrollSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        double pixelsPerFrame = args.length > 2 ? Double.parseDouble(args[2]) : 40;
+        int tabs = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        new TranscriptBenchmark().run(messages, scrollSeconds, pixelsPerFrame, tabs);
+        System.exit(0);
+    }
+
+    private TranscriptBenchmark() throws IOException {
+        server = new FakeServer();
+    }
+
+    private void run(int messages, int scrollSeconds, double pixelsPerFrame, int idleTabs) throws Exception {
+        Platform.startup(() -> {
+        });
+        Platform.setImplicitExit(false);
+        fx(() -> {
+            client = new ChatClient("bench", "localhost", server.port());
+            MainWindow window = new MainWindow(client);
+            Stage stage = new Stage();
+            window.show(stage);
+            tabs = (TabPane) stage.getScene().getRoot();
+            frames.start();
+            reportDue = System.currentTimeMillis() + REPORT_MILLIS;
+            return null;
+        });
+
+        // The first message opens the tab
+        server.send(PEER, message(-1, "warm up"));
+        server.flush();
+        ListView<?> transcript = await(this::transcript);
+        CompletableFuture<Void> shown = new CompletableFuture<>();
+        fx(() -> {
+            transcript.getItems().addListener((ListChangeListener<Object>) change -> {
+                while (change.next()) {
+                    for (Object item : change.getAddedSubList()) {
+                        lastShown = number(item);
+                        if (lastShown == messages - 1) {
+                            shown.complete(null);
+                        }
+                    }
+                }
+            });
+            return null;
+        });
+
+        // Closes the dispatcher's report on the warm-up, so the next one covers only the burst
+        int reported = uiLagReports(-2).size();
+
+        long start = System.nanoTime();
+        long[] times = fx(() -> frames.record(() -> {
+        }));
+        Random random = new Random(1);
+        for (int i = 0; i < messages; i++) {
+            server.send(PEER, message(i, text(random)));
+        }
+        server.flush();
+        shown.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        System.out.printf("%,d messages shown in %.2f s%n", messages, (System.nanoTime() - start) / 1e9);
+        System.out.print("While they arrived, ");
+        printFrames(times, fx(() -> frames.stopRecording()));
+        List<String> reports = uiLagReports(-3);
+        for (String report : reports.subList(reported, reports.size())) {
+            System.out.println(report.substring(report.indexOf("UI lag")));
+        }
+        // Let the last pass settle before scrolling
+        Thread.sleep(1000);
+
+        scroll(transcript, scrollSeconds, -pixelsPerFrame);
+        scroll(transcript, scrollSeconds, pixelsPerFrame);
+        measureIdleTabs(idleTabs);
+
+        fx(() -> {
+            frames.stop();
+            client.disconnect();
+            return null;
+        });
+        Platform.exit();
+    }
+
+    // Scrolls by a fixed amount every frame, as a steady drag would, and reports frames;
+    // negative pixels scroll up
+    private void scroll(ListView<?> transcript, int seconds, double pixelsPerFrame) throws Exception {
+        VirtualFlow<?> flow = fx(() -> (VirtualFlow<?>) transcript.lookup(".virtual-flow"));
+        int from = fx(() -> number(flow.getFirstVisibleCell().getItem()));
+        long[] times = fx(() -> frames.record(() -> flow.scrollPixels(pixelsPerFrame)));
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        int count = fx(() -> frames.stopRecording());
+        int to = fx(() -> number(flow.getFirstVisibleCell().getItem()));
+
+        System.out.printf("Scrolled %s %,.0f px a frame, from message %,d to %,d%n",
+                pixelsPerFrame < 0 ? "up" : "down", Math.abs(pixelsPerFrame), from, to);
+        printFrames(times, count);
+    }
+
+    // Waits for UiDispatcher's next report, sends a message so that a pass makes it, and
+    // returns the reports in the client log so far
+    private List<String> uiLagReports(int number) throws Exception {
+        Thread.sleep(Math.max(0, reportDue - System.currentTimeMillis()));
+        server.send(PEER, message(number, "report"));
+        server.flush();
+        await(() -> lastShown == number ? Boolean.TRUE : null);
+        reportDue = System.currentTimeMillis() + REPORT_MILLIS;
+
+        File[] logs = new File("logs").listFiles((dir, name) -> name.startsWith("client_bench_"));
+        File log = Collections.max(Arrays.asList(logs), Comparator.comparingLong(File::lastModified));
+        List<String> reports = new ArrayList<>();
+        for (String line : Files.readAllLines(log.toPath())) {
+            if (line.contains("UI lag")) {
+                reports.add(line);
+            }
+        }
+        return reports;
+    }
+
+    // Opens tabs that each receive TAB_MESSAGES messages and reports the heap each holds once idle
+    private void measureIdleTabs(int count) throws Exception {
+        if (count <= 0) {
+            return;
+        }
+        long before = usedHeapAfterGc();
+        Random random = new Random(2);
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < TAB_MESSAGES; j++) {
+                server.send(PEER + i, message(j, text(random)));
+            }
+        }
+        server.flush();
+        await(() -> {
+            for (int i = 0; i < count; i++) {
+                ListView<?> list = transcript(PEER + i);
+                if (list == null || list.getItems().isEmpty()
+                        || number(list.getItems().get(list.getItems().size() - 1)) != TAB_MESSAGES - 1) {
+                    return null;
+                }
+            }
+            return Boolean.TRUE;
+        });
+        // Let the passes and the layout of the last tab finish
+        Thread.sleep(2000);
+        long after = usedHeapAfterGc();
+        System.out.printf("%d idle tabs of %,d messages: %,d KB of heap each%n",
+                count, TAB_MESSAGES, (after - before) / count / 1024);
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static void printFrames(long[] times, int count) {
+        if (count < 2) {
+            System.out.println("No frames");
+            return;
+        }
+        double[] intervals = new double[count - 1];
+        for (int i = 1; i < count; i++) {
+            intervals[i - 1] = (times[i] - times[i - 1]) / 1e6;
+        }
+        Arrays.sort(intervals);
+        System.out.printf("%,d frames in %.1f s: %.1f fps, frame time p50=%.1f ms p99=%.1f ms max=%.1f ms%n",
+                count, (times[count - 1] - times[0]) / 1e9, (count - 1) / ((times[count - 1] - times[0]) / 1e9),
+                percentile(intervals, 0.50), percentile(intervals, 0.99), intervals[intervals.length - 1]);
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    // The transcript of the selected chat tab, or null until there is one
+    private ListView<?> transcript() {
+        var tab = tabs.getSelectionModel().getSelectedItem();
+        return tab.getContent() != null && tab.getContent().lookup(".transcript") instanceof ListView<?> list ? list : null;
+    }
+
+    // The transcript of the chat tab with a user, or null until there is one
+    private ListView<?> transcript(String user) {
+        for (var tab : tabs.getTabs()) {
+            if (tab.getText().equals("Chat with " + user)) {
+                return (ListView<?>) tab.getContent().lookup(".transcript");
+            }
+        }
+        return null;
+    }
+
+    // "#<number> <text>"; the number of the message a transcript row shows
+    private static String message(int number, String text) {
+        return "#" + number + " " + text;
+    }
+
+    private static int number(Object item) {
+        String text = item.toString();
+        int start = text.indexOf('#');
+        int end = text.indexOf(' ', start);
+        try {
+            return Integer.parseInt(text.substring(start + 1, end));
+        } catch (RuntimeException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    // Mostly short lines, with a long one that wraps now and then
+    private static String text(Random random) {
+        int words = random.nextInt(10) == 0 ? 40 + random.nextInt(40) : 3 + random.nextInt(12);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            text.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    private static <T> T fx(Callable<T> task) throws Exception {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Platform.runLater(() -> {
+            try {
+                result.complete(task.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Polls the FX thread until the value is there
+    private static <T> T await(Callable<T> value) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (System.nanoTime() < deadline) {
+            T result = fx(value);
+            if (result != null) {
+                return result;
+            }
+            Thread.sleep(50);
+        }
+        throw new TimeoutException();
+    }
+
+    // Runs every pulse, which keeps pulses coming as a running animation would. While
+    // recording, it also runs an action each frame and notes when the frame came.
+    private static final class Frames extends AnimationTimer {
+        private long[] times;
+        private int count;
+        private Runnable action;
+
+        @Override
+        public void handle(long now) {
+            if (times == null) {
+                return;
+            }
+            if (count < times.length) {
+                times[count++] = System.nanoTime();
+            }
+            action.run();
+        }
+
+        long[] record(Runnable action) {
+            this.action = action;
+            count = 0;
+            times = new long[1 << 20];
+            return times;
+        }
+
+        int stopRecording() {
+            int recorded = count;
+            times = null;
+            return recorded;
+        }
+    }
+
+    // Accepts the client, answers its handshake and history requests, and sends it messages
+    private static final class FakeServer {
+        private final ServerSocketChannel listener;
+        private final CompletableFuture<SocketChannel> connection = new CompletableFuture<>();
+        private final ByteBuffer out = ByteBuffer.allocate(1 << 20);
+
+        FakeServer() throws IOException {
+            listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Thread thread = new Thread(this::serve, "fake-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int port() throws IOException {
+            return ((InetSocketAddress) listener.getLocalAddress()).getPort();
+        }
+
+        private void serve() {
+            try {
+                SocketChannel channel = listener.accept();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+                // "HELLO:<version>:<username>"
+                String hello = readLine(in);
+                String version = hello.split(":")[1];
+                channel.write(ByteBuffer.wrap(("HELLO:" + version + "\n").getBytes(StandardCharsets.UTF_8)));
+                connection.complete(channel);
+                while (true) {
+                    int type = in.read();
+                    if (type < 0) {
+                        return;
+                    }
+                    String payload = new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+                    // A tab asks for its newest page of history when it opens; there is none
+                    if (type == FrameType.CONTROL.getCode() && payload.startsWith("HISTORY:")) {
+                        synchronized (this) {
+                            frame(FrameType.HISTORY, payload.split(":")[1] + ":END:0");
+                            flush();
+                        }
+                    }
+                }
+            } catch (IOException | InterruptedException | ExecutionException e) {
+                // Client gone
+            }
+        }
+
+        private static String readLine(DataInputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n' && c >= 0) {
+                line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        synchronized void send(String sender, String text) throws Exception {
+            frame(FrameType.CHAT, sender + ":" + text);
+        }
+
+        private void frame(FrameType type, String payload) throws IOException, InterruptedException, ExecutionException {
+            byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+            if (out.remaining() < 5 + bytes.length) {
+                flush();
+            }
+            out.put(type.getCode()).putInt(bytes.length).put(bytes);
+        }
+
+        synchronized void flush() throws IOException, InterruptedException, ExecutionException {
+            SocketChannel channel = connection.get();
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+        }
+    }
+}
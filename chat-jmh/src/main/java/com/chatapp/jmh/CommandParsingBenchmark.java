@@ -0,0 +1,162 @@
+package com.chatapp.jmh;
+
+import com.chatapp.server.protocol.CommandParser;
+import com.chatapp.server.protocol.OutboundMessage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Cost of each stage of routing one private message, "receiver:text", to its receiver.
+ *
+ * The stages of the text path, which line-protocol clients still take and binary clients
+ * took before CommandParser, are measured one at a time: readLine reads the line a byte at
+ * a time as ClientHandler does, decode turns the bytes into a String, commands, prefixes,
+ * contains and split are the checks ChatServer.handleMessage makes before it treats the
+ * line as chat, lookup finds the receiver's connection, concat builds "sender:text" and
+ * encode frames it for the receiver. textRoute is decode through lookup together.
+ *
+ * parserClassify is CommandParser recognizing the message from a reused buffer, and
+ * parserRoute adds decoding the receiver and looking it up, which is what binary clients
+ * now pay before delivery. The receiver is still decoded because every lookup is by name.
+ *
+ * Run with -prof gc to see the bytes allocated per operation; parserClassify should show
+ * none: java -jar chat-jmh/target/benchmarks.jar CommandParsing -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+    private static final int USERS = 10_000;
+    private static final String SENDER = "user1";
+    private static final String[] PREFIXES = {
+            "FILE_RESUME:", "FILE_DONE:", "FILE_RETRY:", "HISTORY:", "SEARCH:", "ROOM_JOIN:", "ROOM_LEAVE:", "ROOM:"};
+
+    @Param({"16", "256"})
+    public int textLength;
+
+    private final Map<String, Object> clients = new ConcurrentHashMap<>();
+    private final CommandParser parser = new CommandParser();
+    private byte[] lineBytes;
+    private ByteArrayInputStream lineInput;
+    private DataInputStream in;
+    private ByteBuffer payload;
+    private String message;
+    private String receiver;
+    private String text;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < USERS; i++) {
+            clients.put("user" + i, new Object());
+        }
+        receiver = "user" + (USERS / 2);
+        text = "x".repeat(textLength);
+        message = receiver + ":" + text;
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        lineBytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        lineInput = new ByteArrayInputStream(lineBytes);
+        in = new DataInputStream(new BufferedInputStream(lineInput));
+        // A connection's reused payload buffer, bigger than the frame in it
+        payload = ByteBuffer.allocate(1024).put(bytes).flip();
+    }
+
+    @Benchmark
+    public String readLine() throws IOException {
+        lineInput.reset();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            line.write(b);
+        }
+        int length = line.size();
+        byte[] bytes = line.toByteArray();
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String decode() {
+        return new String(payload.array(), 0, payload.limit(), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public boolean commands() {
+        return message.equals("PRESENCE_SYNC") || message.equals("REFRESH_USERS");
+    }
+
+    @Benchmark
+    public boolean prefixes() {
+        for (String prefix : PREFIXES) {
+            if (message.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return message.contains(":");
+    }
+
+    @Benchmark
+    public String[] split() {
+        return message.split(":", 2);
+    }
+
+    @Benchmark
+    public Object lookup() {
+        return clients.get(receiver);
+    }
+
+    @Benchmark
+    public String concat() {
+        return SENDER + ":" + text;
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return OutboundMessage.chat(message).encode(true);
+    }
+
+    @Benchmark
+    public Object textRoute() {
+        String line = new String(payload.array(), 0, payload.limit(), StandardCharsets.UTF_8);
+        if (line.equals("PRESENCE_SYNC") || line.equals("REFRESH_USERS")) {
+            return null;
+        }
+        for (String prefix : PREFIXES) {
+            if (line.startsWith(prefix)) {
+                return null;
+            }
+        }
+        if (!line.contains(":")) {
+            return null;
+        }
+        String[] parts = line.split(":", 2);
+        return clients.get(parts[0]);
+    }
+
+    @Benchmark
+    public CommandParser.Command parserClassify() {
+        return parser.parse(payload);
+    }
+
+    @Benchmark
+    public Object parserRoute() {
+        if (parser.parse(payload) != CommandParser.Command.CHAT) {
+            return null;
+        }
+        return clients.get(parser.receiver());
+    }
+}
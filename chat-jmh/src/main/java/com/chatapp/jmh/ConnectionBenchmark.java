@@ -0,0 +1,135 @@
+package com.chatapp.jmh;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ServerConfig;
+import com.chatapp.server.ServerMode;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Measures how many concurrent connections the server holds in a given mode.
+ *
+ * Usage: ConnectionBenchmark <thread|virtual|nio> [connections] [activePairs] [seconds] [port]
+ *
+ * Opens the requested number of idle connections, reports heap and platform thread usage,
+ * then has activePairs of them exchange private messages for the given duration and reports
+ * delivered messages per second and mean latency. Raise `ulimit -n` for large connection counts.
+ *
+ * Not a JMH benchmark; it starts a server in this JVM and is run from the benchmarks jar:
+ * java -cp chat-jmh/target/benchmarks.jar com.chatapp.jmh.ConnectionBenchmark nio 10000
+ */
+public class ConnectionBenchmark {
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+
+    public static void main(String[] args) throws Exception {
+        ServerMode mode = ServerMode.valueOf(args.length > 0 ? args[0].toUpperCase() : "THREAD");
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int activePairs = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 5055;
+
+        new ConnectionBenchmark().run(mode, connections, activePairs, seconds, port);
+        System.exit(0);
+    }
+
+    private void run(ServerMode mode, int connections, int activePairs, int seconds, int port) throws Exception {
+        ChatServer server = new ChatServer(ServerConfig.fromSystemProperties().setMode(mode).setPort(port));
+        Thread serverThread = new Thread(server::start, "benchmark-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long baseHeap = usedHeap();
+        int baseThreads = threads.getThreadCount();
+
+        // Idle phase: log in and keep draining whatever the server sends
+        long start = System.nanoTime();
+        List<Writer> writers = new ArrayList<>();
+        int opened = 0;
+        try {
+            for (int i = 0; i < connections; i++) {
+                writers.add(connect(port, "bench" + i));
+                opened++;
+            }
+        } catch (IOException e) {
+            System.out.println("Stopped opening connections at " + opened + ": " + e.getMessage());
+        }
+        long connectMillis = (System.nanoTime() - start) / 1_000_000;
+        Thread.sleep(2000);
+
+        System.out.printf("mode=%s idle connections=%d connect time=%d ms heap=+%d MB platform threads=+%d%n",
+                mode, opened, connectMillis, (usedHeap() - baseHeap) >> 20, threads.getThreadCount() - baseThreads);
+
+        // Active phase: pairs (2i -> 2i+1) exchange messages as fast as the server relays them
+        int pairs = Math.min(activePairs, opened / 2);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < pairs; i++) {
+            Writer writer = writers.get(2 * i);
+            String receiver = "bench" + (2 * i + 1);
+            senders.execute(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        writer.write(receiver + ":" + System.nanoTime() + "\n");
+                        writer.flush();
+                        Thread.sleep(10);
+                    }
+                } catch (IOException | InterruptedException ignored) {
+                }
+            });
+        }
+        senders.shutdown();
+        senders.awaitTermination(seconds + 5, TimeUnit.SECONDS);
+        Thread.sleep(500);
+
+        long count = delivered.get();
+        System.out.printf("mode=%s active pairs=%d delivered=%d (%.0f msg/s) mean latency=%.2f ms platform threads=+%d%n",
+                mode, pairs, count, count / (double) seconds,
+                count == 0 ? 0.0 : latencyNanos.get() / (double) count / 1_000_000.0,
+                threads.getThreadCount() - baseThreads);
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.stop();
+    }
+
+    private Writer connect(int port, String username) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        sockets.add(socket);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        writer.write(username + "\n");
+        writer.flush();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        Thread.ofVirtual().start(() -> {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("bench")) {
+                        long sent = Long.parseLong(line.substring(line.indexOf(':') + 1));
+                        latencyNanos.addAndGet(System.nanoTime() - sent);
+                        delivered.incrementAndGet();
+                    }
+                }
+            } catch (IOException | NumberFormatException ignored) {
+            }
+        });
+        return writer;
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
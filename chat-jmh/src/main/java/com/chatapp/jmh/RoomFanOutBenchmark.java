@@ -0,0 +1,131 @@
+package com.chatapp.jmh;
+
+import com.chatapp.server.ChatRooms;
+import com.chatapp.server.ClientConnection;
+import com.chatapp.server.OutboundQueue;
+import com.chatapp.server.OverflowPolicy;
+import com.chatapp.server.protocol.OutboundMessage;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Cost of sending one message to a room, against room size.
+ *
+ * sharedBuffer is ChatRooms.send: the message is built and encoded once and every member
+ * queues a view of the same buffer. perRecipient builds and encodes the message for each
+ * member, which is what the server did for broadcasts before rooms. joinLeave is one member
+ * joining and leaving a room of that size.
+ *
+ * Members queue into real OutboundQueues. Each drains its queue every DRAIN_EVERY messages,
+ * standing in for its writer thread, so queues stay small however long the run.
+ *
+ * Run with: java -jar chat-jmh/target/benchmarks.jar RoomFanOut
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomFanOutBenchmark {
+    private static final String ROOM = "general";
+    private static final String TEXT = "Has anyone looked at the deploy from this morning? The dashboards seem fine to me";
+    private static final int DRAIN_EVERY = 64;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int roomSize;
+
+    private ChatRooms rooms;
+    private Member sender;
+    private Member newcomer;
+    private List<Member> members;
+
+    @Setup
+    public void setUp() {
+        rooms = new ChatRooms();
+        members = new ArrayList<>(roomSize);
+        for (int i = 0; i < roomSize; i++) {
+            Member member = new Member("user" + i);
+            members.add(member);
+            rooms.join(ROOM, member);
+        }
+        sender = members.get(0);
+        newcomer = new Member("newcomer");
+    }
+
+    @Benchmark
+    public int sharedBuffer() {
+        return rooms.send(ROOM, sender, TEXT);
+    }
+
+    @Benchmark
+    public int perRecipient() {
+        int recipients = 0;
+        for (Member member : members) {
+            if (member != sender) {
+                member.send(OutboundMessage.room(ROOM, sender.getUsername(), TEXT));
+                recipients++;
+            }
+        }
+        return recipients;
+    }
+
+    @Benchmark
+    public boolean joinLeave() {
+        rooms.join(ROOM, newcomer);
+        return rooms.leave(ROOM, newcomer);
+    }
+
+    // Queues like a binary client connection, without a socket
+    private static final class Member implements ClientConnection {
+        private final String username;
+        private final OutboundQueue queue = new OutboundQueue(1024, OverflowPolicy.DROP_OLDEST, 0, 1 << 20);
+        private final List<ByteBuffer> batch = new ArrayList<>();
+
+        Member(String username) {
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public boolean isBinary() {
+            return true;
+        }
+
+        @Override
+        public void send(OutboundMessage message) {
+            queue.offer(message.encode(true).duplicate(), false);
+            if (queue.size() >= DRAIN_EVERY) {
+                queue.pollBatch(batch, Integer.MAX_VALUE);
+                batch.clear();
+            }
+        }
+
+        @Override
+        public boolean trySend(OutboundMessage message, Runnable onSpace) {
+            send(message);
+            return true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return queue.size();
+        }
+
+        @Override
+        public void disconnect() {
+            queue.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.chatapp.jmh;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ServerConfig;
+import com.chatapp.server.store.HistoryStore;
+import com.chatapp.server.store.SearchIndex;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/*
+ * Measures search query latency over a large index.
+ *
+ * Usage: SearchBenchmark [messages] [users] [queries] [dir]
+ *
+ * Indexes the given number of synthetic messages (default 100m; k/m suffixes allowed) between
+ * users (default 10000) who each talk to 20 others. Messages are 3 to 10 words drawn from a
+ * 50,000-word vocabulary with a Zipf distribution, so a few words are very common and most
+ * are rare. Then runs the given number of queries (default 1000) of each kind, for random
+ * users, and reports latency percentiles: a common word, a rare word, and two words that
+ * must both match. The index goes in dir (default the temp directory), which needs several
+ * GB for the default size; nothing is written to the history store.
+ *
+ * Not a JMH benchmark; it is run from the benchmarks jar:
+ * java -cp chat-jmh/target/benchmarks.jar com.chatapp.jmh.SearchBenchmark 100m 10000 1000 /tmp
+ */
+public class SearchBenchmark {
+    private static final int VOCABULARY = 50_000;
+    private static final int CONTACTS = 20;
+    private static final int RESULTS = 20;
+
+    private final Random random = new Random(42);
+    private final String[] words = new String[VOCABULARY];
+    private final double[] cumulative = new double[VOCABULARY];
+
+    public static void main(String[] args) throws Exception {
+        long messages = parseCount(args.length > 0 ? args[0] : "100m");
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        File dir = Files.createTempDirectory(Path.of(args.length > 3 ? args[3] : System.getProperty("java.io.tmpdir")), "search-bench").toFile();
+
+        new SearchBenchmark().run(messages, users, queries, dir);
+        System.exit(0);
+    }
+
+    private void run(long messages, int users, int queries, File dir) throws Exception {
+        double total = 0;
+        for (int i = 0; i < VOCABULARY; i++) {
+            words[i] = "w" + Integer.toString(i, 36);
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+
+        ServerConfig config = ServerConfig.fromSystemProperties()
+                .setSearchDir(new File(dir, "search").getPath())
+                .setHistoryDir(new File(dir, "history").getPath())
+                .setStoreDir(new File(dir, "messages").getPath())
+                .setSpoolDir(new File(dir, "spool").getPath());
+        ChatServer server = new ChatServer(config);
+        HistoryStore history = new HistoryStore(server, config);
+        SearchIndex index = new SearchIndex(server, config, history);
+
+        long start = System.nanoTime();
+        StringBuilder text = new StringBuilder();
+        for (long i = 1; i <= messages; i++) {
+            int sender = random.nextInt(users);
+            int receiver = contact(sender, random.nextInt(CONTACTS), users);
+            text.setLength(0);
+            for (int w = 3 + random.nextInt(8); w > 0; w--) {
+                text.append(randomWord()).append(' ');
+            }
+            index.add("user" + sender, "user" + receiver, i, text.toString());
+            if (i % 10_000_000 == 0) {
+                System.out.printf("indexed %,d messages (%.0f/s)%n", i, i / ((System.nanoTime() - start) / 1e9));
+            }
+        }
+        System.out.printf("indexed %,d messages in %d s, index size %d MB%n",
+                messages, (System.nanoTime() - start) / 1_000_000_000, directorySize(new File(dir, "search")) >> 20);
+
+        report("common word", queries, users, index, () -> words[random.nextInt(10)]);
+        report("rare word", queries, users, index, () -> words[1000 + random.nextInt(VOCABULARY - 1000)]);
+        report("two words", queries, users, index, () -> randomWord() + " " + randomWord());
+
+        index.close();
+        history.close();
+        server.stop();
+    }
+
+    private void report(String kind, int queries, int users, SearchIndex index, java.util.function.Supplier<String> query) {
+        long[] nanos = new long[queries];
+        long hits = 0;
+        for (int i = 0; i < queries; i++) {
+            String user = "user" + random.nextInt(users);
+            String terms = query.get();
+            long start = System.nanoTime();
+            hits += index.search(user, terms, RESULTS).size();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.printf("%-12s p50=%d us p90=%d us p99=%d us max=%d us, %.1f hits per query%n", kind,
+                nanos[queries / 2] / 1000, nanos[queries * 9 / 10] / 1000, nanos[queries * 99 / 100] / 1000,
+                nanos[queries - 1] / 1000, hits / (double) queries);
+    }
+
+    // Each user has a fixed set of contacts, so conversations stay realistic in number
+    private static int contact(int user, int slot, int users) {
+        int contact = (int) ((user + (slot + 1) * 7919L) % users);
+        return contact == user ? (user + 1) % users : contact;
+    }
+
+    private String randomWord() {
+        int found = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[VOCABULARY - 1]);
+        return words[Math.min(found >= 0 ? found : -found - 1, VOCABULARY - 1)];
+    }
+
+    private static long directorySize(File dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            return files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    private static long parseCount(String count) {
+        String lower = count.toLowerCase();
+        long unit = switch (lower.charAt(lower.length() - 1)) {
+            case 'k' -> 1_000L;
+            case 'm' -> 1_000_000L;
+            default -> 1;
+        };
+        return Long.parseLong(unit == 1 ? lower : lower.substring(0, lower.length() - 1)) * unit;
+    }
+}
@@ -0,0 +1,34 @@
+package com.chatapp.loadtest;
+
+// Frame types of the server's binary protocol: a type byte, a 4-byte big-endian payload
+// length, then the payload
+public enum FrameType {
+    CHAT(1),
+    PRESENCE(2),
+    FILE_START(3),
+    FILE_CHUNK(4),
+    CONTROL(5),
+    HISTORY(6),
+    SEARCH(7),
+    ROOM(8);
+
+    private final byte code;
+
+    FrameType(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    // Returns null for unknown codes
+    public static FrameType fromCode(int code) {
+        for (FrameType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
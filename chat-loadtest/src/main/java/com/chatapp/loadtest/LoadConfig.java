@@ -0,0 +1,167 @@
+package com.chatapp.loadtest;
+
+public class LoadConfig {
+    private String host = "localhost";
+    private int port = 5001;
+    private int users = 1000;
+    private String userPrefix = "load";
+    private long rampSeconds = 10;
+    private long durationSeconds = 60;
+    private double messagesPerSecond = 1000;
+    private int messageBytes = 100;
+    private double refreshesPerSecond = 10;
+    private double filesPerSecond = 0.5;
+    private int fileBytes = 256 * 1024;
+    private int chunkBytes = 64 * 1024;
+    private long reportSeconds = 5;
+
+    // Reads settings from -Dload.* system properties, falling back to defaults
+    public static LoadConfig fromSystemProperties() {
+        LoadConfig config = new LoadConfig();
+        config.host = System.getProperty("load.host", config.host);
+        config.port = Integer.getInteger("load.port", config.port);
+        config.users = Integer.getInteger("load.users", config.users);
+        config.userPrefix = System.getProperty("load.userPrefix", config.userPrefix);
+        config.rampSeconds = Long.getLong("load.rampSeconds", config.rampSeconds);
+        config.durationSeconds = Long.getLong("load.durationSeconds", config.durationSeconds);
+        config.messagesPerSecond = getDouble("load.messagesPerSecond", config.messagesPerSecond);
+        config.messageBytes = Integer.getInteger("load.messageBytes", config.messageBytes);
+        config.refreshesPerSecond = getDouble("load.refreshesPerSecond", config.refreshesPerSecond);
+        config.filesPerSecond = getDouble("load.filesPerSecond", config.filesPerSecond);
+        config.fileBytes = Integer.getInteger("load.fileBytes", config.fileBytes);
+        config.chunkBytes = Integer.getInteger("load.chunkBytes", config.chunkBytes);
+        config.reportSeconds = Long.getLong("load.reportSeconds", config.reportSeconds);
+        return config;
+    }
+
+    private static double getDouble(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public LoadConfig setHost(String host) {
+        this.host = host;
+        return this;
+    }
+
+    // The server to log in to; in a cluster, users follow redirects to their home nodes
+    public int getPort() {
+        return port;
+    }
+
+    public LoadConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    public LoadConfig setUsers(int users) {
+        this.users = users;
+        return this;
+    }
+
+    // Users are named prefix0, prefix1, ...
+    public String getUserPrefix() {
+        return userPrefix;
+    }
+
+    public LoadConfig setUserPrefix(String userPrefix) {
+        this.userPrefix = userPrefix;
+        return this;
+    }
+
+    // Logins are spread evenly over this long
+    public long getRampSeconds() {
+        return rampSeconds;
+    }
+
+    public LoadConfig setRampSeconds(long rampSeconds) {
+        this.rampSeconds = rampSeconds;
+        return this;
+    }
+
+    // How long traffic runs once the ramp is over
+    public long getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public LoadConfig setDurationSeconds(long durationSeconds) {
+        this.durationSeconds = durationSeconds;
+        return this;
+    }
+
+    // Private messages per second across all users
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public LoadConfig setMessagesPerSecond(double messagesPerSecond) {
+        this.messagesPerSecond = messagesPerSecond;
+        return this;
+    }
+
+    // Size of each message's text, timestamp included
+    public int getMessageBytes() {
+        return messageBytes;
+    }
+
+    public LoadConfig setMessageBytes(int messageBytes) {
+        this.messageBytes = messageBytes;
+        return this;
+    }
+
+    // REFRESH_USERS requests per second across all users
+    public double getRefreshesPerSecond() {
+        return refreshesPerSecond;
+    }
+
+    public LoadConfig setRefreshesPerSecond(double refreshesPerSecond) {
+        this.refreshesPerSecond = refreshesPerSecond;
+        return this;
+    }
+
+    // File transfers started per second across all users
+    public double getFilesPerSecond() {
+        return filesPerSecond;
+    }
+
+    public LoadConfig setFilesPerSecond(double filesPerSecond) {
+        this.filesPerSecond = filesPerSecond;
+        return this;
+    }
+
+    public int getFileBytes() {
+        return fileBytes;
+    }
+
+    public LoadConfig setFileBytes(int fileBytes) {
+        this.fileBytes = fileBytes;
+        return this;
+    }
+
+    // File data per FILE_CHUNK frame; the server takes up to 1 MB
+    public int getChunkBytes() {
+        return chunkBytes;
+    }
+
+    public LoadConfig setChunkBytes(int chunkBytes) {
+        this.chunkBytes = chunkBytes;
+        return this;
+    }
+
+    public long getReportSeconds() {
+        return reportSeconds;
+    }
+
+    public LoadConfig setReportSeconds(long reportSeconds) {
+        this.reportSeconds = reportSeconds;
+        return this;
+    }
+}
@@ -0,0 +1,236 @@
+package com.chatapp.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+/*
+ * Headless load generator for a running ChatServer.
+ *
+ * Logs in load.users simulated users over load.rampSeconds, then keeps sending private
+ * messages, REFRESH_USERS requests and file transfers between random pairs of them at the
+ * configured rates until load.durationSeconds after the ramp. Each kind of traffic has its
+ * own pacer thread that works from a fixed schedule (open loop): if the server or the
+ * generator falls behind, the delay counts towards latency instead of slowing the test.
+ *
+ * Every load.reportSeconds it prints how many of each operation completed, their throughput
+ * and their latency percentiles. At the end it prints the same for logins over the ramp and
+ * for the other operations over the rest of the run, leaving out the warm-up:
+ *   login    time to the server's HELLO reply, including redirects
+ *   chat     sender to receiver, from the timestamp embedded in the message
+ *   refresh  REFRESH_USERS to the snapshot that answers it
+ *   file     offer to the receiver's last byte, through the server's spool
+ *
+ * Run with: java -Dload.users=2000 -Dload.messagesPerSecond=5000 -jar chat-loadtest/target/loadtest.jar
+ */
+public class LoadTest {
+    // After the traffic stops, how long to wait for messages still on their way
+    private static final long DRAIN_SECONDS = 10;
+    private static final int MAX_ERRORS_SHOWN = 10;
+
+    private final LoadConfig config;
+    private final AtomicReferenceArray<SimUser> online;
+    private final AtomicInteger onlineCount = new AtomicInteger();
+    private final AtomicInteger nextUser = new AtomicInteger();
+    private final AtomicInteger lostUsers = new AtomicInteger();
+    private final AtomicLong failedFiles = new AtomicLong();
+    private final AtomicInteger errorsShown = new AtomicInteger();
+    private final byte[] fileTemplate;
+    final Metric logins = new Metric("login");
+    final Metric chats = new Metric("chat");
+    final Metric refreshes = new Metric("refresh");
+    final Metric files = new Metric("file");
+    private volatile boolean running = true;
+    private long startNanos;
+
+    public LoadTest(LoadConfig config) {
+        this.config = config;
+        this.online = new AtomicReferenceArray<>(config.getUsers());
+        this.fileTemplate = new byte[config.getFileBytes()];
+        new Random(42).nextBytes(fileTemplate);
+    }
+
+    public LoadConfig getConfig() {
+        return config;
+    }
+
+    public void run() throws InterruptedException {
+        System.out.printf("Load test against %s:%d: %,d users over %ds, then %ds of %,.1f messages/s (%d bytes), "
+                        + "%,.1f refreshes/s and %,.2f files/s (%,d bytes)%n",
+                config.getHost(), config.getPort(), config.getUsers(), config.getRampSeconds(), config.getDurationSeconds(),
+                config.getMessagesPerSecond(), config.getMessageBytes(), config.getRefreshesPerSecond(),
+                config.getFilesPerSecond(), config.getFileBytes());
+        startNanos = System.nanoTime();
+        long rampEnd = startNanos + TimeUnit.SECONDS.toNanos(config.getRampSeconds());
+        long endNanos = rampEnd + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+
+        List<Thread> pacers = new ArrayList<>();
+        pacers.add(startPacer("ramp", config.getUsers() / Math.max(config.getRampSeconds(), 1e-3), rampEnd, this::login));
+        pacers.add(startPacer("chat", config.getMessagesPerSecond(), endNanos, this::chat));
+        pacers.add(startPacer("refresh", config.getRefreshesPerSecond(), endNanos, this::refresh));
+        pacers.add(startPacer("file", config.getFilesPerSecond(), endNanos, this::file));
+
+        long reportNanos = TimeUnit.SECONDS.toNanos(config.getReportSeconds());
+        long lastReport = startNanos;
+        while (lastReport < endNanos) {
+            long next = Math.min(lastReport + reportNanos, lastReport < rampEnd ? rampEnd : endNanos);
+            parkUntil(next);
+            report("[" + TimeUnit.NANOSECONDS.toSeconds(next - startNanos) + "s]", next - lastReport);
+            if (next == rampEnd) {
+                for (Metric metric : List.of(chats, refreshes, files)) {
+                    metric.resetTotal();
+                }
+            }
+            lastReport = next;
+        }
+
+        running = false;
+        for (Thread pacer : pacers) {
+            pacer.join();
+        }
+        long drainEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+        while (System.nanoTime() < drainEnd && (chats.getCompleted() < chats.getStarted()
+                || files.getCompleted() + failedFiles.get() < files.getStarted())) {
+            Thread.sleep(100);
+        }
+        long finished = System.nanoTime();
+        report("[drain]", finished - lastReport);
+
+        System.out.printf("%nLogins over the %ds ramp:%n", config.getRampSeconds());
+        System.out.println(logins.summary(Math.max(config.getRampSeconds(), 1)));
+        System.out.printf("Traffic over the %ds after it:%n", config.getDurationSeconds());
+        for (Metric metric : List.of(chats, refreshes, files)) {
+            System.out.println(metric.summary(Math.max(config.getDurationSeconds(), 1)));
+        }
+        System.out.printf("  %,d logins failed, %,d users disconnected, %,d messages and %,d files not delivered, "
+                        + "%,d files refused%n",
+                logins.getStarted() - logins.getCompleted(), lostUsers.get(), chats.getStarted() - chats.getCompleted(),
+                files.getStarted() - files.getCompleted() - failedFiles.get(), failedFiles.get());
+
+        for (int i = 0; i < onlineCount.get(); i++) {
+            SimUser user = online.get(i);
+            if (user != null) {
+                user.close();
+            }
+        }
+    }
+
+    private void report(String label, long intervalNanos) {
+        double seconds = intervalNanos / 1e9;
+        System.out.printf("%s %,d users online%n", label, onlineCount.get() - lostUsers.get());
+        for (Metric metric : List.of(logins, chats, refreshes, files)) {
+            System.out.println(metric.interval(seconds));
+        }
+    }
+
+    // Calls action with each scheduled time, perSecond times a second until endNanos
+    private Thread startPacer(String name, double perSecond, long endNanos, LongConsumer action) {
+        Thread pacer = new Thread(() -> {
+            if (perSecond <= 0) {
+                return;
+            }
+            double interval = 1e9 / perSecond;
+            for (long i = 0; running; i++) {
+                long scheduled = startNanos + (long) (i * interval);
+                if (scheduled >= endNanos) {
+                    return;
+                }
+                parkUntil(scheduled);
+                action.accept(scheduled);
+            }
+        }, "pacer-" + name);
+        pacer.setDaemon(true);
+        pacer.start();
+        return pacer;
+    }
+
+    private static void parkUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private void login(long scheduled) {
+        int index = nextUser.getAndIncrement();
+        if (index >= config.getUsers()) {
+            return;
+        }
+        Thread.startVirtualThread(() -> {
+            SimUser user = new SimUser(this, config.getUserPrefix() + index);
+            logins.started();
+            try {
+                user.connect(config.getHost(), config.getPort());
+            } catch (IOException | RuntimeException e) {
+                showError("Login failed for " + user.getUsername() + ": " + e.getMessage());
+                return;
+            }
+            logins.record(scheduled, 0);
+            online.set(onlineCount.getAndIncrement(), user);
+            user.readLoop();
+        });
+    }
+
+    // A random user who is logged in, or null if there are none yet
+    private SimUser randomUser() {
+        int count = onlineCount.get();
+        return count == 0 ? null : online.get(ThreadLocalRandom.current().nextInt(count));
+    }
+
+    private void chat(long scheduled) {
+        SimUser sender = randomUser();
+        SimUser receiver = randomUser();
+        if (sender != null && receiver != null && sender != receiver) {
+            Thread.startVirtualThread(() -> sender.sendChat(receiver.getUsername(), scheduled, config.getMessageBytes()));
+        }
+    }
+
+    private void refresh(long scheduled) {
+        SimUser user = randomUser();
+        if (user != null) {
+            Thread.startVirtualThread(() -> user.refresh(scheduled));
+        }
+    }
+
+    private void file(long scheduled) {
+        SimUser sender = randomUser();
+        SimUser receiver = randomUser();
+        if (sender != null && receiver != null && sender != receiver) {
+            Thread.startVirtualThread(() -> sender.sendFile(receiver.getUsername(), scheduled, fileTemplate));
+        }
+    }
+
+    void userLost(SimUser user, IOException e) {
+        if (running) {
+            lostUsers.incrementAndGet();
+            showError(user.getUsername() + " disconnected: " + e.getMessage());
+        }
+    }
+
+    void fileFailed(String message) {
+        failedFiles.incrementAndGet();
+        showError(message);
+    }
+
+    private void showError(String message) {
+        int shown = errorsShown.incrementAndGet();
+        if (shown <= MAX_ERRORS_SHOWN) {
+            System.out.println("  ! " + message);
+        } else if (shown == MAX_ERRORS_SHOWN + 1) {
+            System.out.println("  ! (further errors not shown)");
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        new LoadTest(LoadConfig.fromSystemProperties()).run();
+        System.exit(0);
+    }
+}
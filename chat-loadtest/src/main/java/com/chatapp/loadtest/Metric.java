@@ -0,0 +1,81 @@
+package com.chatapp.loadtest;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+// One kind of operation: how many were started, how many completed, the bytes they carried
+// and their latencies in microseconds. Any thread can record. The reporter takes each
+// interval's histogram without stopping recording, and adds it to the run's total.
+final class Metric {
+    private final String name;
+    private final Recorder recorder = new Recorder(3);
+    private final Histogram total = new Histogram(3);
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private long intervalBytes;
+    private long totalBytesBefore;
+
+    Metric(String name) {
+        this.name = name;
+    }
+
+    void started() {
+        started.increment();
+    }
+
+    long getStarted() {
+        return started.sum();
+    }
+
+    // Latency runs from when the operation was meant to start, so a sender that falls
+    // behind schedule shows up in the percentiles rather than hiding them
+    void record(long startNanos, long byteCount) {
+        recorder.recordValue(Math.max(0, (System.nanoTime() - startNanos) / 1000));
+        completed.increment();
+        bytes.add(byteCount);
+    }
+
+    long getCompleted() {
+        return completed.sum();
+    }
+
+    // Operations completed since the last call, and their latencies
+    String interval(double seconds) {
+        Histogram interval = recorder.getIntervalHistogram();
+        total.add(interval);
+        long byteCount = bytes.sum();
+        String line = format(interval, byteCount - intervalBytes, seconds);
+        intervalBytes = byteCount;
+        return line;
+    }
+
+    String summary(double seconds) {
+        return format(total, bytes.sum() - totalBytesBefore, seconds);
+    }
+
+    // Starts the run's total afresh, so it leaves out what was recorded so far
+    void resetTotal() {
+        total.reset();
+        totalBytesBefore = intervalBytes;
+    }
+
+    private String format(Histogram histogram, long byteCount, double seconds) {
+        long count = histogram.getTotalCount();
+        String line = String.format("  %-8s %,10d %,10.1f/s", name, count, count / seconds);
+        if (byteCount > 0) {
+            line += String.format(" %,8.2f MB/s", byteCount / seconds / (1024 * 1024));
+        }
+        if (count == 0) {
+            return line;
+        }
+        return line + String.format("  p50=%s p99=%s p999=%s max=%s ms", millis(histogram.getValueAtPercentile(50)),
+                millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getMaxValue()));
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.2f", micros / 1000.0);
+    }
+}
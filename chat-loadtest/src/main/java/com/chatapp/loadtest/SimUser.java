@@ -0,0 +1,325 @@
+package com.chatapp.loadtest;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+// One simulated user on the binary protocol, like the desktop client without a window.
+// Frames are read on the user's own virtual thread; anything sent is written by whichever
+// thread sends it, one frame at a time.
+//
+// Every message carries the time it was meant to be sent: chat text starts with
+// "LT <nanoTime> " and files are named "lt-<nanoTime>.bin". Senders and receivers share the
+// load generator's clock, so latency is measured from sender to receiver.
+final class SimUser {
+    private static final int PROTOCOL_VERSION = 3;
+    private static final int MAX_REDIRECTS = 3;
+    private static final int CHUNK_FIELDS_SIZE = 8 + 8 + 4;
+    private static final String TIMESTAMP_PREFIX = "LT ";
+    // Stands in the refresh queue for the snapshot that answers PRESENCE_SYNC
+    private static final long SYNC = -1;
+
+    // A file being received
+    private static final class Incoming {
+        final long startNanos;
+        final long size;
+        long received;
+
+        Incoming(long startNanos, long size) {
+            this.startNanos = startNanos;
+            this.size = size;
+        }
+    }
+
+    private final LoadTest test;
+    private final String username;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final AtomicLong nextTransferId = new AtomicLong();
+    // Files being sent, by transfer ID
+    private final Map<Long, byte[]> outgoing = new ConcurrentHashMap<>();
+    // Only touched on the reading thread
+    private final Map<Long, Incoming> incoming = new HashMap<>();
+    // When each unanswered REFRESH_USERS was meant to be sent
+    private final Queue<Long> refreshes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private SocketChannel channel;
+    private DataInputStream in;
+
+    SimUser(LoadTest test, String username) {
+        this.test = test;
+        this.username = username;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    // Logs in, following redirects to the user's home node, and subscribes to presence
+    void connect(String host, int port) throws IOException {
+        for (int redirects = 0; ; redirects++) {
+            channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.socket().setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 16 * 1024));
+            write(ByteBuffer.wrap(("HELLO:" + PROTOCOL_VERSION + ":" + username + "\n").getBytes(StandardCharsets.UTF_8)));
+            String reply = readLine();
+            if (reply.startsWith("HELLO:")) {
+                break;
+            }
+            channel.close();
+            if (!reply.startsWith("REDIRECT:") || redirects == MAX_REDIRECTS) {
+                throw new IOException("Login refused: " + reply);
+            }
+            int separator = reply.lastIndexOf(':');
+            host = reply.substring("REDIRECT:".length(), separator);
+            port = Integer.parseInt(reply.substring(separator + 1));
+        }
+        refreshes.add(SYNC);
+        writeFrame(FrameType.PRESENCE, "PRESENCE_SYNC");
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Server closed the connection during login");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    // Runs on the user's reading thread until the connection closes
+    void readLoop() {
+        try {
+            int code;
+            while ((code = in.read()) != -1) {
+                int length = in.readInt();
+                FrameType type = FrameType.fromCode(code);
+                if (type == FrameType.FILE_CHUNK) {
+                    long transferId = in.readLong();
+                    in.readLong();
+                    in.readInt();
+                    // The data only needs counting
+                    in.skipNBytes(length - CHUNK_FIELDS_SIZE);
+                    handleChunk(transferId, length - CHUNK_FIELDS_SIZE);
+                    continue;
+                }
+                byte[] payload = in.readNBytes(length);
+                if (payload.length < length) {
+                    throw new EOFException();
+                }
+                String message = new String(payload, StandardCharsets.UTF_8);
+                if (type == FrameType.CHAT) {
+                    handleChat(message, length);
+                } else if (type == FrameType.PRESENCE) {
+                    handlePresence(message);
+                } else if (type == FrameType.CONTROL) {
+                    handleControl(message);
+                } else if (type == FrameType.FILE_START) {
+                    handleFileStart(message);
+                }
+            }
+            throw new EOFException("Server closed the connection");
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    // "sender:LT <nanoTime> ..."
+    private void handleChat(String message, int length) {
+        int start = message.indexOf(':') + 1;
+        if (!message.startsWith(TIMESTAMP_PREFIX, start)) {
+            return;
+        }
+        int end = message.indexOf(' ', start + TIMESTAMP_PREFIX.length());
+        test.chats.record(Long.parseLong(message.substring(start + TIMESTAMP_PREFIX.length(), end)), length);
+    }
+
+    // Snapshots answer PRESENCE_SYNC and REFRESH_USERS in the order they were sent; the
+    // JOIN/LEAVE deltas in between are ignored
+    private void handlePresence(String message) {
+        if (!message.startsWith("PRESENCE:")) {
+            return;
+        }
+        Long sentNanos = refreshes.poll();
+        if (sentNanos != null && sentNanos != SYNC) {
+            test.refreshes.record(sentNanos, message.length());
+        }
+    }
+
+    // Only file transfer replies matter; a cluster asking the user to move is ignored, and
+    // the user stays reachable where it is
+    private void handleControl(String message) throws IOException {
+        String[] parts = message.split(":");
+        if (parts.length < 2 || !parts[0].startsWith("FILE_")) {
+            return;
+        }
+        long transferId = Long.parseLong(parts[1]);
+        switch (parts[0]) {
+            case "FILE_RESUME" -> {
+                byte[] content = outgoing.get(transferId);
+                if (content != null && parts.length == 3) {
+                    long offset = Long.parseLong(parts[2]);
+                    Thread.startVirtualThread(() -> sendChunks(transferId, content, (int) offset));
+                }
+            }
+            case "FILE_DONE" -> outgoing.remove(transferId);
+            case "FILE_REJECTED", "FILE_RETRY" -> {
+                if (outgoing.remove(transferId) != null) {
+                    test.fileFailed(username + " could not send a file: " + message);
+                }
+            }
+            case "FILE_ABORT" -> incoming.remove(transferId);
+            default -> {
+            }
+        }
+    }
+
+    // "transferId:sender:fileName:size:sha256"; spooled files are asked for from the start
+    private void handleFileStart(String message) throws IOException {
+        String[] parts = message.split(":");
+        if (parts.length != 5 || !parts[2].startsWith("lt-")) {
+            return;
+        }
+        long transferId = Long.parseLong(parts[0]);
+        long startNanos = Long.parseLong(parts[2].substring(3, parts[2].indexOf('.')));
+        incoming.put(transferId, new Incoming(startNanos, Long.parseLong(parts[3])));
+        writeFrame(FrameType.CONTROL, "FILE_RESUME:" + transferId + ":0");
+    }
+
+    private void handleChunk(long transferId, int length) throws IOException {
+        Incoming file = incoming.get(transferId);
+        if (file == null) {
+            return;
+        }
+        file.received += length;
+        if (file.received >= file.size) {
+            incoming.remove(transferId);
+            writeFrame(FrameType.CONTROL, "FILE_DONE:" + transferId);
+            test.files.record(file.startNanos, file.size);
+        }
+    }
+
+    void sendChat(String receiver, long startNanos, int messageBytes) {
+        StringBuilder text = new StringBuilder(receiver.length() + 1 + messageBytes)
+                .append(receiver).append(':').append(TIMESTAMP_PREFIX).append(startNanos).append(' ');
+        while (text.length() - receiver.length() - 1 < messageBytes) {
+            text.append('x');
+        }
+        try {
+            writeFrame(FrameType.CHAT, text.toString());
+            test.chats.started();
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    void refresh(long startNanos) {
+        refreshes.add(startNanos);
+        try {
+            writeFrame(FrameType.PRESENCE, "REFRESH_USERS");
+            test.refreshes.started();
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    // Offers a file; the chunks follow once the server says where to start. Each file
+    // starts with its own time and ID, so the spool never finds it already stored.
+    void sendFile(String receiver, long startNanos, byte[] template) {
+        long transferId = nextTransferId.incrementAndGet();
+        byte[] content = template.clone();
+        ByteBuffer.wrap(content).putLong(startNanos).putLong(transferId).putInt(username.hashCode());
+        outgoing.put(transferId, content);
+        try {
+            writeFrame(FrameType.FILE_START, transferId + ":" + receiver + ":lt-" + startNanos + ".bin:" + content.length
+                    + ":" + sha256(content));
+            test.files.started();
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    private void sendChunks(long transferId, byte[] content, int offset) {
+        CRC32C crc = new CRC32C();
+        try {
+            while (offset < content.length && !closed.get()) {
+                int count = Math.min(test.getConfig().getChunkBytes(), content.length - offset);
+                crc.reset();
+                crc.update(content, offset, count);
+                ByteBuffer header = ByteBuffer.allocate(5 + CHUNK_FIELDS_SIZE)
+                        .put(FrameType.FILE_CHUNK.getCode()).putInt(CHUNK_FIELDS_SIZE + count)
+                        .putLong(transferId).putLong(offset).putInt((int) crc.getValue()).flip();
+                write(header, ByteBuffer.wrap(content, offset, count));
+                offset += count;
+            }
+        } catch (IOException e) {
+            lost(e);
+        }
+    }
+
+    private void writeFrame(FrameType type, String message) throws IOException {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        write(ByteBuffer.allocate(5 + payload.length).put(type.getCode()).putInt(payload.length).put(payload).flip());
+    }
+
+    private void write(ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        writeLock.lock();
+        try {
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Reported once, however many threads notice
+    private void lost(IOException e) {
+        if (closed.compareAndSet(false, true)) {
+            closeChannel();
+            test.userLost(this, e);
+        }
+    }
+
+    void close() {
+        closed.set(true);
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    private static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
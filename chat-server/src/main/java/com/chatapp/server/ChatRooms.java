@@ -0,0 +1,129 @@
+package com.chatapp.server;
+
+import com.chatapp.server.protocol.OutboundMessage;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+// Named group chat rooms. Membership is per connection and ends when the client disconnects.
+// Each room's members are a concurrent set, so joins, leaves and sends to the same room can
+// run on any number of threads at once, and a send walks the set without copying it. A room
+// message is built once and the same OutboundMessage, with its shared encoded buffer, is
+// queued to every member.
+//
+// A connection's joins, leaves and leaveAll run inside its entry in joined, so they happen one
+// at a time, and a connection that is no longer its user's current one can't join at all.
+// A join racing with the disconnect of the same connection therefore can't leave it in a room.
+public class ChatRooms {
+    public static final int MAX_NAME_LENGTH = 64;
+
+    private final Map<String, Set<ClientConnection>> rooms = new ConcurrentHashMap<>();
+    private final Map<ClientConnection, Set<String>> joined = new ConcurrentHashMap<>();
+    private final Predicate<ClientConnection> connected;
+
+    public ChatRooms() {
+        this(client -> true);
+    }
+
+    // connected tells whether a connection is still its user's current one
+    public ChatRooms(Predicate<ClientConnection> connected) {
+        this.connected = connected;
+    }
+
+    // Room names are used as protocol fields, so they can't contain the separator
+    public static boolean isValidName(String room) {
+        return !room.isEmpty() && room.length() <= MAX_NAME_LENGTH && room.indexOf(':') < 0;
+    }
+
+    // Returns the number of members after joining, or -1 if the connection has gone
+    public int join(String room, ClientConnection client) {
+        int[] count = {-1};
+        joined.compute(client, (c, names) -> {
+            if (!connected.test(client)) {
+                return names;
+            }
+            if (names == null) {
+                names = ConcurrentHashMap.newKeySet();
+            }
+            names.add(room);
+            // compute locks the room's entry, so an empty room can't be removed while someone joins it
+            count[0] = rooms.compute(room, (name, members) -> {
+                if (members == null) {
+                    members = ConcurrentHashMap.newKeySet();
+                }
+                members.add(client);
+                return members;
+            }).size();
+            return names;
+        });
+        return count[0];
+    }
+
+    // Returns false if the client wasn't a member
+    public boolean leave(String room, ClientConnection client) {
+        boolean[] left = {false};
+        joined.computeIfPresent(client, (c, names) -> {
+            if (names.remove(room)) {
+                removeMember(room, client);
+                left[0] = true;
+            }
+            return names.isEmpty() ? null : names;
+        });
+        return left[0];
+    }
+
+    // Called once the connection is no longer its user's current one
+    public void leaveAll(ClientConnection client) {
+        joined.computeIfPresent(client, (c, names) -> {
+            for (String room : names) {
+                removeMember(room, client);
+            }
+            return null;
+        });
+    }
+
+    private void removeMember(String room, ClientConnection client) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(client);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    public boolean isMember(String room, ClientConnection client) {
+        Set<ClientConnection> members = rooms.get(room);
+        return members != null && members.contains(client);
+    }
+
+    public int getMemberCount(String room) {
+        Set<ClientConnection> members = rooms.get(room);
+        return members == null ? 0 : members.size();
+    }
+
+    // Sends text from a member to everyone else in the room. Returns the number of
+    // recipients, or -1 if the sender isn't a member.
+    public int send(String room, ClientConnection sender, String text) {
+        Set<ClientConnection> members = rooms.get(room);
+        if (members == null || !members.contains(sender)) {
+            return -1;
+        }
+        return sendToMembers(members, OutboundMessage.room(room, sender.getUsername(), text), sender);
+    }
+
+    // Sends text from a member on another cluster node to everyone in the room here, and
+    // returns the number of recipients
+    public int deliver(String room, String sender, String text) {
+        Set<ClientConnection> members = rooms.get(room);
+        return members == null ? 0 : sendToMembers(members, OutboundMessage.room(room, sender, text), null);
+    }
+
+    private static int sendToMembers(Set<ClientConnection> members, OutboundMessage message, ClientConnection sender) {
+        int recipients = 0;
+        for (ClientConnection member : members) {
+            if (member != sender) {
+                member.send(message);
+                recipients++;
+            }
+        }
+        return recipients;
+    }
+}
@@ -1,56 +1,104 @@
 package com.chatapp.server;
 
+import com.chatapp.server.cluster.ClusterNode;
+import com.chatapp.server.log.AsyncLogger;
+import com.chatapp.server.log.LogLevel;
+import com.chatapp.server.nio.NioServer;
+import com.chatapp.server.protocol.CommandParser;
+import com.chatapp.server.protocol.OutboundMessage;
+import com.chatapp.server.store.HistoryStore;
+import com.chatapp.server.store.MessageStore;
+import com.chatapp.server.store.SearchIndex;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ChatServer {
-    private static final int PORT = 5001;
+    private final ServerConfig config;
     private ServerSocket serverSocket;
-    private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    private NioServer nioServer;
+    private final Map<String, ClientConnection> clients = new ConcurrentHashMap<>();
+    private final ChatRooms rooms = new ChatRooms(client -> clients.get(client.getUsername()) == client);
+    // Services that call back into the server are created by start(), once it is fully
+    // constructed
+    private PresenceScheduler presence;
+    private FileSpool spool;
+    private MessageStore messages;
+    private HistoryStore history;
+    private SearchIndex search;
+    private ClusterNode cluster;
     private volatile boolean running = true;
-    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-    private PrintWriter logWriter;
+    private final AsyncLogger logger;
+    private ExecutorService virtualThreads;
 
     public ChatServer() {
-        try {
-            // Create logs directory if it doesn't exist
-            File logsDir = new File("logs");
-            if (!logsDir.exists()) {
-                logsDir.mkdir();
-            }
+        this(ServerConfig.fromSystemProperties());
+    }
 
-            // Create log file with timestamp
-            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
-            File logFile = new File(logsDir, "server_" + timestamp + ".log");
-            logWriter = new PrintWriter(new FileWriter(logFile, true));
-        } catch (IOException e) {
-            System.err.println("Error creating log file: " + e.getMessage());
+    public ChatServer(ServerConfig config) {
+        this.config = config;
+        this.logger = new AsyncLogger(new File(config.getLogDir()), config.getLogLevel(), config.isLogConsole(),
+                config.getLogBufferSize(), config.getLogMaxFileBytes(), config.getLogRotateMinutes());
+    }
+
+    private void startServices() {
+        presence = new PresenceScheduler(this, clients, config.getPresenceWindowMillis());
+        spool = new FileSpool(this, config);
+        messages = new MessageStore(this, config);
+        history = new HistoryStore(this, config);
+        search = new SearchIndex(this, config, history);
+        cluster = new ClusterNode(this, config);
+        if (cluster.isEnabled()) {
+            FileUploads.setNodeId(config.getClusterNodeId());
         }
     }
 
     public void log(String message) {
-        String logMessage = String.format("[%s] %s", LocalDateTime.now().format(formatter), message);
-        System.out.println(logMessage);
-        if (logWriter != null) {
-            logWriter.println(logMessage);
-            logWriter.flush();
-        }
+        logger.log(LogLevel.INFO, message);
+    }
+
+    public void log(LogLevel level, String message) {
+        logger.log(level, message);
+    }
+
+    // Lets callers skip building messages that would be filtered out anyway
+    public boolean isLogEnabled(LogLevel level) {
+        return logger.isEnabled(level);
     }
 
     public void start() {
+        startServices();
+        if (config.getMode() == ServerMode.NIO) {
+            startNio();
+            return;
+        }
+
         try {
-            serverSocket = new ServerSocket(PORT);
-            log("Server started on port " + PORT);
+            cluster.start();
+            // Opened through a channel so accepted sockets support gathering writes
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(config.getPort()));
+            if (config.getMode() == ServerMode.VIRTUAL) {
+                virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+                log("Server started on port " + config.getPort() + " (virtual threads)");
+            } else {
+                log("Server started on port " + config.getPort());
+            }
 
             while (running) {
                 Socket clientSocket = serverSocket.accept();
                 log("New client connected from: " + clientSocket.getInetAddress());
                 ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                new Thread(clientHandler).start();
+                if (virtualThreads != null) {
+                    virtualThreads.execute(clientHandler);
+                } else {
+                    new Thread(clientHandler).start();
+                }
             }
         } catch (IOException e) {
             log("Server error: " + e.getMessage());
@@ -59,6 +107,19 @@ public class ChatServer {
         }
     }
 
+    private void startNio() {
+        try {
+            cluster.start();
+            nioServer = new NioServer(this, config);
+            log("Server started on port " + config.getPort() + " (nio, " + config.getIoThreads() + " I/O threads)");
+            nioServer.run();
+        } catch (IOException e) {
+            log("Server error: " + e.getMessage());
+        } finally {
+            stop();
+        }
+    }
+
     public void stop() {
         running = false;
         try {
@@ -66,58 +127,286 @@ public class ChatServer {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (nioServer != null) {
+                nioServer.close();
+            }
             // Close all client connections
-            for (ClientHandler client : clients.values()) {
+            for (ClientConnection client : clients.values()) {
                 client.disconnect();
             }
             clients.clear();
-            
-            if (logWriter != null) {
-                logWriter.close();
+            if (cluster != null) {
+                cluster.close();
+                presence.close();
+                spool.close();
+                messages.close();
+                search.close();
+                history.close();
+            }
+            if (virtualThreads != null) {
+                virtualThreads.shutdownNow();
             }
+            
+            logger.close();
         } catch (IOException e) {
             System.err.println("Error shutting down server: " + e.getMessage());
         }
     }
 
     public void broadcast(String message, String sender) {
-        log("Broadcasting from " + sender + ": " + message);
-        for (ClientHandler client : clients.values()) {
+        if (isLogEnabled(LogLevel.DEBUG)) {
+            log(LogLevel.DEBUG, "Broadcasting from " + sender + ": " + message);
+        }
+        // One message, encoded once, for every recipient
+        OutboundMessage shared = OutboundMessage.chat(message);
+        for (ClientConnection client : clients.values()) {
             if (!client.getUsername().equals(sender)) {
-                client.sendMessage(message);
+                client.send(shared);
             }
         }
     }
 
-    public void addClient(String username, ClientHandler handler) {
-        clients.put(username, handler);
+    public void addClient(String username, ClientConnection handler) {
+        ClientConnection replaced = clients.put(username, handler);
+        if (replaced != null && replaced != handler) {
+            rooms.leaveAll(replaced);
+        }
         log("Client connected: " + username);
-        broadcastClientList();
+        cluster.localUserChanged(username, handler);
+        presence.memberChanged(username);
+        messages.deliver(handler);
+        spool.deliverPending(handler);
     }
 
-    public void removeClient(String username) {
-        clients.remove(username);
+    // Called by a closing connection. If the user has already logged in again, the newer
+    // connection stays; only the closing one's subscriptions, rooms and transfers end.
+    public void removeClient(String username, ClientConnection connection) {
+        boolean removed = clients.remove(username, connection);
+        presence.unsubscribe(connection);
+        rooms.leaveAll(connection);
+        spool.recipientGone(connection);
+        if (!removed) {
+            log("Client disconnected: " + username + " (replaced by a newer connection)");
+            return;
+        }
+        cluster.localUserChanged(username, null);
         log("Client disconnected: " + username);
-        broadcastClientList();
-    }
-
-    public void broadcastClientList() {
-        String[] usernames = clients.keySet().toArray(new String[0]);
-        String clientList = "CLIENTS:" + String.join(",", usernames);
-        log("Active clients: " + String.join(", ", usernames));
-        
-        // Send updated client list to all connected clients
-        for (ClientHandler client : clients.values()) {
-            try {
-                client.sendMessage(clientList);
-            } catch (Exception e) {
-                log("Error sending client list to " + client.getUsername() + ": " + e.getMessage());
+        presence.memberChanged(username);
+    }
+
+    // The user's connection, which in a cluster may be a user connected to another node
+    public ClientConnection getClient(String username) {
+        ClientConnection client = clients.get(username);
+        return client != null ? client : cluster.getRemote(username);
+    }
+
+    public ClientConnection getLocalClient(String username) {
+        return clients.get(username);
+    }
+
+    public Collection<ClientConnection> getLocalClients() {
+        return clients.values();
+    }
+
+    // A user joined or left another cluster node (previous and current are the old and new
+    // connections, either may be null). Messages and files waiting here for a user who has
+    // just appeared elsewhere are sent on to them there.
+    public void remoteUserChanged(String username, ClientConnection previous, ClientConnection current) {
+        if (previous != null) {
+            spool.recipientGone(previous);
+        }
+        presence.memberChanged(username);
+        if (current != null && clients.get(username) == null) {
+            messages.deliver(current);
+            spool.deliverPending(current);
+        }
+    }
+
+    // Handles a command frame from a binary client, in a buffer the connection reuses. Chat
+    // and presence requests are recognized from the bytes, so a chat message costs its
+    // receiver and text as strings rather than a decoded frame, a split array and its parts.
+    public void handleCommand(ClientConnection sender, CommandParser parser, ByteBuffer payload) {
+        switch (parser.parse(payload)) {
+            case PRESENCE_SYNC -> presence.subscribe(sender);
+            case REFRESH_USERS -> presence.refresh(sender);
+            case CHAT -> sendPrivate(sender, parser.receiver(), parser.text());
+            case OTHER -> handleMessage(sender, parser.decode());
+        }
+    }
+
+    // Handles a text command from a logged-in client; FILE: transfers are handled by the connection itself
+    public void handleMessage(ClientConnection sender, String message) {
+        if (message.equals("PRESENCE_SYNC")) {
+            presence.subscribe(sender);
+        } else if (message.equals("REFRESH_USERS")) {
+            // Answered from the cached snapshot, to the requester only
+            presence.refresh(sender);
+        } else if (FileSpool.isReceiverReply(message)) {
+            // Replies about files from another node go back to that node's spool
+            if (!spool.handleReply(sender, message)) {
+                cluster.forwardReply(sender, message);
             }
+        } else if (message.startsWith("HISTORY:")) {
+            sendHistory(sender, message);
+        } else if (message.startsWith("SEARCH:")) {
+            sendSearchResults(sender, message);
+        } else if (message.startsWith("ROOM_JOIN:") || message.startsWith("ROOM_LEAVE:") || message.startsWith("ROOM:")) {
+            handleRoomCommand(sender, message);
+        } else if (message.contains(":")) {
+            // Message format: "receiver:message"
+            String[] parts = message.split(":", 2);
+            sendPrivate(sender, parts[0], parts[1]);
         }
     }
 
-    public ClientHandler getClient(String username) {
-        return clients.get(username);
+    private void sendPrivate(ClientConnection sender, String receiver, String content) {
+        // A receiver on another node gets the message from there; this node keeps the
+        // sender's copy of the history
+        if (!clients.containsKey(receiver) && cluster.forwardChat(sender.getUsername(), receiver, content)) {
+            record(sender.getUsername(), receiver, content);
+        } else {
+            deliverPrivate(sender.getUsername(), receiver, content);
+        }
+        if (isLogEnabled(LogLevel.DEBUG)) {
+            log(LogLevel.DEBUG, "Message from " + sender.getUsername() + " to " + receiver + ": " + content);
+        }
+    }
+
+    // Stores, indexes and delivers a private message, from a local sender or forwarded by
+    // another cluster node
+    public void deliverPrivate(String senderName, String receiver, String content) {
+        String line = senderName + ":" + content;
+        record(senderName, receiver, content);
+
+        // Every message is logged; one the receiver can't take now waits in the store
+        ClientConnection receiverHandler = clients.get(receiver);
+        if (!messages.append(receiver, line, receiverHandler)) {
+            // The receiver may have logged in, here or on another node, since it was looked up
+            receiverHandler = getClient(receiver);
+            if (receiverHandler != null) {
+                messages.deliver(receiverHandler);
+            }
+        }
+    }
+
+    // Both are written on the history store's writer thread, not the caller's
+    private void record(String senderName, String receiver, String content) {
+        history.append(senderName, receiver, content, id -> search.add(senderName, receiver, id, content));
+    }
+
+    // "ROOM_JOIN:<room>" is answered with "ROOM_JOINED:<room>:<members>", "ROOM_LEAVE:<room>"
+    // with "ROOM_LEFT:<room>", and "ROOM:<room>:<message>" goes to every other member, on this
+    // node and the others. The member count is this node's. An invalid name, or a message to
+    // a room the sender hasn't joined, gets "ROOM_REJECTED:<room>".
+    private void handleRoomCommand(ClientConnection client, String command) {
+        String[] parts = command.split(":", 3);
+        String room = parts[1];
+        if (!ChatRooms.isValidName(room) || parts.length != (parts[0].equals("ROOM") ? 3 : 2)) {
+            client.send(OutboundMessage.control("ROOM_REJECTED:" + room));
+            return;
+        }
+        switch (parts[0]) {
+            case "ROOM_JOIN" -> {
+                int members = rooms.join(room, client);
+                if (members < 0) {
+                    // Disconnected meanwhile
+                    return;
+                }
+                client.send(OutboundMessage.control("ROOM_JOINED:" + room + ":" + members));
+                log("Client " + client.getUsername() + " joined room " + room + " (" + members + " members)");
+            }
+            case "ROOM_LEAVE" -> {
+                if (rooms.leave(room, client)) {
+                    client.send(OutboundMessage.control("ROOM_LEFT:" + room));
+                }
+            }
+            default -> {
+                int recipients = rooms.send(room, client, parts[2]);
+                if (recipients < 0) {
+                    client.send(OutboundMessage.control("ROOM_REJECTED:" + room));
+                    return;
+                }
+                cluster.forwardRoom(room, client.getUsername(), parts[2]);
+                if (isLogEnabled(LogLevel.DEBUG)) {
+                    log(LogLevel.DEBUG, "Message from " + client.getUsername() + " to room " + room
+                            + " (" + recipients + " recipients): " + parts[2]);
+                }
+            }
+        }
+    }
+
+    // A room message from a member on another cluster node
+    public void deliverRoom(String room, String senderName, String content) {
+        rooms.deliver(room, senderName, content);
+    }
+
+    // Request format: "HISTORY:<peer>:<beforeId>:<limit>", where a beforeId of 0 asks for the
+    // newest messages. The page ends with "peer:END:<id>", the ID to ask for next, or 0 if
+    // there are no earlier messages.
+    private void sendHistory(ClientConnection client, String request) {
+        String[] parts = request.split(":");
+        if (parts.length != 4) {
+            return;
+        }
+        String peer = parts[1];
+        List<HistoryStore.Entry> entries;
+        try {
+            entries = history.read(client.getUsername(), peer, Long.parseLong(parts[2]), Integer.parseInt(parts[3]));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        List<String> lines = new ArrayList<>(entries.size() + 1);
+        for (HistoryStore.Entry entry : entries) {
+            lines.add(peer + ":" + entry.id() + ":" + entry.millis() + ":" + entry.sender() + ":" + entry.text());
+        }
+        long earlierId = entries.isEmpty() || entries.get(0).id() == 1 ? 0 : entries.get(0).id();
+        lines.add(peer + ":END:" + earlierId);
+        client.send(OutboundMessage.history(lines));
+    }
+
+    // Request format: "SEARCH:<limit>:<query>". Only the requester's own conversations are
+    // searched; results are history lines, newest first, followed by "END".
+    private void sendSearchResults(ClientConnection client, String request) {
+        String[] parts = request.split(":", 3);
+        if (parts.length != 3) {
+            return;
+        }
+        List<SearchIndex.Hit> hits;
+        try {
+            hits = search.search(client.getUsername(), parts[2], Integer.parseInt(parts[1]));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        List<String> lines = new ArrayList<>(hits.size() + 1);
+        for (SearchIndex.Hit hit : hits) {
+            HistoryStore.Entry entry = history.get(client.getUsername(), hit.peer(), hit.messageId());
+            if (entry != null) {
+                lines.add(hit.peer() + ":" + entry.id() + ":" + entry.millis() + ":" + entry.sender() + ":" + entry.text());
+            }
+        }
+        lines.add("END");
+        client.send(OutboundMessage.search(lines));
+    }
+
+    // Per-client outbound queue depth, for spotting slow consumers
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        for (ClientConnection client : clients.values()) {
+            depths.put(client.getUsername(), client.getQueueDepth());
+        }
+        return depths;
+    }
+
+    public FileSpool getSpool() {
+        return spool;
+    }
+
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,31 @@
+package com.chatapp.server;
+
+import com.chatapp.server.protocol.OutboundMessage;
+
+public interface ClientConnection {
+    String getUsername();
+
+    // True once the client has negotiated the binary protocol
+    boolean isBinary();
+
+    // Queue a message for delivery to this client, encoded for whichever protocol it speaks.
+    // Chat and presence messages are subject to the overflow policy; file data waits for room.
+    void send(OutboundMessage message);
+
+    // Non-blocking send for I/O threads. Returns false without queueing anything if the
+    // client's queue is full; onSpace then runs once it has drained. Also returns false,
+    // without ever calling onSpace, once the connection is closed; isClosed tells which.
+    boolean trySend(OutboundMessage message, Runnable onSpace);
+
+    // True once nothing sent to this client will reach it any more
+    boolean isClosed();
+
+    default void sendMessage(String message) {
+        send(OutboundMessage.chat(message));
+    }
+
+    // Number of messages waiting to be written to this client
+    int getQueueDepth();
+
+    void disconnect();
+}
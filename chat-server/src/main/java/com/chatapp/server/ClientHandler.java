@@ -1,65 +1,259 @@
 package com.chatapp.server;
 
+import com.chatapp.server.protocol.CommandParser;
+import com.chatapp.server.protocol.FileHeader;
+import com.chatapp.server.protocol.FrameType;
+import com.chatapp.server.protocol.Frames;
+import com.chatapp.server.protocol.Handshake;
+import com.chatapp.server.protocol.OutboundMessage;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ClientHandler implements Runnable, ClientConnection {
+    private static final int LEGACY_CHUNK_SIZE = 64 * 1024;
 
-public class ClientHandler implements Runnable {
     private final Socket socket;
     private final ChatServer server;
-    private PrintWriter out;
-    private BufferedReader in;
+    // Outbound data is queued here and written by a dedicated writer thread, so a client
+    // with a full TCP window never stalls the thread that sends to it
+    private final OutboundQueue outbound;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Lines, frames and file bytes are all read from this one buffered stream, so nothing
+    // read ahead for one is lost to the other
+    private DataInputStream in;
     private String username;
+    private volatile boolean binary;
+    // Text frames are read into this buffer and parsed where they lie
+    private ByteBuffer textPayload = ByteBuffer.allocate(1024);
+    private final CommandParser parser = new CommandParser();
+
+    // Created by run(), on the thread that reads the transfers
+    private FileUploads uploads;
 
     public ClientHandler(Socket socket, ChatServer server) {
         this.socket = socket;
         this.server = server;
+        this.outbound = new OutboundQueue(server.getConfig());
     }
 
     @Override
     public void run() {
+        uploads = new FileUploads(server, this);
         try {
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), server.getConfig().getReadBufferSize()));
+            startWriter();
 
-            // First message from client should be their username
-            username = in.readLine();
-            server.addClient(username, this);
-            server.log("User connected: " + username);
-
-            String message;
-            while ((message = in.readLine()) != null) {
-                if (message.equals("REFRESH_USERS")) {
-                    // Just broadcast the client list without sending a chat message
-                    server.broadcastClientList();
-                } else if (message.startsWith("FILE:")) {
-                    handleFileTransfer(message);
-                } else if (message.contains(":")) {
-                    // Message format: "receiver:message"
-                    String[] parts = message.split(":", 2);
-                    String receiver = parts[0];
-                    String content = parts[1];
-                    
-                    ClientHandler receiverHandler = server.getClient(receiver);
-                    if (receiverHandler != null) {
-                        receiverHandler.sendMessage(username + ":" + content);
-                        server.log("Message from " + username + " to " + receiver + ": " + content);
-                    }
+            // First message from client should be their username, or a HELLO to negotiate framing
+            String first = readLine();
+            if (first == null) {
+                return;
+            }
+            Handshake hello = Handshake.parse(first);
+            if (hello != null) {
+                if (!hello.isSupported()) {
+                    // Nothing else is queued yet, so the error can go straight to the socket
+                    socket.getOutputStream().write(hello.reply().getBytes(StandardCharsets.UTF_8));
+                    server.log("Rejected client with protocol version " + hello.version());
+                    return;
+                }
+                String home = server.getCluster().redirectFor(hello.username());
+                if (home != null) {
+                    socket.getOutputStream().write(Handshake.redirect(home).getBytes(StandardCharsets.UTF_8));
+                    server.log("Redirected " + hello.username() + " to " + home);
+                    return;
                 }
+                outbound.put(ByteBuffer.wrap(hello.reply().getBytes(StandardCharsets.UTF_8)));
+                binary = true;
+                username = hello.username();
+            } else {
+                username = first;
+            }
+            server.addClient(username, this);
+            server.log("User connected: " + username + (binary ? " (binary v" + hello.version() + ")" : ""));
+
+            if (binary) {
+                readFrames();
+            } else {
+                readLines();
             }
         } catch (IOException e) {
             server.log("Error handling client " + username + ": " + e.getMessage());
         } finally {
+            uploads.abortAll();
             disconnect();
         }
     }
 
-    public void sendMessage(String message) {
-        out.println(message);
+    private void readLines() throws IOException {
+        String message;
+        while ((message = readLine()) != null) {
+            if (message.startsWith("FILE:")) {
+                handleFileTransfer(message);
+            } else {
+                server.handleMessage(this, message);
+            }
+        }
+    }
+
+    private void readFrames() throws IOException {
+        int code;
+        while ((code = in.read()) != -1) {
+            int length = in.readInt();
+            FrameType type = FrameType.fromCode(code);
+            if (type == null || !Frames.isValidLength(type, length)) {
+                throw new IOException("Invalid frame (type " + code + ", length " + length + ")");
+            }
+
+            if (type == FrameType.FILE_CHUNK) {
+                // Read straight into a frame buffer that is relayed without re-encoding
+                ByteBuffer frame = Frames.allocateChunk(length);
+                in.readFully(frame.array(), Frames.HEADER_SIZE, length);
+                relayChunk(frame.position(0));
+                continue;
+            }
+
+            ByteBuffer payload = textPayload(length);
+            in.readFully(payload.array(), 0, length);
+            if (type == FrameType.FILE_START) {
+                startFileTransfer(FileHeader.parseWithId(new String(payload.array(), 0, length, StandardCharsets.UTF_8)));
+            } else {
+                server.handleCommand(this, parser, payload);
+            }
+        }
+    }
+
+    // A buffer holding room for exactly length bytes of a text frame
+    private ByteBuffer textPayload(int length) {
+        if (length > Frames.MAX_REUSED_PAYLOAD) {
+            return ByteBuffer.allocate(length);
+        }
+        if (length > textPayload.capacity()) {
+            textPayload = ByteBuffer.allocate(Frames.reusedPayloadCapacity(length));
+        }
+        return textPayload.clear().limit(length);
     }
 
+    // Reads one newline-terminated UTF-8 line; returns null at end of stream
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            }
+            line.write(b);
+        }
+        int length = line.size();
+        byte[] bytes = line.toByteArray();
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void startWriter() {
+        Thread.Builder builder = server.getConfig().getMode() == ServerMode.VIRTUAL
+                ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+        builder.name("writer-" + socket.getRemoteSocketAddress()).start(this::writeLoop);
+    }
+
+    // Writes everything queued for this client in batches: one gathering write per batch
+    // instead of a write and flush per message
+    private void writeLoop() {
+        ServerConfig config = server.getConfig();
+        long maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(config.getBatchMaxDelayMicros());
+        SocketChannel channel = socket.getChannel();
+        List<ByteBuffer> batch = new ArrayList<>();
+        try {
+            OutputStream os = new BufferedOutputStream(socket.getOutputStream(), config.getWriteBufferSize());
+            while (outbound.takeBatch(batch, config.getBatchMaxBytes(), maxDelayNanos)) {
+                if (channel != null) {
+                    ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                    while (buffers[buffers.length - 1].hasRemaining()) {
+                        channel.write(buffers);
+                    }
+                } else {
+                    for (ByteBuffer data : batch) {
+                        writeTo(os, data);
+                    }
+                    os.flush();
+                }
+                batch.clear();
+            }
+        } catch (IOException e) {
+            if (!closed.get()) {
+                server.log("Error sending to " + username + ": " + e.getMessage());
+                disconnect();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeTo(OutputStream os, ByteBuffer data) throws IOException {
+        if (data.hasArray()) {
+            os.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            os.write(bytes);
+        }
+    }
+
+    @Override
+    public void send(OutboundMessage message) {
+        ByteBuffer data = message.encode(binary).duplicate();
+        boolean queued;
+        if (isBulk(message)) {
+            queued = outbound.putBulk(data);
+        } else {
+            queued = message.isDroppable() ? outbound.offer(data, true) : outbound.put(data);
+        }
+        if (!queued) {
+            server.log("Disconnecting slow client " + username + " (queue depth " + outbound.size() + ")");
+            disconnect();
+        }
+    }
+
+    @Override
+    public boolean trySend(OutboundMessage message, Runnable onSpace) {
+        ByteBuffer data = message.encode(binary).duplicate();
+        return isBulk(message) ? outbound.tryPutBulk(data, onSpace) : outbound.tryPut(data, onSpace);
+    }
+
+    // Line-protocol clients need file bytes right behind their FILE: line, so only binary
+    // clients let chat overtake file chunks
+    private boolean isBulk(OutboundMessage message) {
+        return binary && message.isBulk();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outbound.size();
+    }
+
+    @Override
     public void disconnect() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        outbound.close();
         try {
-            server.removeClient(username);
+            if (username != null) {
+                server.removeClient(username, this);
+            }
             if (socket != null && !socket.isClosed()) {
                 socket.close();
             }
@@ -68,45 +262,58 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    @Override
     public String getUsername() {
         return username;
     }
 
-    private void handleFileTransfer(String message) {
-        try {
-            String[] parts = message.split(":", 4);
-            if (parts.length == 4) {
-                String receiver = parts[1];
-                String fileName = parts[2];
-                long fileSize = Long.parseLong(parts[3]);
-
-                server.log("File transfer started: " + fileName + " from " + username + " to " + receiver);
-
-                // Read file data
-                byte[] buffer = new byte[4096];
-                InputStream is = socket.getInputStream();
-                long totalRead = 0;
-                
-                // Forward file header to receiver
-                ClientHandler receiverHandler = server.getClient(receiver);
-                if (receiverHandler != null) {
-                    receiverHandler.sendMessage("FILE:" + username + ":" + fileName + ":" + fileSize);
-                    
-                    // Forward file data
-                    while (totalRead < fileSize) {
-                        int read = is.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalRead));
-                        if (read == -1) break;
-                        receiverHandler.socket.getOutputStream().write(buffer, 0, read);
-                        totalRead += read;
-                    }
-                    receiverHandler.socket.getOutputStream().flush();
-                    server.log("File transfer completed: " + fileName);
-                } else {
-                    server.log("File transfer failed: receiver " + receiver + " not found");
-                }
-            }
-        } catch (IOException e) {
-            server.log("Error in file transfer: " + e.getMessage());
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+
+    private FileUploads.Upload startFileTransfer(FileHeader header) {
+        if (header == null) {
+            server.log("Invalid file header from " + username);
+            return null;
+        }
+        FileUploads.Upload upload = uploads.start(header);
+        if (upload != null && !upload.isSpooled()) {
+            // Forward file header to receiver
+            upload.getReceiver().send(uploads.startMessage(upload));
+        }
+        return upload;
+    }
+
+    private void relayChunk(ByteBuffer frame) {
+        FileUploads.Upload upload = uploads.forChunk(frame);
+        if (upload != null && upload.isSpooled()) {
+            uploads.store(upload, frame);
+        } else if (upload != null) {
+            upload.getReceiver().send(OutboundMessage.fileChunk(frame));
+            uploads.relayed(upload, frame);
+        }
+    }
+
+    // Line protocol: "FILE:receiver:fileName:size" followed by exactly size raw bytes. The
+    // bytes are relayed in chunks like a binary transfer with ID 0.
+    private void handleFileTransfer(String message) throws IOException {
+        FileHeader header = FileHeader.parse(message.substring("FILE:".length()));
+        if (header == null) {
+            server.log("Invalid file header from " + username);
+            return;
+        }
+        startFileTransfer(header);
+
+        // The payload is always consumed, even if nobody receives it, so it is never
+        // mistaken for protocol lines
+        long offset = 0;
+        while (offset < header.size()) {
+            int length = (int) Math.min(LEGACY_CHUNK_SIZE, header.size() - offset);
+            ByteBuffer frame = Frames.allocateChunk(header.transferId(), offset, length);
+            in.readFully(frame.array(), Frames.CHUNK_HEADER_SIZE, length);
+            relayChunk(Frames.sealChunk(frame.position(frame.capacity())));
+            offset += length;
         }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,663 @@
+package com.chatapp.server;
+
+import com.chatapp.server.protocol.FileHeader;
+import com.chatapp.server.protocol.Frames;
+import com.chatapp.server.protocol.OutboundMessage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Store-and-forward for files sent with a content hash. Uploads are written to disk at the
+// sender's pace and kept once per hash under objects/<sha256>, however many recipients they
+// have. Each recipient is then sent the file at its own pace, now or whenever it next
+// connects, and the copy is dropped once every recipient has confirmed it or its time to
+// live runs out. Pending deliveries are listed in the deliveries file, so they survive a
+// restart.
+//
+// Recipients on the line protocol are sent a FILE: line and the raw bytes. They can't resume
+// or confirm, so the whole file is sent and counts as delivered once its last byte is queued.
+//
+// Chunks are written on the sender's reading thread, and complete uploads are hashed on a
+// verifier thread so a large file never holds up deliveries. Delivery and eviction run on
+// the spool thread.
+public class FileSpool {
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_DELIVERY_ATTEMPTS = 3;
+    private static final long EVICT_INTERVAL_SECONDS = 60;
+
+    // An upload being written to the spool
+    public final class Incoming {
+        private final String sender;
+        private final FileHeader header;
+        private final String hash;
+        // Null if the content is already stored
+        private final File part;
+        private final FileChannel channel;
+        private volatile long offset;
+
+        private Incoming(String sender, FileHeader header, String hash, File part, FileChannel channel, long offset) {
+            this.sender = sender;
+            this.header = header;
+            this.hash = hash;
+            this.part = part;
+            this.channel = channel;
+            this.offset = offset;
+        }
+
+        // Where the sender should continue from
+        public long getOffset() {
+            return offset;
+        }
+
+        public boolean isComplete() {
+            return offset >= header.size();
+        }
+
+        // Appends a chunk if it is the next one and its checksum matches
+        public boolean write(ByteBuffer chunk) {
+            ByteBuffer data = Frames.getChunkData(chunk);
+            if (Frames.getChunkOffset(chunk) != offset || offset + data.remaining() > header.size()
+                    || !Frames.isChunkIntact(chunk)) {
+                return false;
+            }
+            try {
+                for (long position = offset; data.hasRemaining(); ) {
+                    int written = channel.write(data, position);
+                    position += written;
+                    diskBytes.addAndGet(written);
+                }
+            } catch (IOException e) {
+                server.log("Error spooling " + header.fileName() + ": " + e.getMessage());
+                return false;
+            }
+            offset += Frames.getChunkDataLength(chunk);
+            return true;
+        }
+
+        private void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Nothing more to write
+                }
+            }
+        }
+    }
+
+    // A stored file waiting for its recipient to confirm it
+    private static final class Delivery {
+        private final String recipient;
+        private final String sender;
+        private final String fileName;
+        private final long size;
+        private final String hash;
+        private final long created;
+        // Only touched on the spool thread
+        private Transfer transfer;
+        private int attempts;
+
+        private Delivery(String recipient, String sender, String fileName, long size, String hash, long created) {
+            this.recipient = recipient;
+            this.sender = sender;
+            this.fileName = fileName;
+            this.size = size;
+            this.hash = hash;
+            this.created = created;
+        }
+    }
+
+    // A delivery being streamed to a connected recipient; only touched on the spool thread,
+    // apart from cancelled
+    private static final class Transfer {
+        private final long id;
+        private final Delivery delivery;
+        private final ClientConnection receiver;
+        private FileChannel channel;
+        private long offset;
+        // Read but not yet accepted by the receiver's queue
+        private ByteBuffer pendingFrame;
+        private volatile boolean cancelled;
+
+        private Transfer(long id, Delivery delivery, ClientConnection receiver) {
+            this.id = id;
+            this.delivery = delivery;
+            this.receiver = receiver;
+        }
+    }
+
+    private final ChatServer server;
+    private final File objects;
+    private final File index;
+    private final long maxBytes;
+    private final long userQuotaBytes;
+    private final long ttlMillis;
+    private final ScheduledExecutorService executor;
+    private final ExecutorService verifier;
+    // Size of everything under objects, complete or partial
+    private final AtomicLong diskBytes = new AtomicLong();
+    // Guarded by this
+    private final List<Delivery> deliveries = new ArrayList<>();
+    private final Set<Incoming> incoming = new HashSet<>();
+    // Hashes whose <hash>.part is being written; a second upload of the same content gets
+    // a part file of its own
+    private final Set<String> writing = new HashSet<>();
+    private long nextPartId;
+    // Deliveries in progress by transfer ID; looked up from connection threads
+    private final Map<Long, Transfer> transfers = new ConcurrentHashMap<>();
+
+    public FileSpool(ChatServer server, ServerConfig config) {
+        this.server = server;
+        this.objects = new File(config.getSpoolDir(), "objects");
+        this.index = new File(config.getSpoolDir(), "deliveries");
+        this.maxBytes = config.getSpoolMaxBytes();
+        this.userQuotaBytes = config.getSpoolUserQuotaBytes();
+        this.ttlMillis = TimeUnit.MINUTES.toMillis(config.getSpoolTtlMinutes());
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "spool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.verifier = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "spool-verify");
+            thread.setDaemon(true);
+            return thread;
+        });
+        objects.mkdirs();
+        File[] files = objects.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            diskBytes.addAndGet(file.length());
+        }
+        executor.execute(this::load);
+        executor.scheduleWithFixedDelay(this::evict, EVICT_INTERVAL_SECONDS, EVICT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public static boolean isReceiverReply(String message) {
+        return message.startsWith("FILE_RESUME:") || message.startsWith("FILE_DONE:") || message.startsWith("FILE_RETRY:");
+    }
+
+    // Starts storing an upload, continuing a partial copy of the same content if there is
+    // one. Returns null if the file can't be taken (over quota or a malformed header).
+    public synchronized Incoming receive(String sender, FileHeader header) {
+        String hash = header.hash().toLowerCase();
+        if (!isValidHash(hash) || !isStorable(sender) || !isStorable(header.peer()) || !isStorable(header.fileName())) {
+            server.log("Spool: cannot store " + header.fileName() + " from " + sender);
+            return null;
+        }
+        if (senderUsage(sender) + header.size() > userQuotaBytes) {
+            server.log("Spool: " + sender + " is over quota, rejecting " + header.fileName());
+            return null;
+        }
+
+        Incoming upload;
+        if (new File(objects, hash).exists()) {
+            // Identical content is already stored; nothing needs to be sent
+            upload = new Incoming(sender, header, hash, null, null, header.size());
+        } else {
+            if (usage() + header.size() > maxBytes) {
+                server.log("Spool: full, rejecting " + header.fileName() + " from " + sender);
+                return null;
+            }
+            boolean shared = writing.add(hash);
+            File part = new File(objects, shared ? hash + ".part" : hash + "." + (++nextPartId) + ".part");
+            try {
+                FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                long offset = Math.min(channel.size(), header.size());
+                diskBytes.addAndGet(offset - channel.size());
+                channel.truncate(offset);
+                upload = new Incoming(sender, header, hash, part, channel, offset);
+            } catch (IOException e) {
+                server.log("Spool: cannot create " + part + ": " + e.getMessage());
+                if (shared) {
+                    writing.remove(hash);
+                }
+                return null;
+            }
+        }
+        incoming.add(upload);
+        return upload;
+    }
+
+    private static boolean isValidHash(String hash) {
+        return hash.length() == 64 && hash.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    // Fields are stored tab-separated, one delivery per line
+    private static boolean isStorable(String field) {
+        return !field.isEmpty() && field.indexOf('\t') < 0 && field.indexOf('\n') < 0;
+    }
+
+    // Bytes on disk plus what active uploads are still expected to add
+    private long usage() {
+        long bytes = diskBytes.get();
+        for (Incoming upload : incoming) {
+            if (upload.part != null) {
+                bytes += upload.header.size() - upload.offset;
+            }
+        }
+        return bytes;
+    }
+
+    private long senderUsage(String sender) {
+        long bytes = 0;
+        for (Delivery delivery : deliveries) {
+            if (delivery.sender.equals(sender)) {
+                bytes += delivery.size;
+            }
+        }
+        for (Incoming upload : incoming) {
+            if (upload.sender.equals(sender)) {
+                bytes += upload.header.size();
+            }
+        }
+        return bytes;
+    }
+
+    // Checks a complete upload against its hash and queues it for the recipient. done is
+    // told whether it was stored; if not, the sender has to start over.
+    public void finish(Incoming upload, Consumer<Boolean> done) {
+        try {
+            verifier.execute(() -> {
+                boolean stored = upload.part != null ? store(upload) : new File(objects, upload.hash).exists();
+                executor.execute(() -> {
+                    if (stored) {
+                        addDelivery(upload);
+                    } else {
+                        release(upload);
+                    }
+                    done.accept(stored);
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the part file is kept for the sender's next attempt
+        }
+    }
+
+    private boolean store(Incoming upload) {
+        upload.close();
+        File object = new File(objects, upload.hash);
+        try {
+            if (object.exists()) {
+                // Another upload of the same content got there first
+                delete(upload.part);
+                return true;
+            }
+            if (!upload.hash.equals(hash(upload.part))) {
+                server.log("Spool: " + upload.header.fileName() + " from " + upload.sender + " failed verification");
+                delete(upload.part);
+                return false;
+            }
+            Files.move(upload.part.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            server.log("Spool: error storing " + upload.header.fileName() + ": " + e.getMessage());
+            delete(upload.part);
+            return false;
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            while (channel.read(buffer) > 0) {
+                digest.update(buffer.flip());
+                buffer.clear();
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // The sender went away or sent a bad chunk. Its part file is kept so the next attempt
+    // can continue, unless it was a duplicate of another upload in progress.
+    public void abandon(Incoming upload) {
+        upload.close();
+        release(upload);
+        if (upload.part != null && !upload.part.getName().equals(upload.hash + ".part")) {
+            delete(upload.part);
+        }
+    }
+
+    private void delete(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            diskBytes.addAndGet(-length);
+        }
+    }
+
+    private synchronized void release(Incoming upload) {
+        incoming.remove(upload);
+        if (upload.part != null && upload.part.getName().equals(upload.hash + ".part")) {
+            writing.remove(upload.hash);
+        }
+    }
+
+    private void addDelivery(Incoming upload) {
+        FileHeader header = upload.header;
+        Delivery delivery = new Delivery(header.peer(), upload.sender, header.fileName(), header.size(), upload.hash,
+                System.currentTimeMillis());
+        synchronized (this) {
+            release(upload);
+            for (Delivery pending : deliveries) {
+                if (pending.recipient.equals(delivery.recipient) && pending.hash.equals(delivery.hash)
+                        && pending.fileName.equals(delivery.fileName)) {
+                    // Sent again before the first copy was delivered
+                    return;
+                }
+            }
+            deliveries.add(delivery);
+        }
+        save();
+        server.log("Spooled " + delivery.fileName + " from " + delivery.sender + " for " + delivery.recipient);
+        ClientConnection recipient = server.getClient(delivery.recipient);
+        if (recipient != null) {
+            startTransfer(delivery, recipient);
+        }
+    }
+
+    // Sends a newly connected client everything waiting for it. A line-protocol client is
+    // sent one file, and the next once that one has gone out.
+    public void deliverPending(ClientConnection recipient) {
+        execute(() -> {
+            List<Delivery> waiting = new ArrayList<>();
+            synchronized (this) {
+                for (Delivery delivery : deliveries) {
+                    if (delivery.recipient.equals(recipient.getUsername()) && delivery.transfer == null) {
+                        waiting.add(delivery);
+                    }
+                }
+            }
+            for (Delivery delivery : waiting) {
+                startTransfer(delivery, recipient);
+            }
+        });
+    }
+
+    // Offers the file; the receiver answers with FILE_RESUME and the offset it wants. A
+    // line-protocol receiver gets the whole file straight after the header, unless it is
+    // already receiving one.
+    private void startTransfer(Delivery delivery, ClientConnection recipient) {
+        if (delivery.transfer != null || (!recipient.isBinary() && !FileUploads.claimLegacyReceiver(recipient))) {
+            return;
+        }
+        Transfer transfer = new Transfer(FileUploads.nextTransferId(), delivery, recipient);
+        delivery.transfer = transfer;
+        transfers.put(transfer.id, transfer);
+        recipient.send(OutboundMessage.fileStart(
+                new FileHeader(transfer.id, delivery.sender, delivery.fileName, delivery.size, delivery.hash)));
+        if (!recipient.isBinary()) {
+            resume(transfer, "0");
+        }
+    }
+
+    // Handles a receiver's FILE_RESUME, FILE_DONE or FILE_RETRY. Returns false if the
+    // transfer isn't a spool delivery to that client.
+    public boolean handleReply(ClientConnection from, String message) {
+        String[] parts = message.split(":", 3);
+        Transfer transfer;
+        try {
+            transfer = transfers.get(Long.parseLong(parts[1]));
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return false;
+        }
+        if (transfer == null || transfer.receiver != from) {
+            return false;
+        }
+        executor.execute(() -> {
+            if (transfer.cancelled) {
+                return;
+            }
+            switch (parts[0]) {
+                case "FILE_RESUME" -> resume(transfer, parts.length > 2 ? parts[2] : "0");
+                case "FILE_DONE" -> delivered(transfer);
+                default -> retry(transfer);
+            }
+        });
+        return true;
+    }
+
+    private void resume(Transfer transfer, String offset) {
+        if (transfer.channel != null) {
+            return;
+        }
+        try {
+            transfer.offset = Math.max(0, Math.min(Long.parseLong(offset), transfer.delivery.size));
+            transfer.channel = FileChannel.open(new File(objects, transfer.delivery.hash).toPath(), StandardOpenOption.READ);
+        } catch (NumberFormatException | IOException e) {
+            server.log("Spool: cannot deliver " + transfer.delivery.fileName + ": " + e.getMessage());
+            endTransfer(transfer);
+            return;
+        }
+        pump(transfer);
+    }
+
+    // Queues chunks until the receiver's queue is full, then continues once it has room
+    private void pump(Transfer transfer) {
+        Delivery delivery = transfer.delivery;
+        try {
+            while (!transfer.cancelled && (transfer.pendingFrame != null || transfer.offset < delivery.size)) {
+                ByteBuffer frame = transfer.pendingFrame;
+                if (frame == null) {
+                    int length = (int) Math.min(CHUNK_SIZE, delivery.size - transfer.offset);
+                    frame = Frames.allocateChunk(transfer.id, transfer.offset, length);
+                    while (frame.hasRemaining()) {
+                        if (transfer.channel.read(frame, transfer.offset + frame.position() - Frames.CHUNK_HEADER_SIZE) < 0) {
+                            throw new EOFException("Spooled copy is truncated");
+                        }
+                    }
+                    Frames.sealChunk(frame);
+                    transfer.offset += length;
+                }
+                if (!transfer.receiver.trySend(OutboundMessage.fileChunk(frame), () -> execute(() -> pump(transfer)))) {
+                    transfer.pendingFrame = frame;
+                    if (transfer.receiver.isClosed()) {
+                        // Sent again from the start of what it lacks when it returns
+                        endTransfer(transfer);
+                    }
+                    return;
+                }
+                transfer.pendingFrame = null;
+            }
+            if (!transfer.cancelled && !transfer.receiver.isBinary()) {
+                // A line-protocol receiver has no way to confirm
+                delivered(transfer);
+                deliverPending(transfer.receiver);
+            }
+        } catch (IOException e) {
+            server.log("Spool: error delivering " + delivery.fileName + ": " + e.getMessage());
+            endTransfer(transfer);
+        }
+    }
+
+    private void delivered(Transfer transfer) {
+        endTransfer(transfer);
+        Delivery delivery = transfer.delivery;
+        server.log("File delivered from spool: " + delivery.fileName + " from " + delivery.sender + " to " + delivery.recipient);
+        remove(delivery);
+    }
+
+    private void retry(Transfer transfer) {
+        endTransfer(transfer);
+        Delivery delivery = transfer.delivery;
+        if (++delivery.attempts < MAX_DELIVERY_ATTEMPTS) {
+            startTransfer(delivery, transfer.receiver);
+        } else {
+            server.log("Spool: giving up on " + delivery.fileName + " for " + delivery.recipient);
+            remove(delivery);
+        }
+    }
+
+    private void endTransfer(Transfer transfer) {
+        transfer.cancelled = true;
+        if (transfers.remove(transfer.id) == null) {
+            return;
+        }
+        if (transfer.delivery.transfer == transfer) {
+            transfer.delivery.transfer = null;
+        }
+        if (!transfer.receiver.isBinary()) {
+            FileUploads.releaseLegacyReceiver(transfer.receiver);
+            if (transfer.offset < transfer.delivery.size || transfer.pendingFrame != null) {
+                // The receiver would read whatever comes next as file bytes, so it has to
+                // reconnect; the file is sent again when it does
+                transfer.receiver.disconnect();
+            }
+        }
+        if (transfer.channel != null) {
+            try {
+                transfer.channel.close();
+            } catch (IOException e) {
+                // Only read from
+            }
+        }
+    }
+
+    // Stops deliveries to a client that disconnected; they start over when it returns.
+    // Cancelled here rather than on the spool thread so a pump stops at its next chunk.
+    public void recipientGone(ClientConnection recipient) {
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.receiver == recipient) {
+                transfer.cancelled = true;
+                execute(() -> endTransfer(transfer));
+            }
+        }
+    }
+
+    private void remove(Delivery delivery) {
+        synchronized (this) {
+            deliveries.remove(delivery);
+        }
+        save();
+        deleteIfUnused(delivery.hash);
+    }
+
+    private synchronized void deleteIfUnused(String hash) {
+        for (Delivery delivery : deliveries) {
+            if (delivery.hash.equals(hash)) {
+                return;
+            }
+        }
+        for (Incoming upload : incoming) {
+            if (upload.hash.equals(hash)) {
+                return;
+            }
+        }
+        delete(new File(objects, hash));
+    }
+
+    // Drops deliveries past their time to live and partial uploads nobody resumed
+    private void evict() {
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        List<Delivery> expired = new ArrayList<>();
+        synchronized (this) {
+            for (Delivery delivery : deliveries) {
+                if (delivery.created < cutoff) {
+                    expired.add(delivery);
+                }
+            }
+        }
+        for (Delivery delivery : expired) {
+            if (delivery.transfer != null) {
+                endTransfer(delivery.transfer);
+            }
+            server.log("Spool: " + delivery.fileName + " for " + delivery.recipient + " expired undelivered");
+            remove(delivery);
+        }
+
+        File[] files = objects.listFiles((dir, name) -> name.endsWith(".part"));
+        for (File part : files != null ? files : new File[0]) {
+            if (part.lastModified() < cutoff && !isBeingWritten(part)) {
+                delete(part);
+            }
+        }
+    }
+
+    private synchronized boolean isBeingWritten(File part) {
+        for (Incoming upload : incoming) {
+            if (part.equals(upload.part)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Format: created, recipient, sender, size, hash and file name, tab-separated
+    private void load() {
+        if (index.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(index, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 6);
+                    if (fields.length == 6 && new File(objects, fields[4]).exists()) {
+                        synchronized (this) {
+                            deliveries.add(new Delivery(fields[1], fields[2], fields[5], Long.parseLong(fields[3]), fields[4],
+                                    Long.parseLong(fields[0])));
+                        }
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                server.log("Spool: error reading " + index + ": " + e.getMessage());
+            }
+        }
+
+        // Copies left behind by deliveries that were completed or lost
+        File[] files = objects.listFiles((dir, name) -> !name.endsWith(".part"));
+        for (File object : files != null ? files : new File[0]) {
+            deleteIfUnused(object.getName());
+        }
+        synchronized (this) {
+            server.log("Spool: " + deliveries.size() + " files waiting for delivery");
+        }
+    }
+
+    // Written to a temporary file and moved into place, so a crash never leaves half an index
+    private void save() {
+        List<String> lines = new ArrayList<>();
+        synchronized (this) {
+            for (Delivery delivery : deliveries) {
+                lines.add(delivery.created + "\t" + delivery.recipient + "\t" + delivery.sender + "\t" + delivery.size
+                        + "\t" + delivery.hash + "\t" + delivery.fileName);
+            }
+        }
+        File temp = new File(index.getPath() + ".tmp");
+        try {
+            Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+            Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            server.log("Spool: error writing " + index + ": " + e.getMessage());
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    public void close() {
+        verifier.shutdownNow();
+        executor.shutdownNow();
+        for (Transfer transfer : transfers.values()) {
+            transfer.cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.chatapp.server;
+
+import com.chatapp.server.protocol.FileHeader;
+import com.chatapp.server.protocol.Frames;
+import com.chatapp.server.protocol.OutboundMessage;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// File transfers in progress from one client, keyed by the transfer ID the client picked.
+// Each transfer gets a server-wide ID that is written over the client's in every relayed
+// chunk, so transfers from different senders never collide at a receiver.
+//
+// Transfers with a content hash go to the FileSpool rather than straight to the receiver,
+// unless the receiver is an online line-protocol client. Line-protocol receivers take one
+// file at a time, whether relayed from here or sent from the spool. The spool answers the sender the
+// way a receiver would: FILE_RESUME:<id>:<offset> says where to start, FILE_DONE:<id> that
+// the file is stored intact and FILE_RETRY:<id> that it has to be offered again.
+public class FileUploads {
+    public static final class Upload {
+        private final long id;
+        private final long clientId;
+        // Null for spooled transfers
+        private final ClientConnection receiver;
+        private final FileSpool.Incoming incoming;
+        private final String fileName;
+        private final long size;
+        private final String hash;
+
+        private Upload(long id, FileHeader header, ClientConnection receiver, FileSpool.Incoming incoming) {
+            this.id = id;
+            this.clientId = header.transferId();
+            this.receiver = receiver;
+            this.incoming = incoming;
+            this.fileName = header.fileName();
+            this.size = header.size();
+            this.hash = header.hash();
+        }
+
+        public ClientConnection getReceiver() {
+            return receiver;
+        }
+
+        public boolean isSpooled() {
+            return incoming != null;
+        }
+    }
+
+    private static final int NODE_SHIFT = 48;
+    private static final AtomicLong nextId = new AtomicLong();
+    // Line-protocol clients can only take one incoming file at a time
+    private static final Set<ClientConnection> legacyReceivers = ConcurrentHashMap.newKeySet();
+
+    private final ChatServer server;
+    private final ClientConnection sender;
+    // Written by the connection's reading thread; the spool thread may remove entries
+    private final Map<Long, Upload> uploads = new ConcurrentHashMap<>();
+
+    public FileUploads(ChatServer server, ClientConnection sender) {
+        this.server = server;
+        this.sender = sender;
+    }
+
+    // Shares the ID sequence with spool deliveries
+    static long nextTransferId() {
+        return nextId.incrementAndGet();
+    }
+
+    // In a cluster the top bits of every transfer ID are the node's ID, so IDs from different
+    // nodes never collide at a receiver, and a receiver's node knows where to send its replies
+    static void setNodeId(int nodeId) {
+        nextId.set((long) nodeId << NODE_SHIFT);
+    }
+
+    // Reserves a line-protocol receiver for one file; false if it is already receiving one
+    static boolean claimLegacyReceiver(ClientConnection receiver) {
+        return legacyReceivers.add(receiver);
+    }
+
+    static void releaseLegacyReceiver(ClientConnection receiver) {
+        legacyReceivers.remove(receiver);
+    }
+
+    public static int nodeOf(long transferId) {
+        return (int) (transferId >>> NODE_SHIFT);
+    }
+
+    // Registers a transfer and returns it, or null if nothing more is expected from the
+    // sender; its chunks are then dropped
+    public Upload start(FileHeader header) {
+        server.log("File transfer started: " + header.fileName() + " from " + sender.getUsername() + " to " + header.peer());
+        cancel(header.transferId());
+
+        ClientConnection receiver = server.getClient(header.peer());
+        if (header.isResumable() && (receiver == null || receiver.isBinary())) {
+            return spool(header);
+        }
+        if (receiver == null) {
+            server.log("File transfer failed: receiver " + header.peer() + " not found");
+            reject(header.transferId());
+            return null;
+        }
+        if (!receiver.isBinary() && !legacyReceivers.add(receiver)) {
+            server.log("File transfer failed: receiver " + header.peer() + " is already receiving a file");
+            reject(header.transferId());
+            return null;
+        }
+
+        Upload upload = new Upload(nextTransferId(), header, receiver, null);
+        if (header.size() > 0) {
+            uploads.put(header.transferId(), upload);
+        } else {
+            // Empty files are complete as soon as the receiver has the header
+            legacyReceivers.remove(receiver);
+        }
+        if (header.isResumable()) {
+            // Line-protocol receivers can't resume, so the whole file is sent
+            replyToSender("FILE_RESUME:" + upload.clientId + ":0");
+        }
+        return upload;
+    }
+
+    // Takes the file into the spool at the sender's pace, continuing any partial copy of
+    // the same content; content that is already stored doesn't need to be sent at all
+    private Upload spool(FileHeader header) {
+        FileSpool.Incoming incoming = server.getSpool().receive(sender.getUsername(), header);
+        if (incoming == null) {
+            reject(header.transferId());
+            return null;
+        }
+        Upload upload = new Upload(nextTransferId(), header, null, incoming);
+        replyToSender("FILE_RESUME:" + upload.clientId + ":" + incoming.getOffset());
+        if (incoming.isComplete()) {
+            finish(upload);
+            return null;
+        }
+        uploads.put(upload.clientId, upload);
+        return upload;
+    }
+
+    // Writes a chunk of a spooled transfer. After a bad chunk the sender is asked to offer
+    // the file again, and continues from the last good one.
+    public void store(Upload upload, ByteBuffer chunk) {
+        if (!upload.incoming.write(chunk)) {
+            uploads.remove(upload.clientId, upload);
+            server.getSpool().abandon(upload.incoming);
+            replyToSender("FILE_RETRY:" + upload.clientId);
+        } else if (upload.incoming.isComplete()) {
+            uploads.remove(upload.clientId, upload);
+            finish(upload);
+        }
+    }
+
+    private void finish(Upload upload) {
+        server.getSpool().finish(upload.incoming,
+                stored -> replyToSender((stored ? "FILE_DONE:" : "FILE_RETRY:") + upload.clientId));
+    }
+
+    public OutboundMessage startMessage(Upload upload) {
+        return OutboundMessage.fileStart(new FileHeader(upload.id, sender.getUsername(), upload.fileName, upload.size, upload.hash));
+    }
+
+    // Finds the transfer a chunk belongs to and stamps the chunk with its server-wide ID.
+    // Returns null for chunks of unknown or finished transfers.
+    public Upload forChunk(ByteBuffer chunk) {
+        Upload upload = uploads.get(Frames.getTransferId(chunk));
+        if (upload != null) {
+            Frames.setTransferId(chunk, upload.id);
+        }
+        return upload;
+    }
+
+    // Records that a chunk was handed to the receiver. A resumed transfer starts part way
+    // in, so it is done once a chunk reaches the end of the file.
+    public void relayed(Upload upload, ByteBuffer chunk) {
+        if (Frames.getChunkOffset(chunk) + Frames.getChunkDataLength(chunk) < upload.size) {
+            return;
+        }
+        uploads.remove(upload.clientId, upload);
+        server.log("File transfer completed: " + upload.fileName + " from " + sender.getUsername());
+        if (!upload.receiver.isBinary()) {
+            legacyReceivers.remove(upload.receiver);
+            if (!upload.hash.isEmpty()) {
+                // Nothing more will come from a line-protocol receiver, so confirm it here
+                replyToSender("FILE_DONE:" + upload.clientId);
+            }
+            // Spooled files that waited for this one can follow it now
+            server.getSpool().deliverPending(upload.receiver);
+        }
+    }
+
+    // Drops the transfer without telling the receiver, e.g. when it fell too far behind
+    public void discard(Upload upload) {
+        uploads.remove(upload.clientId, upload);
+        legacyReceivers.remove(upload.receiver);
+        reject(upload.clientId);
+    }
+
+    private void reject(long clientId) {
+        if (sender.isBinary()) {
+            sender.send(OutboundMessage.control("FILE_REJECTED:" + clientId));
+        }
+    }
+
+    private void cancel(long clientId) {
+        Upload upload = uploads.remove(clientId);
+        if (upload != null) {
+            abort(upload);
+        }
+    }
+
+    // Called when the sender disconnects; the spool and receivers keep their partial files
+    // for resuming
+    public void abortAll() {
+        for (Upload upload : uploads.values()) {
+            abort(upload);
+        }
+        uploads.clear();
+    }
+
+    private void abort(Upload upload) {
+        server.log("File transfer aborted: " + upload.fileName + " from " + sender.getUsername());
+        if (upload.isSpooled()) {
+            server.getSpool().abandon(upload.incoming);
+        } else if (upload.receiver.isBinary()) {
+            upload.receiver.send(OutboundMessage.fileAbort(upload.id));
+        } else {
+            // The receiver would read whatever comes next as file bytes, so it has to reconnect
+            legacyReceivers.remove(upload.receiver);
+            upload.receiver.disconnect();
+        }
+    }
+
+    private void replyToSender(String reply) {
+        sender.send(OutboundMessage.control(reply));
+    }
+}
@@ -0,0 +1,319 @@
+package com.chatapp.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded queue of encoded data waiting to be written to one client. Any thread may add to it;
+// only the connection's writer takes from it. File data is never dropped, only chat messages.
+// File chunks wait in a separate bulk lane, bounded in bytes, that is only drained once no
+// messages are waiting, so chat latency stays at most one batch behind a running transfer.
+public class OutboundQueue {
+    private record Entry(ByteBuffer data, boolean droppable) {
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> bulk = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition bulkNotFull = lock.newCondition();
+    private final List<Runnable> spaceListeners = new ArrayList<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMillis;
+    private final long bulkMaxBytes;
+    private long bulkBytes;
+    private long dropped;
+    private boolean closed;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis, long bulkMaxBytes) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.bulkMaxBytes = bulkMaxBytes;
+    }
+
+    public OutboundQueue(ServerConfig config) {
+        this(config.getQueueCapacity(), config.getOverflowPolicy(), config.getQueueBlockTimeoutMillis(),
+                config.getQueueBulkMaxBytes());
+    }
+
+    // Adds a chat message, applying the overflow policy if the queue is full.
+    // Returns false if the client should be disconnected. The caller must not block
+    // (an I/O thread) when mayBlock is false; BLOCK then behaves like DISCONNECT.
+    public boolean offer(ByteBuffer data, boolean mayBlock) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (entries.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST -> {
+                        if (!dropOldestMessage()) {
+                            // Only file data is queued; drop the new message instead
+                            dropped++;
+                            return true;
+                        }
+                    }
+                    case DISCONNECT -> {
+                        return false;
+                    }
+                    case BLOCK -> {
+                        if (!mayBlock || !awaitSpace(blockTimeoutMillis)) {
+                            return false;
+                        }
+                        if (closed) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            add(new Entry(data, true));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds file data, waiting for room regardless of policy. Returns false on timeout.
+    public boolean put(ByteBuffer data) {
+        lock.lock();
+        try {
+            if (entries.size() >= capacity && !awaitSpace(blockTimeoutMillis)) {
+                return false;
+            }
+            if (!closed) {
+                add(new Entry(data, false));
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds data without waiting. If full, nothing is added and the listener runs once room
+    // becomes available (or the queue is closed) so the producer can retry. A closed queue
+    // refuses without calling back, so nothing is taken as sent that never will be.
+    public boolean tryPut(ByteBuffer data, Runnable onSpace) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (entries.size() >= capacity) {
+                spaceListeners.add(onSpace);
+                return false;
+            }
+            add(new Entry(data, false));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds a file chunk to the bulk lane, waiting for room. Returns false on timeout.
+    public boolean putBulk(ByteBuffer data) {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+            while (isBulkFull() && !closed) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = bulkNotFull.awaitNanos(nanos);
+            }
+            if (!closed) {
+                addBulk(data);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds a file chunk without waiting; same contract as tryPut
+    public boolean tryPutBulk(ByteBuffer data, Runnable onSpace) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (isBulkFull()) {
+                spaceListeners.add(onSpace);
+                return false;
+            }
+            addBulk(data);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // An empty lane always takes one chunk, however large
+    private boolean isBulkFull() {
+        return !bulk.isEmpty() && bulkBytes >= bulkMaxBytes;
+    }
+
+    private void add(Entry entry) {
+        entries.add(entry);
+        notEmpty.signal();
+    }
+
+    private void addBulk(ByteBuffer data) {
+        bulk.add(data);
+        bulkBytes += data.remaining();
+        notEmpty.signal();
+    }
+
+    private boolean dropOldestMessage() {
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            if (it.next().droppable()) {
+                it.remove();
+                dropped++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean awaitSpace(long timeoutMillis) {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (entries.size() >= capacity && !closed) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Waits for the next entry, then keeps collecting entries into batch until maxBytes
+    // is reached or maxDelayNanos has passed. Returns false once the queue is closed.
+    public boolean takeBatch(List<ByteBuffer> batch, int maxBytes, long maxDelayNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (entries.isEmpty() && bulk.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            long deadline = System.nanoTime() + maxDelayNanos;
+            int bytes = drainTo(batch, maxBytes);
+            while (bytes < maxBytes && !closed && ((entries.isEmpty() && bulk.isEmpty()) || batch.isEmpty())) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                notEmpty.awaitNanos(remaining);
+                bytes += drainTo(batch, maxBytes - bytes);
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves whatever is queued into batch, up to maxBytes, without waiting
+    public int pollBatch(List<ByteBuffer> batch, int maxBytes) {
+        lock.lock();
+        try {
+            return drainTo(batch, maxBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Messages go first, then file chunks fill whatever room is left. The first entry is
+    // always taken so a single oversized entry can't get stuck.
+    private int drainTo(List<ByteBuffer> batch, int maxBytes) {
+        int bytes = 0;
+        Entry next;
+        while ((next = entries.peekFirst()) != null) {
+            int size = next.data().remaining();
+            if (!batch.isEmpty() && bytes + size > maxBytes) {
+                return bytes;
+            }
+            entries.pollFirst();
+            notFull.signal();
+            batch.add(next.data());
+            bytes += size;
+        }
+        ByteBuffer chunk;
+        while ((chunk = bulk.peekFirst()) != null) {
+            int size = chunk.remaining();
+            if (!batch.isEmpty() && bytes + size > maxBytes) {
+                break;
+            }
+            bulk.pollFirst();
+            bulkBytes -= size;
+            bulkNotFull.signal();
+            batch.add(chunk);
+            bytes += size;
+        }
+        if (!spaceListeners.isEmpty() && bytes > 0) {
+            notifySpaceListeners();
+        }
+        return bytes;
+    }
+
+    private void notifySpaceListeners() {
+        List<Runnable> listeners = new ArrayList<>(spaceListeners);
+        spaceListeners.clear();
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            entries.clear();
+            bulk.clear();
+            bulkBytes = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            bulkNotFull.signalAll();
+            notifySpaceListeners();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Queue-depth gauge
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size() + bulk.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.chatapp.server;
+
+// What an OutboundQueue does with a chat message when the client isn't keeping up
+public enum OverflowPolicy {
+    // Discard the oldest queued chat message to make room
+    DROP_OLDEST,
+    // Disconnect the slow client
+    DISCONNECT,
+    // Make the sender wait for room, up to the configured timeout, then disconnect
+    BLOCK
+}
@@ -0,0 +1,103 @@
+package com.chatapp.server;
+
+import com.chatapp.server.protocol.OutboundMessage;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Publishes presence changes. Membership changes within one window are coalesced into a
+// single broadcast, and snapshots are encoded once per change and reused for every
+// PRESENCE_SYNC and REFRESH_USERS. All publishing happens on one thread, so every
+// client sees sequence numbers in order.
+public class PresenceScheduler {
+    private final ChatServer server;
+    private final Map<String, ClientConnection> clients;
+    private final long windowMillis;
+    private final ScheduledExecutorService executor;
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    // Only touched on the scheduler thread
+    private final Set<ClientConnection> subscribers = new HashSet<>();
+    private final Set<String> published = new LinkedHashSet<>();
+    private long seq;
+    private OutboundMessage clientListSnapshot = OutboundMessage.presence("CLIENTS:");
+    private OutboundMessage presenceSnapshot = OutboundMessage.presence("PRESENCE:0:");
+
+    public PresenceScheduler(ChatServer server, Map<String, ClientConnection> clients, long windowMillis) {
+        this.server = server;
+        this.clients = clients;
+        this.windowMillis = windowMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Records that a user logged in or out; the broadcast goes out when the window closes
+    public void memberChanged(String username) {
+        changed.add(username);
+        if (flushScheduled.compareAndSet(false, true)) {
+            executor.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Switches the client to JOIN/LEAVE deltas, starting from the current snapshot
+    public void subscribe(ClientConnection client) {
+        executor.execute(() -> {
+            subscribers.add(client);
+            client.send(presenceSnapshot);
+        });
+    }
+
+    public void unsubscribe(ClientConnection client) {
+        executor.execute(() -> subscribers.remove(client));
+    }
+
+    // Answers REFRESH_USERS with the cached snapshot, to the requester only
+    public void refresh(ClientConnection client) {
+        executor.execute(() -> client.send(subscribers.contains(client) ? presenceSnapshot : clientListSnapshot));
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        List<String> deltas = new ArrayList<>();
+        for (Iterator<String> it = changed.iterator(); it.hasNext(); ) {
+            String username = it.next();
+            it.remove();
+            // Compare against what clients were last told, so a quick logout/login nets out.
+            // Users on other cluster nodes count as online.
+            boolean online = server.getClient(username) != null;
+            if (online && published.add(username)) {
+                deltas.add("JOIN:" + (++seq) + ":" + username);
+            } else if (!online && published.remove(username)) {
+                deltas.add("LEAVE:" + (++seq) + ":" + username);
+            }
+        }
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        String usernames = String.join(",", published);
+        clientListSnapshot = OutboundMessage.presence("CLIENTS:" + usernames);
+        presenceSnapshot = OutboundMessage.presence("PRESENCE:" + seq + ":" + usernames);
+        server.log("Active clients: " + published.size());
+
+        OutboundMessage deltaMessage = OutboundMessage.presence(deltas);
+        for (ClientConnection client : clients.values()) {
+            try {
+                client.send(subscribers.contains(client) ? deltaMessage : clientListSnapshot);
+            } catch (Exception e) {
+                server.log("Error sending client list to " + client.getUsername() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+}
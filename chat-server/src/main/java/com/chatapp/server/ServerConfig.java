@@ -0,0 +1,477 @@
+package com.chatapp.server;
+
+import com.chatapp.server.log.LogLevel;
+
+public class ServerConfig {
+    public static final int DEFAULT_PORT = 5001;
+
+    private int port = DEFAULT_PORT;
+    private ServerMode mode = ServerMode.THREAD;
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private int readBufferSize = 8192;
+    private int writeBufferSize = 32768;
+    private int queueCapacity = 1024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private long queueBlockTimeoutMillis = 5000;
+    private long queueBulkMaxBytes = 1024 * 1024;
+    private int batchMaxBytes = 65536;
+    private long batchMaxDelayMicros = 0;
+    private long presenceWindowMillis = 100;
+    private String logDir = "logs";
+    private LogLevel logLevel = LogLevel.DEBUG;
+    private boolean logConsole = true;
+    private int logBufferSize = 65536;
+    private long logMaxFileBytes = 64L * 1024 * 1024;
+    private long logRotateMinutes = 24 * 60;
+    private String spoolDir = "spool";
+    private long spoolMaxBytes = 10L * 1024 * 1024 * 1024;
+    private long spoolUserQuotaBytes = 1024L * 1024 * 1024;
+    private long spoolTtlMinutes = 7 * 24 * 60;
+    private String storeDir = "messages";
+    private long storeSegmentBytes = 64L * 1024 * 1024;
+    private boolean storeFsync = true;
+    private long storeMaxAgeMinutes = 30L * 24 * 60;
+    private int storeMailboxMaxMessages = 10_000;
+    private String historyDir = "history";
+    private long historySegmentBytes = 16L * 1024 * 1024;
+    private int historyMaxOpenConversations = 256;
+    private String searchDir = "search";
+    private int searchFlushPostings = 1_000_000;
+    private long searchMaxSegmentBytes = 1L << 30;
+    private int clusterNodeId = 0;
+    private int clusterPort = 5101;
+    private String clusterPeers = "";
+    private String clusterSecret = "";
+    private long clusterReportSeconds = 60;
+    private boolean clusterSharding = true;
+    private int clusterVirtualNodes = 256;
+
+    // Reads settings from -Dchat.* system properties, falling back to defaults
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.port = Integer.getInteger("chat.port", config.port);
+        config.mode = ServerMode.valueOf(System.getProperty("chat.mode", config.mode.name()).toUpperCase());
+        config.setIoThreads(Integer.getInteger("chat.ioThreads", config.ioThreads));
+        config.readBufferSize = Integer.getInteger("chat.readBufferSize", config.readBufferSize);
+        config.writeBufferSize = Integer.getInteger("chat.writeBufferSize", config.writeBufferSize);
+        config.queueCapacity = Integer.getInteger("chat.queue.capacity", config.queueCapacity);
+        config.overflowPolicy = OverflowPolicy.valueOf(
+                System.getProperty("chat.queue.overflow", config.overflowPolicy.name()).toUpperCase());
+        config.queueBlockTimeoutMillis = Long.getLong("chat.queue.blockTimeoutMillis", config.queueBlockTimeoutMillis);
+        config.queueBulkMaxBytes = Long.getLong("chat.queue.bulkMaxBytes", config.queueBulkMaxBytes);
+        config.batchMaxBytes = Integer.getInteger("chat.batch.maxBytes", config.batchMaxBytes);
+        config.batchMaxDelayMicros = Long.getLong("chat.batch.maxDelayMicros", config.batchMaxDelayMicros);
+        config.presenceWindowMillis = Long.getLong("chat.presence.windowMillis", config.presenceWindowMillis);
+        config.logDir = System.getProperty("chat.log.dir", config.logDir);
+        config.logLevel = LogLevel.valueOf(System.getProperty("chat.log.level", config.logLevel.name()).toUpperCase());
+        config.logConsole = Boolean.parseBoolean(System.getProperty("chat.log.console", String.valueOf(config.logConsole)));
+        config.logBufferSize = Integer.getInteger("chat.log.bufferSize", config.logBufferSize);
+        config.logMaxFileBytes = Long.getLong("chat.log.maxFileBytes", config.logMaxFileBytes);
+        config.logRotateMinutes = Long.getLong("chat.log.rotateMinutes", config.logRotateMinutes);
+        config.spoolDir = System.getProperty("chat.spool.dir", config.spoolDir);
+        config.spoolMaxBytes = Long.getLong("chat.spool.maxBytes", config.spoolMaxBytes);
+        config.spoolUserQuotaBytes = Long.getLong("chat.spool.userQuotaBytes", config.spoolUserQuotaBytes);
+        config.spoolTtlMinutes = Long.getLong("chat.spool.ttlMinutes", config.spoolTtlMinutes);
+        config.storeDir = System.getProperty("chat.store.dir", config.storeDir);
+        config.storeSegmentBytes = Long.getLong("chat.store.segmentBytes", config.storeSegmentBytes);
+        config.storeFsync = Boolean.parseBoolean(System.getProperty("chat.store.fsync", String.valueOf(config.storeFsync)));
+        config.storeMaxAgeMinutes = Long.getLong("chat.store.maxAgeMinutes", config.storeMaxAgeMinutes);
+        config.storeMailboxMaxMessages = Integer.getInteger("chat.store.mailboxMaxMessages", config.storeMailboxMaxMessages);
+        config.historyDir = System.getProperty("chat.history.dir", config.historyDir);
+        config.historySegmentBytes = Long.getLong("chat.history.segmentBytes", config.historySegmentBytes);
+        config.historyMaxOpenConversations = Integer.getInteger("chat.history.maxOpenConversations", config.historyMaxOpenConversations);
+        config.searchDir = System.getProperty("chat.search.dir", config.searchDir);
+        config.searchFlushPostings = Integer.getInteger("chat.search.flushPostings", config.searchFlushPostings);
+        config.searchMaxSegmentBytes = Long.getLong("chat.search.maxSegmentBytes", config.searchMaxSegmentBytes);
+        config.clusterNodeId = Integer.getInteger("chat.cluster.nodeId", config.clusterNodeId);
+        config.clusterPort = Integer.getInteger("chat.cluster.port", config.clusterPort);
+        config.clusterPeers = System.getProperty("chat.cluster.peers", config.clusterPeers);
+        config.clusterSecret = System.getProperty("chat.cluster.secret", config.clusterSecret);
+        config.clusterReportSeconds = Long.getLong("chat.cluster.reportSeconds", config.clusterReportSeconds);
+        config.clusterSharding = Boolean.parseBoolean(System.getProperty("chat.cluster.sharding", String.valueOf(config.clusterSharding)));
+        config.clusterVirtualNodes = Integer.getInteger("chat.cluster.virtualNodes", config.clusterVirtualNodes);
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerConfig setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    public ServerConfig setMode(ServerMode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public ServerConfig setIoThreads(int ioThreads) {
+        this.ioThreads = Math.max(1, ioThreads);
+        return this;
+    }
+
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    public ServerConfig setReadBufferSize(int readBufferSize) {
+        this.readBufferSize = readBufferSize;
+        return this;
+    }
+
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    public ServerConfig setWriteBufferSize(int writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+        return this;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public ServerConfig setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public ServerConfig setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    public long getQueueBulkMaxBytes() {
+        return queueBulkMaxBytes;
+    }
+
+    public ServerConfig setQueueBulkMaxBytes(long queueBulkMaxBytes) {
+        this.queueBulkMaxBytes = queueBulkMaxBytes;
+        return this;
+    }
+
+    public long getQueueBlockTimeoutMillis() {
+        return queueBlockTimeoutMillis;
+    }
+
+    public ServerConfig setQueueBlockTimeoutMillis(long queueBlockTimeoutMillis) {
+        this.queueBlockTimeoutMillis = queueBlockTimeoutMillis;
+        return this;
+    }
+
+    public int getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    public ServerConfig setBatchMaxBytes(int batchMaxBytes) {
+        this.batchMaxBytes = batchMaxBytes;
+        return this;
+    }
+
+    // How long a blocking-mode writer lingers for more messages before writing a batch
+    public long getBatchMaxDelayMicros() {
+        return batchMaxDelayMicros;
+    }
+
+    public ServerConfig setBatchMaxDelayMicros(long batchMaxDelayMicros) {
+        this.batchMaxDelayMicros = batchMaxDelayMicros;
+        return this;
+    }
+
+    // Membership changes within this window are coalesced into one presence broadcast
+    public long getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+
+    public ServerConfig setPresenceWindowMillis(long presenceWindowMillis) {
+        this.presenceWindowMillis = presenceWindowMillis;
+        return this;
+    }
+
+    public String getLogDir() {
+        return logDir;
+    }
+
+    public ServerConfig setLogDir(String logDir) {
+        this.logDir = logDir;
+        return this;
+    }
+
+    // DEBUG logs every relayed message including its body; INFO leaves them out
+    public LogLevel getLogLevel() {
+        return logLevel;
+    }
+
+    public ServerConfig setLogLevel(LogLevel logLevel) {
+        this.logLevel = logLevel;
+        return this;
+    }
+
+    public boolean isLogConsole() {
+        return logConsole;
+    }
+
+    public ServerConfig setLogConsole(boolean logConsole) {
+        this.logConsole = logConsole;
+        return this;
+    }
+
+    public int getLogBufferSize() {
+        return logBufferSize;
+    }
+
+    public ServerConfig setLogBufferSize(int logBufferSize) {
+        this.logBufferSize = logBufferSize;
+        return this;
+    }
+
+    public long getLogMaxFileBytes() {
+        return logMaxFileBytes;
+    }
+
+    public ServerConfig setLogMaxFileBytes(long logMaxFileBytes) {
+        this.logMaxFileBytes = logMaxFileBytes;
+        return this;
+    }
+
+    public long getLogRotateMinutes() {
+        return logRotateMinutes;
+    }
+
+    public ServerConfig setLogRotateMinutes(long logRotateMinutes) {
+        this.logRotateMinutes = logRotateMinutes;
+        return this;
+    }
+
+    public String getSpoolDir() {
+        return spoolDir;
+    }
+
+    public ServerConfig setSpoolDir(String spoolDir) {
+        this.spoolDir = spoolDir;
+        return this;
+    }
+
+    // Disk space for spooled files; identical files are stored once
+    public long getSpoolMaxBytes() {
+        return spoolMaxBytes;
+    }
+
+    public ServerConfig setSpoolMaxBytes(long spoolMaxBytes) {
+        this.spoolMaxBytes = spoolMaxBytes;
+        return this;
+    }
+
+    // Total size of the undelivered files one sender may have in the spool
+    public long getSpoolUserQuotaBytes() {
+        return spoolUserQuotaBytes;
+    }
+
+    public ServerConfig setSpoolUserQuotaBytes(long spoolUserQuotaBytes) {
+        this.spoolUserQuotaBytes = spoolUserQuotaBytes;
+        return this;
+    }
+
+    // How long a spooled file waits for its recipient before it is dropped
+    public long getSpoolTtlMinutes() {
+        return spoolTtlMinutes;
+    }
+
+    public ServerConfig setSpoolTtlMinutes(long spoolTtlMinutes) {
+        this.spoolTtlMinutes = spoolTtlMinutes;
+        return this;
+    }
+
+    public String getStoreDir() {
+        return storeDir;
+    }
+
+    public ServerConfig setStoreDir(String storeDir) {
+        this.storeDir = storeDir;
+        return this;
+    }
+
+    public long getStoreSegmentBytes() {
+        return storeSegmentBytes;
+    }
+
+    public ServerConfig setStoreSegmentBytes(long storeSegmentBytes) {
+        this.storeSegmentBytes = storeSegmentBytes;
+        return this;
+    }
+
+    // Whether each commit batch is forced to disk; off trades durability for throughput
+    public boolean isStoreFsync() {
+        return storeFsync;
+    }
+
+    public ServerConfig setStoreFsync(boolean storeFsync) {
+        this.storeFsync = storeFsync;
+        return this;
+    }
+
+    // How long a message waits for an offline recipient before it is dropped
+    public long getStoreMaxAgeMinutes() {
+        return storeMaxAgeMinutes;
+    }
+
+    public ServerConfig setStoreMaxAgeMinutes(long storeMaxAgeMinutes) {
+        this.storeMaxAgeMinutes = storeMaxAgeMinutes;
+        return this;
+    }
+
+    // Messages kept for one offline recipient; past this the oldest are dropped
+    public int getStoreMailboxMaxMessages() {
+        return storeMailboxMaxMessages;
+    }
+
+    public ServerConfig setStoreMailboxMaxMessages(int storeMailboxMaxMessages) {
+        this.storeMailboxMaxMessages = storeMailboxMaxMessages;
+        return this;
+    }
+
+    public String getHistoryDir() {
+        return historyDir;
+    }
+
+    public ServerConfig setHistoryDir(String historyDir) {
+        this.historyDir = historyDir;
+        return this;
+    }
+
+    // Segments are mapped whole, so this must stay under 2 GB
+    public long getHistorySegmentBytes() {
+        return historySegmentBytes;
+    }
+
+    public ServerConfig setHistorySegmentBytes(long historySegmentBytes) {
+        this.historySegmentBytes = historySegmentBytes;
+        return this;
+    }
+
+    // Conversations kept with their files open; each holds two files per segment, so raise
+    // the process's file limit along with this
+    public int getHistoryMaxOpenConversations() {
+        return historyMaxOpenConversations;
+    }
+
+    public ServerConfig setHistoryMaxOpenConversations(int historyMaxOpenConversations) {
+        this.historyMaxOpenConversations = historyMaxOpenConversations;
+        return this;
+    }
+
+    public String getSearchDir() {
+        return searchDir;
+    }
+
+    public ServerConfig setSearchDir(String searchDir) {
+        this.searchDir = searchDir;
+        return this;
+    }
+
+    // Postings held in memory before they are written out as a segment
+    public int getSearchFlushPostings() {
+        return searchFlushPostings;
+    }
+
+    public ServerConfig setSearchFlushPostings(int searchFlushPostings) {
+        this.searchFlushPostings = searchFlushPostings;
+        return this;
+    }
+
+    // Segments are not merged past this size; each of a segment's two files is mapped whole,
+    // so it must stay under 2 GB
+    public long getSearchMaxSegmentBytes() {
+        return searchMaxSegmentBytes;
+    }
+
+    public ServerConfig setSearchMaxSegmentBytes(long searchMaxSegmentBytes) {
+        this.searchMaxSegmentBytes = searchMaxSegmentBytes;
+        return this;
+    }
+
+    // This node's ID in the cluster, from 0 to 32767; it must be unique among the peers
+    public int getClusterNodeId() {
+        return clusterNodeId;
+    }
+
+    public ServerConfig setClusterNodeId(int clusterNodeId) {
+        this.clusterNodeId = clusterNodeId;
+        return this;
+    }
+
+    // Port for links from other nodes
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public ServerConfig setClusterPort(int clusterPort) {
+        this.clusterPort = clusterPort;
+        return this;
+    }
+
+    // The other nodes, as "id@host:port,..."; empty for a single server
+    public String getClusterPeers() {
+        return clusterPeers;
+    }
+
+    public ServerConfig setClusterPeers(String clusterPeers) {
+        this.clusterPeers = clusterPeers;
+        return this;
+    }
+
+    // Shared by every node and proved on each link; required when there are peers
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    public ServerConfig setClusterSecret(String clusterSecret) {
+        this.clusterSecret = clusterSecret;
+        return this;
+    }
+
+    // How often forwarding statistics are logged
+    public long getClusterReportSeconds() {
+        return clusterReportSeconds;
+    }
+
+    public ServerConfig setClusterReportSeconds(long clusterReportSeconds) {
+        this.clusterReportSeconds = clusterReportSeconds;
+        return this;
+    }
+
+    // Whether binary clients are sent to the node that owns their username
+    public boolean isClusterSharding() {
+        return clusterSharding;
+    }
+
+    public ServerConfig setClusterSharding(boolean clusterSharding) {
+        this.clusterSharding = clusterSharding;
+        return this;
+    }
+
+    // Points each node has on the hash ring; more spread users more evenly
+    public int getClusterVirtualNodes() {
+        return clusterVirtualNodes;
+    }
+
+    public ServerConfig setClusterVirtualNodes(int clusterVirtualNodes) {
+        this.clusterVirtualNodes = clusterVirtualNodes;
+        return this;
+    }
+}
@@ -0,0 +1,10 @@
+package com.chatapp.server;
+
+public enum ServerMode {
+    // One platform thread per connected client, blocking reads
+    THREAD,
+    // One virtual thread per connected client, same blocking code as THREAD
+    VIRTUAL,
+    // Small pool of selector threads multiplexing non-blocking channels
+    NIO
+}
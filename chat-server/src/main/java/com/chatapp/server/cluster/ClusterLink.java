@@ -0,0 +1,439 @@
+package com.chatapp.server.cluster;
+
+import com.chatapp.server.ClientConnection;
+import com.chatapp.server.protocol.FrameType;
+import com.chatapp.server.protocol.OutboundMessage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.*;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// One persistent connection to another node, carrying the traffic of all users between the
+// two. Frames are a kind byte, a 4-byte length and the payload, like the client protocol.
+// Strings are a 4-byte length and UTF-8 bytes; usernames use writeUTF.
+//
+// Before anything else, each side proves it knows the cluster secret: it sends a random
+// challenge in its HELLO, and answers the other side's challenge with an HMAC-SHA256 of
+// both challenges and its own node ID. The link is only used once both answers check out.
+// The traffic itself is not encrypted.
+//
+// Frames are queued and written by the link's own thread, so senders never wait on the
+// network. File chunks are queued through tryDeliver, which refuses once MAX_QUEUED_BYTES
+// are waiting and calls back when the queue has drained, so a busy link slows uploads down
+// rather than growing without bound. Once the link is closed, tryDeliver refuses for good.
+// Chat is always queued.
+final class ClusterLink {
+    // "nodeId, clientPort, challenge", the first frame each side sends
+    static final byte HELLO = 1;
+    // "count, then (username, binary) per user": every user connected to the sending node
+    static final byte USERS = 2;
+    static final byte USER_ON = 3;
+    static final byte USER_OFF = 4;
+    // "sentMicros, sender, receiver, text": a private message for the receiving node to deliver
+    static final byte CHAT = 5;
+    // "sentMicros, username, frame type, lines, text lines": an OutboundMessage for a user
+    static final byte DELIVER = 6;
+    // "username", then a complete FILE_CHUNK frame
+    static final byte CHUNK = 7;
+    // "username, reply": a receiver's FILE_RESUME, FILE_DONE or FILE_RETRY for the node that sent the file
+    static final byte REPLY = 8;
+    static final byte DISCONNECT = 9;
+    // "sentMicros, room, sender, text": a room message for the receiving node's members
+    static final byte ROOM = 10;
+    // "proof": the answer to the other side's challenge, the second frame each side sends
+    static final byte AUTH = 11;
+
+    private static final long MAX_QUEUED_BYTES = 4L * 1024 * 1024;
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private static final int CHALLENGE_SIZE = 16;
+    private static final int PROOF_SIZE = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final ClusterNode node;
+    private final SocketChannel channel;
+    private final LatencyStats latency = new LatencyStats();
+    private final ArrayDeque<ByteBuffer[]> queue = new ArrayDeque<>();
+    private final List<Runnable> spaceListeners = new ArrayList<>();
+    private long queuedBytes;
+    private boolean closed;
+    private volatile int peerId = -1;
+    private int peerClientPort;
+
+    ClusterLink(ClusterNode node, SocketChannel channel) {
+        this.node = node;
+        this.channel = channel;
+    }
+
+    int getPeerId() {
+        return peerId;
+    }
+
+    // The port the peer takes client connections on
+    int getPeerClientPort() {
+        return peerClientPort;
+    }
+
+    LatencyStats getLatency() {
+        return latency;
+    }
+
+    // Exchanges node IDs, client ports and challenges, checks the peer's proof that it has
+    // the secret, and returns the peer's ID
+    int handshake(int nodeId, int clientPort, byte[] secret, DataInputStream in) throws IOException {
+        byte[] challenge = new byte[CHALLENGE_SIZE];
+        RANDOM.nextBytes(challenge);
+        write(new ByteBuffer[] {encode(HELLO, out -> {
+            out.writeInt(nodeId);
+            out.writeInt(clientPort);
+            out.write(challenge);
+        })});
+        if (in.read() != HELLO || in.readInt() != Integer.BYTES * 2 + CHALLENGE_SIZE) {
+            throw new IOException("Expected HELLO from cluster peer");
+        }
+        int id = in.readInt();
+        int port = in.readInt();
+        byte[] peerChallenge = in.readNBytes(CHALLENGE_SIZE);
+        if (peerChallenge.length < CHALLENGE_SIZE) {
+            throw new EOFException();
+        }
+
+        byte[] proof = proof(secret, peerChallenge, challenge, nodeId);
+        write(new ByteBuffer[] {encode(AUTH, out -> out.write(proof))});
+        if (in.read() != AUTH || in.readInt() != PROOF_SIZE) {
+            throw new IOException("Expected AUTH from node " + id);
+        }
+        byte[] peerProof = in.readNBytes(PROOF_SIZE);
+        if (!MessageDigest.isEqual(peerProof, proof(secret, challenge, peerChallenge, id))) {
+            throw new IOException("node " + id + " does not have the cluster secret");
+        }
+        peerId = id;
+        peerClientPort = port;
+        return id;
+    }
+
+    // A node answers a challenge for itself; the answer is no use against any other challenge
+    private static byte[] proof(byte[] secret, byte[] challenge, byte[] ownChallenge, int nodeId) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(challenge);
+            mac.update(ownChallenge);
+            mac.update(ByteBuffer.allocate(Integer.BYTES).putInt(nodeId).array());
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    void startWriter() {
+        Thread writer = new Thread(this::writeLoop, "cluster-node-" + peerId + "-out");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Runs on the link's reading thread until the connection fails or is closed
+    void readLoop(DataInputStream in) throws IOException {
+        int kind;
+        while ((kind = in.read()) != -1) {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                throw new IOException("Bad frame length " + length + " from node " + peerId);
+            }
+            byte[] payload = in.readNBytes(length);
+            if (payload.length < length) {
+                throw new EOFException();
+            }
+            DataInputStream body = new DataInputStream(new ByteArrayInputStream(payload));
+            switch (kind) {
+                case USERS -> {
+                    for (int count = body.readInt(); count > 0; count--) {
+                        node.userOn(this, body.readUTF(), body.readBoolean());
+                    }
+                }
+                case USER_ON -> node.userOn(this, body.readUTF(), body.readBoolean());
+                case USER_OFF -> node.userOff(this, body.readUTF());
+                case CHAT -> {
+                    long sentMicros = body.readLong();
+                    node.chat(body.readUTF(), body.readUTF(), readString(body));
+                    latency.record(nowMicros() - sentMicros);
+                }
+                case DELIVER -> {
+                    long sentMicros = body.readLong();
+                    String username = body.readUTF();
+                    FrameType type = FrameType.fromCode(body.readByte());
+                    List<String> lines = readLines(body);
+                    int textLines = body.readInt();
+                    node.deliver(username, OutboundMessage.forwarded(type, lines, textLines < 0 ? lines : readLines(body, textLines)));
+                    latency.record(nowMicros() - sentMicros);
+                }
+                case CHUNK -> {
+                    String username = body.readUTF();
+                    int offset = payload.length - body.available();
+                    node.deliver(username, OutboundMessage.fileChunk(ByteBuffer.wrap(payload, offset, payload.length - offset).slice()));
+                }
+                case REPLY -> node.reply(this, body.readUTF(), body.readUTF());
+                case DISCONNECT -> node.disconnect(body.readUTF());
+                case ROOM -> {
+                    long sentMicros = body.readLong();
+                    node.room(readString(body), body.readUTF(), readString(body));
+                    latency.record(nowMicros() - sentMicros);
+                }
+                default -> throw new IOException("Unknown frame kind " + kind + " from node " + peerId);
+            }
+        }
+        throw new EOFException("Node " + peerId + " closed the link");
+    }
+
+    void sendUsers(Collection<ClientConnection> users) {
+        List<ClientConnection> snapshot = new ArrayList<>(users);
+        enqueue(encode(USERS, out -> {
+            out.writeInt(snapshot.size());
+            for (ClientConnection user : snapshot) {
+                out.writeUTF(user.getUsername());
+                out.writeBoolean(user.isBinary());
+            }
+        }));
+    }
+
+    void sendUserOn(String username, boolean binary) {
+        enqueue(encode(USER_ON, out -> {
+            out.writeUTF(username);
+            out.writeBoolean(binary);
+        }));
+    }
+
+    void sendUserOff(String username) {
+        enqueue(encode(USER_OFF, out -> out.writeUTF(username)));
+    }
+
+    void sendChat(String sender, String receiver, String text) {
+        long sentMicros = nowMicros();
+        enqueue(encode(CHAT, out -> {
+            out.writeLong(sentMicros);
+            out.writeUTF(sender);
+            out.writeUTF(receiver);
+            writeString(out, text);
+        }));
+    }
+
+    void sendRoom(String room, String sender, String text) {
+        long sentMicros = nowMicros();
+        enqueue(encode(ROOM, out -> {
+            out.writeLong(sentMicros);
+            writeString(out, room);
+            out.writeUTF(sender);
+            writeString(out, text);
+        }));
+    }
+
+    void sendReply(String username, String reply) {
+        enqueue(encode(REPLY, out -> {
+            out.writeUTF(username);
+            out.writeUTF(reply);
+        }));
+    }
+
+    void sendDisconnect(String username) {
+        enqueue(encode(DISCONNECT, out -> out.writeUTF(username)));
+    }
+
+    void deliver(String username, OutboundMessage message) {
+        enqueue(encodeDelivery(username, message));
+    }
+
+    // False, without calling back, once the link is closed: the sender finds out the user is
+    // gone when the link's users are dropped from the directory
+    boolean tryDeliver(String username, OutboundMessage message, Runnable onSpace) {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (queuedBytes >= MAX_QUEUED_BYTES) {
+                spaceListeners.add(onSpace);
+                return false;
+            }
+        }
+        return enqueue(encodeDelivery(username, message));
+    }
+
+    // File chunks are sent as they are, behind a small header, without copying the data
+    private ByteBuffer[] encodeDelivery(String username, OutboundMessage message) {
+        if (message.getType() == FrameType.FILE_CHUNK) {
+            ByteBuffer frame = message.encode(true).duplicate();
+            ByteBuffer header = encode(CHUNK, out -> out.writeUTF(username));
+            header.putInt(1, header.remaining() - Byte.BYTES - Integer.BYTES + frame.remaining());
+            return new ByteBuffer[] {header, frame};
+        }
+        long sentMicros = nowMicros();
+        return new ByteBuffer[] {encode(DELIVER, out -> {
+            out.writeLong(sentMicros);
+            out.writeUTF(username);
+            out.writeByte(message.getType().getCode());
+            writeLines(out, message.getLines());
+            if (message.getTextLines() == message.getLines()) {
+                out.writeInt(-1);
+            } else {
+                writeLines(out, message.getTextLines());
+            }
+        })};
+    }
+
+    int getQueueDepth() {
+        synchronized (this) {
+            return queue.size();
+        }
+    }
+
+    // Returns false, dropping the frame, if the link is closed
+    private boolean enqueue(ByteBuffer... buffers) {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            queue.add(buffers);
+            for (ByteBuffer buffer : buffers) {
+                queuedBytes += buffer.remaining();
+            }
+            notifyAll();
+            return true;
+        }
+    }
+
+    private void writeLoop() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (queue.isEmpty() && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    for (int i = 0; i < MAX_BATCH && !queue.isEmpty(); i++) {
+                        Collections.addAll(batch, queue.poll());
+                    }
+                }
+                long written = write(batch.toArray(new ByteBuffer[0]));
+                batch.clear();
+
+                List<Runnable> listeners = List.of();
+                synchronized (this) {
+                    queuedBytes -= written;
+                    if (queuedBytes < MAX_QUEUED_BYTES / 2 && !spaceListeners.isEmpty()) {
+                        listeners = new ArrayList<>(spaceListeners);
+                        spaceListeners.clear();
+                    }
+                }
+                listeners.forEach(Runnable::run);
+            }
+        } catch (IOException e) {
+            node.linkFailed(this, e);
+        } catch (InterruptedException e) {
+            close();
+        }
+    }
+
+    private long write(ByteBuffer[] buffers) throws IOException {
+        long written = 0;
+        for (ByteBuffer buffer : buffers) {
+            written += buffer.remaining();
+        }
+        long remaining = written;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        return written;
+    }
+
+    DataInputStream openInput() {
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 65536));
+    }
+
+    // Producers waiting for room are released, and their next tryDeliver returns false
+    void close() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.clear();
+            listeners = new ArrayList<>(spaceListeners);
+            spaceListeners.clear();
+            notifyAll();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already failed
+        }
+        listeners.forEach(Runnable::run);
+    }
+
+    synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    // Wall-clock time, so that the receiving node can work out how long a frame took; this
+    // is exact on one host and as good as clock sync across hosts
+    private static long nowMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+    }
+
+    private static ByteBuffer encode(byte kind, Body body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(kind);
+            out.writeInt(0);
+            body.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        return frame.putInt(1, frame.remaining() - Byte.BYTES - Integer.BYTES);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+    }
+
+    private static void writeLines(DataOutputStream out, List<String> lines) throws IOException {
+        out.writeInt(lines.size());
+        for (String line : lines) {
+            writeString(out, line);
+        }
+    }
+
+    private static List<String> readLines(DataInputStream in) throws IOException {
+        return readLines(in, in.readInt());
+    }
+
+    private static List<String> readLines(DataInputStream in, int count) throws IOException {
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(readString(in));
+        }
+        return lines;
+    }
+}
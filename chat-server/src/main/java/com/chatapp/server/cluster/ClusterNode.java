@@ -0,0 +1,461 @@
+package com.chatapp.server.cluster;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ClientConnection;
+import com.chatapp.server.FileUploads;
+import com.chatapp.server.ServerConfig;
+import com.chatapp.server.protocol.Handshake;
+import com.chatapp.server.protocol.OutboundMessage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Joins this server to the other nodes listed in chat.cluster.peers. Each pair of nodes
+// keeps one link, dialled by the node with the lower ID and redialled whenever it drops.
+// Both ends of a link must prove they have chat.cluster.secret, and a node that dials in
+// must connect from the host it is listed under.
+//
+// Every node tells its peers which users are connected to it, first as a full list when a
+// link comes up and then as each user connects or disconnects, so every node has a
+// directory of where everyone is. A private message for a user on another node is
+// forwarded there and delivered, stored and indexed by that node, as if it had been sent
+// there. Anything else for a remote user (file offers and chunks, messages waiting in this
+// node's store) goes through a RemoteUser, which forwards it to the user's connection.
+// Room messages go to every linked node, and each hands them to its own members of the room.
+//
+// With sharding on, every username has a home node on a hash ring of the nodes this one is
+// linked to. Binary clients logging in elsewhere are redirected home, and when the ring
+// changes, clients whose home moved are asked to reconnect there. Line protocol clients
+// can't follow redirects and stay where they are, reached through the directory.
+public class ClusterNode {
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    // A link that hasn't finished its handshake by then is dropped
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    // Users are moved only once the ring has been stable this long, so a link that drops
+    // and comes straight back doesn't send users away and back again
+    private static final long REBALANCE_DELAY_MILLIS = 5000;
+
+    private record Peer(int id, String host, int port) {
+    }
+
+    private final ChatServer server;
+    private final int nodeId;
+    private final int port;
+    private final int clientPort;
+    private final long reportSeconds;
+    private final boolean sharding;
+    private final int virtualNodes;
+    private final byte[] secret;
+    private final List<Peer> peers = new ArrayList<>();
+    private final Map<Integer, ClusterLink> links = new ConcurrentHashMap<>();
+    private final Set<Integer> dialling = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> unreachable = ConcurrentHashMap.newKeySet();
+    // Addresses whose last link was refused, so a misconfigured node is logged once
+    private final Set<String> refused = ConcurrentHashMap.newKeySet();
+    // Users connected to other nodes
+    private final Map<String, RemoteUser> directory = new ConcurrentHashMap<>();
+    private volatile HashRing ring;
+    private ServerSocketChannel listener;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> rebalance;
+    private volatile boolean running = true;
+
+    public ClusterNode(ChatServer server, ServerConfig config) {
+        this.server = server;
+        this.nodeId = config.getClusterNodeId();
+        this.port = config.getClusterPort();
+        this.clientPort = config.getPort();
+        this.reportSeconds = config.getClusterReportSeconds();
+        this.sharding = config.isClusterSharding();
+        this.virtualNodes = config.getClusterVirtualNodes();
+        this.secret = config.getClusterSecret().getBytes(StandardCharsets.UTF_8);
+        this.ring = new HashRing(List.of(nodeId), virtualNodes);
+        for (String peer : config.getClusterPeers().split(",")) {
+            if (peer.isBlank()) {
+                continue;
+            }
+            // "id@host:port"
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at < 0 || colon < at) {
+                throw new IllegalArgumentException("Cluster peer must be id@host:port: " + peer);
+            }
+            int id = Integer.parseInt(peer.substring(0, at).trim());
+            // Every node can be given the same list, itself included
+            if (id != nodeId) {
+                peers.add(new Peer(id, peer.substring(at + 1, colon).trim(), Integer.parseInt(peer.substring(colon + 1).trim())));
+            }
+        }
+        if (!peers.isEmpty() && config.getClusterSecret().isBlank()) {
+            throw new IllegalArgumentException("chat.cluster.secret must be set, to the same value on every node");
+        }
+    }
+
+    public boolean isEnabled() {
+        return !peers.isEmpty();
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public void start() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+        startThread("cluster-accept", this::acceptLinks);
+        for (Peer peer : peers) {
+            if (peer.id() > nodeId) {
+                scheduler.scheduleWithFixedDelay(() -> dial(peer), 0, RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        scheduler.scheduleAtFixedRate(this::report, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+        server.log("Cluster: node " + nodeId + " listening on port " + port + " for " + peers.size() + " peers");
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void acceptLinks() {
+        while (running) {
+            try {
+                SocketChannel channel = listener.accept();
+                startThread("cluster-link", () -> runLink(channel, -1));
+            } catch (IOException e) {
+                if (running) {
+                    server.log("Cluster: accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void dial(Peer peer) {
+        if (!running || links.containsKey(peer.id()) || !dialling.add(peer.id())) {
+            return;
+        }
+        startThread("cluster-node-" + peer.id(), () -> {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                try {
+                    channel.socket().connect(new InetSocketAddress(peer.host(), peer.port()), CONNECT_TIMEOUT_MILLIS);
+                } catch (IOException e) {
+                    channel.close();
+                    if (unreachable.add(peer.id())) {
+                        server.log("Cluster: cannot reach node " + peer.id() + " at " + peer.host() + ":" + peer.port()
+                                + ": " + e.getMessage());
+                    }
+                    return;
+                }
+                unreachable.remove(peer.id());
+                runLink(channel, peer.id());
+            } catch (IOException e) {
+                server.log("Cluster: cannot reach node " + peer.id() + ": " + e.getMessage());
+            } finally {
+                dialling.remove(peer.id());
+            }
+        });
+    }
+
+    // Runs a link on the calling thread, from the handshake until it fails
+    private void runLink(SocketChannel channel, int expectedId) {
+        ClusterLink link = new ClusterLink(this, channel);
+        String address = remoteHost(channel);
+        ScheduledFuture<?> timeout;
+        try {
+            timeout = scheduler.schedule(link::close, HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            link.close();
+            return;
+        }
+        DataInputStream in;
+        int peerId;
+        try {
+            channel.socket().setTcpNoDelay(true);
+            in = link.openInput();
+            peerId = link.handshake(nodeId, clientPort, secret, in);
+            checkPeer(peerId, expectedId, channel);
+        } catch (IOException e) {
+            link.close();
+            if (running && refused.add(address)) {
+                server.log("Cluster: refused link with " + address + ": " + e.getMessage());
+            }
+            return;
+        } finally {
+            timeout.cancel(false);
+        }
+        refused.remove(address);
+        try {
+            Thread.currentThread().setName("cluster-node-" + peerId + "-in");
+            register(link);
+            link.startWriter();
+            link.readLoop(in);
+        } catch (IOException e) {
+            linkFailed(link, e);
+        }
+    }
+
+    // A node we dialled must be the one we meant to reach. One that dialled us must be in
+    // the peer list and connect from the host listed for it, so the secret alone isn't
+    // enough to pose as another node.
+    private void checkPeer(int peerId, int expectedId, SocketChannel channel) throws IOException {
+        if (expectedId >= 0) {
+            if (peerId != expectedId) {
+                throw new IOException("expected node " + expectedId + " but reached node " + peerId);
+            }
+            return;
+        }
+        Peer peer = peers.stream().filter(p -> p.id() == peerId).findFirst()
+                .orElseThrow(() -> new IOException("unexpected node ID " + peerId));
+        InetAddress remote = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        for (InetAddress listed : InetAddress.getAllByName(peer.host())) {
+            if (listed.equals(remote)) {
+                return;
+            }
+        }
+        throw new IOException("node " + peerId + " connected from " + remote.getHostAddress()
+                + ", not its listed host " + peer.host());
+    }
+
+    private static String remoteHost(SocketChannel channel) {
+        try {
+            return ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        } catch (IOException e) {
+            return "unknown address";
+        }
+    }
+
+    // The directory is sent under the same lock as user changes, so a peer never gets a
+    // change before the list it applies to
+    private synchronized void register(ClusterLink link) {
+        ClusterLink previous = links.put(link.getPeerId(), link);
+        if (previous != null) {
+            previous.close();
+            dropUsers(previous);
+        }
+        link.sendUsers(server.getLocalClients());
+        server.log("Cluster: linked to node " + link.getPeerId());
+        updateRing();
+    }
+
+    void linkFailed(ClusterLink link, IOException e) {
+        boolean wasOpen = link.isOpen();
+        link.close();
+        if (link.getPeerId() < 0 || !links.remove(link.getPeerId(), link)) {
+            return;
+        }
+        if (!running) {
+            return;
+        }
+        if (wasOpen) {
+            server.log("Cluster: lost link to node " + link.getPeerId() + ": " + e.getMessage());
+        }
+        dropUsers(link);
+        updateRing();
+    }
+
+    // The ring holds this node and the nodes it is linked to, so nobody is sent to a node
+    // that is down, and the users of a node that goes down are shared among the rest
+    private synchronized void updateRing() {
+        if (!sharding) {
+            return;
+        }
+        List<Integer> nodes = new ArrayList<>(links.keySet());
+        nodes.add(nodeId);
+        Collections.sort(nodes);
+        ring = new HashRing(nodes, virtualNodes);
+        server.log("Cluster: users are shared among nodes " + nodes);
+        if (rebalance != null) {
+            rebalance.cancel(false);
+        }
+        if (running) {
+            rebalance = scheduler.schedule(this::rebalance, REBALANCE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Where a binary client logging in as username belongs instead of here, as "host:port",
+    // or null if this is its home node
+    public String redirectFor(String username) {
+        if (!sharding) {
+            return null;
+        }
+        int owner = ring.owner(username);
+        ClusterLink link = owner == nodeId ? null : links.get(owner);
+        if (link == null) {
+            return null;
+        }
+        for (Peer peer : peers) {
+            if (peer.id() == owner) {
+                return peer.host() + ":" + link.getPeerClientPort();
+            }
+        }
+        return null;
+    }
+
+    // Asks the binary clients whose home is now another node to reconnect there. Each
+    // keeps its connection here until it is connected there, so nothing is missed.
+    private void rebalance() {
+        int moved = 0;
+        for (ClientConnection client : server.getLocalClients()) {
+            String address = client.isBinary() ? redirectFor(client.getUsername()) : null;
+            if (address != null) {
+                client.send(OutboundMessage.control(Handshake.REDIRECT + address));
+                moved++;
+            }
+        }
+        if (moved > 0) {
+            server.log("Cluster: asked " + moved + " users to move to their home nodes");
+        }
+    }
+
+    private void dropUsers(ClusterLink link) {
+        for (RemoteUser user : directory.values()) {
+            if (user.link == link && directory.remove(user.getUsername(), user)) {
+                server.remoteUserChanged(user.getUsername(), user, null);
+            }
+        }
+    }
+
+    // A local user connected (client is its connection) or disconnected (client is null)
+    public synchronized void localUserChanged(String username, ClientConnection client) {
+        for (ClusterLink link : links.values()) {
+            if (client != null) {
+                link.sendUserOn(username, client.isBinary());
+            } else {
+                link.sendUserOff(username);
+            }
+        }
+    }
+
+    // The connection for a user on another node, or null if no other node has them
+    public ClientConnection getRemote(String username) {
+        return directory.get(username);
+    }
+
+    // Hands a private message to the receiver's node; false if no other node has the receiver
+    public boolean forwardChat(String sender, String receiver, String text) {
+        RemoteUser user = directory.get(receiver);
+        if (user == null || !user.link.isOpen()) {
+            return false;
+        }
+        user.link.sendChat(sender, receiver, text);
+        return true;
+    }
+
+    // Hands a message a local member sent to a room to every other node
+    public void forwardRoom(String room, String sender, String text) {
+        for (ClusterLink link : links.values()) {
+            link.sendRoom(room, sender, text);
+        }
+    }
+
+    // Sends a receiver's reply about a spooled file to the node the file came from, which
+    // is in the transfer ID. Returns false if that is this node or it isn't linked.
+    public boolean forwardReply(ClientConnection from, String reply) {
+        int origin;
+        try {
+            origin = FileUploads.nodeOf(Long.parseLong(reply.split(":", 3)[1]));
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return false;
+        }
+        ClusterLink link = origin == nodeId ? null : links.get(origin);
+        if (link == null) {
+            return false;
+        }
+        link.sendReply(from.getUsername(), reply);
+        return true;
+    }
+
+    void userOn(ClusterLink link, String username, boolean binary) {
+        RemoteUser user = new RemoteUser(username, binary, link);
+        RemoteUser previous = directory.put(username, user);
+        server.remoteUserChanged(username, previous, user);
+    }
+
+    // Only the node a user is on can say it left; after a move, the old node's news is stale
+    void userOff(ClusterLink link, String username) {
+        RemoteUser user = directory.get(username);
+        if (user != null && user.link == link && directory.remove(username, user)) {
+            server.remoteUserChanged(username, user, null);
+        }
+    }
+
+    void chat(String sender, String receiver, String text) {
+        server.deliverPrivate(sender, receiver, text);
+    }
+
+    void room(String room, String sender, String text) {
+        server.deliverRoom(room, sender, text);
+    }
+
+    // Anything else for one of this node's users; dropped if they have gone
+    void deliver(String username, OutboundMessage message) {
+        ClientConnection client = server.getLocalClient(username);
+        if (client != null) {
+            client.send(message);
+        }
+    }
+
+    void reply(ClusterLink link, String username, String reply) {
+        RemoteUser user = directory.get(username);
+        if (user != null && user.link == link) {
+            server.getSpool().handleReply(user, reply);
+        }
+    }
+
+    void disconnect(String username) {
+        ClientConnection client = server.getLocalClient(username);
+        if (client != null) {
+            client.disconnect();
+        }
+    }
+
+    // Logs what each link has forwarded to this node since the last report, with how long
+    // frames took from being queued on the sending node to reaching the user's queue here
+    private void report() {
+        for (ClusterLink link : links.values()) {
+            String summary = link.getLatency().drain();
+            if (summary != null) {
+                server.log("Cluster: from node " + link.getPeerId() + ": " + summary);
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            server.log("Cluster: error closing listener: " + e.getMessage());
+        }
+        for (ClusterLink link : links.values()) {
+            link.close();
+        }
+    }
+}
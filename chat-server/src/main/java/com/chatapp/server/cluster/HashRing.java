@@ -0,0 +1,59 @@
+package com.chatapp.server.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+// Maps usernames to nodes with consistent hashing. Each node is hashed to many points on a
+// ring of 64-bit values, and a username belongs to the first point at or after its own
+// hash. Adding or removing a node only moves the users between its points and the ones
+// before them, about 1/N of all users, and the many points per node keep shares even.
+// Immutable; a new ring is built whenever the set of nodes changes.
+final class HashRing {
+    private final long[] points;
+    private final int[] owners;
+
+    HashRing(Collection<Integer> nodes, int virtualNodes) {
+        long[][] entries = new long[nodes.size() * virtualNodes][];
+        int count = 0;
+        for (int node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                entries[count++] = new long[] {hash("node-" + node + "#" + i), node};
+            }
+        }
+        // Ties, however unlikely, go to the lower node ID so every node builds the same ring
+        Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        points = new long[count];
+        owners = new int[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = entries[i][0];
+            owners[i] = (int) entries[i][1];
+        }
+    }
+
+    // The node that owns the username, or -1 if the ring is empty
+    int owner(String username) {
+        if (points.length == 0) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(points, hash(username));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    // FNV-1a over the UTF-8 bytes, then a MurmurHash3 finalizer to spread similar names
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,47 @@
+package com.chatapp.server.cluster;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Hop latencies seen on one link since the last report. Keeps a uniform sample of at most
+// MAX_SAMPLES values, so percentiles stay cheap however busy the link is.
+final class LatencyStats {
+    private static final int MAX_SAMPLES = 1 << 16;
+
+    private long[] samples = new long[1024];
+    private int sampled;
+    private long count;
+    private long max;
+
+    synchronized void record(long micros) {
+        micros = Math.max(0, micros);
+        count++;
+        max = Math.max(max, micros);
+        if (sampled < MAX_SAMPLES) {
+            if (sampled == samples.length) {
+                samples = Arrays.copyOf(samples, samples.length * 2);
+            }
+            samples[sampled++] = micros;
+        } else {
+            long slot = ThreadLocalRandom.current().nextLong(count);
+            if (slot < MAX_SAMPLES) {
+                samples[(int) slot] = micros;
+            }
+        }
+    }
+
+    // Summarizes and resets; null if nothing was recorded
+    synchronized String drain() {
+        if (count == 0) {
+            return null;
+        }
+        long[] sorted = Arrays.copyOf(samples, sampled);
+        Arrays.sort(sorted);
+        String summary = String.format("%,d messages, hop latency p50=%d us p90=%d us p99=%d us max=%d us", count,
+                sorted[sampled / 2], sorted[sampled * 9 / 10], sorted[sampled * 99 / 100], max);
+        sampled = 0;
+        count = 0;
+        max = 0;
+        return summary;
+    }
+}
@@ -0,0 +1,54 @@
+package com.chatapp.server.cluster;
+
+import com.chatapp.server.ClientConnection;
+import com.chatapp.server.protocol.OutboundMessage;
+
+// A user connected to another node. Whatever is sent to it is forwarded over the link to
+// that node, which hands it to the user's connection, so the rest of the server can treat
+// it like a local client. The same object stands for the user until it leaves or moves.
+final class RemoteUser implements ClientConnection {
+    private final String username;
+    private final boolean binary;
+    final ClusterLink link;
+
+    RemoteUser(String username, boolean binary, ClusterLink link) {
+        this.username = username;
+        this.binary = binary;
+        this.link = link;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+
+    @Override
+    public void send(OutboundMessage message) {
+        link.deliver(username, message);
+    }
+
+    @Override
+    public boolean trySend(OutboundMessage message, Runnable onSpace) {
+        return link.tryDeliver(username, message, onSpace);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !link.isOpen();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return link.getQueueDepth();
+    }
+
+    @Override
+    public void disconnect() {
+        link.sendDisconnect(username);
+    }
+}
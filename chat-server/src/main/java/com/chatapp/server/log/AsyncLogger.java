@@ -0,0 +1,199 @@
+package com.chatapp.server.log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Server log that keeps formatting and I/O off the calling thread. Callers drop entries into
+// a lock-free ring buffer; a background thread formats them, writes them in batches to the
+// console and the current log file, and rotates the file by size or age.
+public final class AsyncLogger implements Closeable {
+    private record Entry(long millis, LogLevel level, String message) {
+    }
+
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter fileFormatter = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+    private static final int MAX_BATCH = 1024;
+
+    private final LogRingBuffer<Entry> buffer;
+    private final File logsDir;
+    private final boolean console;
+    private final long maxFileBytes;
+    private final long rotateMillis;
+    private final Thread writerThread;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile LogLevel level;
+    private volatile boolean running = true;
+    // Set while the writer is parked waiting for entries
+    private volatile boolean idle;
+
+    // Only touched on the writer thread
+    private OutputStream fileOut;
+    private long fileBytes;
+    private long fileOpenedMillis;
+    private long cachedSecond = -1;
+    private String cachedTimestamp;
+
+    public AsyncLogger(File logsDir, LogLevel level, boolean console, int bufferSize, long maxFileBytes, long rotateMinutes) {
+        this.buffer = new LogRingBuffer<>(bufferSize);
+        this.logsDir = logsDir;
+        this.level = level;
+        this.console = console;
+        this.maxFileBytes = maxFileBytes;
+        this.rotateMillis = TimeUnit.MINUTES.toMillis(rotateMinutes);
+
+        // Create logs directory if it doesn't exist
+        if (!logsDir.exists()) {
+            logsDir.mkdir();
+        }
+        openFile(System.currentTimeMillis());
+
+        writerThread = new Thread(this::writeLoop, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public boolean isEnabled(LogLevel level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void setLevel(LogLevel level) {
+        this.level = level;
+    }
+
+    public void log(LogLevel level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (!buffer.offer(new Entry(System.currentTimeMillis(), level, message))) {
+            // Never block the caller; the writer reports how many entries were lost
+            dropped.incrementAndGet();
+        }
+        if (idle) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder();
+        while (running) {
+            if (!drain(batch)) {
+                // Producers unpark the writer when they see idle set. It is set before the
+                // buffer is checked again, so an entry published in between is never missed.
+                idle = true;
+                if (buffer.isEmpty() && dropped.get() == 0 && running) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            }
+        }
+        // Write whatever is left once close() is called
+        while (drain(batch)) {
+        }
+        closeFile();
+    }
+
+    // Formats up to MAX_BATCH entries and writes them with a single write and flush per target
+    private boolean drain(StringBuilder batch) {
+        batch.setLength(0);
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            batch.append(format(System.currentTimeMillis(), lost + " log entries dropped")).append(System.lineSeparator());
+        }
+        Entry entry;
+        int count = 0;
+        long lastMillis = 0;
+        while (count < MAX_BATCH && (entry = buffer.poll()) != null) {
+            batch.append(format(entry.millis(), entry.message())).append(System.lineSeparator());
+            lastMillis = entry.millis();
+            count++;
+        }
+        if (batch.length() == 0) {
+            return false;
+        }
+
+        String text = batch.toString();
+        if (console) {
+            System.out.print(text);
+            System.out.flush();
+        }
+        try {
+            if (fileOut != null) {
+                if (shouldRotate(lastMillis)) {
+                    closeFile();
+                    openFile(lastMillis);
+                }
+                // Rotation size is in bytes on disk, not characters
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                fileOut.write(bytes);
+                fileOut.flush();
+                fileBytes += bytes.length;
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing log file: " + e.getMessage());
+        }
+        return true;
+    }
+
+    private String format(long millis, String message) {
+        // The timestamp has one-second resolution, so it is only formatted once per second
+        long second = millis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTimestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()).format(formatter);
+        }
+        return "[" + cachedTimestamp + "] " + message;
+    }
+
+    private boolean shouldRotate(long now) {
+        return (maxFileBytes > 0 && fileBytes >= maxFileBytes)
+                || (rotateMillis > 0 && now - fileOpenedMillis >= rotateMillis);
+    }
+
+    private void openFile(long now) {
+        // Create log file with timestamp
+        String timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(now), ZoneId.systemDefault()).format(fileFormatter);
+        File logFile = new File(logsDir, "server_" + timestamp + ".log");
+        for (int i = 1; logFile.exists() && fileOpenedMillis != 0; i++) {
+            logFile = new File(logsDir, "server_" + timestamp + "_" + i + ".log");
+        }
+        try {
+            fileOut = new FileOutputStream(logFile, true);
+            fileBytes = logFile.length();
+            fileOpenedMillis = now;
+        } catch (IOException e) {
+            System.err.println("Error creating log file: " + e.getMessage());
+            fileOut = null;
+        }
+    }
+
+    private void closeFile() {
+        try {
+            if (fileOut != null) {
+                fileOut.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing log file: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package com.chatapp.server.log;
+
+public enum LogLevel {
+    // Per-message detail, including message bodies
+    DEBUG,
+    // Connections, presence and file transfers
+    INFO,
+    WARN,
+    ERROR
+}
@@ -0,0 +1,60 @@
+package com.chatapp.server.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded lock-free ring buffer for many producers and a single consumer.
+// Producers claim a slot with a CAS on the tail and publish it by writing the slot's
+// sequence number; the consumer only reads slots whose sequence says they are published.
+class LogRingBuffer<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    LogRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        published = new AtomicLongArray(size);
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            published.set(i, i - size);
+        }
+    }
+
+    // Returns false without blocking if the buffer is full
+    boolean offer(T item) {
+        long claimed;
+        do {
+            claimed = tail.get();
+            if (claimed - head >= slots.length()) {
+                return false;
+            }
+        } while (!tail.compareAndSet(claimed, claimed + 1));
+
+        int index = (int) (claimed & mask);
+        slots.lazySet(index, item);
+        published.set(index, claimed);
+        return true;
+    }
+
+    // Consumer only. True if the next slot hasn't been published yet.
+    boolean isEmpty() {
+        return published.get((int) (head & mask)) != head;
+    }
+
+    // Consumer only. Returns null if the next slot hasn't been published yet.
+    T poll() {
+        long next = head;
+        int index = (int) (next & mask);
+        if (published.get(index) != next) {
+            return null;
+        }
+        T item = slots.get(index);
+        slots.lazySet(index, null);
+        head = next + 1;
+        return item;
+    }
+}
@@ -0,0 +1,518 @@
+package com.chatapp.server.nio;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ClientConnection;
+import com.chatapp.server.FileUploads;
+import com.chatapp.server.OutboundQueue;
+import com.chatapp.server.OverflowPolicy;
+import com.chatapp.server.ServerConfig;
+import com.chatapp.server.protocol.CommandParser;
+import com.chatapp.server.protocol.FileHeader;
+import com.chatapp.server.protocol.FrameType;
+import com.chatapp.server.protocol.Frames;
+import com.chatapp.server.protocol.Handshake;
+import com.chatapp.server.protocol.OutboundMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A client connection served by a NioWorker. Reads and writes only happen on the worker's thread;
+// other threads hand over outbound data through the write queue.
+class NioConnection implements ClientConnection {
+    private static final int LEGACY_CHUNK_SIZE = 64 * 1024;
+    // The connection whose input the current I/O thread is handling, if any
+    private static final ThreadLocal<NioConnection> READING = new ThreadLocal<>();
+
+    // Data for another client that had no room for it, held by the client that sent it
+    private record Held(NioConnection receiver, ByteBuffer data, boolean bulk) {
+    }
+
+    private final ChatServer server;
+    private final NioWorker worker;
+    private final SocketChannel channel;
+    private final ByteBuffer readBuffer;
+    private final int batchMaxBytes;
+    private final OutboundQueue writeQueue;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+    private SelectionKey key;
+    private volatile String username;
+    private volatile boolean binary;
+    private boolean writePending;
+    // Batch currently being written; entries before pendingIndex are done
+    private final List<ByteBuffer> batch = new ArrayList<>();
+    private ByteBuffer[] pending = {};
+    private int pendingIndex;
+    // Set while a receiver's queue is full; reading resumes once it drains
+    private boolean readPaused;
+    // What this client sent that its receivers had no room for yet, in the order sent
+    private final ArrayDeque<Held> held = new ArrayDeque<>();
+
+    // Frame being decoded: the header first, then the payload. File chunk payloads go into
+    // a complete frame buffer that is relayed as is.
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(Frames.HEADER_SIZE);
+    private FrameType frameType;
+    private ByteBuffer framePayload;
+    private ByteBuffer textPayload = ByteBuffer.allocate(1024);
+    private final CommandParser parser = new CommandParser();
+
+    private final FileUploads uploads;
+    // Progress of a line-protocol FILE: upload
+    private long legacyOffset;
+    private long legacyRemaining;
+    // Chunk held back while its receiver is full
+    private FileUploads.Upload pendingUpload;
+    private ByteBuffer pendingChunk;
+
+    NioConnection(ChatServer server, NioWorker worker, SocketChannel channel, ServerConfig config) {
+        this.server = server;
+        this.worker = worker;
+        this.channel = channel;
+        this.readBuffer = ByteBuffer.allocateDirect(config.getReadBufferSize());
+        this.batchMaxBytes = config.getBatchMaxBytes();
+        this.writeQueue = new OutboundQueue(config);
+        this.overflowPolicy = config.getOverflowPolicy();
+        this.uploads = new FileUploads(server, this);
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void handleRead() throws IOException {
+        if (readingChunkDirectly()) {
+            // Once the read buffer is drained, the rest of a chunk is read straight into its frame
+            if (channel.read(framePayload) == -1) {
+                disconnect();
+            } else if (!framePayload.hasRemaining()) {
+                completeFrame();
+            }
+            return;
+        }
+
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            disconnect();
+            return;
+        }
+
+        readBuffer.flip();
+        processInput();
+        readBuffer.compact();
+    }
+
+    private boolean readingChunkDirectly() {
+        return frameType == FrameType.FILE_CHUNK && readBuffer.position() == 0;
+    }
+
+    private void processInput() {
+        READING.set(this);
+        try {
+            while (!readPaused && !closed.get() && readBuffer.hasRemaining()) {
+                if (binary) {
+                    readFrameBytes();
+                } else if (legacyRemaining > 0) {
+                    relayFileData();
+                } else {
+                    readLineBytes();
+                }
+            }
+        } finally {
+            READING.remove();
+        }
+    }
+
+    // Called on this worker once a receiver has room again
+    private void resumeReading() {
+        if (closed.get() || !readPaused) {
+            return;
+        }
+        readPaused = false;
+        if (!sendHeld()) {
+            return;
+        }
+        if (pendingChunk != null && !deliverChunk(pendingUpload, pendingChunk)) {
+            return;
+        }
+        readBuffer.flip();
+        processInput();
+        readBuffer.compact();
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (key.isValid()) {
+            key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writePending ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    // Consumes bytes up to and including the next newline, dispatching the line once complete
+    private void readLineBytes() {
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                String line = lineBuffer.toString(StandardCharsets.UTF_8);
+                lineBuffer.reset();
+                if (line.endsWith("\r")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                handleLine(line);
+                return;
+            }
+            lineBuffer.write(b);
+        }
+    }
+
+    private void handleLine(String line) {
+        if (username == null) {
+            // First message from client should be their username, or a HELLO to negotiate framing
+            Handshake hello = Handshake.parse(line);
+            if (hello != null && !hello.isSupported()) {
+                reject(hello.reply());
+                server.log("Rejected client with protocol version " + hello.version());
+                return;
+            }
+            String home = hello != null ? server.getCluster().redirectFor(hello.username()) : null;
+            if (home != null) {
+                reject(Handshake.redirect(home));
+                server.log("Redirected " + hello.username() + " to " + home);
+                return;
+            }
+            if (hello != null) {
+                writeQueue.put(ByteBuffer.wrap(hello.reply().getBytes(StandardCharsets.UTF_8)));
+                scheduleFlush();
+                binary = true;
+                username = hello.username();
+            } else {
+                username = line;
+            }
+            server.addClient(username, this);
+            server.log("User connected: " + username + (hello != null ? " (binary v" + hello.version() + ")" : ""));
+        } else if (line.startsWith("FILE:")) {
+            FileHeader header = FileHeader.parse(line.substring("FILE:".length()));
+            if (header != null) {
+                // The payload is always consumed, even if nobody receives it, so it is never
+                // mistaken for protocol lines
+                legacyOffset = 0;
+                legacyRemaining = header.size();
+            }
+            startFileTransfer(header);
+        } else {
+            server.handleMessage(this, line);
+        }
+    }
+
+    // Answers the handshake and closes the connection
+    private void reject(String reply) {
+        try {
+            // Nothing else is queued yet, and the short reply fits in the socket buffer
+            channel.write(ByteBuffer.wrap(reply.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            server.log("Error rejecting client: " + e.getMessage());
+        }
+        disconnect();
+    }
+
+    private void readFrameBytes() {
+        if (frameType == null) {
+            while (frameHeader.hasRemaining() && readBuffer.hasRemaining()) {
+                frameHeader.put(readBuffer.get());
+            }
+            if (frameHeader.hasRemaining()) {
+                return;
+            }
+            frameHeader.flip();
+            int code = frameHeader.get();
+            int length = frameHeader.getInt();
+            frameHeader.clear();
+            FrameType type = FrameType.fromCode(code);
+            if (type == null || !Frames.isValidLength(type, length)) {
+                server.log("Invalid frame from " + username + " (type " + code + ", length " + length + ")");
+                disconnect();
+                return;
+            }
+            frameType = type;
+            framePayload = type == FrameType.FILE_CHUNK ? Frames.allocateChunk(length) : textPayload(length);
+        }
+
+        int length = Math.min(readBuffer.remaining(), framePayload.remaining());
+        framePayload.put(readBuffer.slice().limit(length));
+        readBuffer.position(readBuffer.position() + length);
+        if (!framePayload.hasRemaining()) {
+            completeFrame();
+        }
+    }
+
+    // A buffer for a text frame's payload, with room for exactly length bytes
+    private ByteBuffer textPayload(int length) {
+        if (length > Frames.MAX_REUSED_PAYLOAD) {
+            return ByteBuffer.allocate(length);
+        }
+        if (length > textPayload.capacity()) {
+            textPayload = ByteBuffer.allocate(Frames.reusedPayloadCapacity(length));
+        }
+        return textPayload.clear().limit(length);
+    }
+
+    private void completeFrame() {
+        FrameType type = frameType;
+        ByteBuffer payload = framePayload;
+        frameType = null;
+        framePayload = null;
+
+        if (type == FrameType.FILE_CHUNK) {
+            relayChunk(payload.flip());
+            return;
+        }
+        payload.flip();
+        if (type == FrameType.FILE_START) {
+            startFileTransfer(FileHeader.parseWithId(new String(payload.array(), 0, payload.limit(), StandardCharsets.UTF_8)));
+        } else {
+            server.handleCommand(this, parser, payload);
+        }
+    }
+
+    private void startFileTransfer(FileHeader header) {
+        if (header == null) {
+            server.log("Invalid file header from " + username);
+            return;
+        }
+        FileUploads.Upload upload = uploads.start(header);
+        if (upload != null && !upload.isSpooled() && !upload.getReceiver().trySend(uploads.startMessage(upload), () -> {})) {
+            server.log("File transfer failed: receiver " + header.peer()
+                    + (upload.getReceiver().isClosed() ? " has disconnected" : " is not keeping up"));
+            uploads.discard(upload);
+        }
+    }
+
+    // Line protocol: raw file bytes are wrapped in chunk frames with transfer ID 0 as they arrive
+    private void relayFileData() {
+        int length = (int) Math.min(Math.min(readBuffer.remaining(), legacyRemaining), LEGACY_CHUNK_SIZE);
+        ByteBuffer frame = Frames.allocateChunk(0L, legacyOffset, length);
+        frame.put(readBuffer.slice().limit(length));
+        readBuffer.position(readBuffer.position() + length);
+        legacyOffset += length;
+        legacyRemaining -= length;
+        relayChunk(Frames.sealChunk(frame));
+    }
+
+    private void relayChunk(ByteBuffer frame) {
+        FileUploads.Upload upload = uploads.forChunk(frame);
+        if (upload != null && upload.isSpooled()) {
+            uploads.store(upload, frame);
+        } else if (upload != null) {
+            deliverChunk(upload, frame);
+        }
+    }
+
+    // Hands a chunk frame to the receiver. If the receiver is full, the frame is held and
+    // reading from this client stops until the receiver drains; returns false in that case.
+    // If the receiver has gone, the transfer is dropped and reading goes on.
+    private boolean deliverChunk(FileUploads.Upload upload, ByteBuffer frame) {
+        ClientConnection receiver = upload.getReceiver();
+        if (!receiver.trySend(OutboundMessage.fileChunk(frame), () -> worker.schedule(this::resumeReading))) {
+            if (receiver.isClosed()) {
+                server.log("File transfer failed: receiver " + receiver.getUsername() + " has disconnected");
+                pendingUpload = null;
+                pendingChunk = null;
+                uploads.discard(upload);
+                return true;
+            }
+            pendingUpload = upload;
+            pendingChunk = frame;
+            readPaused = true;
+            updateInterest();
+            return false;
+        }
+        pendingUpload = null;
+        pendingChunk = null;
+        uploads.relayed(upload, frame);
+        return true;
+    }
+
+    @Override
+    public void send(OutboundMessage message) {
+        ByteBuffer data = message.encode(binary).duplicate();
+        boolean bulk = isBulk(message);
+        boolean queued;
+        if (!NioWorker.isWorkerThread()) {
+            if (bulk) {
+                queued = writeQueue.putBulk(data);
+            } else {
+                queued = message.isDroppable() ? writeQueue.offer(data, true) : writeQueue.put(data);
+            }
+        } else if (!bulk && message.isDroppable() && overflowPolicy != OverflowPolicy.BLOCK) {
+            queued = writeQueue.offer(data, false);
+        } else {
+            // I/O threads must never wait on another client's queue. Instead, the client
+            // whose input is being handled holds what finds the queue full and stops being
+            // read until there is room, as a blocked sender would.
+            NioConnection sender = READING.get();
+            if (sender != null) {
+                if (!sender.held.isEmpty() || !tryQueue(data, bulk, sender)) {
+                    sender.holdBack(new Held(this, data, bulk));
+                }
+                return;
+            }
+            queued = bulk ? writeQueue.tryPutBulk(data, () -> {}) : writeQueue.tryPut(data, () -> {});
+        }
+        if (!queued) {
+            if (closed.get()) {
+                return;
+            }
+            server.log("Disconnecting slow client " + username + " (queue depth " + writeQueue.size() + ")");
+            disconnect();
+            return;
+        }
+        scheduleFlush();
+    }
+
+    // Queues data from a sender on an I/O thread. Returns false if there is no room; the
+    // sender is then resumed once there is. A closed connection takes nothing, but there is
+    // nothing to wait for either.
+    private boolean tryQueue(ByteBuffer data, boolean bulk, NioConnection sender) {
+        Runnable onSpace = () -> sender.worker.schedule(sender::resumeReading);
+        if (!(bulk ? writeQueue.tryPutBulk(data, onSpace) : writeQueue.tryPut(data, onSpace))) {
+            return closed.get();
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    // Stops reading after the current command until the receiver has room
+    private void holdBack(Held data) {
+        held.add(data);
+        readPaused = true;
+        updateInterest();
+    }
+
+    // Sends what was held back, in order. Returns false, paused again, if a receiver is
+    // still full.
+    private boolean sendHeld() {
+        Held next;
+        while ((next = held.peekFirst()) != null) {
+            if (!next.receiver().tryQueue(next.data(), next.bulk(), this)) {
+                readPaused = true;
+                updateInterest();
+                return false;
+            }
+            held.pollFirst();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean trySend(OutboundMessage message, Runnable onSpace) {
+        ByteBuffer data = message.encode(binary).duplicate();
+        if (!(isBulk(message) ? writeQueue.tryPutBulk(data, onSpace) : writeQueue.tryPut(data, onSpace))) {
+            return false;
+        }
+        scheduleFlush();
+        return true;
+    }
+
+    // Line-protocol clients need file bytes right behind their FILE: line, so only binary
+    // clients let chat overtake file chunks
+    private boolean isBulk(OutboundMessage message) {
+        return binary && message.isBulk();
+    }
+
+    private void scheduleFlush() {
+        if (!closed.get() && flushScheduled.compareAndSet(false, true)) {
+            worker.execute(this::flush);
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return writeQueue.size();
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        try {
+            handleWrite();
+        } catch (IOException e) {
+            server.log("Error sending to " + username + ": " + e.getMessage());
+            disconnect();
+        }
+    }
+
+    // Writes everything queued during this event-loop tick with gathering writes of up to
+    // batchMaxBytes each. If the socket fills up, OP_WRITE is armed and the selector calls
+    // back here once it drains.
+    void handleWrite() throws IOException {
+        if (closed.get() || key == null || !key.isValid()) {
+            return;
+        }
+
+        while (true) {
+            if (pendingIndex == pending.length) {
+                batch.clear();
+                writeQueue.pollBatch(batch, batchMaxBytes);
+                if (batch.isEmpty()) {
+                    writePending = false;
+                    updateInterest();
+                    return;
+                }
+                pending = batch.toArray(new ByteBuffer[0]);
+                pendingIndex = 0;
+            }
+
+            channel.write(pending, pendingIndex, pending.length - pendingIndex);
+            while (pendingIndex < pending.length && !pending[pendingIndex].hasRemaining()) {
+                pending[pendingIndex++] = null;
+            }
+            if (pendingIndex < pending.length) {
+                writePending = true;
+                updateInterest();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        writeQueue.close();
+        // Upload state belongs to the worker thread
+        worker.schedule(uploads::abortAll);
+        try {
+            if (username != null) {
+                server.removeClient(username, this);
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            server.log("Error disconnecting client " + username + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return binary;
+    }
+}
@@ -0,0 +1,59 @@
+package com.chatapp.server.nio;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ServerConfig;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+public class NioServer implements Closeable {
+    private final ChatServer server;
+    private final ServerSocketChannel serverChannel;
+    private final NioWorker[] workers;
+    private int nextWorker;
+    private volatile boolean running = true;
+
+    public NioServer(ChatServer server, ServerConfig config) throws IOException {
+        this.server = server;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(config.getPort()));
+
+        // One selector thread per core; each owns its connections for their whole lifetime
+        workers = new NioWorker[config.getIoThreads()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new NioWorker(server, config, "nio-worker-" + i);
+            workers[i].start();
+        }
+    }
+
+    // Accepts connections on the calling thread and hands them to the workers round-robin
+    public void run() throws IOException {
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            }
+            server.log("New client connected from: " + channel.socket().getInetAddress());
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            workers[nextWorker].register(channel);
+            nextWorker = (nextWorker + 1) % workers.length;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (NioWorker worker : workers) {
+            worker.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.chatapp.server.nio;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ServerConfig;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class NioWorker implements Runnable {
+    private static final ThreadLocal<Boolean> WORKER_THREAD = ThreadLocal.withInitial(() -> false);
+
+    private final ChatServer server;
+    private final ServerConfig config;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    NioWorker(ChatServer server, ServerConfig config, String name) throws IOException {
+        this.server = server;
+        this.config = config;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                NioConnection connection = new NioConnection(server, this, channel, config);
+                connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                server.log("Error registering client: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    // Runs the task on this worker's thread; selector state must only be touched from there
+    void execute(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+        } else {
+            schedule(task);
+        }
+    }
+
+    // Like execute, but always deferred to the next loop iteration, even on the worker itself
+    void schedule(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    static boolean isWorkerThread() {
+        return WORKER_THREAD.get();
+    }
+
+    @Override
+    public void run() {
+        WORKER_THREAD.set(true);
+        while (running) {
+            try {
+                selector.select();
+                runTasks();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.handleRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.handleWrite();
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        server.log("Error handling client " + connection.getUsername() + ": " + e.getMessage());
+                        connection.disconnect();
+                    }
+                }
+            } catch (IOException e) {
+                server.log("Selector error in " + thread.getName() + ": " + e.getMessage());
+            }
+        }
+        closeSelector();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                server.log("Error in " + thread.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void closeSelector() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            server.log("Error closing " + thread.getName() + ": " + e.getMessage());
+        }
+    }
+}
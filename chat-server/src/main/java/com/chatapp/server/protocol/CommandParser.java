@@ -0,0 +1,96 @@
+package com.chatapp.server.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Recognizes a binary client's text commands from the bytes of the frame, in the buffer the
+// connection read them into, without decoding the frame first. Whole commands and prefixes
+// are compared byte for byte, and the receiver of a chat message ends at the first ':',
+// which in UTF-8 never occurs inside another character. Nothing is allocated until the
+// caller asks for a part as a String. Not thread-safe; each connection keeps its own.
+public final class CommandParser {
+    public enum Command {
+        PRESENCE_SYNC,
+        REFRESH_USERS,
+        // "receiver:text"
+        CHAT,
+        // Anything else, to be handled as text
+        OTHER
+    }
+
+    private static final byte[] PRESENCE_SYNC = bytes("PRESENCE_SYNC");
+    private static final byte[] REFRESH_USERS = bytes("REFRESH_USERS");
+    // Commands ChatServer.handleMessage handles itself; they would otherwise look like chat
+    private static final byte[][] PREFIXES = {
+            bytes("FILE_RESUME:"), bytes("FILE_DONE:"), bytes("FILE_RETRY:"), bytes("HISTORY:"), bytes("SEARCH:"),
+            bytes("ROOM_JOIN:"), bytes("ROOM_LEAVE:"), bytes("ROOM:")};
+
+    private ByteBuffer payload;
+    private int separator;
+
+    // Classifies the payload between its position and limit, which are left as they are
+    public Command parse(ByteBuffer payload) {
+        this.payload = payload;
+        separator = -1;
+        if (matches(PRESENCE_SYNC, true)) {
+            return Command.PRESENCE_SYNC;
+        }
+        if (matches(REFRESH_USERS, true)) {
+            return Command.REFRESH_USERS;
+        }
+        for (byte[] prefix : PREFIXES) {
+            if (matches(prefix, false)) {
+                return Command.OTHER;
+            }
+        }
+        for (int i = payload.position(); i < payload.limit(); i++) {
+            if (payload.get(i) == ':') {
+                separator = i;
+                return Command.CHAT;
+            }
+        }
+        return Command.OTHER;
+    }
+
+    private boolean matches(byte[] expected, boolean whole) {
+        int start = payload.position();
+        int length = payload.limit() - start;
+        if (whole ? length != expected.length : length < expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (payload.get(start + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The receiver of the last CHAT command
+    public String receiver() {
+        return decode(payload.position(), separator);
+    }
+
+    // The text of the last CHAT command
+    public String text() {
+        return decode(separator + 1, payload.limit());
+    }
+
+    // The whole of the last command
+    public String decode() {
+        return decode(payload.position(), payload.limit());
+    }
+
+    private String decode(int from, int to) {
+        if (payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[to - from];
+        payload.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
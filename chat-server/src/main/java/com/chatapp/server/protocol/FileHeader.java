@@ -0,0 +1,55 @@
+package com.chatapp.server.protocol;
+
+// "transferId:peer:fileName:size:sha256" in a FILE_START frame, or "peer:fileName:size"
+// after FILE: on the line protocol, which has no transfer IDs (transferId is 0) or hashes
+// (hash is empty)
+public record FileHeader(long transferId, String peer, String fileName, long size, String hash) {
+    // Returns null if the header is malformed
+    public static FileHeader parse(String text) {
+        int first = text.indexOf(':');
+        int last = text.lastIndexOf(':');
+        if (first < 0 || last == first) {
+            return null;
+        }
+        long size = parseSize(text.substring(last + 1));
+        return size < 0 ? null : new FileHeader(0, text.substring(0, first), text.substring(first + 1, last), size, "");
+    }
+
+    public static FileHeader parseWithId(String text) {
+        int idEnd = text.indexOf(':');
+        int peerEnd = text.indexOf(':', idEnd + 1);
+        int hashStart = text.lastIndexOf(':');
+        int sizeStart = text.lastIndexOf(':', hashStart - 1);
+        if (idEnd < 0 || peerEnd < 0 || sizeStart <= peerEnd) {
+            return null;
+        }
+        long size = parseSize(text.substring(sizeStart + 1, hashStart));
+        try {
+            long transferId = Long.parseLong(text.substring(0, idEnd));
+            return size < 0 ? null : new FileHeader(transferId, text.substring(idEnd + 1, peerEnd),
+                    text.substring(peerEnd + 1, sizeStart), size, text.substring(hashStart + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static long parseSize(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public boolean isResumable() {
+        return !hash.isEmpty();
+    }
+
+    public String encode() {
+        return transferId + ":" + encodeLegacy() + ":" + hash;
+    }
+
+    public String encodeLegacy() {
+        return peer + ":" + fileName + ":" + size;
+    }
+}
@@ -0,0 +1,46 @@
+package com.chatapp.server.protocol;
+
+// Frame types of the binary protocol. Every frame is a type byte, a 4-byte big-endian
+// payload length and the payload. Text payloads are UTF-8 and use the same grammar as
+// the line protocol.
+public enum FrameType {
+    // "receiver:message" from a client, "sender:message" to a client
+    CHAT(1),
+    // REFRESH_USERS / PRESENCE_SYNC from a client; CLIENTS:, PRESENCE:, JOIN:, LEAVE: to a client
+    PRESENCE(2),
+    // "transferId:receiver:fileName:size:sha256" from a client, "transferId:sender:fileName:size:sha256" to a client
+    FILE_START(3),
+    // 8-byte transfer ID, 8-byte offset and 4-byte CRC32C, followed by raw bytes of that transfer
+    FILE_CHUNK(4),
+    // Other commands, e.g. file transfer acknowledgements, HISTORY requests and room joins
+    CONTROL(5),
+    // To a client: "peer:id:millis:sender:text" per message of a history page, then "peer:END:earlierId"
+    HISTORY(6),
+    // To a client: "peer:id:millis:sender:text" per search result, newest first, then "END"
+    SEARCH(7),
+    // To a client: "room:sender:message" for a message to a room it has joined
+    ROOM(8);
+
+    private static final FrameType[] BY_CODE = new FrameType[9];
+
+    static {
+        for (FrameType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final byte code;
+
+    FrameType(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    // Returns null for unknown codes
+    public static FrameType fromCode(int code) {
+        return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
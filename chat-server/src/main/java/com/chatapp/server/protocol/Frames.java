@@ -0,0 +1,92 @@
+package com.chatapp.server.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+public final class Frames {
+    public static final int HEADER_SIZE = 5;
+    // FILE_CHUNK payloads start with the 8-byte transfer ID, the 8-byte file offset of the
+    // data and a 4-byte CRC32C of the data
+    public static final int CHUNK_FIELDS_SIZE = 8 + 8 + 4;
+    public static final int CHUNK_HEADER_SIZE = HEADER_SIZE + CHUNK_FIELDS_SIZE;
+    private static final int OFFSET_POSITION = HEADER_SIZE + 8;
+    private static final int CRC_POSITION = HEADER_SIZE + 16;
+    public static final int MAX_TEXT_LENGTH = 1 << 20;
+    public static final int MAX_CHUNK_LENGTH = 1 << 20;
+    // Connections read text frames up to this size into a buffer they keep for the next one
+    public static final int MAX_REUSED_PAYLOAD = 64 * 1024;
+
+    private Frames() {
+    }
+
+    public static ByteBuffer encode(FrameType type, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        frame.put(type.getCode()).putInt(payload.length).put(payload).flip();
+        return frame;
+    }
+
+    // Allocates a whole FILE_CHUNK frame with its header written; the payload (transfer ID
+    // and data) is filled in from position HEADER_SIZE, so chunks can be read straight off
+    // the socket into it
+    public static ByteBuffer allocateChunk(int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        frame.put(FrameType.FILE_CHUNK.getCode()).putInt(payloadLength);
+        return frame;
+    }
+
+    // Same, with the transfer ID and offset written too; the data goes in from
+    // CHUNK_HEADER_SIZE, then sealChunk fills in the checksum
+    public static ByteBuffer allocateChunk(long transferId, long offset, int dataLength) {
+        return allocateChunk(CHUNK_FIELDS_SIZE + dataLength).putLong(transferId).putLong(offset).putInt(0);
+    }
+
+    // Flips a filled-in chunk for sending and writes its checksum
+    public static ByteBuffer sealChunk(ByteBuffer chunk) {
+        chunk.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(chunk.duplicate().position(CHUNK_HEADER_SIZE));
+        return chunk.putInt(CRC_POSITION, (int) crc.getValue());
+    }
+
+    // Checks the data against the checksum the sender wrote
+    public static boolean isChunkIntact(ByteBuffer chunk) {
+        CRC32C crc = new CRC32C();
+        crc.update(getChunkData(chunk));
+        return (int) crc.getValue() == chunk.getInt(chunk.position() + CRC_POSITION);
+    }
+
+    public static ByteBuffer getChunkData(ByteBuffer chunk) {
+        return chunk.duplicate().position(chunk.position() + CHUNK_HEADER_SIZE).slice();
+    }
+
+    public static long getTransferId(ByteBuffer chunk) {
+        return chunk.getLong(chunk.position() + HEADER_SIZE);
+    }
+
+    // Rewrites the transfer ID in place; the frame is otherwise relayed untouched
+    public static void setTransferId(ByteBuffer chunk, long transferId) {
+        chunk.putLong(chunk.position() + HEADER_SIZE, transferId);
+    }
+
+    public static long getChunkOffset(ByteBuffer chunk) {
+        return chunk.getLong(chunk.position() + OFFSET_POSITION);
+    }
+
+    public static int getChunkDataLength(ByteBuffer chunk) {
+        return chunk.remaining() - CHUNK_HEADER_SIZE;
+    }
+
+    // Size to grow a connection's reused text buffer to, for a frame of length bytes
+    public static int reusedPayloadCapacity(int length) {
+        return Math.min(Integer.highestOneBit(length - 1) << 1, MAX_REUSED_PAYLOAD);
+    }
+
+    public static boolean isValidLength(FrameType type, int length) {
+        if (type == FrameType.FILE_CHUNK) {
+            return length >= CHUNK_FIELDS_SIZE && length <= MAX_CHUNK_LENGTH;
+        }
+        return length >= 0 && length <= MAX_TEXT_LENGTH;
+    }
+}
@@ -0,0 +1,45 @@
+package com.chatapp.server.protocol;
+
+// Clients that support framing open with "HELLO:<version>:<username>" instead of a bare
+// username. The server answers "HELLO:<version>" with the version it picked and both
+// sides switch to frames; clients that send a bare username stay on the line protocol.
+// In a cluster, a HELLO for a user whose home is another node is answered with
+// "REDIRECT:<host>:<port>" and the connection is closed. A connected client can be sent
+// the same line as a CONTROL frame, asking it to reconnect there.
+public record Handshake(int version, String username) {
+    // Version 2 added transfer IDs to FILE_START and FILE_CHUNK; version 3 added content
+    // hashes, chunk offsets and checksums for resumable transfers
+    public static final int VERSION = 3;
+    public static final int MIN_VERSION = 3;
+    public static final String REDIRECT = "REDIRECT:";
+    private static final String PREFIX = "HELLO:";
+
+    // Returns null if the line is a plain username
+    public static Handshake parse(String line) {
+        if (!line.startsWith(PREFIX)) {
+            return null;
+        }
+        int separator = line.indexOf(':', PREFIX.length());
+        if (separator < 0) {
+            return null;
+        }
+        try {
+            int offered = Integer.parseInt(line.substring(PREFIX.length(), separator));
+            return new Handshake(Math.min(offered, VERSION), line.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public boolean isSupported() {
+        return version >= MIN_VERSION;
+    }
+
+    public String reply() {
+        return isSupported() ? PREFIX + version + "\n" : "ERROR:Unsupported protocol version " + version + "\n";
+    }
+
+    public static String redirect(String address) {
+        return REDIRECT + address + "\n";
+    }
+}
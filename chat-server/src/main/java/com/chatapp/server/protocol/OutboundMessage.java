@@ -0,0 +1,150 @@
+package com.chatapp.server.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// A message to one or many clients. It is encoded at most once per protocol, however many
+// clients it goes to, and the encodings are shared read-only buffers; connections queue a
+// duplicate() so they each get their own position.
+public final class OutboundMessage {
+    private final FrameType type;
+    private final List<String> lines;
+    // Line-protocol form, where it differs from the frame payloads
+    private final List<String> textLines;
+    private final ByteBuffer chunkFrame;
+    private volatile ByteBuffer textEncoding;
+    private volatile ByteBuffer frameEncoding;
+
+    private OutboundMessage(FrameType type, List<String> lines, ByteBuffer chunkFrame) {
+        this(type, lines, lines, chunkFrame);
+    }
+
+    private OutboundMessage(FrameType type, List<String> lines, List<String> textLines, ByteBuffer chunkFrame) {
+        this.type = type;
+        this.lines = lines;
+        this.textLines = textLines;
+        this.chunkFrame = chunkFrame;
+    }
+
+    public static OutboundMessage chat(String line) {
+        return new OutboundMessage(FrameType.CHAT, List.of(line), null);
+    }
+
+    public static OutboundMessage presence(String... lines) {
+        return new OutboundMessage(FrameType.PRESENCE, List.of(lines), null);
+    }
+
+    public static OutboundMessage presence(List<String> lines) {
+        return new OutboundMessage(FrameType.PRESENCE, List.copyOf(lines), null);
+    }
+
+    public static OutboundMessage control(String line) {
+        return new OutboundMessage(FrameType.CONTROL, List.of(line), null);
+    }
+
+    // A page of history, one frame per line; line-protocol clients get each line prefixed with HISTORY:
+    public static OutboundMessage history(List<String> lines) {
+        return prefixed(FrameType.HISTORY, lines);
+    }
+
+    public static OutboundMessage search(List<String> lines) {
+        return prefixed(FrameType.SEARCH, lines);
+    }
+
+    // A message to a group room; line-protocol clients get it prefixed with ROOM:
+    public static OutboundMessage room(String room, String sender, String text) {
+        return prefixed(FrameType.ROOM, List.of(room + ":" + sender + ":" + text));
+    }
+
+    private static OutboundMessage prefixed(FrameType type, List<String> lines) {
+        return new OutboundMessage(type, List.copyOf(lines), lines.stream().map(line -> type + ":" + line).toList(), null);
+    }
+
+    public static OutboundMessage fileStart(FileHeader header) {
+        return new OutboundMessage(FrameType.FILE_START, List.of(header.encode()),
+                List.of("FILE:" + header.encodeLegacy()), null);
+    }
+
+    // Tells a receiver that a transfer's sender went away before finishing it
+    public static OutboundMessage fileAbort(long transferId) {
+        return control("FILE_ABORT:" + transferId);
+    }
+
+    // Wraps a complete FILE_CHUNK frame as received from the sender; it is relayed as is
+    public static OutboundMessage fileChunk(ByteBuffer frame) {
+        return new OutboundMessage(FrameType.FILE_CHUNK, null, frame.asReadOnlyBuffer());
+    }
+
+    // Rebuilds a message that another cluster node forwarded, from the parts below
+    public static OutboundMessage forwarded(FrameType type, List<String> lines, List<String> textLines) {
+        return new OutboundMessage(type, List.copyOf(lines), List.copyOf(textLines), null);
+    }
+
+    public FrameType getType() {
+        return type;
+    }
+
+    // Frame payloads; null for file chunks
+    public List<String> getLines() {
+        return lines;
+    }
+
+    public List<String> getTextLines() {
+        return textLines;
+    }
+
+    // Chat, room messages and presence can be dropped by the overflow policy; file data,
+    // history pages and search results, which the client waits for, never are
+    public boolean isDroppable() {
+        return type == FrameType.CHAT || type == FrameType.ROOM || type == FrameType.PRESENCE;
+    }
+
+    // File chunks are queued behind everything else so they never hold up chat
+    public boolean isBulk() {
+        return type == FrameType.FILE_CHUNK;
+    }
+
+    public ByteBuffer encode(boolean binary) {
+        if (type == FrameType.FILE_CHUNK) {
+            // Line-protocol clients get the bare file bytes
+            return binary ? chunkFrame : chunkFrame.duplicate().position(Frames.CHUNK_HEADER_SIZE).slice();
+        }
+        // Racing threads may both encode; either result is fine
+        ByteBuffer encoded = binary ? frameEncoding : textEncoding;
+        if (encoded == null) {
+            encoded = binary ? encodeFrames() : encodeLines();
+            if (binary) {
+                frameEncoding = encoded;
+            } else {
+                textEncoding = encoded;
+            }
+        }
+        return encoded;
+    }
+
+    private ByteBuffer encodeLines() {
+        StringBuilder text = new StringBuilder();
+        for (String line : textLines) {
+            text.append(line).append('\n');
+        }
+        return ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    private ByteBuffer encodeFrames() {
+        if (lines.size() == 1) {
+            return Frames.encode(type, lines.get(0)).asReadOnlyBuffer();
+        }
+        ByteBuffer[] frames = new ByteBuffer[lines.size()];
+        int size = 0;
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = Frames.encode(type, lines.get(i));
+            size += frames[i].remaining();
+        }
+        ByteBuffer encoded = ByteBuffer.allocate(size);
+        for (ByteBuffer frame : frames) {
+            encoded.put(frame);
+        }
+        return encoded.flip().asReadOnlyBuffer();
+    }
+}
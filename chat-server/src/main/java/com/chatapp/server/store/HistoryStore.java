@@ -0,0 +1,557 @@
+package com.chatapp.server.store;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ServerConfig;
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+// Chat history, one directory per conversation (the sorted pair of usernames). Messages in a
+// conversation are numbered from 1 and appended to segment files of up to
+// chat.history.segmentBytes. Next to each segment is a sparse index with the ID and position
+// of about one record per 4 KB page. Both are read through memory maps, so fetching a page of
+// scrollback touches the index entries and log pages it needs and nothing else; no
+// conversation is ever loaded into the heap. The segment being appended to is mapped at its
+// full size once, with the file extended to match, so reads after every append don't remap
+// it; the file is cut back to what was written when the segment fills up or is closed.
+//
+// Messages are appended by a writer thread, so the I/O threads that receive them never wait
+// for a file. Writes go to the page cache without an fsync: the message store is what makes
+// messages durable, and a record lost from here only leaves a gap in scrollback.
+//
+// Up to chat.history.maxOpenConversations conversations keep their files open. Each has its
+// own lock, and finding an open one takes no lock shared with other conversations.
+public final class HistoryStore {
+    // Record: payload length, CRC32C of the payload, then the payload: ID, timestamp, sender
+    // length and sender, then the message text
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    private static final int PAYLOAD_FIELDS_SIZE = 8 + 8 + 2;
+    // Index entry: ID and log position of a record
+    private static final int INDEX_ENTRY_SIZE = 8 + 8;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int MAX_SENDER_BYTES = 0xffff;
+    public static final int MAX_PAGE_SIZE = 200;
+
+    public record Entry(long id, long millis, String sender, String text) {
+    }
+
+    private record Pending(String sender, String receiver, String text, long millis, LongConsumer onStored) {
+    }
+
+    private static final class Segment {
+        private final long firstId;
+        private final String name;
+        private final FileChannel log;
+        private final FileChannel index;
+        private long size;
+        private long indexSize;
+        private long lastId;
+        private long nextIndexPosition;
+        // Bytes mapped for reading: the segment size while it is appended to, its length after
+        private long capacity;
+        private MappedByteBuffer logMap;
+        private MappedByteBuffer indexMap;
+
+        private Segment(long firstId, String name, FileChannel log, FileChannel index) {
+            this.firstId = firstId;
+            this.name = name;
+            this.log = log;
+            this.index = index;
+            this.lastId = firstId - 1;
+        }
+
+        // The log up to its current size. The first read maps the whole capacity, which
+        // extends the file; only a record larger than a segment makes it map again.
+        private ByteBuffer logView() throws IOException {
+            if (logMap == null || logMap.capacity() < size) {
+                logMap = log.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(size, capacity));
+            }
+            return logMap.duplicate().limit((int) size);
+        }
+
+        private ByteBuffer indexView() throws IOException {
+            if (indexMap == null || indexMap.capacity() < indexSize) {
+                // At most one entry per interval of the log, plus the first
+                long entries = Math.max(size, capacity) / INDEX_INTERVAL_BYTES + 2;
+                indexMap = index.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(indexSize, entries * INDEX_ENTRY_SIZE));
+            }
+            return indexMap.duplicate().limit((int) indexSize);
+        }
+
+        // Position of the last indexed record with an ID of at most id
+        private long floorPosition(long id) throws IOException {
+            ByteBuffer entries = indexView();
+            int low = 0;
+            int high = (int) (indexSize / INDEX_ENTRY_SIZE) - 1;
+            long position = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (entries.getLong(middle * INDEX_ENTRY_SIZE) <= id) {
+                    position = entries.getLong(middle * INDEX_ENTRY_SIZE + 8);
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return position;
+        }
+
+        // Cuts the files back to what was written once nothing more will be appended
+        private void seal() throws IOException {
+            capacity = size;
+            if (log.size() > size) {
+                log.truncate(size);
+            }
+            if (index.size() > indexSize) {
+                index.truncate(indexSize);
+            }
+        }
+
+        private void close() {
+            try {
+                seal();
+                log.close();
+                index.close();
+            } catch (IOException e) {
+                // Nothing buffered; recovery drops the unused space
+            }
+        }
+    }
+
+    // Everything in it is guarded by its lock, which is a ReentrantLock rather than a monitor
+    // so that a virtual thread reading history doesn't pin its carrier during file I/O
+    private static final class Conversation {
+        private final File dir;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<Segment> segments = new ArrayList<>();
+        private long lastId;
+        private boolean loaded;
+        private boolean closed;
+        // For choosing which conversations to close; written without the lock
+        private volatile long lastUsed;
+
+        private Conversation(File dir) {
+            this.dir = dir;
+        }
+
+        private Segment active() {
+            return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        }
+
+        // The segment holding id, or null if it is older than the oldest segment
+        private Segment segmentFor(long id) {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                if (segments.get(i).firstId <= id) {
+                    return segments.get(i);
+                }
+            }
+            return null;
+        }
+
+        private void close() {
+            closed = true;
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        }
+    }
+
+    private final ChatServer server;
+    private final File dir;
+    private final long segmentBytes;
+    private final int maxOpenConversations;
+    private final Map<String, Conversation> open = new ConcurrentHashMap<>();
+    // Held by whichever thread is closing the least recently used conversations
+    private final ReentrantLock evicting = new ReentrantLock();
+    private final Thread writer;
+
+    // Guarded by this
+    private final List<Pending> queue = new ArrayList<>();
+    private long queued;
+    private long written;
+    private boolean running = true;
+
+    public HistoryStore(ChatServer server, ServerConfig config) {
+        this.server = server;
+        this.dir = new File(config.getHistoryDir());
+        this.segmentBytes = config.getHistorySegmentBytes();
+        this.maxOpenConversations = Math.max(1, config.getHistoryMaxOpenConversations());
+        dir.mkdirs();
+
+        writer = new Thread(this::writeLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Queues a message for the writer thread, which passes its ID in the conversation to
+    // onStored once it is written. A message that can't be stored is logged and skipped.
+    public void append(String sender, String receiver, String text, LongConsumer onStored) {
+        Pending pending = new Pending(sender, receiver, text, System.currentTimeMillis(), onStored);
+        synchronized (this) {
+            queue.add(pending);
+            queued++;
+            if (queue.size() == 1) {
+                notifyAll();
+            }
+        }
+    }
+
+    // Waits until everything appended so far is written
+    synchronized void flush() throws InterruptedException {
+        long target = queued;
+        while (written < target && running) {
+            wait();
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                while (queue.isEmpty() && running) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                batch.addAll(queue);
+                queue.clear();
+            }
+            for (Pending pending : batch) {
+                long id = write(pending);
+                if (id > 0) {
+                    pending.onStored().accept(id);
+                }
+            }
+            synchronized (this) {
+                written += batch.size();
+                notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    // Returns the message's ID in its conversation, or 0 if it could not be stored
+    private long write(Pending pending) {
+        byte[] from = pending.sender().getBytes(StandardCharsets.UTF_8);
+        if (from.length > MAX_SENDER_BYTES) {
+            return 0;
+        }
+        byte[] body = pending.text().getBytes(StandardCharsets.UTF_8);
+        while (true) {
+            Conversation conversation = conversation(pending.sender(), pending.receiver());
+            conversation.lock.lock();
+            try {
+                if (conversation.closed) {
+                    continue;
+                }
+                load(conversation);
+                return append(conversation, pending.millis(), from, body);
+            } catch (IOException e) {
+                server.log("History: cannot write to " + conversation.dir.getName() + ": " + e.getMessage());
+                return 0;
+            } finally {
+                conversation.lock.unlock();
+            }
+        }
+    }
+
+    private long append(Conversation conversation, long millis, byte[] sender, byte[] text) throws IOException {
+        long id = conversation.lastId + 1;
+        int payload = PAYLOAD_FIELDS_SIZE + sender.length + text.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload);
+        record.putInt(payload).putInt(0).putLong(id).putLong(millis)
+                .putShort((short) sender.length).put(sender).put(text).flip();
+        CRC32C crc = new CRC32C();
+        crc.update(record.duplicate().position(RECORD_HEADER_SIZE));
+        record.putInt(4, (int) crc.getValue());
+
+        Segment segment = conversation.active();
+        if (segment == null || (segment.size > 0 && segment.size + record.remaining() > segmentBytes)) {
+            if (segment != null) {
+                segment.seal();
+            }
+            conversation.dir.mkdirs();
+            segment = openSegment(conversation.dir, id, true);
+            segment.capacity = segmentBytes;
+            conversation.segments.add(segment);
+        }
+        long position = segment.size;
+        writeFully(segment.log, record, position);
+        if (position >= segment.nextIndexPosition) {
+            addIndexEntry(segment, id, position);
+        }
+        segment.size = position + RECORD_HEADER_SIZE + payload;
+        segment.lastId = id;
+        conversation.lastId = id;
+        return id;
+    }
+
+    private static void addIndexEntry(Segment segment, long id, long position) throws IOException {
+        writeFully(segment.index, ByteBuffer.allocate(INDEX_ENTRY_SIZE).putLong(id).putLong(position).flip(), segment.indexSize);
+        segment.indexSize += INDEX_ENTRY_SIZE;
+        segment.nextIndexPosition = position + INDEX_INTERVAL_BYTES;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // Up to limit messages of the conversation between user and peer with IDs below beforeId,
+    // oldest first; a beforeId of 0 reads the newest messages
+    public List<Entry> read(String user, String peer, long beforeId, int limit) {
+        limit = Math.min(limit, MAX_PAGE_SIZE);
+        while (true) {
+            Conversation conversation = conversation(user, peer);
+            conversation.lock.lock();
+            try {
+                if (conversation.closed) {
+                    continue;
+                }
+                load(conversation);
+                long end = beforeId <= 0 ? conversation.lastId + 1 : Math.min(beforeId, conversation.lastId + 1);
+                long start = Math.max(1, end - limit);
+                List<Entry> entries = new ArrayList<>();
+                try {
+                    read(conversation, start, end, entries);
+                } catch (IOException e) {
+                    server.log("History: cannot read " + conversation.dir.getName() + ": " + e.getMessage());
+                }
+                return entries;
+            } finally {
+                conversation.lock.unlock();
+            }
+        }
+    }
+
+    // One message, or null if the conversation has no message with that ID
+    public Entry get(String user, String peer, long id) {
+        List<Entry> entries = read(user, peer, id + 1, 1);
+        return entries.isEmpty() || entries.get(0).id() != id ? null : entries.get(0);
+    }
+
+    // Reads IDs start (inclusive) to end (exclusive), from the indexed record nearest below start
+    private static void read(Conversation conversation, long start, long end, List<Entry> entries) throws IOException {
+        if (start >= end) {
+            return;
+        }
+        Segment first = conversation.segmentFor(start);
+        if (first == null) {
+            first = conversation.segments.get(0);
+        }
+        long position = first.floorPosition(start);
+        for (int i = conversation.segments.indexOf(first); i < conversation.segments.size(); i++) {
+            ByteBuffer log = conversation.segments.get(i).logView();
+            log.position((int) position);
+            while (log.remaining() >= RECORD_HEADER_SIZE) {
+                int length = log.getInt();
+                log.getInt();
+                long id = log.getLong();
+                if (id >= end) {
+                    return;
+                }
+                long millis = log.getLong();
+                int senderLength = log.getShort() & 0xffff;
+                int next = log.position() - PAYLOAD_FIELDS_SIZE + length;
+                if (id >= start) {
+                    String sender = StandardCharsets.UTF_8.decode(log.slice(log.position(), senderLength)).toString();
+                    String text = StandardCharsets.UTF_8.decode(log.slice(log.position() + senderLength,
+                            length - PAYLOAD_FIELDS_SIZE - senderLength)).toString();
+                    entries.add(new Entry(id, millis, sender, text));
+                }
+                log.position(next);
+            }
+            position = 0;
+        }
+    }
+
+    // The open conversation between two users. A new one is loaded by whoever first takes its
+    // lock, so opening files never holds up lookups of other conversations.
+    private Conversation conversation(String first, String second) {
+        String key = conversationKey(first, second);
+        Conversation conversation = open.get(key);
+        if (conversation == null) {
+            conversation = open.computeIfAbsent(key, name -> new Conversation(new File(dir, name)));
+            if (open.size() > maxOpenConversations) {
+                closeLeastRecentlyUsed();
+            }
+        }
+        conversation.lastUsed = System.nanoTime();
+        return conversation;
+    }
+
+    // Closes the least recently used eighth of the open conversations, so the scan is paid
+    // once per many new conversations. A thread that finds a closed one looks it up again.
+    private void closeLeastRecentlyUsed() {
+        if (!evicting.tryLock()) {
+            return;
+        }
+        try {
+            List<Map.Entry<String, Conversation>> entries = new ArrayList<>(open.entrySet());
+            int excess = entries.size() - maxOpenConversations + maxOpenConversations / 8;
+            if (excess <= 0) {
+                return;
+            }
+            entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsed));
+            for (Map.Entry<String, Conversation> entry : entries.subList(0, Math.min(excess, entries.size()))) {
+                Conversation conversation = entry.getValue();
+                if (open.remove(entry.getKey(), conversation)) {
+                    conversation.lock.lock();
+                    try {
+                        conversation.close();
+                    } finally {
+                        conversation.lock.unlock();
+                    }
+                }
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    // "<user1>,<user2>" in sorted order. Usernames may hold anything but ':', so they are
+    // escaped for use in a directory name.
+    static String conversationKey(String first, String second) {
+        if (first.compareTo(second) > 0) {
+            return conversationKey(second, first);
+        }
+        return URLEncoder.encode(first, StandardCharsets.UTF_8) + "," + URLEncoder.encode(second, StandardCharsets.UTF_8);
+    }
+
+    // Opens the conversation's segments the first time it is used; called with its lock held
+    private void load(Conversation conversation) {
+        if (conversation.loaded) {
+            return;
+        }
+        conversation.loaded = true;
+        File[] files = conversation.dir.listFiles((d, name) -> name.endsWith(".log"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            try {
+                Segment segment = openSegment(conversation.dir, Long.parseLong(name.substring(0, name.length() - 4)), false);
+                recover(segment);
+                conversation.segments.add(segment);
+                conversation.lastId = segment.lastId;
+            } catch (IOException | NumberFormatException e) {
+                server.log("History: skipping " + files[i] + ": " + e.getMessage());
+            }
+        }
+        Segment active = conversation.active();
+        if (active != null) {
+            active.capacity = Math.max(active.size, segmentBytes);
+        }
+    }
+
+    private static Segment openSegment(File conversationDir, long firstId, boolean create) throws IOException {
+        String name = String.format("%020d", firstId);
+        StandardOpenOption[] options = create
+                ? new StandardOpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[] {StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE};
+        FileChannel log = FileChannel.open(new File(conversationDir, name + ".log").toPath(), options);
+        FileChannel index = FileChannel.open(new File(conversationDir, name + ".idx").toPath(), options);
+        return new Segment(firstId, conversationDir.getName() + "/" + name, log, index);
+    }
+
+    // Finds the end of the log by scanning on from its last index entry, which is dropped and
+    // re-added along with any the index missed. A record that is cut short or fails its
+    // checksum is a torn write: the log is truncated there. Zeros after the last record are
+    // the unused part of a segment that was mapped at full size, and are cut off quietly.
+    private void recover(Segment segment) throws IOException {
+        long logSize = segment.log.size();
+        long indexSize = segment.index.size() / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE;
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        long position = 0;
+        long id = segment.firstId;
+        while (indexSize > 0) {
+            indexSize -= INDEX_ENTRY_SIZE;
+            entry.clear();
+            segment.index.read(entry, indexSize);
+            if (entry.getLong(0) >= segment.firstId && entry.getLong(8) < logSize) {
+                id = entry.getLong(0);
+                position = entry.getLong(8);
+                break;
+            }
+        }
+        segment.index.truncate(indexSize);
+        segment.indexSize = indexSize;
+        if (indexSize > 0) {
+            entry.clear();
+            segment.index.read(entry, indexSize - INDEX_ENTRY_SIZE);
+            segment.nextIndexPosition = entry.getLong(8) + INDEX_INTERVAL_BYTES;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        boolean unused = false;
+        while (position + RECORD_HEADER_SIZE <= logSize) {
+            header.clear();
+            segment.log.read(header, position);
+            int length = header.getInt(0);
+            unused = length == 0 && header.getInt(4) == 0;
+            if (length < PAYLOAD_FIELDS_SIZE || position + RECORD_HEADER_SIZE + length > logSize) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            while (payload.hasRemaining() && segment.log.read(payload, position + RECORD_HEADER_SIZE + payload.position()) > 0) {
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(payload.flip());
+            if ((int) crc.getValue() != header.getInt(4) || payload.getLong(0) != id) {
+                break;
+            }
+            if (position >= segment.nextIndexPosition) {
+                addIndexEntry(segment, id, position);
+            }
+            segment.lastId = id++;
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if (position < logSize) {
+            if (!unused) {
+                server.log("History: truncating " + segment.name + " at " + position + " (torn write)");
+            }
+            segment.log.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    // Writes whatever is queued, then closes every conversation
+    public void close() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Conversation conversation : open.values()) {
+            conversation.lock.lock();
+            try {
+                conversation.close();
+            } finally {
+                conversation.lock.unlock();
+            }
+        }
+        open.clear();
+    }
+}
@@ -0,0 +1,895 @@
+package com.chatapp.server.store;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ClientConnection;
+import com.chatapp.server.ServerConfig;
+import com.chatapp.server.protocol.OutboundMessage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// Durable, append-only log of private messages, kept in segment files of up to
+// chat.store.segmentBytes. Callers encode their record and hand it to a committer thread,
+// which writes everything waiting with one gathering write and one fsync (group commit), so
+// a burst of messages costs one disk flush rather than one each.
+//
+// Every recipient has a delivery cursor: the sequence number of the last message handed to
+// its connection. Messages for a recipient that is offline, or still receiving older
+// messages, are held in its mailbox and sent in order once it connects. Cursors are saved
+// about once a second, so after a crash the last second of deliveries may be repeated, but
+// nothing committed is lost.
+//
+// A mailbox holds at most chat.store.mailboxMaxMessages messages, none older than
+// chat.store.maxAgeMinutes; older ones are dropped, so mail for a user who never connects
+// doesn't stay on disk for good. A segment is deleted once none of its messages is waiting.
+// One that is mostly delivered has its few waiting messages copied to the newest segment
+// first, so they keep their sequence numbers but no longer hold the whole file.
+public final class MessageStore {
+    // Record: payload length, CRC32C of the payload, then the payload: sequence number,
+    // timestamp, recipient length and recipient, then the message line
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    private static final int MAX_RECIPIENT_BYTES = 0xffff;
+    private static final long CURSOR_SAVE_INTERVAL_MILLIS = 1000;
+    // An old segment is compacted once waiting messages are less than this share of it
+    private static final int COMPACT_LIVE_DIVISOR = 4;
+    // A message that can't be read is tried this many times, with growing pauses, before it
+    // is moved to the quarantine file so the messages behind it can go out
+    static final int MAX_READ_ATTEMPTS = 5;
+    static final long READ_RETRY_MILLIS = 100;
+
+    // A message waiting to be committed. Its connection may still be taking it when it is
+    // committed, so whether it was delivered, and where it went if not, are settled under
+    // the store's lock by whichever of append and commit comes second.
+    private static final class Record {
+        private final long seq;
+        private final long millis;
+        private final String recipient;
+        private final ByteBuffer data;
+        private boolean delivered;
+        private Location stored;
+
+        private Record(long seq, long millis, String recipient, ByteBuffer data) {
+            this.seq = seq;
+            this.millis = millis;
+            this.recipient = recipient;
+            this.data = data;
+        }
+    }
+
+    // Where a committed record is. Compaction may move it to another segment, so segment
+    // and position are guarded by the store; data is set instead of segment for a record
+    // that could not be written and is only held in memory.
+    private static final class Location {
+        private final long seq;
+        private final long millis;
+        private final int length;
+        private final ByteBuffer data;
+        private Segment segment;
+        private long position;
+        // Still in its mailbox
+        private boolean waiting;
+
+        private Location(long seq, long millis, Segment segment, long position, int length, ByteBuffer data) {
+            this.seq = seq;
+            this.millis = millis;
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.data = data;
+        }
+    }
+
+    private static final class Segment {
+        private final long firstSeq;
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+        // Lowest sequence number written to it; compaction copies older records forward
+        private long minSeq = Long.MAX_VALUE;
+        // Records in it that are still waiting in a mailbox
+        private int live;
+        private long liveBytes;
+
+        private Segment(long firstSeq, File file, FileChannel channel, long size) {
+            this.firstSeq = firstSeq;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    // Undelivered messages for one recipient
+    private static final class Mailbox {
+        private long cursor;
+        // Committed, in sequence order
+        private final ArrayDeque<Location> stored = new ArrayDeque<>();
+        // Appended but not committed yet
+        private int unstored;
+        // Connection the mailbox is being emptied into
+        private ClientConnection draining;
+        // Set while append hands its message straight to the connection; draining waits
+        private boolean sending;
+        // Failed reads of the first stored message
+        private int readFailures;
+
+        private boolean isEmpty() {
+            return stored.isEmpty() && unstored == 0;
+        }
+    }
+
+    private final ChatServer server;
+    private final File dir;
+    private final File cursorFile;
+    private final File quarantineFile;
+    private final long segmentBytes;
+    private final boolean fsync;
+    private final long maxAgeMillis;
+    private final int mailboxMaxMessages;
+    private final Thread committer;
+    private final ScheduledExecutorService delivery;
+
+    // Guarded by this
+    private final List<Record> queue = new ArrayList<>();
+    private final Map<String, Mailbox> mailboxes = new HashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private long lastSeq;
+    private boolean committerWaiting;
+    private boolean cursorsChanged;
+    private int dropped;
+    private volatile boolean running = true;
+
+    // Only touched on the committer thread
+    private long cursorsSavedMillis;
+
+    public MessageStore(ChatServer server, ServerConfig config) {
+        this.server = server;
+        this.dir = new File(config.getStoreDir());
+        this.cursorFile = new File(dir, "cursors");
+        this.quarantineFile = new File(dir, "quarantine");
+        this.segmentBytes = config.getStoreSegmentBytes();
+        this.fsync = config.isStoreFsync();
+        this.maxAgeMillis = TimeUnit.MINUTES.toMillis(config.getStoreMaxAgeMinutes());
+        this.mailboxMaxMessages = Math.max(1, config.getStoreMailboxMaxMessages());
+        dir.mkdirs();
+        recover();
+
+        this.delivery = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "message-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer = new Thread(this::commitLoop, "message-store");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    // Records a private message and, if the recipient is online with nothing waiting, hands
+    // it to the recipient's connection. Returns true if the connection took it; otherwise it
+    // is kept until deliver() is called for the recipient's connection, which happens by
+    // itself once a full queue has room again.
+    //
+    // The connection is handed the message outside the store's lock, so senders only hold
+    // it to number and queue their records. Meanwhile the mailbox is marked as draining into
+    // that connection, so later messages for the recipient wait behind this one, and drain
+    // leaves it alone until the send is settled.
+    public boolean append(String recipient, String line, ClientConnection online) {
+        byte[] to = recipient.getBytes(StandardCharsets.UTF_8);
+        if (to.length > MAX_RECIPIENT_BYTES) {
+            return online != null && online.trySend(OutboundMessage.chat(line), () -> {});
+        }
+        byte[] text = line.getBytes(StandardCharsets.UTF_8);
+        long millis = System.currentTimeMillis();
+        Record record;
+        Mailbox mailbox;
+        boolean direct;
+        synchronized (this) {
+            long seq = ++lastSeq;
+            mailbox = mailboxes.computeIfAbsent(recipient, name -> new Mailbox());
+            // Anything still waiting for the recipient goes first
+            direct = online != null && mailbox.isEmpty() && mailbox.draining == null;
+            if (direct) {
+                mailbox.draining = online;
+                mailbox.sending = true;
+            }
+            mailbox.unstored++;
+            record = new Record(seq, millis, recipient, encode(seq, millis, to, text));
+            queue.add(record);
+            if (committerWaiting) {
+                notifyAll();
+            }
+        }
+        if (!direct) {
+            return false;
+        }
+
+        boolean delivered = online.trySend(OutboundMessage.chat(line), () -> deliverLater(online));
+        synchronized (this) {
+            // The cursor only moves once the connection has accepted the message
+            if (delivered) {
+                if (record.stored == null) {
+                    record.delivered = true;
+                    mailbox.unstored--;
+                } else if (mailbox.stored.remove(record.stored)) {
+                    // Committed while it was sent
+                    unlink(record.stored);
+                }
+                mailbox.cursor = Math.max(mailbox.cursor, record.seq);
+                cursorsChanged = true;
+            }
+            mailbox.sending = false;
+            if (mailbox.draining != null) {
+                if (mailbox.isEmpty()) {
+                    mailbox.draining = null;
+                } else {
+                    // Messages that came meanwhile, or this one if the connection was full
+                    drainLater(mailbox, mailbox.draining);
+                }
+            }
+        }
+        return delivered;
+    }
+
+    private static ByteBuffer encode(long seq, long millis, byte[] recipient, byte[] line) {
+        int payload = 8 + 8 + 2 + recipient.length + line.length;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload);
+        record.putInt(payload).putInt(0).putLong(seq).putLong(millis)
+                .putShort((short) recipient.length).put(recipient).put(line).flip();
+        CRC32C crc = new CRC32C();
+        crc.update(record.duplicate().position(RECORD_HEADER_SIZE));
+        return record.putInt(4, (int) crc.getValue());
+    }
+
+    // Starts sending a connected client the messages kept for it, in order
+    public synchronized void deliver(ClientConnection client) {
+        Mailbox mailbox = mailboxes.get(client.getUsername());
+        if (mailbox == null || mailbox.isEmpty() || mailbox.draining == client) {
+            return;
+        }
+        mailbox.draining = client;
+        drainLater(mailbox, client);
+    }
+
+    // For callbacks from a connection's writer, which must not wait for the store's lock
+    private void deliverLater(ClientConnection client) {
+        try {
+            delivery.execute(() -> deliver(client));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    private void drainLater(Mailbox mailbox, ClientConnection client) {
+        try {
+            delivery.execute(() -> drain(mailbox, client));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    // Runs on the delivery thread. Stops when the client's queue is full and continues once
+    // it has room; messages that are not committed yet are picked up after the next commit.
+    private void drain(Mailbox mailbox, ClientConnection client) {
+        while (true) {
+            long seq;
+            Segment segment;
+            long position;
+            int length;
+            ByteBuffer data;
+            synchronized (this) {
+                if (mailbox.sending) {
+                    // append drains once its send is settled
+                    return;
+                }
+                if (mailbox.draining != client || server.getClient(client.getUsername()) != client) {
+                    if (mailbox.draining == client) {
+                        mailbox.draining = null;
+                    }
+                    return;
+                }
+                Location next = mailbox.stored.peekFirst();
+                if (next == null) {
+                    if (mailbox.unstored == 0) {
+                        mailbox.draining = null;
+                    }
+                    return;
+                }
+                // Compaction may move the record while it is read
+                seq = next.seq;
+                segment = next.segment;
+                position = next.position;
+                length = next.length;
+                data = next.data;
+            }
+
+            String line;
+            try {
+                line = read(segment, position, length, data);
+            } catch (IOException e) {
+                readFailed(mailbox, client, seq, e);
+                return;
+            }
+            if (!client.trySend(OutboundMessage.chat(line), () -> drainLater(mailbox, client))) {
+                if (client.isClosed()) {
+                    // Kept for the recipient's next connection
+                    synchronized (this) {
+                        if (mailbox.draining == client) {
+                            mailbox.draining = null;
+                        }
+                    }
+                }
+                return;
+            }
+            synchronized (this) {
+                // The message may have expired while it was sent
+                Location first = mailbox.stored.peekFirst();
+                if (first != null && first.seq == seq) {
+                    unlink(mailbox.stored.pollFirst());
+                }
+                mailbox.cursor = Math.max(mailbox.cursor, seq);
+                mailbox.readFailures = 0;
+                cursorsChanged = true;
+            }
+        }
+    }
+
+    // Stops draining and tries again after a pause that doubles with every failure, from
+    // here or from the recipient's next connection. A message that keeps failing is moved
+    // to the quarantine file and skipped.
+    private void readFailed(Mailbox mailbox, ClientConnection client, long seq, IOException error) {
+        Location quarantined = null;
+        int attempt;
+        synchronized (this) {
+            if (mailbox.draining == client) {
+                mailbox.draining = null;
+            }
+            Location first = mailbox.stored.peekFirst();
+            if (first == null || first.seq != seq) {
+                // Expired or moved meanwhile
+                deliverLater(client);
+                return;
+            }
+            attempt = ++mailbox.readFailures;
+            if (attempt >= MAX_READ_ATTEMPTS) {
+                quarantined = mailbox.stored.pollFirst();
+                unlink(quarantined);
+                mailbox.cursor = Math.max(mailbox.cursor, seq);
+                mailbox.readFailures = 0;
+                cursorsChanged = true;
+            }
+        }
+        if (quarantined != null) {
+            server.log("Message store: giving up on message " + seq + " for " + client.getUsername()
+                    + " after " + attempt + " failed reads: " + error.getMessage());
+            quarantine(quarantined, client.getUsername(), error);
+            deliverLater(client);
+            return;
+        }
+        server.log("Message store: cannot read message " + seq + " for " + client.getUsername()
+                + " (attempt " + attempt + "): " + error.getMessage());
+        try {
+            delivery.schedule(() -> deliver(client), READ_RETRY_MILLIS << (attempt - 1), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    // Appends "<seq>\t<recipient>\t<segment>\t<position>\t<length>\t<error>" and whatever
+    // bytes of the record can still be read, base64 encoded, to the quarantine file
+    private void quarantine(Location location, String recipient, IOException error) {
+        String raw = "";
+        Segment segment;
+        long position;
+        synchronized (this) {
+            segment = location.segment;
+            position = location.position;
+        }
+        if (segment != null) {
+            try {
+                ByteBuffer bytes = ByteBuffer.allocate(location.length);
+                segment.channel.read(bytes, position);
+                raw = Base64.getEncoder().encodeToString(Arrays.copyOf(bytes.array(), bytes.position()));
+            } catch (IOException e) {
+                // Recorded without its bytes
+            }
+        }
+        String entry = location.seq + "\t" + recipient + "\t" + (segment != null ? segment.file.getName() : "-")
+                + "\t" + position + "\t" + location.length + "\t" + error + "\t" + raw + System.lineSeparator();
+        try {
+            Files.writeString(quarantineFile.toPath(), entry, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            server.log("Message store: error writing " + quarantineFile + ": " + e.getMessage());
+        }
+    }
+
+    private static String read(Segment segment, long position, int length, ByteBuffer data) throws IOException {
+        ByteBuffer record;
+        if (data != null) {
+            record = data.duplicate();
+        } else {
+            record = ByteBuffer.allocate(length);
+            while (record.hasRemaining()) {
+                if (segment.channel.read(record, position + record.position()) < 0) {
+                    throw new EOFException("Segment " + segment.file.getName() + " ends inside the message");
+                }
+            }
+            record.flip();
+        }
+        record.position(RECORD_HEADER_SIZE + 8 + 8);
+        int recipientLength = record.getShort() & 0xffff;
+        record.position(record.position() + recipientLength);
+        return StandardCharsets.UTF_8.decode(record).toString();
+    }
+
+    private void commitLoop() {
+        List<Record> batch = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                if (queue.isEmpty() && running) {
+                    committerWaiting = true;
+                    try {
+                        wait(CURSOR_SAVE_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                    committerWaiting = false;
+                }
+                batch.addAll(queue);
+                queue.clear();
+            }
+            if (!batch.isEmpty()) {
+                commit(batch);
+                batch.clear();
+            } else if (!running) {
+                break;
+            }
+            if (System.currentTimeMillis() - cursorsSavedMillis >= CURSOR_SAVE_INTERVAL_MILLIS) {
+                expire();
+                compact();
+                saveCursors();
+            }
+        }
+        saveCursors();
+        closeSegments();
+    }
+
+    // Writes a batch with as few writes as the segment size allows and one fsync per segment
+    // touched, then makes the undelivered records available to their mailboxes. A record
+    // only gets a place in a segment once its write and fsync have succeeded; if the disk
+    // fails, it and the rest of the batch are kept in memory and still delivered, but would
+    // not survive a restart.
+    private void commit(List<Record> batch) {
+        ByteBuffer[] data = new ByteBuffer[batch.size()];
+        long[] seqs = new long[batch.size()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = batch.get(i).data;
+            seqs[i] = batch.get(i).seq;
+        }
+        Location[] locations = new Location[batch.size()];
+        try {
+            writeRecords(data, seqs, (i, segment, position) ->
+                    locations[i] = new Location(seqs[i], batch.get(i).millis, segment, position, data[i].remaining(), null));
+        } catch (IOException e) {
+            server.log("Message store: write failed, keeping messages in memory only: " + e.getMessage());
+        }
+
+        synchronized (this) {
+            for (int i = 0; i < batch.size(); i++) {
+                Record record = batch.get(i);
+                if (record.delivered) {
+                    continue;
+                }
+                Mailbox mailbox = mailboxes.get(record.recipient);
+                mailbox.unstored--;
+                Location location = locations[i] != null ? locations[i]
+                        : new Location(record.seq, record.millis, null, 0, record.data.remaining(), record.data);
+                record.stored = location;
+                mailbox.stored.add(location);
+                link(location);
+                if (mailbox.stored.size() > mailboxMaxMessages) {
+                    Location oldest = mailbox.stored.pollFirst();
+                    unlink(oldest);
+                    mailbox.cursor = Math.max(mailbox.cursor, oldest.seq);
+                    mailbox.readFailures = 0;
+                    cursorsChanged = true;
+                    dropped++;
+                }
+                if (mailbox.draining != null) {
+                    drainLater(mailbox, mailbox.draining);
+                }
+            }
+        }
+    }
+
+    private interface Placement {
+        void placed(int index, Segment segment, long position);
+    }
+
+    // Writes whole records at the end of the log, starting new segments as they fill up, and
+    // reports where each one went. Only called on the committer thread.
+    private void writeRecords(ByteBuffer[] records, long[] seqs, Placement placement) throws IOException {
+        int start = 0;
+        while (start < records.length) {
+            Segment segment = activeSegment(seqs[start], records[start].remaining());
+            int end = start;
+            long size = segment.size;
+            while (end < records.length && (end == start || size + records[end].remaining() <= segmentBytes)) {
+                size += records[end].remaining();
+                end++;
+            }
+            write(segment, records, start, end);
+            long position = segment.size;
+            long minSeq = segment.minSeq;
+            for (int i = start; i < end; i++) {
+                placement.placed(i, segment, position);
+                position += records[i].remaining();
+                minSeq = Math.min(minSeq, seqs[i]);
+            }
+            synchronized (this) {
+                segment.size = position;
+                segment.minSeq = minSeq;
+            }
+            start = end;
+        }
+    }
+
+    // Appends records [start, end) at the segment's committed size. On failure, whatever part
+    // of them reached the file is cut off again so the next write starts at the same place.
+    private void write(Segment segment, ByteBuffer[] records, int start, int end) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[end - start];
+        for (int i = start; i < end; i++) {
+            // The record's own buffer is kept as is in case it has to stay in memory
+            buffers[i - start] = records[i].duplicate();
+        }
+        try {
+            segment.channel.position(segment.size);
+            while (buffers[buffers.length - 1].hasRemaining()) {
+                segment.channel.write(buffers);
+            }
+            if (fsync) {
+                segment.channel.force(false);
+            }
+        } catch (IOException e) {
+            try {
+                segment.channel.truncate(segment.size);
+            } catch (IOException again) {
+                // Recovery stops at the torn record anyway
+            }
+            throw e;
+        }
+    }
+
+    // The segment to append to, starting a new one if the current one is full. Segments are
+    // named after the first record written to them, or after the newest segment if that
+    // record was copied forward from an older one, so names always sort in write order.
+    private Segment activeSegment(long seq, int length) throws IOException {
+        Segment active;
+        synchronized (this) {
+            active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        }
+        if (active != null && active.size + length <= segmentBytes) {
+            return active;
+        }
+        if (active != null && fsync) {
+            active.channel.force(false);
+        }
+        long firstSeq = active != null ? Math.max(seq, active.firstSeq + 1) : seq;
+        File file = segmentFile(firstSeq);
+        Segment segment = new Segment(firstSeq, file, FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE), 0);
+        synchronized (this) {
+            segments.add(segment);
+        }
+        return segment;
+    }
+
+    private File segmentFile(long firstSeq) {
+        return new File(dir, String.format("%020d.log", firstSeq));
+    }
+
+    // Counts a record waiting in a mailbox against its segment; guarded by this
+    private static void link(Location location) {
+        location.waiting = true;
+        if (location.segment != null) {
+            location.segment.live++;
+            location.segment.liveBytes += location.length;
+        }
+    }
+
+    private static void unlink(Location location) {
+        location.waiting = false;
+        if (location.segment != null) {
+            location.segment.live--;
+            location.segment.liveBytes -= location.length;
+        }
+    }
+
+    // Drops messages past their age from the front of every mailbox
+    private void expire() {
+        int expired;
+        synchronized (this) {
+            long cutoff = System.currentTimeMillis() - maxAgeMillis;
+            for (Mailbox mailbox : mailboxes.values()) {
+                Location first;
+                while ((first = mailbox.stored.peekFirst()) != null && first.millis < cutoff) {
+                    unlink(mailbox.stored.pollFirst());
+                    mailbox.cursor = Math.max(mailbox.cursor, first.seq);
+                    mailbox.readFailures = 0;
+                    cursorsChanged = true;
+                    dropped++;
+                }
+            }
+            expired = dropped;
+            dropped = 0;
+        }
+        if (expired > 0) {
+            server.log("Message store: dropped " + expired + " undelivered messages past their age or mailbox limit");
+        }
+    }
+
+    // Copies the waiting records of mostly delivered segments to the end of the log, so the
+    // old segments can be deleted. Runs on the committer thread, between commits.
+    private void compact() {
+        List<Segment> sparse = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < segments.size() - 1; i++) {
+                Segment segment = segments.get(i);
+                if (segment.live > 0 && segment.liveBytes * COMPACT_LIVE_DIVISOR < segment.size) {
+                    sparse.add(segment);
+                }
+            }
+        }
+        for (Segment segment : sparse) {
+            try {
+                compact(segment);
+            } catch (IOException e) {
+                server.log("Message store: error compacting " + segment.file.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        List<Location> moving = new ArrayList<>();
+        synchronized (this) {
+            for (Mailbox mailbox : mailboxes.values()) {
+                for (Location location : mailbox.stored) {
+                    if (location.segment == segment) {
+                        moving.add(location);
+                    }
+                }
+            }
+        }
+        moving.sort(Comparator.comparingLong(location -> location.seq));
+        ByteBuffer[] records = new ByteBuffer[moving.size()];
+        long[] seqs = new long[moving.size()];
+        for (int i = 0; i < records.length; i++) {
+            Location location = moving.get(i);
+            records[i] = ByteBuffer.allocate(location.length);
+            while (records[i].hasRemaining()) {
+                if (segment.channel.read(records[i], location.position + records[i].position()) < 0) {
+                    throw new EOFException("Segment ends inside message " + location.seq);
+                }
+            }
+            records[i].flip();
+            seqs[i] = location.seq;
+        }
+        Segment[] targets = new Segment[records.length];
+        long[] positions = new long[records.length];
+        writeRecords(records, seqs, (i, target, position) -> {
+            targets[i] = target;
+            positions[i] = position;
+        });
+        synchronized (this) {
+            // Records delivered in the meantime are no longer linked; the rest move over
+            for (int i = 0; i < records.length; i++) {
+                Location location = moving.get(i);
+                if (location.segment == segment && location.waiting) {
+                    unlink(location);
+                    location.segment = targets[i];
+                    location.position = positions[i];
+                    link(location);
+                }
+            }
+        }
+        server.log("Message store: copied " + records.length + " waiting messages out of " + segment.file.getName());
+    }
+
+    // Removes segments that no mailbox is waiting on, and mailboxes that are empty and whose
+    // cursor no segment still needs
+    private synchronized void deleteDeliveredSegments() {
+        for (Iterator<Segment> it = segments.iterator(); it.hasNext(); ) {
+            Segment segment = it.next();
+            if (segment == segments.get(segments.size() - 1) || segment.live > 0) {
+                continue;
+            }
+            it.remove();
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                // Deleted either way
+            }
+            segment.file.delete();
+        }
+
+        // A recipient without a cursor gets everything of theirs found on disk, so a cursor
+        // can only go once every record up to it is gone
+        long oldestOnDisk = Long.MAX_VALUE;
+        for (Segment segment : segments) {
+            oldestOnDisk = Math.min(oldestOnDisk, segment.minSeq);
+        }
+        if (!queue.isEmpty()) {
+            oldestOnDisk = Math.min(oldestOnDisk, queue.get(0).seq);
+        }
+        for (Iterator<Mailbox> it = mailboxes.values().iterator(); it.hasNext(); ) {
+            Mailbox mailbox = it.next();
+            if (mailbox.isEmpty() && mailbox.draining == null && mailbox.cursor < oldestOnDisk) {
+                it.remove();
+                cursorsChanged = true;
+            }
+        }
+    }
+
+    // Format: "<recipient>\t<seq>" per line; moved into place so a crash never leaves half a file
+    private void saveCursors() {
+        deleteDeliveredSegments();
+        List<String> lines = new ArrayList<>();
+        synchronized (this) {
+            if (!cursorsChanged) {
+                return;
+            }
+            cursorsChanged = false;
+            for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+                lines.add(entry.getKey() + "\t" + entry.getValue().cursor);
+            }
+        }
+        File temp = new File(dir, "cursors.tmp");
+        try {
+            Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+            Files.move(temp.toPath(), cursorFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            server.log("Message store: error saving cursors: " + e.getMessage());
+        }
+        cursorsSavedMillis = System.currentTimeMillis();
+    }
+
+    // Loads the cursors and scans every segment, putting messages past their recipient's
+    // cursor back in its mailbox. A record that is cut short or fails its checksum marks
+    // the end of what was committed; the segment is truncated there.
+    private void recover() {
+        loadCursors();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            try {
+                long firstSeq = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                Segment segment = new Segment(firstSeq, file, channel, 0);
+                scan(segment);
+                segments.add(segment);
+            } catch (IOException | NumberFormatException e) {
+                server.log("Message store: skipping " + file + ": " + e.getMessage());
+            }
+        }
+
+        // Records copied forward by compaction sit after newer ones, and a crash during
+        // compaction can leave a record in two segments; the later copy is kept
+        int recovered = 0;
+        for (Mailbox mailbox : mailboxes.values()) {
+            List<Location> locations = new ArrayList<>(mailbox.stored);
+            locations.sort(Comparator.comparingLong(location -> location.seq));
+            mailbox.stored.clear();
+            for (Location location : locations) {
+                Location last = mailbox.stored.peekLast();
+                if (last != null && last.seq == location.seq) {
+                    unlink(mailbox.stored.pollLast());
+                }
+                mailbox.stored.add(location);
+            }
+            recovered += mailbox.stored.size();
+            lastSeq = Math.max(lastSeq, mailbox.cursor);
+        }
+        deleteDeliveredSegments();
+        server.log("Message store: " + recovered + " undelivered messages recovered");
+    }
+
+    private void scan(Segment segment) throws IOException {
+        FileChannel channel = segment.channel;
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long position = 0;
+        while (position + RECORD_HEADER_SIZE <= fileSize) {
+            header.clear();
+            channel.read(header, position);
+            int length = header.getInt(0);
+            if (length < 18 || position + RECORD_HEADER_SIZE + length > fileSize) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            while (payload.hasRemaining() && channel.read(payload, position + RECORD_HEADER_SIZE + payload.position()) > 0) {
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(payload.flip());
+            if ((int) crc.getValue() != header.getInt(4)) {
+                break;
+            }
+            long seq = payload.getLong(0);
+            int recipientLength = payload.getShort(16) & 0xffff;
+            if (18 + recipientLength > length) {
+                break;
+            }
+            String recipient = StandardCharsets.UTF_8.decode(payload.slice(18, recipientLength)).toString();
+            Mailbox mailbox = mailboxes.computeIfAbsent(recipient, name -> new Mailbox());
+            if (seq > mailbox.cursor) {
+                Location location = new Location(seq, payload.getLong(8), segment, position, RECORD_HEADER_SIZE + length, null);
+                mailbox.stored.add(location);
+                link(location);
+            }
+            lastSeq = Math.max(lastSeq, seq);
+            segment.minSeq = Math.min(segment.minSeq, seq);
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if (position < fileSize) {
+            server.log("Message store: truncating " + segment.file.getName() + " at " + position + " (torn write)");
+            channel.truncate(position);
+        }
+        channel.position(position);
+        segment.size = position;
+    }
+
+    private void loadCursors() {
+        if (!cursorFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(cursorFile, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab > 0) {
+                    mailboxes.computeIfAbsent(line.substring(0, tab), name -> new Mailbox()).cursor = Long.parseLong(line.substring(tab + 1));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            server.log("Message store: error reading cursors: " + e.getMessage());
+        }
+    }
+
+    private synchronized void closeSegments() {
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                // Everything was forced already
+            }
+        }
+    }
+
+    // Commits whatever is queued, saves the cursors and stops
+    public void close() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            notifyAll();
+        }
+        delivery.shutdownNow();
+        try {
+            committer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,684 @@
+package com.chatapp.server.store;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ServerConfig;
+import java.io.*;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Full-text index over chat history. Every message is a document with a sequential doc ID,
+// indexed under "<user>\0<term>" for both users of its conversation. A user's query can
+// only reach keys that start with their own name, so it never sees other conversations,
+// and its posting lists hold that user's messages only.
+//
+// New postings collect in memory, where they are searchable straight away, and are flushed
+// into an immutable SearchSegment every chat.search.flushPostings postings. A background
+// thread merges adjacent segments so their number stays small. The segments in use are
+// listed in the manifest; anything else in the directory is left over from a crash or a
+// merge and is deleted on startup.
+//
+// The doc table (docs) maps each doc ID to its conversation and message ID. New entries, and
+// new conversation names, are held in memory and written by the background thread, which
+// writes them before any segment that covers their docs. Postings that were still in memory
+// at a crash are rebuilt at startup from the doc table and the history store.
+//
+// Segment files, and the doc table up to them, are forced to disk before the manifest that
+// lists them replaces the old one.
+public class SearchIndex {
+    private static final int DOC_ENTRY_SIZE = 4 + 8;
+    private static final int PENDING_DOCS_INITIAL_BYTES = 1024 * DOC_ENTRY_SIZE;
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final int MAX_SEGMENTS = 8;
+    private static final int MERGE_FACTOR = 4;
+    public static final int MAX_RESULTS = 100;
+
+    public record Hit(String peer, long messageId) {
+    }
+
+    // Varint-encoded postings of one key, as SearchSegment stores them
+    private static final class PostingBuffer {
+        private byte[] bytes = new byte[8];
+        private int length;
+        private long lastDoc;
+
+        private void add(long doc) {
+            if (bytes.length - length < 10) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            length = SearchSegment.putVarint(bytes, length, doc - lastDoc);
+            lastDoc = doc;
+        }
+    }
+
+    private final ChatServer server;
+    private final HistoryStore history;
+    private final File dir;
+    private final File manifest;
+    private final int flushPostings;
+    private final long maxSegmentBytes;
+    private final FileChannel docs;
+    private final Writer conversationsOut;
+    private final Thread worker;
+
+    // Guarded by this
+    private Map<String, PostingBuffer> buffer = new HashMap<>();
+    private int bufferedPostings;
+    private Map<String, PostingBuffer> flushing;
+    private long flushingLastDoc;
+    private List<SearchSegment> segments = List.of();
+    private long lastDoc;
+    private long nextSegment = 1;
+    private final Map<String, Integer> conversationIds = new HashMap<>();
+    private final List<String> conversations = new ArrayList<>();
+    // Doc table entries after writtenDocs: those being written, then those not taken yet
+    private long writtenDocs;
+    private ByteBuffer writingDocs;
+    private ByteBuffer pendingDocs = ByteBuffer.allocate(PENDING_DOCS_INITIAL_BYTES);
+    // Conversation names not written yet
+    private List<String> writingConversations;
+    private List<String> pendingConversations = new ArrayList<>();
+    private boolean running = true;
+
+    public SearchIndex(ChatServer server, ServerConfig config, HistoryStore history) {
+        this.server = server;
+        this.history = history;
+        this.dir = new File(config.getSearchDir());
+        this.manifest = new File(dir, "segments");
+        this.flushPostings = config.getSearchFlushPostings();
+        this.maxSegmentBytes = config.getSearchMaxSegmentBytes();
+        dir.mkdirs();
+        try {
+            loadConversations();
+            this.conversationsOut = new BufferedWriter(new FileWriter(new File(dir, "conversations"), StandardCharsets.UTF_8, true));
+            this.docs = FileChannel.open(new File(dir, "docs").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open search index in " + dir, e);
+        }
+        recover();
+
+        worker = new Thread(this::work, "search-index");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Lowercased runs of letters and digits; longer runs than MAX_TERM_LENGTH are skipped
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); ) {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                if (i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+            i += i < text.length() ? Character.charCount(codePoint) : 1;
+        }
+        return terms;
+    }
+
+    private static String key(String user, String term) {
+        return user + '\0' + term;
+    }
+
+    public void add(String sender, String receiver, long messageId, String text) {
+        Set<String> terms = tokenize(text);
+        if (terms.isEmpty()) {
+            return;
+        }
+        String conversation = HistoryStore.conversationKey(sender, receiver);
+        synchronized (this) {
+            long doc = addDocument(conversation, messageId);
+            addPostings(doc, sender, receiver, terms);
+        }
+    }
+
+    // Adds the doc table entry in memory for the background thread to write
+    private long addDocument(String conversation, long messageId) {
+        Integer id = conversationIds.get(conversation);
+        if (id == null) {
+            id = conversations.size();
+            conversations.add(conversation);
+            conversationIds.put(conversation, id);
+            pendingConversations.add(conversation);
+        }
+        if (pendingDocs.remaining() < DOC_ENTRY_SIZE) {
+            ByteBuffer larger = ByteBuffer.allocate(pendingDocs.capacity() * 2);
+            pendingDocs = larger.put(pendingDocs.flip());
+        }
+        pendingDocs.putInt(id).putLong(messageId);
+        if (pendingDocs.position() == DOC_ENTRY_SIZE) {
+            notifyAll();
+        }
+        return ++lastDoc;
+    }
+
+    // Copies the entry of a doc that is not in the doc table file yet; false if it is
+    private boolean pendingDoc(long doc, ByteBuffer entry) {
+        if (doc <= writtenDocs) {
+            return false;
+        }
+        int offset = (int) ((doc - writtenDocs - 1) * DOC_ENTRY_SIZE);
+        ByteBuffer from = pendingDocs;
+        if (writingDocs != null) {
+            if (offset < writingDocs.limit()) {
+                from = writingDocs;
+            } else {
+                offset -= writingDocs.limit();
+            }
+        }
+        entry.put(0, from, offset, DOC_ENTRY_SIZE);
+        return true;
+    }
+
+    private void addPostings(long doc, String sender, String receiver, Set<String> terms) {
+        for (String term : terms) {
+            buffer.computeIfAbsent(key(sender, term), k -> new PostingBuffer()).add(doc);
+            if (!receiver.equals(sender)) {
+                buffer.computeIfAbsent(key(receiver, term), k -> new PostingBuffer()).add(doc);
+            }
+        }
+        bufferedPostings += terms.size() * 2;
+        if (bufferedPostings >= flushPostings && flushing == null) {
+            flushing = buffer;
+            flushingLastDoc = doc;
+            buffer = new HashMap<>();
+            bufferedPostings = 0;
+            notifyAll();
+        }
+    }
+
+    // The newest messages of the user's conversations that contain every term of the query
+    public List<Hit> search(String user, String query, int limit) {
+        Set<String> terms = tokenize(query);
+        if (terms.isEmpty()) {
+            return List.of();
+        }
+        List<long[]> lists = new ArrayList<>();
+        List<SearchSegment> searched;
+        List<PostingBuffer> inMemory = new ArrayList<>();
+        synchronized (this) {
+            searched = segments;
+            for (String term : terms) {
+                String key = key(user, term);
+                PostingBuffer flushed = flushing != null ? flushing.get(key) : null;
+                PostingBuffer buffered = buffer.get(key);
+                inMemory.add(copy(flushed));
+                inMemory.add(copy(buffered));
+            }
+        }
+
+        int index = 0;
+        for (String term : terms) {
+            byte[] key = key(user, term).getBytes(StandardCharsets.UTF_8);
+            List<ByteBuffer> parts = new ArrayList<>();
+            for (SearchSegment segment : searched) {
+                ByteBuffer postings = segment.postings(key);
+                if (postings != null) {
+                    parts.add(postings);
+                }
+            }
+            for (int i = 0; i < 2; i++) {
+                PostingBuffer part = inMemory.get(index++);
+                if (part != null) {
+                    parts.add(ByteBuffer.wrap(part.bytes, 0, part.length));
+                }
+            }
+            long[] docs = decode(parts);
+            if (docs.length == 0) {
+                return List.of();
+            }
+            lists.add(docs);
+        }
+
+        long[] matches = intersect(lists);
+        List<Hit> hits = new ArrayList<>();
+        for (int i = matches.length - 1; i >= 0 && hits.size() < Math.min(limit, MAX_RESULTS); i--) {
+            Hit hit = resolve(user, matches[i]);
+            if (hit != null) {
+                hits.add(hit);
+            }
+        }
+        return hits;
+    }
+
+    private static PostingBuffer copy(PostingBuffer postings) {
+        if (postings == null) {
+            return null;
+        }
+        PostingBuffer copy = new PostingBuffer();
+        copy.bytes = Arrays.copyOf(postings.bytes, postings.length);
+        copy.length = postings.length;
+        return copy;
+    }
+
+    // Each part starts from doc 0, and the parts are in doc order
+    private static long[] decode(List<ByteBuffer> parts) {
+        long[] docs = new long[16];
+        int count = 0;
+        for (ByteBuffer part : parts) {
+            long doc = 0;
+            while (part.hasRemaining()) {
+                doc += SearchSegment.readVarint(part);
+                if (count == docs.length) {
+                    docs = Arrays.copyOf(docs, count * 2);
+                }
+                docs[count++] = doc;
+            }
+        }
+        return Arrays.copyOf(docs, count);
+    }
+
+    // Starts from the shortest list and keeps the docs that every other list has
+    private static long[] intersect(List<long[]> lists) {
+        lists.sort(Comparator.comparingInt(list -> list.length));
+        long[] result = lists.get(0);
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            long[] other = lists.get(i);
+            int count = 0;
+            int from = 0;
+            for (long doc : result) {
+                int found = Arrays.binarySearch(other, from, other.length, doc);
+                if (found >= 0) {
+                    result[count++] = doc;
+                    from = found + 1;
+                } else {
+                    from = -found - 1;
+                }
+            }
+            result = Arrays.copyOf(result, count);
+        }
+        return result;
+    }
+
+    private Hit resolve(String user, long doc) {
+        ByteBuffer entry = ByteBuffer.allocate(DOC_ENTRY_SIZE);
+        boolean inMemory;
+        synchronized (this) {
+            inMemory = pendingDoc(doc, entry);
+        }
+        try {
+            while (!inMemory && entry.hasRemaining()) {
+                if (docs.read(entry, (doc - 1) * DOC_ENTRY_SIZE + entry.position()) < 0) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            server.log("Search: cannot read doc " + doc + ": " + e.getMessage());
+            return null;
+        }
+        String conversation;
+        synchronized (this) {
+            conversation = conversations.get(entry.getInt(0));
+        }
+        String[] users = conversation.split(",", 2);
+        String first = URLDecoder.decode(users[0], StandardCharsets.UTF_8);
+        String second = URLDecoder.decode(users[1], StandardCharsets.UTF_8);
+        return new Hit(first.equals(user) ? second : first, entry.getLong(4));
+    }
+
+    // Writes new doc table entries, then flushes or merges segments. On the way out it only
+    // writes the doc table, so the postings in memory can be rebuilt on the next start.
+    private void work() {
+        while (true) {
+            List<String> newConversations;
+            ByteBuffer newDocs;
+            Map<String, PostingBuffer> toFlush;
+            long toFlushLastDoc;
+            boolean stopping;
+            synchronized (this) {
+                while (running && writingDocs == null && pendingDocs.position() == 0
+                        && flushing == null && !needsMerge()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                stopping = !running;
+                // Whatever failed to be written last time goes first
+                if (writingConversations == null && !pendingConversations.isEmpty()) {
+                    writingConversations = pendingConversations;
+                    pendingConversations = new ArrayList<>();
+                }
+                if (writingDocs == null && pendingDocs.position() > 0) {
+                    writingDocs = pendingDocs.flip();
+                    pendingDocs = ByteBuffer.allocate(PENDING_DOCS_INITIAL_BYTES);
+                }
+                newConversations = writingConversations;
+                newDocs = writingDocs != null ? writingDocs.duplicate() : null;
+                toFlush = flushing;
+                toFlushLastDoc = flushingLastDoc;
+            }
+            try {
+                writeDocs(newConversations, newDocs);
+                if (stopping) {
+                    return;
+                }
+                if (toFlush != null) {
+                    flush(toFlush, toFlushLastDoc);
+                } else if (newDocs == null) {
+                    merge();
+                }
+            } catch (IOException e) {
+                if (stopping) {
+                    server.log("Search: cannot write doc table: " + e.getMessage());
+                    return;
+                }
+                server.log("Search: index update failed: " + e.getMessage());
+                synchronized (this) {
+                    // Keep the postings searchable in memory and try again later
+                    try {
+                        wait(TimeUnit.SECONDS.toMillis(10));
+                    } catch (InterruptedException ie) {
+                        running = false;
+                    }
+                }
+            }
+        }
+    }
+
+    // Conversation names go first, since doc entries refer to them by line number
+    private void writeDocs(List<String> newConversations, ByteBuffer newDocs) throws IOException {
+        if (newConversations != null) {
+            for (String conversation : newConversations) {
+                conversationsOut.write(conversation + "\n");
+            }
+            conversationsOut.flush();
+            synchronized (this) {
+                writingConversations = null;
+            }
+        }
+        if (newDocs != null) {
+            long position;
+            synchronized (this) {
+                position = writtenDocs * DOC_ENTRY_SIZE;
+            }
+            while (newDocs.hasRemaining()) {
+                position += docs.write(newDocs, position);
+            }
+            synchronized (this) {
+                writtenDocs += writingDocs.limit() / DOC_ENTRY_SIZE;
+                writingDocs = null;
+            }
+        }
+    }
+
+    private void flush(Map<String, PostingBuffer> postings, long flushLastDoc) throws IOException {
+        List<byte[]> keys = new ArrayList<>(postings.size());
+        Map<byte[], PostingBuffer> byKey = new IdentityHashMap<>(postings.size());
+        for (Map.Entry<String, PostingBuffer> entry : postings.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            keys.add(key);
+            byKey.put(key, entry.getValue());
+        }
+        keys.sort(Arrays::compareUnsigned);
+
+        long number;
+        long firstDoc;
+        synchronized (this) {
+            number = nextSegment++;
+            firstDoc = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).lastDoc + 1;
+        }
+        try (SearchSegment.Writer writer = new SearchSegment.Writer(dir, number)) {
+            for (byte[] key : keys) {
+                PostingBuffer buffer = byKey.get(key);
+                writer.add(key, key.length, buffer.bytes, buffer.length);
+            }
+            writer.finish(firstDoc, flushLastDoc);
+        }
+        docs.force(false);
+        SearchSegment segment = SearchSegment.open(dir, number);
+        List<SearchSegment> listed;
+        synchronized (this) {
+            List<SearchSegment> updated = new ArrayList<>(segments);
+            updated.add(segment);
+            segments = List.copyOf(updated);
+            listed = segments;
+            flushing = null;
+        }
+        saveManifest(listed);
+    }
+
+    private boolean needsMerge() {
+        return mergeStart() >= 0;
+    }
+
+    // Start of the run of MERGE_FACTOR adjacent segments with the smallest total size, once
+    // there are more than MAX_SEGMENTS; -1 if there are few enough or every run is too large
+    private int mergeStart() {
+        if (segments.size() <= MAX_SEGMENTS) {
+            return -1;
+        }
+        int best = -1;
+        long bestSize = Long.MAX_VALUE;
+        for (int start = 0; start + MERGE_FACTOR <= segments.size(); start++) {
+            long size = 0;
+            for (int i = start; i < start + MERGE_FACTOR; i++) {
+                size += segments.get(i).sizeBytes();
+            }
+            if (size <= maxSegmentBytes && size < bestSize) {
+                best = start;
+                bestSize = size;
+            }
+        }
+        return best;
+    }
+
+    // Merges one run of segments. Keys are merged in order; a key's posting lists from the
+    // older segments come first, and each later one only needs its first doc ID rewritten
+    // as a gap, so the postings are copied and only scanned to find where each one ends.
+    private void merge() throws IOException {
+        List<SearchSegment> inputs;
+        long number;
+        synchronized (this) {
+            int start = mergeStart();
+            if (start < 0) {
+                return;
+            }
+            inputs = List.copyOf(segments.subList(start, start + MERGE_FACTOR));
+            number = nextSegment++;
+        }
+
+        PriorityQueue<SearchSegment.Cursor> cursors = new PriorityQueue<>((a, b) -> {
+            int compared = Arrays.compareUnsigned(a.key, 0, a.keyLength, b.key, 0, b.keyLength);
+            return compared != 0 ? compared : Long.compare(a.segment().firstDoc, b.segment().firstDoc);
+        });
+        for (SearchSegment input : inputs) {
+            SearchSegment.Cursor cursor = input.cursor();
+            if (cursor.next()) {
+                cursors.add(cursor);
+            }
+        }
+        byte[] merged = new byte[1024];
+        byte[] varint = new byte[10];
+        byte[] key = new byte[64];
+        try (SearchSegment.Writer writer = new SearchSegment.Writer(dir, number)) {
+            while (!cursors.isEmpty()) {
+                SearchSegment.Cursor next = cursors.peek();
+                int keyLength = next.keyLength;
+                if (key.length < keyLength) {
+                    key = new byte[next.key.length];
+                }
+                System.arraycopy(next.key, 0, key, 0, keyLength);
+                int length = 0;
+                long lastDoc = 0;
+                while (!cursors.isEmpty()
+                        && Arrays.equals(cursors.peek().key, 0, cursors.peek().keyLength, key, 0, keyLength)) {
+                    SearchSegment.Cursor cursor = cursors.poll();
+                    ByteBuffer postings = cursor.postings;
+                    long first = SearchSegment.readVarint(postings);
+                    int gapLength = SearchSegment.putVarint(varint, 0, first - lastDoc);
+                    if (merged.length < length + gapLength + postings.remaining()) {
+                        merged = Arrays.copyOf(merged, Math.max(merged.length * 2, length + gapLength + postings.remaining()));
+                    }
+                    System.arraycopy(varint, 0, merged, length, gapLength);
+                    length += gapLength;
+                    int rest = postings.remaining();
+                    postings.get(merged, length, rest);
+                    length += rest;
+                    lastDoc = first;
+                    for (ByteBuffer gaps = ByteBuffer.wrap(merged, length - rest, rest); gaps.hasRemaining(); ) {
+                        lastDoc += SearchSegment.readVarint(gaps);
+                    }
+                    if (cursor.next()) {
+                        cursors.add(cursor);
+                    }
+                }
+                writer.add(key, keyLength, merged, length);
+            }
+            writer.finish(inputs.get(0).firstDoc, inputs.get(inputs.size() - 1).lastDoc);
+        }
+        SearchSegment segment = SearchSegment.open(dir, number);
+
+        List<SearchSegment> listed;
+        synchronized (this) {
+            List<SearchSegment> updated = new ArrayList<>(segments);
+            int start = updated.indexOf(inputs.get(0));
+            updated.subList(start, start + inputs.size()).clear();
+            updated.add(start, segment);
+            segments = List.copyOf(updated);
+            listed = segments;
+        }
+        saveManifest(listed);
+        // Searches still running on the old segments keep their mappings
+        for (SearchSegment input : inputs) {
+            input.delete();
+        }
+    }
+
+    // Segment numbers in doc order, one per line; replaced atomically. Only the background
+    // thread saves it once the index is open, and the segments are on disk by then.
+    private void saveManifest(List<SearchSegment> listed) {
+        StringBuilder lines = new StringBuilder();
+        for (SearchSegment segment : listed) {
+            lines.append(segment.number).append('\n');
+        }
+        File temp = new File(dir, "segments.tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer bytes = StandardCharsets.UTF_8.encode(lines.toString());
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(true);
+            }
+            // The new segment files' names must be on disk before a manifest lists them
+            forceDirectory();
+            Files.move(temp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory();
+        } catch (IOException e) {
+            server.log("Search: error saving segment list: " + e.getMessage());
+        }
+    }
+
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform can open a directory; the rename is still atomic
+        }
+    }
+
+    private void loadConversations() throws IOException {
+        File file = new File(dir, "conversations");
+        if (!file.exists()) {
+            return;
+        }
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            conversationIds.put(line, conversations.size());
+            conversations.add(line);
+        }
+    }
+
+    // Opens the listed segments, removes files that aren't listed, and re-indexes documents
+    // newer than the last segment from the history store
+    private synchronized void recover() {
+        List<SearchSegment> opened = new ArrayList<>();
+        Set<String> listed = new HashSet<>();
+        if (manifest.exists()) {
+            try {
+                for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                    long number = Long.parseLong(line.trim());
+                    opened.add(SearchSegment.open(dir, number));
+                    listed.add(SearchSegment.dictionaryFile(dir, number).getName());
+                    listed.add(SearchSegment.postingsFile(dir, number).getName());
+                    nextSegment = Math.max(nextSegment, number + 1);
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Without a consistent set of segments, start over from the history
+                server.log("Search: segment list unreadable, rebuilding the index: " + e.getMessage());
+                opened.clear();
+                listed.clear();
+            }
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".dic") || name.endsWith(".pst"));
+        for (File file : files != null ? files : new File[0]) {
+            if (!listed.contains(file.getName())) {
+                file.delete();
+            }
+        }
+        segments = List.copyOf(opened);
+        saveManifest(segments);
+
+        try {
+            long docCount = docs.size() / DOC_ENTRY_SIZE;
+            long indexed = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).lastDoc;
+            lastDoc = indexed;
+            ByteBuffer entry = ByteBuffer.allocate(DOC_ENTRY_SIZE);
+            int replayed = 0;
+            for (long doc = indexed + 1; doc <= docCount; doc++) {
+                entry.clear();
+                docs.read(entry, (doc - 1) * DOC_ENTRY_SIZE);
+                String[] users = conversations.get(entry.getInt(0)).split(",", 2);
+                String first = URLDecoder.decode(users[0], StandardCharsets.UTF_8);
+                String second = URLDecoder.decode(users[1], StandardCharsets.UTF_8);
+                HistoryStore.Entry message = history.get(first, second, entry.getLong(4));
+                lastDoc = doc;
+                if (message != null) {
+                    addPostings(doc, first, second, tokenize(message.text()));
+                    replayed++;
+                }
+            }
+            docs.truncate(lastDoc * DOC_ENTRY_SIZE);
+            if (replayed > 0) {
+                server.log("Search: re-indexed " + replayed + " messages");
+            }
+        } catch (IOException | IndexOutOfBoundsException e) {
+            server.log("Search: error re-indexing recent messages: " + e.getMessage());
+        }
+        writtenDocs = lastDoc;
+    }
+
+    // Stops the background thread once it has written the doc table; postings still in memory
+    // are rebuilt on the next start
+    public void close() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            worker.join(TimeUnit.SECONDS.toMillis(5));
+            docs.close();
+            conversationsOut.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Nothing left to write
+        }
+    }
+}
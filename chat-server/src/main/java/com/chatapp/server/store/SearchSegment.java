@@ -0,0 +1,259 @@
+package com.chatapp.server.store;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// An immutable part of the search index, covering documents firstDoc to lastDoc. It is two
+// files: <n>.pst holds the posting lists, each a run of varint doc IDs where the first is
+// absolute and the rest are gaps from the one before; <n>.dic holds one entry per key, in
+// unsigned byte order of the key, then a footer.
+//
+// The dictionary is in blocks of BLOCK_SIZE entries. The first entry of a block has the
+// whole key and the offset of its postings; the others have only the length of the prefix
+// they share with the key before and the rest of their key, since postings follow each
+// other in key order. Every entry ends with the length of its postings. Keys all start with
+// a username, so this front coding saves most of the dictionary.
+//
+// Both files are memory-mapped. The first key of every block is kept on the heap, so a
+// lookup is a binary search over those followed by a scan of at most one block.
+final class SearchSegment {
+    private static final int MAGIC = 0x43534958;
+    private static final int FOOTER_SIZE = 8 + 8 + 4 + 4;
+    private static final int BLOCK_SIZE = 128;
+
+    final long number;
+    final long firstDoc;
+    final long lastDoc;
+    private final File dictionaryFile;
+    private final File postingsFile;
+    private final ByteBuffer dictionary;
+    private final ByteBuffer postings;
+    private final int termCount;
+    private final byte[][] blockKeys;
+    private final int[] blockOffsets;
+
+    private SearchSegment(long number, File dictionaryFile, File postingsFile) throws IOException {
+        this.number = number;
+        this.dictionaryFile = dictionaryFile;
+        this.postingsFile = postingsFile;
+        this.dictionary = map(dictionaryFile);
+        this.postings = map(postingsFile);
+
+        int footer = dictionary.limit() - FOOTER_SIZE;
+        if (footer < 0 || dictionary.getInt(footer + 20) != MAGIC) {
+            throw new IOException("Not a complete index segment: " + dictionaryFile);
+        }
+        this.firstDoc = dictionary.getLong(footer);
+        this.lastDoc = dictionary.getLong(footer + 8);
+        this.termCount = dictionary.getInt(footer + 16);
+
+        int blocks = (termCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        this.blockKeys = new byte[blocks][];
+        this.blockOffsets = new int[blocks];
+        ByteBuffer entries = dictionary.duplicate().limit(footer);
+        for (int i = 0; i < termCount; i++) {
+            if (i % BLOCK_SIZE == 0) {
+                blockOffsets[i / BLOCK_SIZE] = entries.position();
+                blockKeys[i / BLOCK_SIZE] = new byte[(int) readVarint(entries)];
+                entries.get(blockKeys[i / BLOCK_SIZE]);
+                readVarint(entries);
+            } else {
+                readVarint(entries);
+                int suffixLength = (int) readVarint(entries);
+                entries.position(entries.position() + suffixLength);
+            }
+            readVarint(entries);
+        }
+    }
+
+    static SearchSegment open(File dir, long number) throws IOException {
+        return new SearchSegment(number, dictionaryFile(dir, number), postingsFile(dir, number));
+    }
+
+    static File dictionaryFile(File dir, long number) {
+        return new File(dir, String.format("%020d.dic", number));
+    }
+
+    static File postingsFile(File dir, long number) {
+        return new File(dir, String.format("%020d.pst", number));
+    }
+
+    // The mapping stays valid after the channel is closed and after the file is deleted
+    private static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    long sizeBytes() {
+        return dictionary.capacity() + (long) postings.capacity();
+    }
+
+    void delete() {
+        dictionaryFile.delete();
+        postingsFile.delete();
+    }
+
+    // The postings of key, or null if it isn't in this segment
+    ByteBuffer postings(byte[] key) {
+        int low = 0;
+        int high = blockKeys.length - 1;
+        int block = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (Arrays.compareUnsigned(blockKeys[middle], key) <= 0) {
+                block = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (block < 0) {
+            return null;
+        }
+        Cursor cursor = new Cursor(block);
+        while (cursor.next()) {
+            int compared = Arrays.compareUnsigned(cursor.key, 0, cursor.keyLength, key, 0, key.length);
+            if (compared == 0) {
+                return cursor.postings;
+            }
+            if (compared > 0 || cursor.entry % BLOCK_SIZE == BLOCK_SIZE - 1) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    Cursor cursor() {
+        return new Cursor(0);
+    }
+
+    // Walks the dictionary in key order from the start of a block. The key is rebuilt in
+    // place and is valid for keyLength bytes until the next call.
+    final class Cursor {
+        private final ByteBuffer entries;
+        private int entry;
+        private long postingsOffset;
+        byte[] key = new byte[64];
+        int keyLength;
+        ByteBuffer postings;
+
+        private Cursor(int block) {
+            entries = dictionary.duplicate().position(termCount == 0 ? 0 : blockOffsets[block]);
+            entry = block * BLOCK_SIZE - 1;
+        }
+
+        boolean next() {
+            if (++entry >= termCount) {
+                return false;
+            }
+            int shared = 0;
+            if (entry % BLOCK_SIZE != 0) {
+                shared = (int) readVarint(entries);
+            }
+            int suffixLength = (int) readVarint(entries);
+            keyLength = shared + suffixLength;
+            if (key.length < keyLength) {
+                key = Arrays.copyOf(key, Math.max(keyLength, key.length * 2));
+            }
+            entries.get(key, shared, suffixLength);
+            if (entry % BLOCK_SIZE == 0) {
+                postingsOffset = readVarint(entries);
+            }
+            int length = (int) readVarint(entries);
+            postings = SearchSegment.this.postings.slice((int) postingsOffset, length);
+            postingsOffset += length;
+            return true;
+        }
+
+        SearchSegment segment() {
+            return SearchSegment.this;
+        }
+    }
+
+    // Writes a segment; keys must be added in unsigned byte order
+    static final class Writer implements Closeable {
+        private final FileOutputStream dictionaryOut;
+        private final FileOutputStream postingsOut;
+        private final DataOutputStream dictionary;
+        private final OutputStream postings;
+        private final byte[] varint = new byte[10];
+        private byte[] previousKey = new byte[0];
+        private long postingsSize;
+        private int termCount;
+
+        Writer(File dir, long number) throws IOException {
+            this.dictionaryOut = new FileOutputStream(dictionaryFile(dir, number));
+            this.postingsOut = new FileOutputStream(postingsFile(dir, number));
+            this.dictionary = new DataOutputStream(new BufferedOutputStream(dictionaryOut, 1 << 16));
+            this.postings = new BufferedOutputStream(postingsOut, 1 << 16);
+        }
+
+        void add(byte[] key, int keyLength, byte[] data, int length) throws IOException {
+            postings.write(data, 0, length);
+            if (termCount % BLOCK_SIZE == 0) {
+                writeVarint(dictionary, keyLength);
+                dictionary.write(key, 0, keyLength);
+                writeVarint(dictionary, postingsSize);
+            } else {
+                int shared = Math.max(0, Arrays.mismatch(previousKey, 0, previousKey.length, key, 0, keyLength));
+                writeVarint(dictionary, shared);
+                writeVarint(dictionary, keyLength - shared);
+                dictionary.write(key, shared, keyLength - shared);
+            }
+            writeVarint(dictionary, length);
+            previousKey = Arrays.copyOf(key, keyLength);
+            postingsSize += length;
+            termCount++;
+        }
+
+        private void writeVarint(OutputStream out, long value) throws IOException {
+            out.write(varint, 0, putVarint(varint, 0, value));
+        }
+
+        // Writes the footer and forces both files to disk; the segment is only complete, and
+        // only opens, once this is done
+        void finish(long firstDoc, long lastDoc) throws IOException {
+            dictionary.writeLong(firstDoc);
+            dictionary.writeLong(lastDoc);
+            dictionary.writeInt(termCount);
+            dictionary.writeInt(MAGIC);
+            postings.flush();
+            dictionary.flush();
+            postingsOut.getChannel().force(true);
+            dictionaryOut.getChannel().force(true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (postings) {
+                dictionary.close();
+            }
+        }
+    }
+
+    // Unsigned LEB128: seven bits per byte, low bits first, high bit set on all but the last
+    static int putVarint(byte[] bytes, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            bytes[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.chatapp.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.Test;
+
+class ChatRoomsTest {
+    private final Map<String, ClientConnection> clients = new ConcurrentHashMap<>();
+    private final ChatRooms rooms = new ChatRooms(client -> clients.get(client.getUsername()) == client);
+
+    private TestClient connect(String username) {
+        TestClient client = new TestClient(username);
+        clients.put(username, client);
+        return client;
+    }
+
+    @Test
+    void membersGetMessagesFromOthersInTheRoom() {
+        TestClient alice = connect("alice");
+        TestClient bob = connect("bob");
+        assertEquals(1, rooms.join("lobby", alice));
+        assertEquals(2, rooms.join("lobby", bob));
+
+        assertEquals(1, rooms.send("lobby", alice, "hi"));
+        assertEquals(1, bob.received().size());
+        assertTrue(alice.received().isEmpty());
+
+        assertTrue(rooms.leave("lobby", bob));
+        assertFalse(rooms.leave("lobby", bob));
+        assertEquals(-1, rooms.send("lobby", bob, "gone"));
+        rooms.leaveAll(alice);
+        assertEquals(0, rooms.getMemberCount("lobby"));
+    }
+
+    @Test
+    void messagesFromOtherNodesReachEveryLocalMember() {
+        TestClient alice = connect("alice");
+        TestClient bob = connect("bob");
+        rooms.join("lobby", alice);
+        rooms.join("lobby", bob);
+
+        assertEquals(2, rooms.deliver("lobby", "carol", "from node 2"));
+        assertEquals(List.of("lobby:carol:from node 2"), alice.received());
+        assertEquals(0, rooms.deliver("empty", "carol", "nobody here"));
+    }
+
+    @Test
+    void replacedConnectionCannotJoin() {
+        TestClient old = connect("alice");
+        TestClient current = connect("alice");
+        assertEquals(-1, rooms.join("lobby", old));
+        assertEquals(1, rooms.join("lobby", current));
+        assertFalse(rooms.isMember("lobby", old));
+    }
+
+    @Test
+    void joinRacingDisconnectNeverLeavesAMember() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 2000; i++) {
+                TestClient client = connect("user" + i);
+                CountDownLatch start = new CountDownLatch(1);
+                Future<?> joining = threads.submit(() -> {
+                    start.await();
+                    for (int room = 0; room < 5; room++) {
+                        rooms.join("room" + room, client);
+                    }
+                    return null;
+                });
+                Future<?> leaving = threads.submit(() -> {
+                    start.await();
+                    // As ChatServer.removeClient does
+                    clients.remove(client.getUsername(), client);
+                    rooms.leaveAll(client);
+                    return null;
+                });
+                start.countDown();
+                joining.get();
+                leaving.get();
+                for (int room = 0; room < 5; room++) {
+                    assertFalse(rooms.isMember("room" + room, client), "user" + i + " left in room" + room);
+                }
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.chatapp.server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.chatapp.server.protocol.OutboundMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// A binary client for tests that keeps the lines sent to it. It takes up to capacity
+// messages through trySend, then refuses them until room() is called; it refuses
+// everything once disconnected.
+public final class TestClient implements ClientConnection {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final String username;
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private final List<Runnable> waiting = new ArrayList<>();
+    private int capacity;
+    private volatile boolean closed;
+
+    public TestClient(String username) {
+        this(username, Integer.MAX_VALUE);
+    }
+
+    public TestClient(String username, int capacity) {
+        this.username = username;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return true;
+    }
+
+    @Override
+    public void send(OutboundMessage message) {
+        received.addAll(message.getLines());
+    }
+
+    @Override
+    public synchronized boolean trySend(OutboundMessage message, Runnable onSpace) {
+        if (closed) {
+            return false;
+        }
+        if (capacity == 0) {
+            waiting.add(onSpace);
+            return false;
+        }
+        capacity--;
+        received.addAll(message.getLines());
+        return true;
+    }
+
+    public void room(int messages) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            capacity += messages;
+            listeners = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        listeners.forEach(Runnable::run);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public void disconnect() {
+        closed = true;
+    }
+
+    // What has arrived and not been taken yet
+    public List<String> received() {
+        return new ArrayList<>(received);
+    }
+
+    public List<String> take(int count) throws InterruptedException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String line = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull(line, "only got " + lines);
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    public void assertNothingMore() throws InterruptedException {
+        assertNull(received.poll(300, TimeUnit.MILLISECONDS));
+    }
+}
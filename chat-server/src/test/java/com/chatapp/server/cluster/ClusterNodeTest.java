@@ -0,0 +1,152 @@
+package com.chatapp.server.cluster;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ClientConnection;
+import com.chatapp.server.ServerConfig;
+import com.chatapp.server.TestClient;
+import com.chatapp.server.protocol.OutboundMessage;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ClusterNodeTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @TempDir
+    Path dir;
+
+    private final List<TestServer> servers = new ArrayList<>();
+
+    // Stands in for a node's clients and log; only its ClusterNode is started, and private
+    // messages from other nodes go straight to the receiver's connection
+    private static final class TestServer extends ChatServer {
+        private final Map<String, ClientConnection> local = new ConcurrentHashMap<>();
+        private final BlockingQueue<String> logged = new LinkedBlockingQueue<>();
+        private ClusterNode node;
+
+        TestServer(ServerConfig config) {
+            super(config);
+        }
+
+        @Override
+        public void log(String message) {
+            logged.add(message);
+        }
+
+        @Override
+        public ClientConnection getLocalClient(String username) {
+            return local.get(username);
+        }
+
+        @Override
+        public Collection<ClientConnection> getLocalClients() {
+            return local.values();
+        }
+
+        @Override
+        public void remoteUserChanged(String username, ClientConnection previous, ClientConnection current) {
+        }
+
+        @Override
+        public void deliverPrivate(String senderName, String receiver, String content) {
+            ClientConnection client = local.get(receiver);
+            if (client != null) {
+                client.send(OutboundMessage.chat(senderName + ":" + content));
+            }
+        }
+
+        // Waits for a line containing text
+        void awaitLog(String text) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            for (String line; (line = logged.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) != null; ) {
+                if (line.contains(text)) {
+                    return;
+                }
+            }
+            fail("nothing logged with \"" + text + "\"");
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (TestServer server : servers) {
+            server.node.close();
+            server.stop();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Starts node id, listening on the port peers lists for it
+    private TestServer start(int id, String peers, String secret) throws IOException {
+        ServerConfig config = new ServerConfig()
+                .setLogDir(dir.resolve("logs-" + id).toString())
+                .setLogConsole(false)
+                .setClusterNodeId(id)
+                .setClusterPort(Integer.parseInt(peers.split(",")[id - 1].split(":")[1]))
+                .setClusterPeers(peers)
+                .setClusterSecret(secret)
+                .setClusterSharding(false);
+        TestServer server = new TestServer(config);
+        server.node = new ClusterNode(server, config);
+        servers.add(server);
+        server.node.start();
+        return server;
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out waiting for " + what);
+            Thread.sleep(20);
+        }
+    }
+
+    private static String peers() throws IOException {
+        return "1@127.0.0.1:" + freePort() + ",2@127.0.0.1:" + freePort();
+    }
+
+    @Test
+    void privateMessageCrossesTheLink() throws Exception {
+        String peers = peers();
+        TestServer first = start(1, peers, "shared secret");
+        TestServer second = start(2, peers, "shared secret");
+        second.awaitLog("linked to node 1");
+        // As ChatServer.addClient does when bob logs in to node 2
+        TestClient bob = new TestClient("bob");
+        second.local.put("bob", bob);
+        second.node.localUserChanged("bob", bob);
+        await(() -> first.node.getRemote("bob") != null, "bob to show up on node 1");
+
+        assertTrue(first.node.forwardChat("alice", "bob", "hello across"));
+        assertEquals(List.of("alice:hello across"), bob.take(1));
+        assertFalse(first.node.forwardChat("alice", "nobody", "lost"));
+    }
+
+    @Test
+    void peerWithTheWrongSecretIsRefused() throws Exception {
+        String peers = peers();
+        TestServer first = start(1, peers, "shared secret");
+        TestServer second = start(2, peers, "guessed secret");
+        TestClient bob = new TestClient("bob");
+        second.local.put("bob", bob);
+        first.awaitLog("refused link");
+        second.awaitLog("refused link");
+
+        assertNull(first.node.getRemote("bob"));
+        assertFalse(first.node.forwardChat("alice", "bob", "should not arrive"));
+        bob.assertNothingMore();
+    }
+}
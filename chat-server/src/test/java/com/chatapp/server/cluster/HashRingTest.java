@@ -0,0 +1,79 @@
+package com.chatapp.server.cluster;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import org.junit.jupiter.api.Test;
+
+class HashRingTest {
+    private static final int USERS = 100_000;
+    private static final int VIRTUAL_NODES = 256;
+
+    private static int[] owners(HashRing ring) {
+        int[] owners = new int[USERS];
+        for (int i = 0; i < USERS; i++) {
+            owners[i] = ring.owner("user" + i);
+        }
+        return owners;
+    }
+
+    private static int moved(int[] before, int[] after) {
+        int moved = 0;
+        for (int i = 0; i < USERS; i++) {
+            if (before[i] != after[i]) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    @Test
+    void emptyRingHasNoOwner() {
+        assertEquals(-1, new HashRing(List.of(), VIRTUAL_NODES).owner("alice"));
+    }
+
+    @Test
+    void everyNodeBuildsTheSameRing() {
+        int[] ascending = owners(new HashRing(List.of(1, 2, 3, 4), VIRTUAL_NODES));
+        int[] shuffled = owners(new HashRing(List.of(3, 1, 4, 2), VIRTUAL_NODES));
+        assertArrayEquals(ascending, shuffled);
+    }
+
+    @Test
+    void sharesAreEven() {
+        List<Integer> nodes = List.of(1, 2, 3, 4, 5);
+        Map<Integer, Integer> shares = new HashMap<>();
+        for (int owner : owners(new HashRing(nodes, VIRTUAL_NODES))) {
+            shares.merge(owner, 1, Integer::sum);
+        }
+        assertEquals(new HashSet<>(nodes), shares.keySet());
+        double fair = (double) USERS / nodes.size();
+        for (Map.Entry<Integer, Integer> share : shares.entrySet()) {
+            assertEquals(fair, share.getValue(), 0.15 * fair, "share of node " + share.getKey());
+        }
+    }
+
+    @Test
+    void addingANodeMovesItsShareToIt() {
+        int[] before = owners(new HashRing(List.of(1, 2, 3, 4), VIRTUAL_NODES));
+        int[] after = owners(new HashRing(List.of(1, 2, 3, 4, 5), VIRTUAL_NODES));
+        for (int i = 0; i < USERS; i++) {
+            if (before[i] != after[i]) {
+                assertEquals(5, after[i], "user" + i + " moved between old nodes");
+            }
+        }
+        assertEquals(1.0 / 5, (double) moved(before, after) / USERS, 0.03);
+    }
+
+    @Test
+    void removingANodeMovesOnlyItsUsers() {
+        int[] before = owners(new HashRing(List.of(1, 2, 3, 4, 5), VIRTUAL_NODES));
+        int[] after = owners(new HashRing(List.of(1, 2, 4, 5), VIRTUAL_NODES));
+        for (int i = 0; i < USERS; i++) {
+            if (before[i] != after[i]) {
+                assertEquals(3, before[i], "user" + i + " moved off a node that stayed");
+            }
+        }
+        assertEquals(1.0 / 5, (double) moved(before, after) / USERS, 0.03);
+    }
+}
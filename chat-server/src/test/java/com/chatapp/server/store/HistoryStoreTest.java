@@ -0,0 +1,161 @@
+package com.chatapp.server.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ServerConfig;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HistoryStoreTest {
+    @TempDir
+    Path dir;
+
+    private ServerConfig config;
+    private ChatServer server;
+    private HistoryStore history;
+
+    @BeforeEach
+    void setUp() {
+        config = new ServerConfig()
+                .setHistoryDir(dir.resolve("history").toString())
+                .setLogDir(dir.resolve("logs").toString())
+                .setLogConsole(false);
+        server = new ChatServer(config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (history != null) {
+            history.close();
+        }
+        server.stop();
+    }
+
+    private void open() {
+        history = new HistoryStore(server, config);
+    }
+
+    private void restart() {
+        history.close();
+        open();
+    }
+
+    // Appends the messages and waits until they are written, returning their IDs
+    private List<Long> append(String sender, String receiver, int count, String prefix) throws InterruptedException {
+        List<Long> ids = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 1; i <= count; i++) {
+            history.append(sender, receiver, prefix + i, ids::add);
+        }
+        history.flush();
+        return ids;
+    }
+
+    private static List<String> texts(List<HistoryStore.Entry> entries) {
+        return entries.stream().map(HistoryStore.Entry::text).toList();
+    }
+
+    private File[] files(String suffix) {
+        File[] files = new File(config.getHistoryDir(), HistoryStore.conversationKey("alice", "bob"))
+                .listFiles((d, name) -> name.endsWith(suffix));
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    void messagesAreNumberedPerConversationAndReadInPages() throws Exception {
+        open();
+        assertEquals(List.of(1L, 2L, 3L), append("alice", "bob", 3, "hi "));
+        assertEquals(List.of(4L), append("bob", "alice", 1, "back "));
+        assertEquals(List.of(1L), append("alice", "carol", 1, "other "));
+
+        List<HistoryStore.Entry> newest = history.read("bob", "alice", 0, 2);
+        assertEquals(List.of("hi 3", "back 1"), texts(newest));
+        assertEquals("bob", newest.get(1).sender());
+        assertEquals(List.of("hi 1", "hi 2"), texts(history.read("alice", "bob", 3, 10)));
+        assertEquals("hi 2", history.get("alice", "bob", 2).text());
+        assertNull(history.get("alice", "bob", 5));
+    }
+
+    @Test
+    void readsSpanSegmentsAndSurviveRestart() throws Exception {
+        config.setHistorySegmentBytes(4096);
+        open();
+        append("alice", "bob", 500, "message number ");
+        assertTrue(files(".log").length > 5);
+
+        assertEquals("message number 250", history.get("alice", "bob", 250).text());
+        restart();
+        List<HistoryStore.Entry> page = history.read("alice", "bob", 260, 20);
+        assertEquals(240, page.get(0).id());
+        assertEquals(259, page.get(19).id());
+        assertEquals(List.of(501L), append("bob", "alice", 1, "after restart "));
+    }
+
+    @Test
+    void segmentsAreMappedAtFullSizeAndCutBackOnClose() throws Exception {
+        config.setHistorySegmentBytes(1 << 20);
+        open();
+        append("alice", "bob", 10, "hello ");
+        history.read("alice", "bob", 0, 10);
+        File log = files(".log")[0];
+        assertEquals(1 << 20, log.length());
+
+        history.close();
+        long written = log.length();
+        assertTrue(written < 1000, "log is " + written + " bytes");
+        open();
+        assertEquals(10, history.read("alice", "bob", 0, 50).size());
+    }
+
+    @Test
+    void unusedSpaceLeftByACrashIsDropped() throws Exception {
+        config.setHistorySegmentBytes(1 << 20);
+        open();
+        append("alice", "bob", 10, "hello ");
+        history.close();
+        // As if the process died with the segment still mapped at full size
+        File log = files(".log")[0];
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.setLength(1 << 20);
+        }
+
+        open();
+        assertEquals(10, history.read("alice", "bob", 0, 50).size());
+        assertEquals(List.of(11L), append("alice", "bob", 1, "again "));
+        assertEquals("again 1", history.get("alice", "bob", 11).text());
+    }
+
+    @Test
+    void tornRecordIsTruncated() throws Exception {
+        open();
+        append("alice", "bob", 3, "hello ");
+        history.close();
+        File log = files(".log")[0];
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        open();
+        assertEquals(List.of("hello 1", "hello 2"), texts(history.read("alice", "bob", 0, 50)));
+        assertEquals(List.of(3L), append("alice", "bob", 1, "again "));
+    }
+
+    @Test
+    void leastRecentlyUsedConversationsAreClosedAndReopened() throws Exception {
+        config.setHistoryMaxOpenConversations(8);
+        open();
+        for (int i = 0; i < 50; i++) {
+            append("alice", "user" + i, 2, "to " + i + " ");
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals(List.of("to " + i + " 1", "to " + i + " 2"), texts(history.read("user" + i, "alice", 0, 10)));
+        }
+    }
+}
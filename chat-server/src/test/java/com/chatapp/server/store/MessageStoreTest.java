@@ -0,0 +1,336 @@
+package com.chatapp.server.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ClientConnection;
+import com.chatapp.server.ServerConfig;
+import com.chatapp.server.TestClient;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageStoreTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @TempDir
+    Path dir;
+
+    private ServerConfig config;
+    private TestServer server;
+    private MessageStore store;
+
+    // Stands in for the server's client list and log; nothing else is started
+    private static final class TestServer extends ChatServer {
+        private final Map<String, ClientConnection> online = new ConcurrentHashMap<>();
+
+        TestServer(ServerConfig config) {
+            super(config);
+        }
+
+        @Override
+        public ClientConnection getClient(String username) {
+            return online.get(username);
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        config = new ServerConfig()
+                .setStoreDir(dir.resolve("messages").toString())
+                .setLogDir(dir.resolve("logs").toString())
+                .setLogConsole(false);
+        server = new TestServer(config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+        server.stop();
+    }
+
+    private void open() {
+        store = new MessageStore(server, config);
+    }
+
+    private void restart() {
+        store.close();
+        open();
+    }
+
+    private TestClient connect(String username, int capacity) {
+        TestClient client = new TestClient(username, capacity);
+        server.online.put(username, client);
+        return client;
+    }
+
+    private void disconnect(TestClient client) {
+        server.online.remove(client.getUsername(), client);
+    }
+
+    private File[] segments() {
+        File[] files = new File(config.getStoreDir()).listFiles((d, name) -> name.endsWith(".log"));
+        Arrays.sort(files);
+        return files;
+    }
+
+    @Test
+    void offlineMailSurvivesRestartAndIsDeliveredOnConnect() throws Exception {
+        open();
+        for (int i = 1; i <= 3; i++) {
+            assertFalse(store.append("bob", "alice:hello " + i, null));
+        }
+        restart();
+
+        TestClient bob = connect("bob", 100);
+        store.deliver(bob);
+        assertEquals(List.of("alice:hello 1", "alice:hello 2", "alice:hello 3"), bob.take(3));
+        bob.assertNothingMore();
+    }
+
+    @Test
+    void tornTailRecordIsCutOffOnRecovery() throws Exception {
+        open();
+        store.append("bob", "alice:one", null);
+        store.append("bob", "alice:two", null);
+        store.close();
+        File segment = segments()[0];
+        long committed = segment.length();
+        // Half a record: a header that promises more bytes than follow it
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(committed);
+            file.writeInt(100);
+            file.writeInt(0);
+            file.write(new byte[10]);
+        }
+
+        open();
+        assertEquals(committed, segment.length());
+        // Appends continue where the last good record ends
+        store.append("bob", "alice:three", null);
+        restart();
+
+        TestClient bob = connect("bob", 100);
+        store.deliver(bob);
+        assertEquals(List.of("alice:one", "alice:two", "alice:three"), bob.take(3));
+        bob.assertNothingMore();
+    }
+
+    @Test
+    void recordWithBadChecksumEndsRecovery() throws Exception {
+        open();
+        store.append("bob", "alice:one", null);
+        store.close();
+        long first = segments()[0].length();
+        open();
+        store.append("bob", "alice:two", null);
+        store.append("bob", "alice:three", null);
+        store.close();
+
+        // Flip a byte of the second record's message text
+        File segment = segments()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            long position = first + 8 + 8 + 8 + 2 + 3 + 2;
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xff);
+        }
+
+        open();
+        assertEquals(first, segment.length());
+        TestClient bob = connect("bob", 100);
+        store.deliver(bob);
+        assertEquals(List.of("alice:one"), bob.take(1));
+        bob.assertNothingMore();
+    }
+
+    @Test
+    void cursorsAreReplayedAfterRestart() throws Exception {
+        open();
+        for (int i = 1; i <= 3; i++) {
+            store.append("bob", "alice:" + i, null);
+        }
+        TestClient bob = connect("bob", 2);
+        store.deliver(bob);
+        assertEquals(List.of("alice:1", "alice:2"), bob.take(2));
+        bob.assertNothingMore();
+        disconnect(bob);
+        restart();
+
+        TestClient again = connect("bob", 100);
+        store.deliver(again);
+        assertEquals(List.of("alice:3"), again.take(1));
+        again.assertNothingMore();
+        disconnect(again);
+        restart();
+
+        TestClient third = connect("bob", 100);
+        store.deliver(third);
+        third.assertNothingMore();
+    }
+
+    @Test
+    void liveMessageRefusedByFullQueueStaysStored() throws Exception {
+        open();
+        TestClient bob = connect("bob", 0);
+        assertFalse(store.append("bob", "alice:first", bob));
+        assertFalse(store.append("bob", "alice:second", bob));
+        bob.assertNothingMore();
+
+        bob.room(100);
+        assertEquals(List.of("alice:first", "alice:second"), bob.take(2));
+        // Once the mailbox is empty again, messages go straight to the connection
+        bob.assertNothingMore();
+        assertTrue(store.append("bob", "alice:third", bob));
+        assertEquals(List.of("alice:third"), bob.take(1));
+    }
+
+    @Test
+    void messageForAClosingConnectionIsKeptForTheNextOne() throws Exception {
+        open();
+        TestClient closing = connect("bob", 100);
+        // Closed, but not yet taken off the client list
+        closing.disconnect();
+        assertFalse(store.append("bob", "alice:while you were leaving", closing));
+        closing.assertNothingMore();
+        disconnect(closing);
+
+        TestClient bob = connect("bob", 100);
+        store.deliver(bob);
+        assertEquals(List.of("alice:while you were leaving"), bob.take(1));
+        bob.assertNothingMore();
+    }
+
+    @Test
+    void concurrentSendersKeepTheirOrder() throws Exception {
+        open();
+        TestClient bob = connect("bob", 50);
+        int senders = 4;
+        int messages = 500;
+        ExecutorService threads = Executors.newFixedThreadPool(senders);
+        try {
+            List<Future<?>> sending = new ArrayList<>();
+            for (int sender = 0; sender < senders; sender++) {
+                String name = "user" + sender;
+                sending.add(threads.submit(() -> {
+                    for (int i = 0; i < messages; i++) {
+                        store.append("bob", name + ":" + i, bob);
+                        if (i % 100 == 0) {
+                            bob.room(100);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : sending) {
+                future.get();
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        bob.room(senders * messages);
+
+        Map<String, Integer> next = new HashMap<>();
+        for (String line : bob.take(senders * messages)) {
+            String[] parts = line.split(":");
+            assertEquals(next.getOrDefault(parts[0], 0), Integer.parseInt(parts[1]), line);
+            next.put(parts[0], Integer.parseInt(parts[1]) + 1);
+        }
+        bob.assertNothingMore();
+    }
+
+    @Test
+    void mailboxKeepsOnlyTheNewestMessages() throws Exception {
+        config.setStoreMailboxMaxMessages(3);
+        open();
+        for (int i = 1; i <= 5; i++) {
+            store.append("nobody", "alice:" + i, null);
+        }
+        restart();
+
+        TestClient client = connect("nobody", 100);
+        store.deliver(client);
+        assertEquals(List.of("alice:3", "alice:4", "alice:5"), client.take(3));
+        client.assertNothingMore();
+    }
+
+    @Test
+    void expiredMessagesAreDropped() throws Exception {
+        config.setStoreMaxAgeMinutes(0);
+        open();
+        store.append("typo", "alice:hello", null);
+        // Expiry runs with the cursor save, about once a second
+        Thread.sleep(2500);
+
+        TestClient client = connect("typo", 100);
+        store.deliver(client);
+        client.assertNothingMore();
+    }
+
+    @Test
+    void waitingMessagesAreCopiedOutOfMostlyDeliveredSegments() throws Exception {
+        config.setStoreSegmentBytes(512);
+        open();
+        store.append("bob", "alice:for bob", null);
+        TestClient carol = connect("carol", 1000);
+        for (int i = 0; i < 40; i++) {
+            store.append("carol", "alice:message number " + i + " for carol", null);
+        }
+        // Counted while carol's messages still hold their segments; once they are delivered,
+        // compaction may start at any moment
+        long committed = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (segments().length <= 3 && System.currentTimeMillis() < committed) {
+            Thread.sleep(20);
+        }
+        int before = segments().length;
+        assertTrue(before > 3, "expected several segments, got " + before);
+        store.deliver(carol);
+        carol.take(40);
+
+        // Compaction runs with the cursor save; bob's message no longer holds its segment
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (segments().length > 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertTrue(segments().length <= 2, "segments left: " + segments().length);
+
+        restart();
+        TestClient bob = connect("bob", 100);
+        store.deliver(bob);
+        assertEquals(List.of("alice:for bob"), bob.take(1));
+        bob.assertNothingMore();
+    }
+
+    @Test
+    void unreadableMessageIsQuarantinedAndStopsBlockingTheMailbox() throws Exception {
+        open();
+        store.append("bob", "alice:lost", null);
+        restart();
+        try (RandomAccessFile file = new RandomAccessFile(segments()[0], "rw")) {
+            file.setLength(10);
+        }
+
+        TestClient bob = connect("bob", 100);
+        store.deliver(bob);
+        File quarantine = new File(config.getStoreDir(), "quarantine");
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!quarantine.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(quarantine.exists());
+        assertTrue(Files.readString(quarantine.toPath()).startsWith("1\tbob\t"));
+
+        assertTrue(store.append("bob", "alice:next", bob));
+        assertEquals(List.of("alice:next"), bob.take(1));
+    }
+}
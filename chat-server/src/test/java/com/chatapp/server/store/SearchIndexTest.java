@@ -0,0 +1,168 @@
+package com.chatapp.server.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.chatapp.server.ChatServer;
+import com.chatapp.server.ServerConfig;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SearchIndexTest {
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @TempDir
+    Path dir;
+
+    private ServerConfig config;
+    private ChatServer server;
+    private HistoryStore history;
+    private SearchIndex index;
+
+    @BeforeEach
+    void setUp() {
+        config = new ServerConfig()
+                .setHistoryDir(dir.resolve("history").toString())
+                .setSearchDir(dir.resolve("search").toString())
+                .setLogDir(dir.resolve("logs").toString())
+                .setLogConsole(false);
+        server = new ChatServer(config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        close();
+        server.stop();
+    }
+
+    private void open() {
+        history = new HistoryStore(server, config);
+        index = new SearchIndex(server, config, history);
+    }
+
+    private void close() {
+        if (index != null) {
+            index.close();
+            history.close();
+            index = null;
+        }
+    }
+
+    private void restart() {
+        close();
+        open();
+    }
+
+    // Stores and indexes a message the way the server does, and waits until it is indexed
+    private void send(String sender, String receiver, String text) throws InterruptedException {
+        history.append(sender, receiver, text, id -> index.add(sender, receiver, id, text));
+        history.flush();
+    }
+
+    private List<String> search(String user, String query) {
+        List<String> texts = new ArrayList<>();
+        for (SearchIndex.Hit hit : index.search(user, query, SearchIndex.MAX_RESULTS)) {
+            texts.add(hit.peer() + ":" + history.get(user, hit.peer(), hit.messageId()).text());
+        }
+        return texts;
+    }
+
+    private List<String> manifest() throws Exception {
+        File file = dir.resolve("search").resolve("segments").toFile();
+        return file.exists() ? Files.readAllLines(file.toPath()) : List.of();
+    }
+
+    private void awaitSegments(int atLeast, int atMost) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            int count = manifest().size();
+            if (count >= atLeast && count <= atMost) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        fail("segments: " + manifest());
+    }
+
+    @Test
+    void tokenizeLowercasesAndSkipsLongRuns() {
+        assertEquals(Set.of("hello", "wörld", "42"), SearchIndex.tokenize("Hello, WÖRLD! 42 " + "x".repeat(40)));
+    }
+
+    @Test
+    void searchMatchesEveryWordWithinTheUsersOwnConversations() throws Exception {
+        open();
+        send("alice", "bob", "lunch at noon");
+        send("bob", "alice", "noon works, see you at lunch");
+        send("alice", "carol", "lunch tomorrow?");
+        send("dave", "erin", "lunch at noon for us too");
+
+        assertEquals(List.of("alice:noon works, see you at lunch", "alice:lunch at noon"), search("bob", "Lunch NOON"));
+        assertEquals(List.of("carol:lunch tomorrow?", "bob:noon works, see you at lunch", "bob:lunch at noon"),
+                search("alice", "lunch"));
+        assertEquals(List.of(), search("carol", "noon"));
+        assertEquals(List.of(), search("alice", "dinner"));
+    }
+
+    @Test
+    void resultsSurviveFlushesAndMerges() throws Exception {
+        config.setSearchFlushPostings(20);
+        open();
+        for (int i = 0; i < 200; i++) {
+            send("alice", "bob", "common word" + i);
+        }
+        // 200 messages of 2 terms for both users flush about 40 segments, which merge down
+        awaitSegments(2, 8);
+
+        assertEquals(List.of("alice:common word123"), search("bob", "word123"));
+        List<String> common = search("alice", "common");
+        assertEquals(SearchIndex.MAX_RESULTS, common.size());
+        assertEquals("bob:common word199", common.get(0));
+        assertEquals("bob:common word100", common.get(SearchIndex.MAX_RESULTS - 1));
+
+        restart();
+        assertEquals(List.of("bob:common word7"), search("alice", "common word7"));
+        assertEquals("bob:common word199", search("alice", "common").get(0));
+    }
+
+    @Test
+    void postingsInMemoryAreRebuiltAfterRestart() throws Exception {
+        config.setSearchFlushPostings(40);
+        open();
+        for (int i = 0; i < 20; i++) {
+            send("alice", "bob", "flushed" + i);
+        }
+        awaitSegments(1, 1);
+        send("alice", "bob", "still in memory");
+        send("carol", "alice", "new conversation in memory");
+        // Searchable whether or not the background thread has written its doc entries yet
+        assertEquals(List.of("alice:still in memory"), search("bob", "memory"));
+
+        restart();
+        assertEquals(List.of("carol:new conversation in memory", "bob:still in memory"), search("alice", "memory"));
+        assertEquals(List.of("bob:flushed3"), search("alice", "flushed3"));
+
+        send("alice", "carol", "after restart memory");
+        assertEquals(List.of("alice:after restart memory", "alice:new conversation in memory"), search("carol", "memory"));
+    }
+
+    @Test
+    void filesNotInTheManifestAreDeleted() throws Exception {
+        config.setSearchFlushPostings(4);
+        open();
+        send("alice", "bob", "one two");
+        awaitSegments(1, 1);
+        close();
+        File stray = SearchSegment.dictionaryFile(dir.resolve("search").toFile(), 99);
+        Files.writeString(stray.toPath(), "left over from a crash");
+
+        open();
+        assertFalse(stray.exists());
+        assertEquals(List.of("alice:one two"), search("bob", "two"));
+    }
+}
@@ -0,0 +1,128 @@
+package com.chatapp.server.store;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SearchSegmentTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void varintsRoundTrip() {
+        long[] values = {0, 1, 127, 128, 300, 16_383, 16_384, Integer.MAX_VALUE, 1L << 35, Long.MAX_VALUE, -1};
+        int[] lengths = {1, 1, 1, 2, 2, 2, 3, 5, 6, 9, 10};
+        byte[] bytes = new byte[10 * values.length];
+        int position = 0;
+        for (int i = 0; i < values.length; i++) {
+            int end = SearchSegment.putVarint(bytes, position, values[i]);
+            assertEquals(lengths[i], end - position, "length of " + values[i]);
+            position = end;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, position);
+        for (long value : values) {
+            assertEquals(value, SearchSegment.readVarint(buffer));
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    // Keys in unsigned byte order, several blocks of them, sharing long prefixes
+    private static List<byte[]> keys(int count) {
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String user = "user" + (i / 50);
+            keys.add((user + '\0' + "term" + String.format("%05d", i) + "é").getBytes(StandardCharsets.UTF_8));
+        }
+        keys.sort(Arrays::compareUnsigned);
+        return keys;
+    }
+
+    private static byte[] postings(long... docs) {
+        byte[] bytes = new byte[docs.length * 10];
+        int length = 0;
+        long last = 0;
+        for (long doc : docs) {
+            length = SearchSegment.putVarint(bytes, length, doc - last);
+            last = doc;
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+    private static long[] decode(ByteBuffer postings) {
+        List<Long> docs = new ArrayList<>();
+        long doc = 0;
+        while (postings.hasRemaining()) {
+            doc += SearchSegment.readVarint(postings);
+            docs.add(doc);
+        }
+        return docs.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    @Test
+    void segmentRoundTripsKeysAndPostings() throws Exception {
+        File directory = dir.toFile();
+        List<byte[]> keys = keys(1000);
+        Map<String, long[]> expected = new HashMap<>();
+        try (SearchSegment.Writer writer = new SearchSegment.Writer(directory, 7)) {
+            for (int i = 0; i < keys.size(); i++) {
+                long[] docs = {i + 1, i + 200, i + 100_000L, 1L << 40};
+                byte[] data = postings(docs);
+                writer.add(keys.get(i), keys.get(i).length, data, data.length);
+                expected.put(new String(keys.get(i), StandardCharsets.UTF_8), docs);
+            }
+            writer.finish(1, 1L << 40);
+        }
+
+        SearchSegment segment = SearchSegment.open(directory, 7);
+        assertEquals(7, segment.number);
+        assertEquals(1, segment.firstDoc);
+        assertEquals(1L << 40, segment.lastDoc);
+        for (byte[] key : keys) {
+            ByteBuffer postings = segment.postings(key);
+            assertNotNull(postings, new String(key, StandardCharsets.UTF_8));
+            assertArrayEquals(expected.get(new String(key, StandardCharsets.UTF_8)), decode(postings));
+        }
+
+        // Before the first key, between keys, at the end of a block and after the last key
+        assertNull(segment.postings("a".getBytes(StandardCharsets.UTF_8)));
+        assertNull(segment.postings(Arrays.copyOf(keys.get(10), keys.get(10).length - 1)));
+        assertNull(segment.postings(Arrays.copyOf(keys.get(127), keys.get(127).length + 1)));
+        assertNull(segment.postings("zzz".getBytes(StandardCharsets.UTF_8)));
+
+        SearchSegment.Cursor cursor = segment.cursor();
+        for (byte[] key : keys) {
+            assertTrue(cursor.next());
+            assertArrayEquals(key, Arrays.copyOf(cursor.key, cursor.keyLength));
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    void emptySegmentHasNoKeys() throws Exception {
+        File directory = dir.toFile();
+        try (SearchSegment.Writer writer = new SearchSegment.Writer(directory, 1)) {
+            writer.finish(1, 0);
+        }
+        SearchSegment segment = SearchSegment.open(directory, 1);
+        assertNull(segment.postings("user\0word".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(segment.cursor().next());
+    }
+
+    @Test
+    void unfinishedSegmentDoesNotOpen() throws Exception {
+        File directory = dir.toFile();
+        try (SearchSegment.Writer writer = new SearchSegment.Writer(directory, 1)) {
+            byte[] key = "user\0word".getBytes(StandardCharsets.UTF_8);
+            byte[] data = postings(1, 2);
+            writer.add(key, key.length, data, data.length);
+        }
+        assertThrows(IOException.class, () -> SearchSegment.open(directory, 1));
+    }
+}